@@ -0,0 +1,54 @@
+package server;
+
+import client.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One chat message fanned out by ChatServer.broadcast to every online
+ * client. The message is built per operation as ClientHandler does, so the
+ * encode-once cost is included; the per-recipient part is what scales with
+ * the client count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    private FakeChat chat;
+    private ClientHandler sender;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        chat = new FakeChat(clients, true);
+        sender = chat.clients.get(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        chat.shutdown();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        chat.server.broadcast(new Message(Message.Type.CHAT, sender.getUsername(), null, "are you coming to the standup?"), sender);
+    }
+}
@@ -0,0 +1,76 @@
+package server;
+
+import client.Message;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.BinaryProtocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FrameCompressor.compress on the writer's path: one batch of typical chat
+ * and join frames per call, as a writer takes them off the outbound queue.
+ * The wire bytes per batch are reported next to the time, so a level or
+ * dictionary change shows its effect on both.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    @Param({"1", "16"})
+    public int batch;
+
+    @Param({"1", "6"})
+    public int level;
+
+    private FrameCompressor compressor;
+    private ByteBuffer[] frames;
+    private final ByteBuffer[] gather = new ByteBuffer[65];
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        public long input;
+        public long output;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        compressor = new CompressorPool(level, 0, 1, new ServerMetrics()).acquire();
+        frames = new ByteBuffer[batch];
+        for (int i = 0; i < batch; i++) {
+            Message message = i % 4 == 3
+                    ? Message.system("user" + i + " has joined the chat.")
+                    : new Message(Message.Type.CHAT, "user" + i, null, "anyone up for lunch at noon? message " + i);
+            frames[i] = BinaryProtocol.encode(message, true).asReadOnlyBuffer();
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer compress(Bytes bytes) {
+        for (int i = 0; i < batch; i++) {
+            gather[i] = frames[i].duplicate();
+            bytes.input += gather[i].remaining();
+        }
+        int count = compressor.compress(gather, 0, batch);
+        for (int i = 0; i < count; i++) {
+            bytes.output += gather[i].remaining();
+        }
+        return gather[0];
+    }
+}
@@ -0,0 +1,69 @@
+package server;
+
+import client.Message;
+import protocol.BinaryProtocol;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A ChatServer with no sockets, no message log and no inbox, populated with
+ * clients on {@link FakeConnection}s. Clients log in through the real
+ * handshake and LOGIN path, so registry, presence and wire format state is
+ * exactly what a live server would hold.
+ */
+final class FakeChat {
+    private static final long LOGIN_TIMEOUT_MILLIS = 60_000;
+
+    final ChatServer server;
+    final List<ClientHandler> clients = new ArrayList<>();
+
+    FakeChat(int clientCount, boolean binary) {
+        // The server prints a line per chat message; keep the console out of the measurement
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new ChatServer(ServerConfig.fromArgs(new String[]{
+                "--demo-users=" + clientCount,
+                "--hash-iterations=1",
+                "--auth-queue=" + Math.max(1, clientCount),
+                "--log-dir=",
+                "--inbox-dir=",
+                // Benchmarks send far faster than any one client is allowed to
+                "--rate-chat=0",
+                "--rate-private=0",
+                "--rate-login=0",
+                "--fanout-budget=0",
+                // The presence thread is never started, so deltas stay pending unless a benchmark flushes them
+                "--presence-interval-ms=60000"}));
+        for (int i = 0; i < clientCount; i++) {
+            ClientHandler client = new ClientHandler(new FakeConnection(), server);
+            server.addClient(client);
+            login(client, "user" + i, binary);
+            clients.add(client);
+        }
+        long deadline = System.currentTimeMillis() + LOGIN_TIMEOUT_MILLIS;
+        for (ClientHandler client : clients) {
+            while (!client.isLoggedIn()) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Fake clients did not log in");
+                }
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private static void login(ClientHandler client, String username, boolean binary) {
+        if (binary) {
+            client.onBytes(ByteBuffer.wrap(BinaryProtocol.handshake(BinaryProtocol.VERSION)));
+            client.onBytes(BinaryProtocol.encode(new Message(Message.Type.LOGIN, username, null, "password123", null), false));
+        } else {
+            client.onBytes(ByteBuffer.wrap(("LOGIN:" + username + ":password123\n").getBytes()));
+        }
+    }
+
+    void shutdown() {
+        server.getAuthService().shutdown();
+    }
+}
@@ -0,0 +1,54 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory transport for benchmarks: frames are counted and dropped instead
+ * of queued for a socket, so a run measures the server's own work and not the
+ * kernel's.
+ */
+final class FakeConnection implements Connection {
+    private final OutboundQueue outbound = new OutboundQueue(1, OverflowPolicy.DROP_OLDEST, 0);
+    private long bytes;
+
+    @Override
+    public boolean send(ByteBuffer frame) {
+        // Read the size so the frame has to exist; nothing is copied
+        bytes += frame.remaining();
+        return true;
+    }
+
+    @Override
+    public boolean sendThenCompress(ByteBuffer frame, FrameCompressor compressor) {
+        // Nothing is written, so there is nothing to compress
+        compressor.release();
+        return send(frame);
+    }
+
+    @Override
+    public void flushQueued() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public long getWriteWaitingSince() {
+        return 0;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "fake";
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,80 @@
+package server;
+
+import client.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.BinaryProtocol;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClientHandler.onBytes on a read buffer of client traffic (80% chat, 20%
+ * private), in each wire format. Only the sender and one recipient are
+ * online, so the numbers are dominated by decoding and dispatch rather than
+ * fan-out, which BroadcastBenchmark covers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(ParseBenchmark.MESSAGES)
+public class ParseBenchmark {
+    static final int MESSAGES = 100;
+
+    @Param({"text", "binary"})
+    public String wireFormat;
+
+    private FakeChat chat;
+    private ClientHandler sender;
+    private ByteBuffer traffic;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        boolean binary = wireFormat.equals("binary");
+        chat = new FakeChat(2, binary);
+        sender = chat.clients.get(0);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            boolean chatMessage = i % 5 != 0;
+            String text = "message " + i + " about the deploy";
+            if (binary) {
+                Message message = chatMessage
+                        ? new Message(Message.Type.CHAT, null, null, text, null)
+                        : new Message(Message.Type.PRIVATE, null, "user1", text, null);
+                ByteBuffer frame = BinaryProtocol.encode(message, false);
+                bytes.write(frame.array(), 0, frame.limit());
+            } else {
+                String line = (chatMessage ? text : "PRIVATE:user1:" + text) + "\n";
+                bytes.writeBytes(line.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        traffic = ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        chat.shutdown();
+    }
+
+    @Benchmark
+    public boolean onBytes() {
+        return sender.onBytes(traffic.duplicate());
+    }
+}
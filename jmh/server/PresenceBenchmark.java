@@ -0,0 +1,70 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Online-user list building in PresenceTracker: the full snapshot a client
+ * gets at login, and the delta every client gets when someone joins and
+ * someone leaves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PresenceBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    private FakeChat chat;
+    private PresenceTracker presence;
+    private ClientHandler client;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        chat = new FakeChat(clients, true);
+        client = chat.clients.get(0);
+        // A tracker of our own, publishing straight away; the server's is never flushed
+        SessionRegistry sessions = new SessionRegistry();
+        presence = new PresenceTracker(sessions, new ServerMetrics(), 0);
+        for (ClientHandler online : chat.clients) {
+            presence.joined(online.getUsername());
+        }
+        // Registered only now, so setup does not send every client a delta per login
+        for (ClientHandler online : chat.clients) {
+            sessions.login(online, online.getUsername());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        chat.shutdown();
+    }
+
+    @Benchmark
+    public void snapshot() {
+        presence.sendSnapshot(client);
+    }
+
+    // Interval 0 publishes each change at once: two deltas, each sent to every client
+    @Benchmark
+    public void joinAndLeave() {
+        presence.joined("visitor");
+        presence.left("visitor");
+    }
+}
@@ -0,0 +1,63 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChatServer.privateMessage: recipient lookup and a single send. The cost
+ * should not grow with the number of online clients; if it does, the lookup
+ * has regressed to a scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrivateMessageBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    private FakeChat chat;
+    private ClientHandler sender;
+    private String[] recipients;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        chat = new FakeChat(clients, true);
+        sender = chat.clients.get(0);
+        recipients = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            recipients[i] = "user" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        chat.shutdown();
+    }
+
+    @Benchmark
+    public void online() {
+        chat.server.privateMessage("see you at lunch", recipients[next++ % clients], sender);
+    }
+
+    @Benchmark
+    public void offline() {
+        chat.server.privateMessage("see you at lunch", "nobody", sender);
+    }
+}
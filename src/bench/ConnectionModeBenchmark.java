@@ -0,0 +1,245 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the platform-thread and virtual-thread server modes side by side.
+ *
+ * For every mode and client count a fresh ChatServer JVM is started, the
+ * requested number of idle connections is opened against it, and a small
+ * group of logged-in probe clients exchanges timestamped broadcasts.
+ * Memory per connection is the growth of the server's resident set
+ * (read from /proc, so Linux only) divided by the number of connections.
+ *
+ * Idle connections stay logged out on purpose: every login rebroadcasts the
+ * full online-user list, which makes logging in tens of thousands of users
+ * quadratic and would measure presence traffic instead of the threading model.
+ *
+ * Usage: java bench.ConnectionModeBenchmark [--modes=threaded,virtual]
+ *        [--clients=1000,10000,50000] [--probes=20] [--messages=200] [--port=9300]
+ *
+ * 50k connections need roughly 100k file descriptors across both JVMs
+ * (ulimit -n). Client sockets are spread over 127.0.0.1-127.0.0.4 so the
+ * ephemeral port range does not run out.
+ */
+public class ConnectionModeBenchmark {
+    private static final int LOCAL_ADDRESSES = 4;
+
+    public static void main(String[] args) throws Exception {
+        List<String> modes = List.of("threaded", "virtual");
+        int[] clientCounts = {1000, 10000, 50000};
+        int probes = 20;
+        int messages = 200;
+        int port = 9300;
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--modes=")) {
+                modes = Arrays.asList(value.split(","));
+            } else if (arg.startsWith("--clients=")) {
+                clientCounts = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if (arg.startsWith("--probes=")) {
+                probes = Integer.parseInt(value);
+            } else if (arg.startsWith("--messages=")) {
+                messages = Integer.parseInt(value);
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        List<String> rows = new ArrayList<>();
+        for (int clients : clientCounts) {
+            for (String mode : modes) {
+                System.out.println("Running " + mode + " with " + clients + " clients...");
+                Result result = run(mode, port++, clients, probes, messages);
+                rows.add(result.toString());
+                System.out.println(result);
+            }
+        }
+
+        System.out.println();
+        System.out.println(Result.HEADER);
+        rows.forEach(System.out::println);
+    }
+
+    private static Result run(String mode, int port, int clients, int probes, int messages) throws Exception {
+        Process server = startServer(mode, port, probes);
+        List<SocketChannel> idle = new ArrayList<>(clients);
+        List<Probe> probeClients = new ArrayList<>();
+        try {
+            waitForPort(port);
+            Thread.sleep(500);
+            ProcessStats before = ProcessStats.of(server.pid());
+
+            long connectStart = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                SocketChannel channel = SocketChannel.open();
+                channel.bind(new InetSocketAddress("127.0.0." + (1 + i % LOCAL_ADDRESSES), 0));
+                channel.connect(new InetSocketAddress("127.0.0.1", port));
+                idle.add(channel);
+            }
+            long connectMillis = (System.nanoTime() - connectStart) / 1_000_000;
+
+            for (int i = 0; i < probes; i++) {
+                probeClients.add(new Probe(port, "user" + i, messages));
+            }
+            // Let the server settle so RSS reflects steady state, not accept churn
+            Thread.sleep(2000);
+            ProcessStats after = ProcessStats.of(server.pid());
+
+            Probe sender = probeClients.get(0);
+            for (int i = 0; i < messages; i++) {
+                sender.send("BENCH " + System.nanoTime());
+                Thread.sleep(5);
+            }
+            Thread.sleep(1000);
+
+            List<Long> latencies = new ArrayList<>();
+            for (Probe probe : probeClients.subList(1, probeClients.size())) {
+                latencies.addAll(probe.latencies());
+            }
+            return new Result(mode, clients, connectMillis, before, after, latencies);
+        } finally {
+            for (Probe probe : probeClients) {
+                probe.close();
+            }
+            for (SocketChannel channel : idle) {
+                channel.close();
+            }
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    private static Process startServer(String mode, int port, int demoUsers) throws IOException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "server.ChatServer", "--port=" + port, "--mode=" + mode, "--demo-users=" + demoUsers)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    // A logged-in client whose reader thread timestamps every BENCH broadcast
+    private static class Probe {
+        private final Socket socket;
+        private final PrintWriter writer;
+        private final long[] latencies;
+        private int count;
+
+        Probe(int port, String username, int capacity) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            writer = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+            latencies = new long[capacity];
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writer.println("LOGIN:" + username + ":password123");
+            Thread thread = new Thread(() -> {
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        long received = System.nanoTime();
+                        int marker = line.indexOf("BENCH ");
+                        if (marker >= 0) {
+                            record(received - Long.parseLong(line.substring(marker + 6)));
+                        }
+                    }
+                } catch (IOException ignored) {
+                    // Socket closed at the end of the run
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        synchronized void record(long nanos) {
+            if (count < latencies.length) {
+                latencies[count++] = nanos;
+            }
+        }
+
+        synchronized List<Long> latencies() {
+            List<Long> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                result.add(latencies[i]);
+            }
+            return result;
+        }
+
+        void send(String message) {
+            writer.println(message);
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private record ProcessStats(long rssKb, int threads) {
+        static ProcessStats of(long pid) {
+            long rss = -1;
+            int threads = -1;
+            try {
+                for (String line : Files.readAllLines(Path.of("/proc", Long.toString(pid), "status"))) {
+                    if (line.startsWith("VmRSS:")) {
+                        rss = Long.parseLong(line.replaceAll("\\D", ""));
+                    } else if (line.startsWith("Threads:")) {
+                        threads = Integer.parseInt(line.replaceAll("\\D", ""));
+                    }
+                }
+            } catch (IOException e) {
+                // Not on Linux; memory columns are reported as n/a
+            }
+            return new ProcessStats(rss, threads);
+        }
+    }
+
+    private record Result(String mode, int clients, long connectMillis,
+                          ProcessStats before, ProcessStats after, List<Long> latencies) {
+        static final String HEADER = String.format("%-9s %8s %10s %12s %10s %10s %10s %10s %8s",
+                "mode", "clients", "connect_ms", "bytes/conn", "threads", "p50_us", "p99_us", "max_us", "samples");
+
+        @Override
+        public String toString() {
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            String perConnection = before.rssKb() < 0 || after.rssKb() < 0 ? "n/a"
+                    : Long.toString((after.rssKb() - before.rssKb()) * 1024 / clients);
+            return String.format("%-9s %8d %10d %12s %10d %10s %10s %10s %8d",
+                    mode, clients, connectMillis, perConnection, after.threads(),
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0), sorted.length);
+        }
+
+        private static String percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return "n/a";
+            }
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+            return Long.toString(sorted[Math.max(0, index)] / 1000);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package bench;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory latency histogram in the style of HdrHistogram: values below
+ * 256 get a bucket each, larger ones are grouped by power of two and split
+ * into 128 linear sub-buckets, so every recorded value is kept to within
+ * 0.8% whatever its magnitude. Recording is a couple of shifts and one
+ * atomic increment, cheap enough to call from every receive thread.
+ *
+ * Units are up to the caller; the load generator records microseconds.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 128;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int MAX_EXPONENT = 56;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR_LIMIT + MAX_EXPONENT * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(indexOf(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        max.accumulateAndGet(v, Math::max);
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        // Shift so the top eight bits remain: a sub-bucket in [128, 256)
+        int exponent = 64 - Long.numberOfLeadingZeros(value) - 8;
+        int sub = (int) (value >>> exponent);
+        return LINEAR_LIMIT + (exponent - 1) * SUB_BUCKETS + sub - SUB_BUCKETS;
+    }
+
+    // Highest value that maps to the bucket, as HdrHistogram reports percentiles
+    private static long valueAt(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << exponent) - 1;
+    }
+
+    long percentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(valueAt(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    String toJson() {
+        long total = count.get();
+        return String.format(Locale.ROOT, "{\"count\": %d, \"mean\": %.1f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d}",
+                total, total == 0 ? 0.0 : (double) sum.get() / total,
+                percentile(50), percentile(90), percentile(99), percentile(99.9), max.get());
+    }
+}
@@ -0,0 +1,375 @@
+package bench;
+
+import client.ChatClient;
+import client.ChatListener;
+import client.FileOffer;
+import client.Message;
+
+import javax.net.ssl.SSLContext;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator for a running ChatServer.
+ *
+ * Simulated users are ordinary {@link ChatClient}s with a listener instead of
+ * the GUI, so they speak exactly the protocol real clients do. They are
+ * connected and logged in evenly over the ramp, then send broadcasts and
+ * private messages at fixed total rates for the measured period.
+ *
+ * Every message carries the time it was scheduled to be sent, not the time
+ * it actually went out, so a sender that falls behind shows up as latency
+ * instead of silently sending less (coordinated omission). Latency is the
+ * time until a receiving bot's reader sees the message, in microseconds.
+ * All bots share this JVM's clock, so no clock sync is needed.
+ *
+ * The report is JSON, written to --report or stdout, so runs against each
+ * server mode can be kept and compared.
+ *
+ * Usage: java bench.LoadGenerator [--host=127.0.0.1] [--port=8888] [--users=1000]
+ *        [--ramp-seconds=10] [--duration-seconds=30] [--broadcast-rate=20]
+ *        [--private-rate=200] [--message-bytes=64] [--text] [--no-compression] [--tls] [--label=nio]
+ *        [--report=report.json]
+ *
+ * With --tls every bot shares the JVM's default SSLContext, so pass
+ * -Djavax.net.ssl.trustStore for the server's certificate; sharing it also
+ * lets the ramp resume TLS sessions instead of doing a full handshake each.
+ *
+ * Users are named user0..userN-1 with the demo password, matching a server
+ * started with --demo-users=N. Every bot has its own reader thread, so large
+ * runs need a matching ulimit -u and -n. Rates per bot above the server's
+ * --rate-chat or --rate-private limits are throttled or dropped there, so
+ * raise those when measuring raw throughput with few users.
+ */
+public class LoadGenerator {
+    private static final String BROADCAST_MARKER = "LGB ";
+    private static final String PRIVATE_MARKER = "LGP ";
+    private static final int CONNECT_THREADS = 32;
+    private static final long DRAIN_MILLIS = 2000;
+
+    private String host = "127.0.0.1";
+    private int port = 8888;
+    private int users = 1000;
+    private int rampSeconds = 10;
+    private int durationSeconds = 30;
+    private double broadcastRate = 20;
+    private double privateRate = 200;
+    private int messageBytes = 64;
+    private boolean text = false;
+    private boolean compression = true;
+    private boolean tls = false;
+    private String label = "";
+    private Path report;
+
+    private final LatencyHistogram connectTimes = new LatencyHistogram();
+    private final LatencyHistogram loginTimes = new LatencyHistogram();
+    private final LatencyHistogram broadcastLatency = new LatencyHistogram();
+    private final LatencyHistogram privateLatency = new LatencyHistogram();
+    private final AtomicInteger connectFailed = new AtomicInteger();
+    // Failure reason as sent by the server, e.g. busy auth pool versus bad credentials
+    private final Map<String, LongAdder> loginFailures = new ConcurrentHashMap<>();
+    private final AtomicInteger disconnected = new AtomicInteger();
+    // Bots whose server agreed to compress
+    private final AtomicInteger compressed = new AtomicInteger();
+    private final LongAdder broadcastsSent = new LongAdder();
+    private final LongAdder privatesSent = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--host=")) {
+                generator.host = value;
+            } else if (arg.startsWith("--port=")) {
+                generator.port = Integer.parseInt(value);
+            } else if (arg.startsWith("--users=")) {
+                generator.users = Integer.parseInt(value);
+            } else if (arg.startsWith("--ramp-seconds=")) {
+                generator.rampSeconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--duration-seconds=")) {
+                generator.durationSeconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--broadcast-rate=")) {
+                generator.broadcastRate = Double.parseDouble(value);
+            } else if (arg.startsWith("--private-rate=")) {
+                generator.privateRate = Double.parseDouble(value);
+            } else if (arg.startsWith("--message-bytes=")) {
+                generator.messageBytes = Integer.parseInt(value);
+            } else if (arg.equals("--text")) {
+                generator.text = true;
+            } else if (arg.equals("--no-compression")) {
+                generator.compression = false;
+            } else if (arg.equals("--tls")) {
+                generator.tls = true;
+            } else if (arg.startsWith("--label=")) {
+                generator.label = value;
+            } else if (arg.startsWith("--report=")) {
+                generator.report = Path.of(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        generator.run();
+    }
+
+    private void run() throws Exception {
+        String startedAt = Instant.now().toString();
+        List<Bot> online = rampUp();
+        System.out.println(online.size() + " of " + users + " users logged in, sending for " + durationSeconds + "s...");
+
+        long sendStart = System.nanoTime();
+        if (online.size() > 1) {
+            sendLoad(online, sendStart + TimeUnit.SECONDS.toNanos(durationSeconds));
+        }
+        double sendSeconds = (System.nanoTime() - sendStart) / 1e9;
+        // Late deliveries still count; they are exactly the tail we want to see
+        Thread.sleep(DRAIN_MILLIS);
+
+        for (Bot bot : online) {
+            bot.client.disconnect();
+        }
+
+        String json = report(startedAt, online.size(), sendSeconds);
+        if (report != null) {
+            Files.writeString(report, json, StandardCharsets.UTF_8);
+            System.out.println("Report written to " + report);
+        } else {
+            System.out.println(json);
+        }
+    }
+
+    // Connects and logs in every user, spread evenly over the ramp; returns the ones that made it
+    private List<Bot> rampUp() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(users);
+        Bot[] bots = new Bot[users];
+        ScheduledExecutorService connectors = Executors.newScheduledThreadPool(CONNECT_THREADS);
+        long spacingNanos = TimeUnit.SECONDS.toNanos(rampSeconds) / Math.max(1, users);
+        for (int i = 0; i < users; i++) {
+            Bot bot = new Bot("user" + i, done);
+            bots[i] = bot;
+            connectors.schedule(bot::connect, i * spacingNanos, TimeUnit.NANOSECONDS);
+        }
+        // Logins that have not finished well after the ramp are counted as failed
+        if (!done.await(rampSeconds + 30L, TimeUnit.SECONDS)) {
+            System.err.println(done.getCount() + " users did not finish logging in");
+        }
+        connectors.shutdownNow();
+
+        List<Bot> online = new ArrayList<>(users);
+        for (Bot bot : bots) {
+            if (bot.loggedIn) {
+                online.add(bot);
+            } else {
+                bot.client.disconnect();
+            }
+        }
+        return online;
+    }
+
+    private void sendLoad(List<Bot> online, long endNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String padding = "x".repeat(Math.max(0, messageBytes - 24));
+        long broadcastInterval = (long) (1e9 / broadcastRate);
+        long privateInterval = (long) (1e9 / privateRate);
+        long start = System.nanoTime();
+        // A rate of zero turns that kind of message off
+        long nextBroadcast = broadcastRate > 0 ? start : Long.MAX_VALUE;
+        long nextPrivate = privateRate > 0 ? start : Long.MAX_VALUE;
+
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= endNanos) {
+                return;
+            }
+            // Catch up on everything that was due; each message keeps its scheduled time
+            while (nextBroadcast <= now) {
+                Bot sender = online.get(random.nextInt(online.size()));
+                sender.client.sendMessage(BROADCAST_MARKER + nextBroadcast + " " + padding);
+                broadcastsSent.increment();
+                nextBroadcast += broadcastInterval;
+            }
+            while (nextPrivate <= now) {
+                int from = random.nextInt(online.size());
+                int to = (from + 1 + random.nextInt(online.size() - 1)) % online.size();
+                online.get(from).client.sendPrivateMessage(online.get(to).name, PRIVATE_MARKER + nextPrivate + " " + padding);
+                privatesSent.increment();
+                nextPrivate += privateInterval;
+            }
+            LockSupport.parkNanos(Math.min(Math.min(nextBroadcast, nextPrivate), endNanos) - now);
+        }
+    }
+
+    private String report(String startedAt, int loggedIn, double sendSeconds) {
+        long broadcasts = broadcastsSent.sum();
+        long privates = privatesSent.sum();
+        long broadcastDeliveries = broadcastLatency.getCount();
+        long privateDeliveries = privateLatency.getCount();
+        // The sender does not get its own broadcast back
+        long expectedBroadcastDeliveries = broadcasts * Math.max(0, loggedIn - 1);
+        StringBuilder json = new StringBuilder("{\n");
+        field(json, "label", quote(label));
+        field(json, "started_at", quote(startedAt));
+        field(json, "host", quote(host));
+        field(json, "port", port);
+        field(json, "protocol", quote(text ? "text" : "binary"));
+        field(json, "tls", tls);
+        field(json, "compressed_sessions", compressed.get());
+        field(json, "users", users);
+        field(json, "ramp_seconds", rampSeconds);
+        field(json, "duration_seconds", durationSeconds);
+        field(json, "broadcast_rate", broadcastRate);
+        field(json, "private_rate", privateRate);
+        field(json, "message_bytes", messageBytes);
+        field(json, "logged_in", loggedIn);
+        field(json, "connect_failed", connectFailed.get());
+        field(json, "login_failed", loginFailures.values().stream().mapToLong(LongAdder::sum).sum());
+        StringJoiner reasons = new StringJoiner(", ", "{", "}");
+        loginFailures.forEach((reason, count) -> reasons.add(quote(reason) + ": " + count.sum()));
+        field(json, "login_failures", reasons);
+        field(json, "disconnected", disconnected.get());
+        field(json, "connect_us", connectTimes.toJson());
+        field(json, "login_us", loginTimes.toJson());
+        field(json, "broadcasts_sent", broadcasts);
+        field(json, "privates_sent", privates);
+        field(json, "broadcast_deliveries", broadcastDeliveries);
+        field(json, "broadcast_deliveries_expected", expectedBroadcastDeliveries);
+        field(json, "private_deliveries", privateDeliveries);
+        field(json, "sent_per_second", format((broadcasts + privates) / sendSeconds));
+        field(json, "delivered_per_second", format((broadcastDeliveries + privateDeliveries) / sendSeconds));
+        field(json, "broadcast_latency_us", broadcastLatency.toJson());
+        field(json, "private_latency_us", privateLatency.toJson());
+        json.setLength(json.length() - 2);
+        return json.append("\n}\n").toString();
+    }
+
+    private static void field(StringBuilder json, String name, Object value) {
+        json.append("  \"").append(name).append("\": ").append(value).append(",\n");
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    // Scheduled send time embedded after the marker: "<marker><nanos> <padding>"
+    private static long sentAt(String line, int marker) {
+        int start = marker + BROADCAST_MARKER.length();
+        int end = line.indexOf(' ', start);
+        return Long.parseLong(end < 0 ? line.substring(start) : line.substring(start, end));
+    }
+
+    // One simulated user; its callbacks run on the ChatClient's reader thread
+    private class Bot implements ChatListener {
+        private final String name;
+        private final ChatClient client;
+        private final CountDownLatch done;
+        private volatile boolean loggedIn;
+        private volatile long loginStart;
+
+        Bot(String name, CountDownLatch done) {
+            this.name = name;
+            this.done = done;
+            this.client = new ChatClient(this);
+            client.setUseBinaryProtocol(!text);
+            client.setUseCompression(compression);
+            if (tls) {
+                try {
+                    client.setTls(SSLContext.getDefault());
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException("TLS is missing from this JVM", e);
+                }
+            }
+        }
+
+        void connect() {
+            long start = System.nanoTime();
+            if (!client.connect(host, port)) {
+                connectFailed.incrementAndGet();
+                done.countDown();
+                return;
+            }
+            if (client.isCompressed()) {
+                compressed.incrementAndGet();
+            }
+            loginStart = System.nanoTime();
+            connectTimes.record((loginStart - start) / 1000);
+            client.login(name, "password123");
+        }
+
+        @Override
+        public void loginSuccessful() {
+            loginTimes.record((System.nanoTime() - loginStart) / 1000);
+            loggedIn = true;
+            done.countDown();
+        }
+
+        @Override
+        public void loginFailed(String reason) {
+            loginFailures.computeIfAbsent(reason, key -> new LongAdder()).increment();
+            done.countDown();
+        }
+
+        @Override
+        public void displayMessage(String message) {
+            long received = System.nanoTime();
+            // Our own "(Private to ...)" echo never went over the wire
+            if (message.startsWith("(Private to ")) {
+                return;
+            }
+            int marker = message.indexOf(BROADCAST_MARKER);
+            if (marker >= 0) {
+                broadcastLatency.record((received - sentAt(message, marker)) / 1000);
+                return;
+            }
+            marker = message.indexOf(PRIVATE_MARKER);
+            if (marker >= 0) {
+                privateLatency.record((received - sentAt(message, marker)) / 1000);
+            } else if (message.startsWith("Disconnected from server")) {
+                disconnected.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void updateOnlineUsers(String[] users) {
+        }
+
+        @Override
+        public void applyPresenceDelta(List<String> joined, List<String> left) {
+        }
+
+        @Override
+        public void roomJoined(String room) {
+        }
+
+        @Override
+        public void roomLeft(String room) {
+        }
+
+        @Override
+        public void historyPage(long beforeSequence, long nextBefore, List<Message> messages) {
+        }
+
+        @Override
+        public void fileOffered(FileOffer offer) {
+        }
+    }
+}
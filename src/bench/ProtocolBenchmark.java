@@ -0,0 +1,165 @@
+package bench;
+
+import client.Message;
+import protocol.BinaryFrameDecoder;
+import protocol.BinaryProtocol;
+import protocol.FrameView;
+import protocol.TextProtocol;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the line protocol with the binary framing on a realistic mix of
+ * traffic: 80% broadcasts, 15% private messages and 5% logins.
+ *
+ * Parse cost is measured the way the server consumes each format: text is
+ * split into lines and dispatched with startsWith/split as in
+ * ClientHandler.handleMessage, binary goes through BinaryFrameDecoder. Both
+ * paths materialise the strings the server needs for routing. Bytes on the
+ * wire are reported for both directions.
+ *
+ * Usage: java bench.ProtocolBenchmark [--messages=100000] [--rounds=20]
+ */
+public class ProtocolBenchmark {
+    private static final String[] USERS = {"anant", "rohan", "aman", "priya", "kabir", "meera"};
+    private static final String[] WORDS = {"hello", "are", "you", "coming", "to", "the", "standup",
+            "today", "yes", "ok", "deploy", "is", "done", "thanks", "see", "ya", "lunch", "?"};
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        int count = 100_000;
+        int rounds = 20;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--messages=")) {
+                count = Integer.parseInt(value);
+            } else if (arg.startsWith("--rounds=")) {
+                rounds = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        List<Message> messages = generate(count, new Random(42));
+        byte[] textInbound = encodeTextInbound(messages);
+        byte[] binaryInbound = encodeBinary(messages);
+
+        // Warm up both parsers before timing anything
+        for (int i = 0; i < 5; i++) {
+            parseText(textInbound);
+            parseBinary(binaryInbound);
+        }
+        long textNanos = Long.MAX_VALUE;
+        long binaryNanos = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            parseText(textInbound);
+            textNanos = Math.min(textNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            parseBinary(binaryInbound);
+            binaryNanos = Math.min(binaryNanos, System.nanoTime() - start);
+        }
+
+        long textOutbound = 0;
+        long binaryOutbound = 0;
+        for (Message message : messages) {
+            Message delivered = message.getType() == Message.Type.LOGIN
+                    ? new Message(Message.Type.LOGIN_SUCCESS, null, null, null)
+                    : message;
+            textOutbound += TextProtocol.toClientLine(delivered).getBytes(StandardCharsets.UTF_8).length + 1;
+            binaryOutbound += BinaryProtocol.encode(delivered, false).remaining();
+        }
+
+        System.out.printf("%-8s %14s %16s %16s%n", "format", "parse_ns/msg", "inbound_B/msg", "outbound_B/msg");
+        System.out.printf("%-8s %14.1f %16.1f %16.1f%n", "text",
+                (double) textNanos / count, (double) textInbound.length / count, (double) textOutbound / count);
+        System.out.printf("%-8s %14.1f %16.1f %16.1f%n", "binary",
+                (double) binaryNanos / count, (double) binaryInbound.length / count, (double) binaryOutbound / count);
+        System.out.println("(server-to-client binary frames also carry a millisecond timestamp the text format lacks; sink=" + sink + ")");
+    }
+
+    private static List<Message> generate(int count, Random random) {
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String sender = USERS[random.nextInt(USERS.length)];
+            StringBuilder text = new StringBuilder();
+            int words = 2 + random.nextInt(10);
+            for (int w = 0; w < words; w++) {
+                text.append(w == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            int roll = random.nextInt(100);
+            if (roll < 5) {
+                messages.add(new Message(Message.Type.LOGIN, sender, null, "password123"));
+            } else if (roll < 20) {
+                messages.add(new Message(Message.Type.PRIVATE, sender, USERS[random.nextInt(USERS.length)], text.toString()));
+            } else {
+                messages.add(new Message(Message.Type.CHAT, sender, null, text.toString()));
+            }
+        }
+        return messages;
+    }
+
+    // What clients send today: LOGIN:user:pass, PRIVATE:recipient:text, or a bare line
+    private static byte[] encodeTextInbound(List<Message> messages) {
+        StringBuilder out = new StringBuilder();
+        for (Message message : messages) {
+            switch (message.getType()) {
+                case LOGIN -> out.append(TextProtocol.LOGIN).append(message.getSender()).append(':').append(message.getContent());
+                case PRIVATE -> out.append(TextProtocol.PRIVATE).append(message.getRecipient()).append(':').append(message.getContent());
+                default -> out.append(message.getContent());
+            }
+            out.append('\n');
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Client-to-server frames as ChatClient sends them: no timestamp, sender only on LOGIN
+    private static byte[] encodeBinary(List<Message> messages) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Message message : messages) {
+            String sender = message.getType() == Message.Type.LOGIN ? message.getSender() : null;
+            Message inbound = new Message(message.getType(), sender, message.getRecipient(), message.getContent(), null);
+            ByteBuffer frame = BinaryProtocol.encode(inbound, false);
+            out.write(frame.array(), 0, frame.limit());
+        }
+        return out.toByteArray();
+    }
+
+    private static void parseText(byte[] bytes) {
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                String line = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+                start = i + 1;
+                if (line.startsWith(TextProtocol.LOGIN)) {
+                    String[] parts = line.split(":", 3);
+                    sink += parts[1].length() + parts[2].length();
+                } else if (line.startsWith(TextProtocol.PRIVATE)) {
+                    String[] parts = line.split(":", 3);
+                    sink += parts[1].length() + parts[2].length();
+                } else {
+                    sink += line.length();
+                }
+            }
+        }
+    }
+
+    private static void parseBinary(byte[] bytes) {
+        BinaryFrameDecoder decoder = new BinaryFrameDecoder(BinaryProtocol.MAX_FRAME_LENGTH);
+        decoder.decode(ByteBuffer.wrap(bytes), ProtocolBenchmark::consume);
+    }
+
+    private static void consume(FrameView frame) {
+        switch (frame.type()) {
+            case LOGIN -> sink += frame.sender().length() + frame.payload().length();
+            case PRIVATE -> sink += frame.recipient().length() + frame.payload().length();
+            default -> sink += frame.payload().length();
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package bench;
+
+import client.ChatClient;
+import client.ChatListener;
+import client.FileOffer;
+import client.Message;
+import protocol.BinaryProtocol;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures what TLS costs next to plaintext: how fast new connections can
+ * be set up, and what every message pays once they are.
+ *
+ * A throwaway keystore (EC P-256 unless --key=rsa) is generated with
+ * keytool for each run and trusted by the benchmark's clients only. Each
+ * case gets a fresh ChatServer JVM:
+ * <ul>
+ *   <li>plain: connect and exchange the protocol handshake</li>
+ *   <li>tls-full: the same, after a full TLS handshake every time</li>
+ *   <li>tls-ticket: returning clients resuming from a session ticket</li>
+ *   <li>tls-cache: the same, resumed from the server's session cache
+ *       ({@code --tls-session-tickets=false})</li>
+ * </ul>
+ * Client and server share the machine, so connections per second are
+ * bounded by both; server CPU per connection, read from /proc (Linux
+ * only), is the number to compare. The message cases send private
+ * messages from one uncompressed client to another, one at a time for
+ * latency and then with up to --window in flight for throughput; tls-storm
+ * repeats the tls case while --concurrency threads keep opening new
+ * connections with full handshakes, to show what a reconnect storm does to
+ * sessions that are already up.
+ *
+ * Usage: java bench.TlsBenchmark [--mode=threaded] [--connections=2000]
+ *        [--concurrency=8] [--messages=20000] [--message-bytes=64]
+ *        [--window=256] [--key=ec] [--port=9400]
+ */
+public class TlsBenchmark {
+    private static final String MARKER = "TLSB ";
+    private static final int LATENCY_SAMPLES = 2000;
+    private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+    private String mode = "threaded";
+    private int connections = 2000;
+    private int concurrency = 8;
+    private int messages = 20000;
+    private int messageBytes = 64;
+    private int window = 256;
+    private String key = "ec";
+    private int port = 9400;
+
+    private Path keystore;
+    private String password;
+    private SSLContext clientContext;
+
+    public static void main(String[] args) throws Exception {
+        TlsBenchmark benchmark = new TlsBenchmark();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--mode=")) {
+                benchmark.mode = value;
+            } else if (arg.startsWith("--connections=")) {
+                benchmark.connections = Integer.parseInt(value);
+            } else if (arg.startsWith("--concurrency=")) {
+                benchmark.concurrency = Integer.parseInt(value);
+            } else if (arg.startsWith("--messages=")) {
+                benchmark.messages = Integer.parseInt(value);
+            } else if (arg.startsWith("--message-bytes=")) {
+                benchmark.messageBytes = Integer.parseInt(value);
+            } else if (arg.startsWith("--window=")) {
+                benchmark.window = Integer.parseInt(value);
+            } else if (arg.startsWith("--key=")) {
+                benchmark.key = value;
+            } else if (arg.startsWith("--port=")) {
+                benchmark.port = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        benchmark.run();
+    }
+
+    private void run() throws Exception {
+        Path directory = Files.createTempDirectory("flicktalk-tls-bench");
+        try {
+            createKeystore(directory);
+            List<String> connectRows = new ArrayList<>();
+            List<String> messageRows = new ArrayList<>();
+
+            Process server = startServer(false, true);
+            try {
+                connectRows.add(connect("plain", server, false, false));
+                messageRows.add(messages("plain", server, false, false));
+            } finally {
+                stop(server);
+            }
+            server = startServer(true, true);
+            try {
+                connectRows.add(connect("tls-full", server, true, false));
+                connectRows.add(connect("tls-ticket", server, true, true));
+                messageRows.add(messages("tls", server, true, false));
+                messageRows.add(messages("tls-storm", server, true, true));
+            } finally {
+                stop(server);
+            }
+            server = startServer(true, false);
+            try {
+                connectRows.add(connect("tls-cache", server, true, true));
+            } finally {
+                stop(server);
+            }
+
+            System.out.println();
+            System.out.println(String.format("%-11s %8s %10s %9s %9s %8s %12s",
+                    "connect", "conns", "conns/s", "p50_us", "p99_us", "resumed", "cpu_us/conn"));
+            connectRows.forEach(System.out::println);
+            System.out.println();
+            System.out.println(String.format("%-11s %8s %10s %9s %9s %12s",
+                    "messages", "msgs", "msgs/s", "p50_us", "p99_us", "cpu_us/msg"));
+            messageRows.forEach(System.out::println);
+        } finally {
+            try (var files = Files.list(directory)) {
+                for (Path file : files.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    // keytool rather than code: the JDK has no public API for making a certificate
+    private void createKeystore(Path directory) throws Exception {
+        keystore = directory.resolve("server.p12");
+        byte[] secret = new byte[16];
+        new SecureRandom().nextBytes(secret);
+        password = HexFormat.of().formatHex(secret);
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "flicktalk", "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass", password, "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-validity", "2"));
+        command.addAll(key.equals("rsa") ? List.of("-keyalg", "RSA", "-keysize", "2048")
+                : List.of("-keyalg", "EC", "-groupname", "secp256r1"));
+        Process keytool = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(keytool.getInputStream().readAllBytes());
+        if (keytool.waitFor() != 0) {
+            throw new IllegalStateException("keytool failed: " + output);
+        }
+
+        KeyStore serverStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keystore)) {
+            serverStore.load(in, password.toCharArray());
+        }
+        KeyStore trusted = KeyStore.getInstance("PKCS12");
+        trusted.load(null, null);
+        trusted.setCertificateEntry("flicktalk", serverStore.getCertificate("flicktalk"));
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(trusted);
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trust.getTrustManagers(), null);
+    }
+
+    private Process startServer(boolean tls, boolean tickets) throws Exception {
+        port++;
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"),
+                "server.ChatServer", "--port=" + port, "--mode=" + mode, "--demo-users=2", "--hash-iterations=1000",
+                "--log-level=warn", "--log-dir=", "--inbox-dir=", "--resume-dir=", "--transfer-port=0",
+                "--rate-private=1000000", "--rate-private-burst=1000000"));
+        if (tls) {
+            command.addAll(List.of("--tls=true", "--tls-keystore=" + keystore, "--tls-keystore-password=" + password,
+                    "--tls-session-tickets=" + tickets));
+        }
+        Process server = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        waitForPort(server);
+        // Let the JIT see some handshakes before anything is timed
+        for (int i = 0; i < 200; i++) {
+            connectOnce(tls, i % 2 == 0);
+        }
+        return server;
+    }
+
+    private void waitForPort(Process server) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        server.destroy();
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    private static void stop(Process server) throws InterruptedException {
+        server.destroy();
+        server.waitFor();
+    }
+
+    // New connections from concurrency threads, each waiting for the protocol handshake reply before closing
+    private String connect(String label, Process server, boolean tls, boolean resume) throws Exception {
+        System.out.println("Running " + label + "...");
+        if (resume) {
+            // One full handshake to get the session the rest resume
+            connectOnce(tls, true);
+        }
+        long[] latencies = new long[connections];
+        AtomicInteger next = new AtomicInteger();
+        LongAdder resumed = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        long cpuBefore = cpuTicks(server.pid());
+        long start = System.nanoTime();
+        for (int t = 0; t < concurrency; t++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < connections) {
+                    long begin = System.nanoTime();
+                    try {
+                        if (connectOnce(tls, resume)) {
+                            resumed.increment();
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Connection failed: " + e.getMessage());
+                    }
+                    latencies[i] = System.nanoTime() - begin;
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long cpu = cpuSince(server.pid(), cpuBefore);
+        Arrays.sort(latencies);
+        return String.format("%-11s %8d %10.0f %9d %9d %7.0f%% %12s", label, connections, connections / seconds,
+                percentile(latencies, 0.50), percentile(latencies, 0.99), 100.0 * resumed.sum() / connections,
+                cpuPer(cpu, connections));
+    }
+
+    // True if TLS resumed an earlier session
+    private boolean connectOnce(boolean tls, boolean resume) throws IOException {
+        Socket socket;
+        boolean resumed = false;
+        if (tls) {
+            SSLSocket tlsSocket = (SSLSocket) clientContext.getSocketFactory().createSocket("127.0.0.1", port);
+            SSLParameters parameters = tlsSocket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            tlsSocket.setSSLParameters(parameters);
+            tlsSocket.setTcpNoDelay(true);
+            long startedMillis = System.currentTimeMillis();
+            tlsSocket.startHandshake();
+            resumed = tlsSocket.getSession().getCreationTime() < startedMillis;
+            socket = tlsSocket;
+        } else {
+            socket = new Socket("127.0.0.1", port);
+        }
+        try (socket) {
+            OutputStream out = socket.getOutputStream();
+            out.write(BinaryProtocol.handshake(BinaryProtocol.VERSION, false));
+            out.flush();
+            // Also takes in the session ticket, which follows the handshake
+            if (socket.getInputStream().readNBytes(BinaryProtocol.HANDSHAKE_LENGTH).length != BinaryProtocol.HANDSHAKE_LENGTH) {
+                throw new IOException("server closed the connection");
+            }
+            if (tls && !resume) {
+                // Forgotten, so the next connection cannot resume it
+                ((SSLSocket) socket).getSession().invalidate();
+            }
+        }
+        return resumed;
+    }
+
+    private String messages(String label, Process server, boolean tls, boolean storm) throws Exception {
+        System.out.println("Running " + label + " messages...");
+        Receiver receiver = new Receiver(window);
+        ChatClient from = login("user0", tls, new Receiver(0));
+        ChatClient to = login("user1", tls, receiver);
+        AtomicBoolean stormRunning = new AtomicBoolean(storm);
+        List<Thread> stormThreads = new ArrayList<>();
+        for (int t = 0; storm && t < concurrency; t++) {
+            stormThreads.add(Thread.ofPlatform().daemon().start(() -> {
+                while (stormRunning.get()) {
+                    try {
+                        connectOnce(true, false);
+                    } catch (IOException e) {
+                        // Turned away by a full handshake queue; keep knocking
+                    }
+                }
+            }));
+        }
+        try {
+            String padding = "x".repeat(Math.max(0, messageBytes - 24));
+
+            long[] latencies = new long[LATENCY_SAMPLES];
+            for (int i = 0; i < LATENCY_SAMPLES; i++) {
+                receiver.reserve();
+                long sent = System.nanoTime();
+                from.sendPrivateMessage("user1", MARKER + padding);
+                receiver.await();
+                latencies[i] = System.nanoTime() - sent;
+            }
+            Arrays.sort(latencies);
+
+            long cpuBefore = cpuTicks(server.pid());
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                receiver.reserve();
+                from.sendPrivateMessage("user1", MARKER + padding);
+            }
+            receiver.drain(window);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long cpu = cpuSince(server.pid(), cpuBefore);
+            return String.format("%-11s %8d %10.0f %9d %9d %12s", label, messages, messages / seconds,
+                    percentile(latencies, 0.50), percentile(latencies, 0.99), cpuPer(cpu, messages));
+        } finally {
+            stormRunning.set(false);
+            for (Thread thread : stormThreads) {
+                thread.join();
+            }
+            from.disconnect();
+            to.disconnect();
+        }
+    }
+
+    private ChatClient login(String username, boolean tls, Receiver listener) throws Exception {
+        ChatClient client = new ChatClient(listener);
+        client.setUseCompression(false);
+        client.setTls(tls ? clientContext : null);
+        if (!client.connect("127.0.0.1", port)) {
+            throw new IllegalStateException("Could not connect as " + username);
+        }
+        client.login(username, "password123");
+        if (!listener.loggedIn.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Could not log in as " + username);
+        }
+        return client;
+    }
+
+    // Counts arriving benchmark messages against a window of ones in flight
+    private static class Receiver implements ChatListener {
+        private final CountDownLatch loggedIn = new CountDownLatch(1);
+        private final Semaphore arrived = new Semaphore(0);
+        private final Semaphore inFlight;
+
+        Receiver(int window) {
+            this.inFlight = new Semaphore(window);
+        }
+
+        void await() throws InterruptedException {
+            if (!arrived.tryAcquire(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("A message did not arrive");
+            }
+        }
+
+        void reserve() throws InterruptedException {
+            if (!inFlight.tryAcquire(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Messages stopped arriving");
+            }
+        }
+
+        void drain(int window) throws InterruptedException {
+            if (!inFlight.tryAcquire(window, 10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Messages stopped arriving");
+            }
+            inFlight.release(window);
+        }
+
+        @Override
+        public void displayMessage(String message) {
+            if (message.contains(MARKER)) {
+                arrived.release();
+                inFlight.release();
+            }
+        }
+
+        @Override
+        public void loginSuccessful() {
+            loggedIn.countDown();
+        }
+
+        @Override
+        public void loginFailed(String reason) {
+        }
+
+        @Override
+        public void updateOnlineUsers(String[] users) {
+        }
+
+        @Override
+        public void applyPresenceDelta(List<String> joined, List<String> left) {
+        }
+
+        @Override
+        public void roomJoined(String room) {
+        }
+
+        @Override
+        public void roomLeft(String room) {
+        }
+
+        @Override
+        public void historyPage(long beforeSequence, long nextBefore, List<Message> messages) {
+        }
+
+        @Override
+        public void fileOffered(FileOffer offer) {
+        }
+    }
+
+    // utime + stime of the server process, in clock ticks; -1 off Linux
+    private static long cpuTicks(long pid) {
+        try {
+            String stat = Files.readString(Path.of("/proc", Long.toString(pid), "stat"));
+            // The command name may hold spaces, so count fields from after it
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static long cpuSince(long pid, long before) {
+        return before < 0 ? -1 : cpuTicks(pid) - before;
+    }
+
+    private static String cpuPer(long ticks, int count) {
+        if (ticks < 0) {
+            return "n/a";
+        }
+        return String.format("%.1f", ticks * 1e6 / CLOCK_TICKS_PER_SECOND / count);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1000;
+    }
+}
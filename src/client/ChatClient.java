@@ -1,97 +1,728 @@
 package client;
 
+import logging.Logger;
+import protocol.BinaryFrameDecoder;
+import protocol.BinaryProtocol;
+import protocol.InflatingDecoder;
+import protocol.TextProtocol;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class ChatClient {
+    private static final Logger LOG = Logger.get(ChatClient.class);
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 2000;
+    // Longer than the protocol handshake: a server in a connection storm queues TLS handshakes
+    private static final int TLS_HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    // A dropped connection is retried for this long, with backoff, before the session is given up
+    private static final long RECONNECT_WINDOW_MILLIS = 30_000;
+    private static final long RECONNECT_BACKOFF_MILLIS = 250;
+    private static final long RECONNECT_BACKOFF_MAX_MILLIS = 5_000;
+    // How long a LOGOUT waits for the server to close the connection
+    private static final long LOGOUT_TIMEOUT_MILLIS = 2_000;
+    // One thread watches every client in the process, so a thousand load-test bots cost one thread
+    private static final ScheduledExecutorService HEARTBEATS = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "chat-client-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private String serverAddress;
+    private int port;
     private Socket socket;
+    // Null for plaintext
+    private SSLContext tls;
     private PrintWriter writer;
     private BufferedReader reader;
+    private OutputStream output;
+    private InputStream input;
     private String username;
-    private final ClientGUI gui;
+    // Kept so that a session the server could not resume is logged back into
+    private String password;
+    private final ChatListener listener;
     private boolean connected = false;
+    private boolean useBinaryProtocol = true;
+    private boolean binary = false;
+    private boolean useCompression = true;
+    // Whether the server agreed to compress what it sends us
+    private boolean compressed = false;
+    // Version of the online-user list we hold; -1 until the first snapshot arrives
+    private long presenceVersion = -1;
+    private boolean presenceSyncRequested = false;
+    // Highest message log sequence received; sent with LOGIN so a reconnect only replays what we missed
+    private volatile long lastSequence;
+    // A HISTORY answer being collected: the header promised this many more messages
+    private int historyRemaining;
+    private long historyBefore;
+    private long historyNextBefore;
+    private List<Message> historyMessages;
+    // Ping a silent server after heartbeatMillis, give up on it after serverTimeoutMillis
+    private long heartbeatMillis = 30_000;
+    private long serverTimeoutMillis = 90_000;
+    private volatile long lastReceivedNanos;
+    private long lastPingNanos;
+    private ScheduledFuture<?> heartbeat;
+    // Given out by the server at login (binary protocol only); presented with streamOffset to resume after a drop
+    private volatile String resumeToken;
+    // Bytes of frames received since LOGIN_SUCCESS or RESUMED, in whole frames; receive thread only
+    private long streamOffset;
+    private boolean streaming;
+    // Files offered with sendFile, by recipient and offer, until the server answers with an id to upload under
+    private final Map<String, Path> offeredFiles = new ConcurrentHashMap<>();
+    // Files accepted with acceptFile, by id, until the server confirms they may be downloaded
+    private final Map<String, Download> acceptedFiles = new ConcurrentHashMap<>();
 
-    public ChatClient(ClientGUI gui) {
-        this.gui = gui;
+    private record Download(FileOffer offer, Path target) {
+    }
+
+    public ChatClient(ChatListener listener) {
+        this.listener = listener;
     }
 
     public boolean connect(String serverAddress, int port) {
+        this.serverAddress = serverAddress;
+        this.port = port;
+        resumeToken = null;
         try {
-            socket = new Socket(serverAddress, port);
-            writer = new PrintWriter(socket.getOutputStream(), true);
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            connected = true;
+            open();
 
             // Start a thread to receive messages
             new Thread(this::receiveMessages).start();
 
             return true;
         } catch (IOException e) {
-            gui.displayMessage("Error connecting to server: " + e.getMessage());
+            listener.displayMessage("Error connecting to server: " + e.getMessage());
             return false;
         }
     }
 
+    // Opens the socket and settles the protocol; nothing is read from it yet
+    private void open() throws IOException {
+        socket = newSocket();
+        compressed = false;
+        binary = useBinaryProtocol && negotiateBinary();
+        if (useBinaryProtocol && !binary) {
+            // An old server never answers the handshake; start over in text mode
+            socket.close();
+            socket = newSocket();
+        }
+        if (!binary) {
+            writer = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+        connected = true;
+        lastReceivedNanos = System.nanoTime();
+        lastPingNanos = lastReceivedNanos;
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
+        if (heartbeatMillis > 0) {
+            long period = Math.max(1, heartbeatMillis / 3);
+            heartbeat = HEARTBEATS.scheduleWithFixedDelay(this::checkServer, period, period, TimeUnit.MILLISECONDS);
+        }
+        streaming = false;
+    }
+
+    private Socket newSocket() throws IOException {
+        if (tls == null) {
+            return new Socket(serverAddress, port);
+        }
+        SSLSocket tlsSocket = (SSLSocket) tls.getSocketFactory().createSocket(serverAddress, port);
+        try {
+            checkHostname(tlsSocket);
+            // Otherwise the first request waits for the server to acknowledge our Finished
+            tlsSocket.setTcpNoDelay(true);
+            tlsSocket.setSoTimeout(TLS_HANDSHAKE_TIMEOUT_MILLIS);
+            tlsSocket.startHandshake();
+            tlsSocket.setSoTimeout(0);
+        } catch (IOException e) {
+            tlsSocket.close();
+            throw e;
+        }
+        return tlsSocket;
+    }
+
+    // A trusted certificate is not enough; it has to be for the host we meant to reach
+    static void checkHostname(SSLSocket socket) {
+        SSLParameters parameters = socket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        socket.setSSLParameters(parameters);
+    }
+
+    private SocketFactory socketFactory() {
+        return tls != null ? tls.getSocketFactory() : SocketFactory.getDefault();
+    }
+
+    private boolean negotiateBinary() throws IOException {
+        output = new BufferedOutputStream(socket.getOutputStream());
+        input = socket.getInputStream();
+        // This client always answers PING, so it lets the server check on it
+        output.write(BinaryProtocol.handshake(BinaryProtocol.VERSION, useCompression, true));
+        output.flush();
+
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        try {
+            byte[] reply = input.readNBytes(BinaryProtocol.HANDSHAKE_LENGTH);
+            compressed = BinaryProtocol.handshakeCompression(reply);
+            return BinaryProtocol.handshakeVersion(reply) >= 1;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    // Lets callers force the line protocol, e.g. against servers that predate the binary one
+    public void setUseBinaryProtocol(boolean useBinaryProtocol) {
+        this.useBinaryProtocol = useBinaryProtocol;
+    }
+
+    // Asks binary-protocol servers to deflate what they send; they may decline
+    public void setUseCompression(boolean useCompression) {
+        this.useCompression = useCompression;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Connects over TLS with context, for chat and file transfers alike;
+     * null, the default, connects in plaintext. Sessions are kept in the
+     * context, so sharing one across reconnects and across clients lets
+     * the server resume them instead of doing a full handshake. Takes
+     * effect on the next connect.
+     */
+    public void setTls(SSLContext context) {
+        this.tls = context;
+    }
+
+    /**
+     * After intervalMillis without hearing from the server the client sends
+     * a PING, and after timeoutMillis it treats the server as gone and drops
+     * the connection, resuming the session on a new one if it can. An
+     * interval of 0 turns this off. Takes effect on the next connect.
+     */
+    public void setHeartbeat(long intervalMillis, long timeoutMillis) {
+        this.heartbeatMillis = intervalMillis;
+        this.serverTimeoutMillis = timeoutMillis;
+    }
+
+    // Runs on the shared heartbeat thread
+    private void checkServer() {
+        if (!connected) {
+            return;
+        }
+        long now = System.nanoTime();
+        long silentMillis = TimeUnit.NANOSECONDS.toMillis(now - lastReceivedNanos);
+        if (silentMillis >= serverTimeoutMillis) {
+            LOG.debug("No data from the server for {} ms, dropping the connection", silentMillis);
+            listener.displayMessage("Server stopped responding.");
+            // The receive thread sees the socket close and reconnects
+            closeSocket();
+        } else if (silentMillis >= heartbeatMillis && TimeUnit.NANOSECONDS.toMillis(now - lastPingNanos) >= heartbeatMillis) {
+            lastPingNanos = now;
+            String token = Long.toString(TimeUnit.NANOSECONDS.toMillis(now));
+            if (binary) {
+                sendFrame(new Message(Message.Type.PING, null, null, token, null));
+            } else {
+                writer.println(TextProtocol.PING + token);
+            }
+        }
+    }
+
+    private void answerPing(String token) {
+        if (binary) {
+            sendFrame(new Message(Message.Type.PONG, null, null, token, null));
+        } else {
+            writer.println(TextProtocol.PONG + token);
+        }
+    }
+
     public boolean login(String username, String password) {
         if (!connected) {
             return false;
         }
 
         this.username = username;
-        writer.println("LOGIN:" + username + ":" + password);
+        this.password = password;
+        if (binary) {
+            sendFrame(new Message(Message.Type.LOGIN, username, null, password, null, lastSequence));
+        } else {
+            writer.println("LOGIN:" + username + ":" + password);
+        }
         return true;
     }
 
     public void sendMessage(String message) {
         if (connected && message != null && !message.trim().isEmpty()) {
-            writer.println(message);
-            System.out.println("DEBUG: Message sent: " + message); // Add this line
+            if (binary) {
+                sendFrame(new Message(Message.Type.CHAT, null, null, message, null));
+            } else {
+                writer.println(message);
+            }
+            LOG.debug("Message sent: {}", message);
         }
     }
 
     public void sendPrivateMessage(String recipient, String message) {
         if (connected && recipient != null && message != null && !message.trim().isEmpty()) {
-            writer.println("PRIVATE:" + recipient + ":" + message);
-            gui.displayMessage("(Private to " + recipient + "): " + message);
+            if (binary) {
+                sendFrame(new Message(Message.Type.PRIVATE, null, recipient, message, null));
+            } else {
+                writer.println("PRIVATE:" + recipient + ":" + message);
+            }
+            listener.displayMessage("(Private to " + recipient + "): " + message);
         }
     }
 
-    private void receiveMessages() {
-        try {
-            String message;
-            while ((message = reader.readLine()) != null) {
-                System.out.println("DEBUG: Client received: " + message); // Add this line
-                if (message.equals("LOGIN_SUCCESS")) {
-                    gui.loginSuccessful();
-                } else if (message.startsWith("LOGIN_FAILED:")) {
-                    gui.loginFailed(message.substring("LOGIN_FAILED:".length()));
-                } else if (message.startsWith("ONLINE_USERS:")) {
-                    String[] users = message.substring("ONLINE_USERS:".length()).split(",");
-                    gui.updateOnlineUsers(users);
+    public void joinRoom(String room) {
+        if (connected) {
+            if (binary) {
+                sendFrame(new Message(Message.Type.JOIN, null, null, room, null));
+            } else {
+                writer.println(TextProtocol.JOIN + room);
+            }
+        }
+    }
+
+    public void leaveRoom(String room) {
+        if (connected) {
+            if (binary) {
+                sendFrame(new Message(Message.Type.LEAVE, null, null, room, null));
+            } else {
+                writer.println(TextProtocol.LEAVE + room);
+            }
+        }
+    }
+
+    public void sendRoomMessage(String room, String message) {
+        if (connected && room != null && message != null && !message.trim().isEmpty()) {
+            if (binary) {
+                sendFrame(new Message(Message.Type.ROOM, null, room, message, null));
+            } else {
+                writer.println(TextProtocol.ROOM + room + ":" + message);
+            }
+        }
+    }
+
+    /**
+     * Asks for up to {@code limit} logged messages from before
+     * {@code beforeSequence}; they arrive through
+     * {@link ChatListener#historyPage}, not as chat. Text connections get
+     * the lines as system messages, without sender or sequence.
+     */
+    public void requestHistory(long beforeSequence, int limit) {
+        if (connected) {
+            String request = beforeSequence + ":" + limit;
+            if (binary) {
+                sendFrame(new Message(Message.Type.HISTORY, null, null, request, null));
+            } else {
+                writer.println(TextProtocol.HISTORY + request);
+            }
+        }
+    }
+
+    /**
+     * Offers a file to another user. Hashing it can take a while, so this
+     * returns at once; the upload starts when the server answers the offer,
+     * and goes over the transfer port, so chat carries on meanwhile.
+     */
+    public void sendFile(String recipient, Path file) {
+        if (!connected || recipient == null) {
+            return;
+        }
+        Thread.ofPlatform().daemon().name("file-offer").start(() -> {
+            try {
+                String request = FileOffer.request(Files.size(file), FileTransfer.sha256(file), file.getFileName().toString());
+                offeredFiles.put(recipient + ":" + request, file);
+                if (binary) {
+                    sendFrame(new Message(Message.Type.FILE_OFFER, null, recipient, request, null));
                 } else {
-                    gui.displayMessage(message);
+                    writer.println(TextProtocol.FILE_OFFER + recipient + ":" + request);
                 }
+                listener.displayMessage("Uploading " + file.getFileName() + " for " + recipient + "...");
+            } catch (IOException e) {
+                listener.displayMessage("Could not read " + file + ": " + e.getMessage());
+            }
+        });
+    }
+
+    // Says yes to a file from ChatListener.fileOffered; it is saved to target once the server confirms
+    public void acceptFile(FileOffer offer, Path target) {
+        if (connected) {
+            acceptedFiles.put(offer.id(), new Download(offer, target));
+            if (binary) {
+                sendFrame(new Message(Message.Type.FILE_ACCEPT, null, null, offer.id(), null));
+            } else {
+                writer.println(TextProtocol.FILE_ACCEPT + offer.id());
+            }
+        }
+    }
+
+    // The server gave our offer an id; the bytes go on a thread of their own
+    private void startUpload(String recipient, String content) {
+        FileOffer offer = FileOffer.parse(username, recipient, content);
+        Path file = offer != null ? offeredFiles.remove(recipient + ":" + offer.request()) : null;
+        if (file == null) {
+            return;
+        }
+        Thread.ofPlatform().daemon().name("file-upload").start(() -> {
+            try {
+                FileTransfer.upload(socketFactory(), serverAddress, offer, file);
+            } catch (IOException e) {
+                listener.displayMessage("Could not send " + offer.name() + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private void fileOffered(String sender, String content) {
+        FileOffer offer = FileOffer.parse(sender, username, content);
+        if (offer != null) {
+            listener.fileOffered(offer);
+        }
+    }
+
+    private void startDownload(String id) {
+        Download download = acceptedFiles.remove(id);
+        if (download == null) {
+            return;
+        }
+        Thread.ofPlatform().daemon().name("file-download").start(() -> {
+            try {
+                FileTransfer.download(socketFactory(), serverAddress, download.offer(), download.target());
+                listener.displayMessage("Saved " + download.offer().name() + " to " + download.target() + ".");
+            } catch (IOException e) {
+                listener.displayMessage("Could not download " + download.offer().name() + ": " + e.getMessage());
             }
+        });
+    }
+
+    // Client frames carry no timestamp; the server stamps messages on arrival
+    private synchronized void sendFrame(Message message) {
+        ByteBuffer frame = BinaryProtocol.encode(message, false);
+        try {
+            output.write(frame.array(), 0, frame.limit());
+            output.flush();
         } catch (IOException e) {
-            if (connected) {
-                System.out.println("DEBUG: Exception in receiveMessages: " + e.getMessage()); // Add this line
-                gui.displayMessage("Disconnected from server: " + e.getMessage());
+            listener.displayMessage("Error sending message: " + e.getMessage());
+        }
+    }
+
+    private void receiveMessages() {
+        while (true) {
+            String reason = "connection closed";
+            try {
+                if (binary) {
+                    receiveFrames();
+                } else {
+                    receiveLines();
+                }
+            } catch (IOException e) {
+                reason = e.getMessage();
+            }
+            if (!connected) {
+                // disconnect() closed the socket, or left it for us to close after a LOGOUT
+                closeSocket();
+                return;
+            }
+            LOG.debug("Connection lost: {}", reason);
+            if (!reconnect()) {
+                resumeToken = null;
+                listener.displayMessage("Disconnected from server: " + reason);
                 disconnect();
+                return;
             }
         }
     }
 
+    /**
+     * Reconnects after the connection dropped and asks to resume the
+     * session, so what the server sent meanwhile still arrives and nobody
+     * sees us leave. Retries with backoff for RECONNECT_WINDOW_MILLIS.
+     * Returns false if there is no session to resume or the server could
+     * not be reached; what was typed while reconnecting is lost either way.
+     */
+    private boolean reconnect() {
+        if (resumeToken == null) {
+            return false;
+        }
+        listener.displayMessage("Connection lost; reconnecting...");
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECONNECT_WINDOW_MILLIS);
+        long backoff = RECONNECT_BACKOFF_MILLIS;
+        while (connected) {
+            try {
+                open();
+                if (binary) {
+                    sendFrame(new Message(Message.Type.RESUME, username, null, resumeToken, null, streamOffset));
+                    return true;
+                }
+                // Sessions are only resumable over the binary protocol
+                closeSocket();
+                return false;
+            } catch (IOException e) {
+                LOG.debug("Reconnect failed: {}", e.getMessage());
+            }
+            if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff) - deadline > 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            backoff = Math.min(backoff * 2, RECONNECT_BACKOFF_MAX_MILLIS);
+        }
+        return false;
+    }
+
+    private void receiveLines() throws IOException {
+        String message;
+        while ((message = reader.readLine()) != null) {
+            lastReceivedNanos = System.nanoTime();
+            LOG.debug("Client received: {}", message);
+            if (message.startsWith(TextProtocol.PING)) {
+                answerPing(message.substring(TextProtocol.PING.length()));
+            } else if (message.startsWith(TextProtocol.PONG)) {
+                // Only here to show the server is alive
+            } else if (historyRemaining > 0) {
+                collectHistory(new Message(Message.Type.SYSTEM, null, null, message, null));
+            } else if (message.equals("LOGIN_SUCCESS")) {
+                listener.loginSuccessful();
+            } else if (message.startsWith("LOGIN_FAILED:")) {
+                listener.loginFailed(message.substring("LOGIN_FAILED:".length()));
+            } else if (message.startsWith("ONLINE_USERS:")) {
+                // Line clients always get the whole list, without versions
+                String users = message.substring("ONLINE_USERS:".length());
+                listener.updateOnlineUsers(users.isEmpty() ? new String[0] : users.split(","));
+            } else if (message.startsWith(TextProtocol.JOIN)) {
+                listener.roomJoined(message.substring(TextProtocol.JOIN.length()));
+            } else if (message.startsWith(TextProtocol.LEAVE)) {
+                listener.roomLeft(message.substring(TextProtocol.LEAVE.length()));
+            } else if (message.startsWith(TextProtocol.HISTORY)) {
+                startHistory(message.substring(TextProtocol.HISTORY.length()));
+            } else if (message.startsWith(TextProtocol.FILE_OFFER) || message.startsWith(TextProtocol.FILE_UPLOAD)) {
+                String[] parts = message.split(":", 3);
+                if (parts.length == 3 && message.startsWith(TextProtocol.FILE_OFFER)) {
+                    fileOffered(parts[1], parts[2]);
+                } else if (parts.length == 3) {
+                    startUpload(parts[1], parts[2]);
+                }
+            } else if (message.startsWith(TextProtocol.FILE_ACCEPT)) {
+                startDownload(message.substring(TextProtocol.FILE_ACCEPT.length()));
+            } else if (message.startsWith(TextProtocol.ROOM)) {
+                String[] parts = message.split(":", 4);
+                if (parts.length == 4) {
+                    listener.displayMessage(roomLine(parts[1], parts[2], parts[3]));
+                }
+            } else {
+                listener.displayMessage(message);
+            }
+        }
+    }
+
+    private void receiveFrames() throws IOException {
+        BinaryFrameDecoder decoder = new BinaryFrameDecoder(BinaryProtocol.MAX_FRAME_LENGTH);
+        BinaryFrameDecoder.FrameHandler handler = frame -> {
+            // The reply that starts the stream is not part of it, so whether to count is decided first
+            boolean counted = streaming;
+            int length = frame.wireLength();
+            handleMessage(frame.toMessage());
+            if (counted) {
+                streamOffset += length;
+            }
+        };
+        byte[] chunk = new byte[8192];
+        int read;
+        try (InflatingDecoder inflating = compressed ? new InflatingDecoder() : null) {
+            while ((read = input.read(chunk)) != -1) {
+                lastReceivedNanos = System.nanoTime();
+                ByteBuffer bytes = ByteBuffer.wrap(chunk, 0, read);
+                if (!(inflating != null ? inflating.decode(bytes, decoder, handler) : decoder.decode(bytes, handler))) {
+                    throw new IOException("Malformed frame from server");
+                }
+            }
+        }
+    }
+
+    private void handleMessage(Message message) {
+        LOG.debug("Client received: {}", message);
+        if (message.getType() == Message.Type.PING) {
+            answerPing(message.getContent());
+            return;
+        }
+        if (message.getType() == Message.Type.PONG) {
+            return;
+        }
+        if (historyRemaining > 0) {
+            collectHistory(message);
+            return;
+        }
+        if (message.getSequence() > lastSequence) {
+            lastSequence = message.getSequence();
+        }
+        switch (message.getType()) {
+            case LOGIN_SUCCESS -> {
+                String token = message.getContent();
+                resumeToken = token == null || token.isEmpty() ? null : token;
+                streaming = true;
+                streamOffset = 0;
+                listener.loginSuccessful();
+            }
+            case RESUMED -> {
+                // Everything after streamOffset follows
+                resumeToken = message.getContent();
+                streaming = true;
+                listener.displayMessage("Reconnected.");
+            }
+            case RESUME_FAILED -> {
+                resumeToken = null;
+                listener.displayMessage("Could not resume the session (" + message.getContent() + "); logging in again.");
+                login(username, password);
+            }
+            case LOGIN_FAILED -> listener.loginFailed(message.getContent());
+            case ONLINE_USERS -> applyPresenceSnapshot(message.getContent());
+            case PRESENCE -> applyPresenceDelta(message.getContent());
+            case INBOX -> acknowledgeInbox(message.getContent());
+            case JOIN -> listener.roomJoined(message.getContent());
+            case LEAVE -> listener.roomLeft(message.getContent());
+            case HISTORY -> startHistory(message.getContent());
+            case FILE_UPLOAD -> startUpload(message.getRecipient(), message.getContent());
+            case FILE_OFFER -> fileOffered(message.getSender(), message.getContent());
+            case FILE_ACCEPT -> startDownload(message.getContent());
+            case ROOM -> listener.displayMessage(roomLine(message.getRecipient(), message.getSender(), message.getContent()));
+            default -> listener.displayMessage(TextProtocol.toClientLine(message));
+        }
+    }
+
+    private static String roomLine(String room, String sender, String text) {
+        return "[#" + room + "] " + sender + ": " + text;
+    }
+
+    // Marker format: lastSequence:remaining; the server sends the next batch once we acknowledge
+    private void acknowledgeInbox(String marker) {
+        String sequence = marker.substring(0, marker.indexOf(':'));
+        sendFrame(new Message(Message.Type.INBOX_ACK, null, null, sequence, null));
+    }
+
+    // Header format: before:nextBefore:count; the count messages that follow belong to the page
+    private void startHistory(String header) {
+        String[] parts = header.split(":");
+        historyBefore = Long.parseLong(parts[0]);
+        historyNextBefore = Long.parseLong(parts[1]);
+        historyRemaining = Integer.parseInt(parts[2]);
+        historyMessages = new ArrayList<>(historyRemaining);
+        if (historyRemaining == 0) {
+            listener.historyPage(historyBefore, historyNextBefore, historyMessages);
+        }
+    }
+
+    private void collectHistory(Message message) {
+        historyMessages.add(message);
+        if (--historyRemaining == 0) {
+            listener.historyPage(historyBefore, historyNextBefore, historyMessages);
+            historyMessages = null;
+        }
+    }
+
+    // Snapshot format: version:alice,bob
+    private void applyPresenceSnapshot(String snapshot) {
+        int colon = snapshot.indexOf(':');
+        presenceVersion = Long.parseLong(snapshot.substring(0, colon));
+        presenceSyncRequested = false;
+        String users = snapshot.substring(colon + 1);
+        listener.updateOnlineUsers(users.isEmpty() ? new String[0] : users.split(","));
+    }
+
+    // Delta format: version:+alice,-bob, binary protocol only; a gap in versions means we missed one and need a snapshot
+    private void applyPresenceDelta(String delta) {
+        int colon = delta.indexOf(':');
+        long version = Long.parseLong(delta.substring(0, colon));
+        if (presenceVersion < 0 || version <= presenceVersion) {
+            return;
+        }
+        if (version != presenceVersion + 1) {
+            if (!presenceSyncRequested) {
+                presenceSyncRequested = true;
+                sendFrame(new Message(Message.Type.SYNC_PRESENCE, null, null, null, null));
+            }
+            return;
+        }
+        presenceVersion = version;
+
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (String change : delta.substring(colon + 1).split(",")) {
+            if (change.length() > 1) {
+                (change.charAt(0) == '+' ? joined : left).add(change.substring(1));
+            }
+        }
+        listener.applyPresenceDelta(joined, left);
+    }
+
     public void disconnect() {
+        boolean loggingOut = connected && binary && resumeToken != null;
+        resumeToken = null;
         connected = false;
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
+        if (loggingOut) {
+            // Leaving on purpose, so the server need not hold the session for us. Closing
+            // with unread data would reset the connection and could lose the LOGOUT, so the
+            // receive thread reads until the server closes, and closes the socket then
+            sendFrame(new Message(Message.Type.LOGOUT, null, null, null, null));
+            Socket closing = socket;
+            try {
+                closing.shutdownOutput();
+            } catch (IOException e) {
+                LOG.debug("Error shutting down output: {}", e.getMessage());
+            }
+            HEARTBEATS.schedule(() -> closeSocket(closing), LOGOUT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
         try {
             if (socket != null) {
                 socket.close();
             }
         } catch (IOException e) {
-            gui.displayMessage("Error disconnecting: " + e.getMessage());
+            listener.displayMessage("Error disconnecting: " + e.getMessage());
+        }
+    }
+
+    private void closeSocket() {
+        closeSocket(socket);
+    }
+
+    private void closeSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOG.debug("Error closing socket: {}", e.getMessage());
         }
     }
 
@@ -102,4 +733,4 @@ public class ChatClient {
     public String getUsername() {
         return username;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,37 @@
+package client;
+
+import java.util.List;
+
+/**
+ * Receives everything a {@link ChatClient} gets from the server. The GUI is
+ * one implementation; headless clients such as the load generator are
+ * another. Callbacks run on the client's receive thread.
+ */
+public interface ChatListener {
+    void loginSuccessful();
+
+    void loginFailed(String reason);
+
+    // Chat, private and system messages, already formatted for display
+    void displayMessage(String message);
+
+    // Full list, received at login or after a presence version gap
+    void updateOnlineUsers(String[] users);
+
+    // Incremental presence change
+    void applyPresenceDelta(List<String> joined, List<String> left);
+
+    void roomJoined(String room);
+
+    void roomLeft(String room);
+
+    /**
+     * A page of history asked for with {@link ChatClient#requestHistory},
+     * oldest first. {@code nextBefore} continues further back, or is 0 once
+     * the start of the server's log is reached.
+     */
+    void historyPage(long beforeSequence, long nextBefore, List<Message> messages);
+
+    // Another user wants to send us a file; take it with ChatClient#acceptFile, or ignore it
+    void fileOffered(FileOffer offer);
+}
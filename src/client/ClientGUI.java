@@ -1,5 +1,6 @@
 package client;
 
+import javax.net.ssl.SSLContext;
 import javax.swing.*;
 import javax.swing.text.*;
 import java.awt.*;
@@ -7,8 +8,22 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ClientGUI implements ChatListener {
+    private static final String EVERYONE = "Everyone";
+    // Incoming messages are written to the chat pane at most once per frame
+    private static final int FLUSH_INTERVAL_MILLIS = 16;
+    private static final AttributeSet MY_MESSAGE = bubbleStyle(true);
+    private static final AttributeSet OTHER_MESSAGE = bubbleStyle(false);
 
-public class ClientGUI {
     private final JFrame frame;
     private final JTextPane chatArea;
     private final JTextField messageField;
@@ -22,11 +37,37 @@ public class ClientGUI {
     private final JList<String> userList;
     private final DefaultListModel<String> userListModel;
     private final JButton privateMessageButton;
+    private final JButton sendFileButton;
+    // Where typed messages go: everyone, or one of the rooms we are in
+    private final JComboBox<String> roomSelector;
+    private final DefaultComboBoxModel<String> roomModel;
+    private final JButton joinRoomButton;
+    private final JButton leaveRoomButton;
+    // Swaps the live chat pane for the paged history list
+    private final JToggleButton historyButton;
+    private final JPanel chatPanel;
+    private final CardLayout chatCards;
+    private final JList<Message> historyList;
+    private final JScrollPane historyScrollPane;
+    private final HistoryListModel historyModel;
 
     private final ChatClient client;
 
+    // Messages waiting for the next flush, queued from the receive thread
+    private final Queue<String> pendingMessages = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Timer flushTimer;
+    // Oldest messages are trimmed past this; -Dflicktalk.gui.max-messages
+    private final int maxMessages = Math.max(1, Integer.getInteger("flicktalk.gui.max-messages", 5000));
+    // Document length of each message still in the chat pane, oldest first
+    private final ArrayDeque<Integer> messageLengths = new ArrayDeque<>();
+
     public ClientGUI() {
         client = new ChatClient(this);
+        flushTimer = new Timer(FLUSH_INTERVAL_MILLIS, e -> flushMessages());
+        flushTimer.setRepeats(false);
+        // A restart while the previous flush is still running must not be folded into it
+        flushTimer.setCoalesce(false);
 
         // Create the main window
         frame = new JFrame("Fick Talk");
@@ -55,14 +96,25 @@ public class ClientGUI {
         connectionPanel.add(passwordField);
         connectionPanel.add(loginButton);
 
-        // Chat panel (center)
-        JPanel chatPanel = new JPanel(new BorderLayout());
+        // Chat panel (center): the live pane, or the history list in its place
+        chatCards = new CardLayout();
+        chatPanel = new JPanel(chatCards);
         chatArea = new JTextPane();
         chatArea.setEditable(false);
         chatArea.setBackground(new Color(250, 250, 250));
         chatArea.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        // Extra padding for bubble effect
+        chatArea.setMargin(new Insets(12, 12, 12, 12));
         JScrollPane chatScrollPane = new JScrollPane(chatArea);
-        chatPanel.add(chatScrollPane, BorderLayout.CENTER);
+        chatPanel.add(chatScrollPane, "live");
+
+        // Rows are all one height, so the list only ever renders the visible ones
+        historyModel = new HistoryListModel(client);
+        historyList = new JList<>(historyModel);
+        historyList.setBackground(new Color(250, 250, 250));
+        historyScrollPane = new JScrollPane(historyList);
+        historyScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> loadOlderHistoryIfNearTop());
+        chatPanel.add(historyScrollPane, "history");
 
         // User list (right)
         userListModel = new DefaultListModel<>();
@@ -71,11 +123,16 @@ public class ClientGUI {
         userScrollPane.setPreferredSize(new Dimension(150, 0));
         privateMessageButton = new JButton("PM");
         privateMessageButton.setEnabled(false);
+        sendFileButton = new JButton("File");
+        sendFileButton.setEnabled(false);
+        JPanel userButtons = new JPanel(new GridLayout(1, 2, 4, 0));
+        userButtons.add(privateMessageButton);
+        userButtons.add(sendFileButton);
 
         JPanel userPanel = new JPanel(new BorderLayout());
         userPanel.add(new JLabel("Online Users:"), BorderLayout.NORTH);
         userPanel.add(userScrollPane, BorderLayout.CENTER);
-        userPanel.add(privateMessageButton, BorderLayout.SOUTH);
+        userPanel.add(userButtons, BorderLayout.SOUTH);
 
         // Message panel (bottom)
         JPanel messagePanel = new JPanel(new BorderLayout());
@@ -83,6 +140,21 @@ public class ClientGUI {
         messageField.setEnabled(false);
         sendButton = new JButton("Send");
         sendButton.setEnabled(false);
+        roomModel = new DefaultComboBoxModel<>(new String[] {EVERYONE});
+        roomSelector = new JComboBox<>(roomModel);
+        roomSelector.setEnabled(false);
+        joinRoomButton = new JButton("Join");
+        joinRoomButton.setEnabled(false);
+        leaveRoomButton = new JButton("Leave");
+        leaveRoomButton.setEnabled(false);
+        historyButton = new JToggleButton("History");
+        historyButton.setEnabled(false);
+        JPanel roomPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 0));
+        roomPanel.add(roomSelector);
+        roomPanel.add(joinRoomButton);
+        roomPanel.add(leaveRoomButton);
+        roomPanel.add(historyButton);
+        messagePanel.add(roomPanel, BorderLayout.WEST);
         messagePanel.add(messageField, BorderLayout.CENTER);
         messagePanel.add(sendButton, BorderLayout.EAST);
 
@@ -100,6 +172,11 @@ public class ClientGUI {
         loginButton.addActionListener(e -> login());
         sendButton.addActionListener(e -> sendMessage());
         privateMessageButton.addActionListener(e -> sendPrivateMessage());
+        sendFileButton.addActionListener(e -> sendFile());
+        joinRoomButton.addActionListener(e -> joinRoom());
+        leaveRoomButton.addActionListener(e -> leaveRoom());
+        historyButton.addActionListener(e -> toggleHistory());
+        roomSelector.addActionListener(e -> leaveRoomButton.setEnabled(selectedRoom() != null));
 
         messageField.addKeyListener(new KeyAdapter() {
             @Override
@@ -141,8 +218,8 @@ public class ClientGUI {
         userList.setBackground(userListColor);
 
         // Buttons
-        JButton[] buttons = {connectButton, loginButton, sendButton, privateMessageButton};
-        for (JButton button : buttons) {
+        AbstractButton[] buttons = {connectButton, loginButton, sendButton, privateMessageButton, sendFileButton, joinRoomButton, leaveRoomButton, historyButton};
+        for (AbstractButton button : buttons) {
             button.setBackground(buttonColor);
             button.setForeground(buttonTextColor);
             button.setFocusPainted(false);
@@ -169,6 +246,16 @@ public class ClientGUI {
             return;
         }
 
+        // -Dflicktalk.tls=true, trusting the certificates in -Djavax.net.ssl.trustStore
+        if (Boolean.getBoolean("flicktalk.tls")) {
+            try {
+                client.setTls(SSLContext.getDefault());
+            } catch (NoSuchAlgorithmException e) {
+                displayMessage("TLS is not available: " + e.getMessage());
+                return;
+            }
+        }
+
         connectButton.setEnabled(false);
         displayMessage("Connecting to " + server + ":" + port + "...");
 
@@ -204,15 +291,21 @@ public class ClientGUI {
         }
     }
 
+    @Override
     public void loginSuccessful() {
         SwingUtilities.invokeLater(() -> {
             messageField.setEnabled(true);
             sendButton.setEnabled(true);
             privateMessageButton.setEnabled(true);
+            sendFileButton.setEnabled(true);
+            roomSelector.setEnabled(true);
+            joinRoomButton.setEnabled(true);
+            historyButton.setEnabled(true);
             displayMessage("Login successful. Welcome to the chat!");
         });
     }
 
+    @Override
     public void loginFailed(String reason) {
         SwingUtilities.invokeLater(() -> {
             loginButton.setEnabled(true);
@@ -225,12 +318,101 @@ public class ClientGUI {
     private void sendMessage() {
         String message = messageField.getText().trim();
         if (!message.isEmpty()) {
-            client.sendMessage(message);
-            displayMessage("(Me): " + message);
+            String room = selectedRoom();
+            if (room == null) {
+                client.sendMessage(message);
+                displayMessage("(Me): " + message);
+            } else {
+                client.sendRoomMessage(room, message);
+                displayMessage("(Me): [#" + room + "] " + message);
+            }
             messageField.setText("");
         }
     }
 
+    // Null when messages go to everyone
+    private String selectedRoom() {
+        Object selected = roomSelector.getSelectedItem();
+        return selected == null || EVERYONE.equals(selected) ? null : selected.toString().substring(1);
+    }
+
+    private void joinRoom() {
+        String room = JOptionPane.showInputDialog(frame, "Room to join");
+        if (room != null && !room.trim().isEmpty()) {
+            client.joinRoom(room.trim());
+        }
+    }
+
+    private void leaveRoom() {
+        String room = selectedRoom();
+        if (room != null) {
+            client.leaveRoom(room);
+        }
+    }
+
+    // The server confirmed a JOIN; the room becomes selectable and selected
+    @Override
+    public void roomJoined(String room) {
+        SwingUtilities.invokeLater(() -> {
+            String item = "#" + room;
+            if (roomModel.getIndexOf(item) < 0) {
+                roomModel.addElement(item);
+            }
+            roomSelector.setSelectedItem(item);
+            displayMessage("You joined #" + room);
+        });
+    }
+
+    @Override
+    public void roomLeft(String room) {
+        SwingUtilities.invokeLater(() -> {
+            roomModel.removeElement("#" + room);
+            displayMessage("You left #" + room);
+        });
+    }
+
+    // Opening the history starts from the newest logged message and pages back from there
+    private void toggleHistory() {
+        if (!historyButton.isSelected()) {
+            chatCards.show(chatPanel, "live");
+            return;
+        }
+        historyList.setCellRenderer(new MessageCellRenderer(client.getUsername()));
+        historyList.setPrototypeCellValue(MessageCellRenderer.PROTOTYPE);
+        // Narrower than any window, so rows stretch to the viewport instead of scrolling sideways
+        historyList.setFixedCellWidth(100);
+        historyModel.reset(Long.MAX_VALUE);
+        chatCards.show(chatPanel, "history");
+    }
+
+    @Override
+    public void historyPage(long beforeSequence, long nextBefore, List<Message> messages) {
+        SwingUtilities.invokeLater(() -> {
+            JViewport viewport = historyScrollPane.getViewport();
+            Point position = viewport.getViewPosition();
+            int added = historyModel.pageLoaded(beforeSequence, nextBefore, messages);
+            if (added == 0) {
+                return;
+            }
+            historyScrollPane.validate();
+            if (historyModel.getSize() == added) {
+                historyList.ensureIndexIsVisible(added - 1);
+            } else {
+                // Rows went in above the view; move down by as much so what the user reads stays put
+                viewport.setViewPosition(new Point(position.x, position.y + added * historyList.getFixedCellHeight()));
+            }
+            loadOlderHistoryIfNearTop();
+        });
+    }
+
+    // Within half a page of the top, or the list does not fill the view yet
+    private void loadOlderHistoryIfNearTop() {
+        if (historyButton.isSelected() && historyModel.getSize() > 0
+                && historyScrollPane.getVerticalScrollBar().getValue() < historyList.getFixedCellHeight() * HistoryListModel.PAGE_SIZE / 2) {
+            historyModel.loadOlder();
+        }
+    }
+
     private void sendPrivateMessage() {
         String selectedUser = userList.getSelectedValue();
         if (selectedUser == null) {
@@ -249,45 +431,133 @@ public class ClientGUI {
         }
     }
 
-    public void displayMessage(String message) {
+    private void sendFile() {
+        String selectedUser = userList.getSelectedValue();
+        if (selectedUser == null) {
+            JOptionPane.showMessageDialog(frame, "Please select a user from the list");
+            return;
+        }
+
+        if (selectedUser.equals(client.getUsername())) {
+            JOptionPane.showMessageDialog(frame, "You cannot send a file to yourself");
+            return;
+        }
+
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Send a file to " + selectedUser);
+        if (chooser.showOpenDialog(frame) == JFileChooser.APPROVE_OPTION) {
+            client.sendFile(selectedUser, chooser.getSelectedFile().toPath());
+        }
+    }
+
+    // Asks whether to take the file and where to put it; saying no just lets the offer lapse on the server
+    @Override
+    public void fileOffered(FileOffer offer) {
         SwingUtilities.invokeLater(() -> {
-            StyledDocument doc = chatArea.getStyledDocument();
-            SimpleAttributeSet attributes = new SimpleAttributeSet();
-
-            boolean isMyMessage = message.startsWith("(Me):") || message.contains("to [");
-
-            // Simulate rounded bubble background colors
-            Color bubbleColor = isMyMessage ? new Color(220, 248, 198) : new Color(255, 255, 255);
-            Color textColor = Color.BLACK;
-
-            // Apply styles for rounded corners
-            StyleConstants.setForeground(attributes, textColor);
-            StyleConstants.setBackground(attributes, bubbleColor);
-            StyleConstants.setLeftIndent(attributes, isMyMessage ? 100 : 10);
-            StyleConstants.setRightIndent(attributes, isMyMessage ? 10 : 100);
-            StyleConstants.setAlignment(attributes, isMyMessage ? StyleConstants.ALIGN_RIGHT : StyleConstants.ALIGN_LEFT);
-            StyleConstants.setSpaceAbove(attributes, 5);
-            StyleConstants.setSpaceBelow(attributes, 5);
-            StyleConstants.setFontSize(attributes, 14);
-            StyleConstants.setFontFamily(attributes, "Segoe UI");
-
-            // Extra padding for bubble effect
-            chatArea.setMargin(new Insets(12, 12,12, 12));
-
-            // Use a custom background with rounded corners (workaround)
-            try {
-                int length = doc.getLength();
-                doc.insertString(length, message + "\n", attributes);
-                doc.setParagraphAttributes(length, message.length(), attributes, false);
-                chatArea.setCaretPosition(doc.getLength());
-            } catch (BadLocationException e) {
-                e.printStackTrace();
+            int answer = JOptionPane.showConfirmDialog(frame, offer.sender() + " wants to send you " + offer.describe() + ". Accept?",
+                    "Incoming file", JOptionPane.YES_NO_OPTION);
+            if (answer != JOptionPane.YES_OPTION) {
+                displayMessage("Declined " + offer.name() + " from " + offer.sender() + ".");
+                return;
+            }
+            JFileChooser chooser = new JFileChooser();
+            chooser.setDialogTitle("Save " + offer.name());
+            chooser.setSelectedFile(new File(offer.name()));
+            if (chooser.showSaveDialog(frame) == JFileChooser.APPROVE_OPTION) {
+                client.acceptFile(offer, chooser.getSelectedFile().toPath());
+                displayMessage("Downloading " + offer.name() + " from " + offer.sender() + "...");
             }
         });
     }
 
+    // Called from any thread; the message shows up with the next flush
+    @Override
+    public void displayMessage(String message) {
+        pendingMessages.add(message);
+        if (flushScheduled.compareAndSet(false, true)) {
+            flushTimer.restart();
+        }
+    }
+
+    // Appends everything queued since the last flush in one pass, on the EDT
+    private void flushMessages() {
+        flushScheduled.set(false);
+        List<String> batch = new ArrayList<>();
+        String message;
+        while ((message = pendingMessages.poll()) != null) {
+            batch.add(message);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        // Anything beyond the cap would be trimmed straight away, so skip inserting it
+        if (batch.size() > maxMessages) {
+            batch = batch.subList(batch.size() - maxMessages, batch.size());
+        }
+
+        StyledDocument doc = chatArea.getStyledDocument();
+        try {
+            // Consecutive messages with the same bubble style go in with one insert
+            StringBuilder run = new StringBuilder();
+            AttributeSet runStyle = null;
+            for (String line : batch) {
+                AttributeSet style = isMyMessage(line) ? MY_MESSAGE : OTHER_MESSAGE;
+                if (style != runStyle && run.length() > 0) {
+                    append(doc, run, runStyle);
+                }
+                runStyle = style;
+                run.append(line).append('\n');
+                messageLengths.add(line.length() + 1);
+            }
+            append(doc, run, runStyle);
+            trimMessages(doc);
+            chatArea.setCaretPosition(doc.getLength());
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void append(StyledDocument doc, StringBuilder text, AttributeSet style) throws BadLocationException {
+        int offset = doc.getLength();
+        doc.insertString(offset, text.toString(), style);
+        doc.setParagraphAttributes(offset, text.length() - 1, style, false);
+        text.setLength(0);
+    }
 
+    // Drops the oldest messages in one removal once the cap is passed, with some slack so this is not every flush
+    private void trimMessages(StyledDocument doc) throws BadLocationException {
+        if (messageLengths.size() <= maxMessages) {
+            return;
+        }
+        int keep = maxMessages - maxMessages / 10;
+        int length = 0;
+        while (messageLengths.size() > keep) {
+            length += messageLengths.poll();
+        }
+        doc.remove(0, Math.min(length, doc.getLength()));
+    }
+
+    private static boolean isMyMessage(String message) {
+        return message.startsWith("(Me):") || message.contains("to [");
+    }
 
+    private static AttributeSet bubbleStyle(boolean mine) {
+        // Simulate rounded bubble background colors
+        SimpleAttributeSet attributes = new SimpleAttributeSet();
+        StyleConstants.setForeground(attributes, Color.BLACK);
+        StyleConstants.setBackground(attributes, mine ? new Color(220, 248, 198) : new Color(255, 255, 255));
+        StyleConstants.setLeftIndent(attributes, mine ? 100 : 10);
+        StyleConstants.setRightIndent(attributes, mine ? 10 : 100);
+        StyleConstants.setAlignment(attributes, mine ? StyleConstants.ALIGN_RIGHT : StyleConstants.ALIGN_LEFT);
+        StyleConstants.setSpaceAbove(attributes, 5);
+        StyleConstants.setSpaceBelow(attributes, 5);
+        StyleConstants.setFontSize(attributes, 14);
+        StyleConstants.setFontFamily(attributes, "Segoe UI");
+        return attributes.copyAttributes();
+    }
+
+    // Full list, received at login or after a presence version gap
+    @Override
     public void updateOnlineUsers(String[] users) {
         SwingUtilities.invokeLater(() -> {
             userListModel.clear();
@@ -299,6 +569,21 @@ public class ClientGUI {
         });
     }
 
+    // Incremental presence change; touches only the affected rows
+    @Override
+    public void applyPresenceDelta(List<String> joined, List<String> left) {
+        SwingUtilities.invokeLater(() -> {
+            for (String user : left) {
+                userListModel.removeElement(user);
+            }
+            for (String user : joined) {
+                if (!userListModel.contains(user)) {
+                    userListModel.addElement(user);
+                }
+            }
+        });
+    }
+
     public static void main(String[] args) {
         SwingUtilities.invokeLater(ClientGUI::new);
     }
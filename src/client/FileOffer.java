@@ -0,0 +1,90 @@
+package client;
+
+import java.util.Locale;
+
+/**
+ * A file one user is sending another. Only this description travels on
+ * the chat connection; the bytes go over the server's transfer port (see
+ * {@link protocol.TransferProtocol}) under the id. Ids are random and told
+ * only to the sender and the recipient, so knowing one is what allows the
+ * upload and the download.
+ *
+ * As message content an offer is size:sha256:name from the sending client,
+ * which has no id yet, and id:port:size:sha256:name from the server. The
+ * name comes last so it may contain colons.
+ */
+public record FileOffer(String id, int port, String sender, String recipient, long size, String sha256, String name) {
+    private static final int MAX_NAME_LENGTH = 255;
+
+    public static String request(long size, String sha256, String name) {
+        return size + ":" + sha256 + ":" + name;
+    }
+
+    // A client's FILE_OFFER content, before the server gives it an id; null if malformed
+    public static FileOffer parseRequest(String sender, String recipient, String request) {
+        String[] parts = request.split(":", 3);
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            long size = Long.parseLong(parts[0]);
+            if (size < 0 || !isSha256(parts[1]) || !isFileName(parts[2])) {
+                return null;
+            }
+            return new FileOffer(null, 0, sender, recipient, size, parts[1], parts[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // The server's FILE_OFFER or FILE_UPLOAD content; null if malformed
+    public static FileOffer parse(String sender, String recipient, String content) {
+        String[] parts = content.split(":", 3);
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            FileOffer offer = parseRequest(sender, recipient, parts[2]);
+            return offer == null ? null : offer.withId(parts[0], Integer.parseInt(parts[1]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public FileOffer withId(String id, int port) {
+        return new FileOffer(id, port, sender, recipient, size, sha256, name);
+    }
+
+    public String request() {
+        return request(size, sha256, name);
+    }
+
+    public String content() {
+        return id + ":" + port + ":" + request();
+    }
+
+    // e.g. "photo.png (1.4 MB)"
+    public String describe() {
+        if (size < 1024) {
+            return name + " (" + size + " bytes)";
+        }
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double scaled = size;
+        int unit = -1;
+        while (scaled >= 1024 && unit < units.length - 1) {
+            scaled /= 1024;
+            unit++;
+        }
+        return name + " (" + String.format(Locale.ROOT, "%.1f", scaled) + " " + units[unit] + ")";
+    }
+
+    private static boolean isSha256(String hex) {
+        return hex.length() == 64 && hex.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+    }
+
+    // A plain name, never a path, so a recipient saving under it stays in the directory they chose
+    private static boolean isFileName(String name) {
+        return !name.isEmpty() && name.length() <= MAX_NAME_LENGTH && !name.equals(".") && !name.equals("..")
+                && name.chars().noneMatch(c -> c == '/' || c == '\\' || Character.isISOControl(c));
+    }
+}
@@ -0,0 +1,205 @@
+package client;
+
+import logging.Logger;
+import protocol.TransferProtocol;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Moves a file's bytes over the server's transfer port (see
+ * {@link TransferProtocol}), never the chat connection. Each call blocks
+ * until the file is through, reconnecting and carrying on from the last
+ * whole chunk if the connection drops, so callers give it a thread of its
+ * own.
+ */
+final class FileTransfer {
+    private static final Logger LOG = Logger.get(FileTransfer.class);
+    private static final int ATTEMPTS = 5;
+    private static final long RETRY_BACKOFF_MILLIS = 1000;
+    private static final int TIMEOUT_MILLIS = 30_000;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    // The server said no, and asking again will not change that
+    static final class RefusedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RefusedException(String message) {
+            super(message);
+        }
+    }
+
+    private interface Attempt {
+        void run() throws IOException;
+    }
+
+    private FileTransfer() {
+    }
+
+    static String sha256(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // sockets is TLS if the chat connection is
+    static void upload(SocketFactory sockets, String host, FileOffer offer, Path file) throws IOException {
+        retry(() -> uploadOnce(sockets, host, offer, file));
+    }
+
+    /**
+     * Downloads to target, by way of target.part: a download cut short
+     * leaves its whole chunks there, and the next one starts after them.
+     */
+    static void download(SocketFactory sockets, String host, FileOffer offer, Path target) throws IOException {
+        retry(() -> downloadOnce(sockets, host, offer, target));
+    }
+
+    private static void retry(Attempt attempt) throws IOException {
+        long backoff = RETRY_BACKOFF_MILLIS;
+        for (int i = 1; ; i++) {
+            try {
+                attempt.run();
+                return;
+            } catch (RefusedException e) {
+                throw e;
+            } catch (IOException e) {
+                if (i == ATTEMPTS) {
+                    throw e;
+                }
+                LOG.debug("Transfer attempt {} failed, retrying: {}", i, e.getMessage());
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+            backoff *= 2;
+        }
+    }
+
+    private static void uploadOnce(SocketFactory sockets, String host, FileOffer offer, Path file) throws IOException {
+        try (Socket socket = open(sockets, host, offer);
+             FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE));
+            DataInputStream replies = new DataInputStream(socket.getInputStream());
+            send(out, TransferProtocol.UPLOAD, offer.id(), 0);
+            Reply reply = Reply.read(replies);
+            ByteBuffer chunk = ByteBuffer.allocate(reply.chunkBytes());
+            for (long position = reply.start(); position < reply.size(); position += chunk.limit()) {
+                chunk.clear().limit((int) Math.min(reply.chunkBytes(), reply.size() - position));
+                while (chunk.hasRemaining()) {
+                    if (in.read(chunk, position + chunk.position()) < 0) {
+                        throw new RefusedException("the file changed while it was being sent");
+                    }
+                }
+                chunk.flip();
+                out.writeInt(TransferProtocol.checksum(chunk));
+                out.write(chunk.array(), 0, chunk.limit());
+            }
+            out.flush();
+            if (replies.readByte() != TransferProtocol.OK) {
+                throw new RefusedException("the server's copy did not match the file's checksum");
+            }
+        }
+    }
+
+    private static void downloadOnce(SocketFactory sockets, String host, FileOffer offer, Path target) throws IOException {
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        long have = Files.exists(part) ? Files.size(part) : 0;
+        try (Socket socket = open(sockets, host, offer);
+             FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            DataOutputStream requests = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE));
+            send(requests, TransferProtocol.DOWNLOAD, offer.id(), have);
+            Reply reply = Reply.read(in);
+            if (reply.size() != offer.size()) {
+                throw new RefusedException("the server has a different file under that id");
+            }
+            // Anything past the start did not make a whole chunk last time
+            out.truncate(reply.start());
+            ByteBuffer chunk = ByteBuffer.allocate(reply.chunkBytes());
+            for (long position = reply.start(); position < reply.size(); position += chunk.limit()) {
+                int checksum = in.readInt();
+                chunk.clear().limit((int) Math.min(reply.chunkBytes(), reply.size() - position));
+                in.readFully(chunk.array(), 0, chunk.limit());
+                if (TransferProtocol.checksum(chunk) != checksum) {
+                    // Kept out of the .part file, so the retry asks for this chunk again
+                    throw new IOException("chunk at " + position + " arrived damaged");
+                }
+                while (chunk.hasRemaining()) {
+                    out.write(chunk, position + chunk.position());
+                }
+            }
+            out.force(true);
+            boolean intact = sha256(part).equals(offer.sha256());
+            requests.writeByte(intact ? TransferProtocol.OK : TransferProtocol.BAD_CHECKSUM);
+            requests.flush();
+            if (!intact) {
+                Files.deleteIfExists(part);
+                throw new RefusedException("the download did not match the file's checksum");
+            }
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static Socket open(SocketFactory sockets, String host, FileOffer offer) throws IOException {
+        Socket socket = sockets.createSocket(host, offer.port());
+        if (socket instanceof SSLSocket tlsSocket) {
+            ChatClient.checkHostname(tlsSocket);
+        }
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        return socket;
+    }
+
+    private static void send(DataOutputStream out, byte operation, String id, long offset) throws IOException {
+        ByteBuffer request = TransferProtocol.request(operation, id, offset);
+        out.write(request.array(), 0, request.limit());
+        out.flush();
+    }
+
+    private record Reply(long size, long start, int chunkBytes) {
+        static Reply read(DataInputStream in) throws IOException {
+            byte status = in.readByte();
+            switch (status) {
+                case TransferProtocol.OK -> {
+                    return new Reply(in.readLong(), in.readLong(), in.readInt());
+                }
+                case TransferProtocol.BUSY -> throw new IOException("the server is busy");
+                case TransferProtocol.NOT_FOUND -> throw new RefusedException("the file is no longer available");
+                default -> throw new RefusedException("unexpected transfer status " + status);
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is missing from this JVM", e);
+        }
+    }
+}
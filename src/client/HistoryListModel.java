@@ -0,0 +1,157 @@
+package client;
+
+import javax.swing.AbstractListModel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Chat history for a {@link javax.swing.JList}, fetched from the server a
+ * page at a time. Row 0 is the oldest message loaded so far; scrolling to
+ * the top calls {@link #loadOlder} and the next page is prepended.
+ *
+ * Every page but the oldest is full, so a row maps to its page with one
+ * division, and the only thing kept for every page is the sequence it was
+ * fetched with. The messages themselves live in an LRU cache of
+ * {@link #CACHED_PAGES} pages; a row whose page was evicted renders as a
+ * placeholder until the page is fetched again. Memory therefore stays flat
+ * however far back the user scrolls.
+ *
+ * Only touched on the EDT.
+ */
+final class HistoryListModel extends AbstractListModel<Message> {
+    private static final long serialVersionUID = 1L;
+    static final int PAGE_SIZE = 50;
+    private static final int CACHED_PAGES = 20;
+
+    // Swing makes models Serializable; this one is never serialized
+    private final transient ChatClient client;
+    private final transient Map<Integer, List<Message>> cache = new LinkedHashMap<>(CACHED_PAGES * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<Message>> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+    // Pages with a request in flight
+    private final transient Set<Integer> requested = new HashSet<>();
+    // The sequence page i is fetched with, newest page first; entry [pages] is the next older page
+    private long[] pageBefore = new long[64];
+    private int pages;
+    private int pageSize = PAGE_SIZE;
+    private int size;
+    private boolean complete;
+
+    HistoryListModel(ChatClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Starts over from the messages before anchorSequence (Long.MAX_VALUE
+     * for the newest), dropping everything loaded so far; replies to
+     * earlier requests are ignored.
+     */
+    void reset(long anchorSequence) {
+        int removed = size;
+        cache.clear();
+        requested.clear();
+        pages = 0;
+        size = 0;
+        pageSize = PAGE_SIZE;
+        complete = false;
+        pageBefore[0] = anchorSequence;
+        if (removed > 0) {
+            fireIntervalRemoved(this, 0, removed - 1);
+        }
+        request(0);
+    }
+
+    // Fetches the next older page unless it is already on its way or there is none
+    void loadOlder() {
+        if (!complete) {
+            request(pages);
+        }
+    }
+
+    /**
+     * Takes a page the server sent. Returns how many rows were added at the
+     * top, so the view can keep its scroll position.
+     */
+    int pageLoaded(long beforeSequence, long nextBefore, List<Message> messages) {
+        int page = pageFor(beforeSequence);
+        if (page < 0 || !requested.remove(page)) {
+            return 0;
+        }
+        if (page == 0 && !messages.isEmpty() && messages.get(messages.size() - 1).getSequence() > 0) {
+            // Pin the anchor, so fetching this page again cannot pick up messages logged since
+            pageBefore[0] = messages.get(messages.size() - 1).getSequence() + 1;
+        }
+        cache.put(page, messages);
+        if (page < pages) {
+            // An evicted page came back; its rows are already counted
+            int newest = size - 1 - page * pageSize;
+            fireContentsChanged(this, Math.max(0, newest - pageSize + 1), newest);
+            return 0;
+        }
+        if (page == 0 && nextBefore > 0 && messages.size() < pageSize) {
+            // The server caps pages below what we asked for; use its size from here on
+            pageSize = Math.max(1, messages.size());
+        }
+        pages++;
+        if (nextBefore > 0 && messages.size() == pageSize) {
+            if (pages == pageBefore.length) {
+                pageBefore = Arrays.copyOf(pageBefore, pages * 2);
+            }
+            pageBefore[pages] = nextBefore;
+        } else {
+            complete = true;
+        }
+        size += messages.size();
+        if (!messages.isEmpty()) {
+            fireIntervalAdded(this, 0, messages.size() - 1);
+        }
+        return messages.size();
+    }
+
+    private int pageFor(long beforeSequence) {
+        int last = complete ? pages - 1 : pages;
+        for (int i = 0; i <= last; i++) {
+            if (pageBefore[i] == beforeSequence) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void request(int page) {
+        if (requested.add(page)) {
+            client.requestHistory(pageBefore[page], pageSize);
+        }
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    // Null while the row's page is being fetched
+    @Override
+    public Message getElementAt(int index) {
+        int fromNewest = size - 1 - index;
+        int page = fromNewest / pageSize;
+        List<Message> messages = cache.get(page);
+        if (messages == null) {
+            request(page);
+            return null;
+        }
+        // The oldest page may be short; pages list oldest first
+        int position = messages.size() - 1 - fromNewest % pageSize;
+        return position >= 0 ? messages.get(position) : null;
+    }
+}
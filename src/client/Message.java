@@ -4,18 +4,99 @@ import java.io.Serializable;
 import java.time.LocalDateTime;
 
 public class Message implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 3L;
 
+    // Wire codes are part of the binary protocol; never renumber them
+    public enum Type {
+        LOGIN(1),
+        LOGIN_SUCCESS(2),
+        LOGIN_FAILED(3),
+        CHAT(4),
+        PRIVATE(5),
+        SYSTEM(6),
+        ONLINE_USERS(7),
+        PRESENCE(8),
+        SYNC_PRESENCE(9),
+        INBOX(10),
+        INBOX_ACK(11),
+        JOIN(12),
+        LEAVE(13),
+        ROOM(14),
+        HISTORY(15),
+        PING(16),
+        PONG(17),
+        RESUME(18),
+        RESUMED(19),
+        RESUME_FAILED(20),
+        LOGOUT(21),
+        FILE_OFFER(22),
+        FILE_UPLOAD(23),
+        FILE_ACCEPT(24);
+
+        private static final Type[] BY_CODE = new Type[256];
+
+        static {
+            for (Type type : values()) {
+                BY_CODE[type.code] = type;
+            }
+        }
+
+        private final int code;
+
+        Type(int code) {
+            this.code = code;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        // Returns null for unknown codes
+        public static Type fromCode(int code) {
+            return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        }
+    }
+
+    private final Type type;
     private final String sender;
-    private final String recipient; // Can be null for broadcast
+    private final String recipient; // Can be null for broadcast; the room name for ROOM messages
     private final String content;
     private final LocalDateTime timestamp;
+    // Position in the server's message log; 0 for messages that were never logged
+    private final long sequence;
 
     public Message(String sender, String recipient, String content) {
+        this(recipient == null ? Type.CHAT : Type.PRIVATE, sender, recipient, content, LocalDateTime.now());
+    }
+
+    public Message(Type type, String sender, String recipient, String content) {
+        this(type, sender, recipient, content, LocalDateTime.now());
+    }
+
+    public Message(Type type, String sender, String recipient, String content, LocalDateTime timestamp) {
+        this(type, sender, recipient, content, timestamp, 0);
+    }
+
+    public Message(Type type, String sender, String recipient, String content, LocalDateTime timestamp, long sequence) {
+        this.type = type;
         this.sender = sender;
         this.recipient = recipient;
         this.content = content;
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = timestamp;
+        this.sequence = sequence;
+    }
+
+    public Message withSequence(long sequence) {
+        return new Message(type, sender, recipient, content, timestamp, sequence);
+    }
+
+    // A server notice with no sender, e.g. "anant has joined the chat."
+    public static Message system(String content) {
+        return new Message(Type.SYSTEM, null, null, content);
+    }
+
+    public Type getType() {
+        return type;
     }
 
     public String getSender() {
@@ -34,8 +115,12 @@ public class Message implements Serializable {
         return timestamp;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
     @Override
     public String toString() {
         return "[" + timestamp + "] " + sender + ": " + content;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+package client;
+
+import javax.swing.BorderFactory;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.ListCellRenderer;
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Font;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Draws one history row as a chat bubble: sender and time above a single
+ * line of text, cut off with an ellipsis when too long. One instance paints
+ * every visible row, so rows must all be the same height; the list sets a
+ * fixed cell height from {@link #PROTOTYPE}.
+ */
+final class MessageCellRenderer extends JPanel implements ListCellRenderer<Message> {
+    private static final long serialVersionUID = 1L;
+    static final Message PROTOTYPE = new Message(Message.Type.CHAT, "prototype", null, "Prototype message");
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("MMM d HH:mm");
+    private static final Color MY_BUBBLE = new Color(220, 248, 198);
+    private static final Color OTHER_BUBBLE = Color.WHITE;
+    private static final Color BACKGROUND = new Color(250, 250, 250);
+
+    private final String username;
+    private final JPanel bubble = new JPanel(new BorderLayout());
+    private final JLabel header = new JLabel();
+    private final JLabel text = new JLabel();
+
+    MessageCellRenderer(String username) {
+        super(new BorderLayout());
+        this.username = username;
+        header.setFont(new Font("Segoe UI", Font.PLAIN, 11));
+        header.setForeground(Color.GRAY);
+        text.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        bubble.setBorder(BorderFactory.createEmptyBorder(4, 8, 4, 8));
+        bubble.add(header, BorderLayout.NORTH);
+        bubble.add(text, BorderLayout.CENTER);
+        add(bubble, BorderLayout.CENTER);
+        setBackground(BACKGROUND);
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends Message> list, Message message, int index,
+                                                  boolean isSelected, boolean cellHasFocus) {
+        if (message == null) {
+            header.setText(" ");
+            text.setText("Loading...");
+            setToolTipText(null);
+            style(false);
+            return this;
+        }
+        boolean mine = message.getSender() != null && message.getSender().equals(username);
+        String time = message.getTimestamp() != null ? TIME.format(message.getTimestamp()) : "";
+        String from = switch (message.getType()) {
+            case PRIVATE -> mine ? "(Private to " + message.getRecipient() + ")" : "(Private from " + message.getSender() + ")";
+            case CHAT -> mine ? "Me" : message.getSender();
+            default -> "";
+        };
+        header.setText(from.isEmpty() ? time : from + "  " + time);
+        text.setText(message.getContent());
+        setToolTipText(message.getContent());
+        style(mine);
+        return this;
+    }
+
+    // Mirrors the live chat pane: own messages on the right in green
+    private void style(boolean mine) {
+        bubble.setBackground(mine ? MY_BUBBLE : OTHER_BUBBLE);
+        setBorder(BorderFactory.createEmptyBorder(3, mine ? 100 : 10, 3, mine ? 10 : 100));
+        header.setHorizontalAlignment(mine ? JLabel.RIGHT : JLabel.LEFT);
+        text.setHorizontalAlignment(mine ? JLabel.RIGHT : JLabel.LEFT);
+    }
+}
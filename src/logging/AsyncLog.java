@@ -0,0 +1,236 @@
+package logging;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The process-wide log pipeline behind every {@link Logger}.
+ *
+ * Producers claim a slot in a preallocated ring with one CAS, fill in the
+ * level, time, thread, logger and the unformatted template and arguments,
+ * and publish it with a volatile write; nothing is allocated or locked on
+ * their side. A single daemon thread drains whatever has been published,
+ * formats it, and writes each batch to the console and the rolling file
+ * with one call per sink.
+ *
+ * When the ring is full the record is dropped and counted rather than
+ * making the caller wait: a slow disk must never slow down chat traffic.
+ * The log thread reports how many records were lost once it catches up.
+ *
+ * Defaults to INFO on the console only; the level can be preset with
+ * {@code -Dflicktalk.log.level=debug}, and the server configures the rest
+ * through {@link #configure}.
+ */
+public final class AsyncLog {
+    private static final int CAPACITY = 16 * 1024;
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_BATCH = 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final Slot[] slots = new Slot[CAPACITY];
+    // Next sequence to claim, and next sequence the log thread will read
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed;
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile int threshold = Level.parse(System.getProperty("flicktalk.log.level", "info")).ordinal();
+
+    // Sinks; swapped by configure under the lock the log thread writes with
+    private static final Object sinkLock = new Object();
+    private static boolean console = true;
+    private static RollingFile file;
+
+    private static final Thread writer;
+    private static volatile boolean stopping;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot();
+        }
+        writer = new Thread(AsyncLog::drainLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncLog::shutdown, "log-shutdown"));
+    }
+
+    private AsyncLog() {
+    }
+
+    private static final class Slot {
+        volatile long sequence = -1;
+        Level level;
+        long millis;
+        String thread;
+        String logger;
+        String format;
+        int argCount;
+        Object arg1;
+        Object arg2;
+        Object arg3;
+    }
+
+    /**
+     * Sets the level and the sinks. A null file logs to the console only;
+     * the previous file, if any, is closed after everything already queued
+     * has been written to it.
+     */
+    public static void configure(Level level, boolean toConsole, Path path, long maxFileBytes, int files) throws IOException {
+        RollingFile next = path != null ? new RollingFile(path, maxFileBytes, files) : null;
+        synchronized (sinkLock) {
+            threshold = level.ordinal();
+            console = toConsole;
+            if (file != null) {
+                file.close();
+            }
+            file = next;
+        }
+    }
+
+    static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    static void publish(Level level, String logger, String format, int argCount, Object arg1, Object arg2, Object arg3) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = slots[(int) (sequence & MASK)];
+        slot.level = level;
+        slot.millis = System.currentTimeMillis();
+        slot.thread = Thread.currentThread().getName();
+        slot.logger = logger;
+        slot.format = format;
+        slot.argCount = argCount;
+        slot.arg1 = arg1;
+        slot.arg2 = arg2;
+        slot.arg3 = arg3;
+        // Publishes the fields above to the log thread
+        slot.sequence = sequence;
+    }
+
+    // Records lost because the ring was full
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    private static void drainLoop() {
+        StringBuilder out = new StringBuilder(64 * 1024);
+        StringBuilder err = new StringBuilder(16 * 1024);
+        StringBuilder all = new StringBuilder(64 * 1024);
+        long reportedDrops = 0;
+        while (true) {
+            long next = consumed;
+            int drained = 0;
+            while (drained < MAX_BATCH) {
+                Slot slot = slots[(int) (next & MASK)];
+                if (slot.sequence != next) {
+                    break;
+                }
+                int start = all.length();
+                format(slot, all);
+                (slot.level.compareTo(Level.WARN) >= 0 ? err : out).append(all, start, all.length());
+                slot.arg1 = null;
+                slot.arg2 = null;
+                slot.arg3 = null;
+                next++;
+                // Hands the slot back to producers
+                consumed = next;
+                drained++;
+            }
+            long lost = dropped.sum();
+            if (lost > reportedDrops) {
+                int start = all.length();
+                line(System.currentTimeMillis(), Level.WARN, "log-writer", "AsyncLog", all)
+                        .append(lost - reportedDrops).append(" log records dropped, the log buffer was full\n");
+                err.append(all, start, all.length());
+                reportedDrops = lost;
+            }
+            if (all.length() > 0) {
+                write(out, err, all);
+            } else if (stopping) {
+                return;
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private static void write(StringBuilder out, StringBuilder err, StringBuilder all) {
+        synchronized (sinkLock) {
+            if (console) {
+                if (out.length() > 0) {
+                    System.out.print(out);
+                    System.out.flush();
+                }
+                if (err.length() > 0) {
+                    System.err.print(err);
+                    System.err.flush();
+                }
+            }
+            if (file != null) {
+                try {
+                    file.write(all);
+                    file.flush();
+                } catch (IOException e) {
+                    System.err.println("Error writing log file: " + e.getMessage());
+                }
+            }
+        }
+        out.setLength(0);
+        err.setLength(0);
+        all.setLength(0);
+    }
+
+    // 2026-01-31T12:00:00.123Z INFO  [client-7] ClientHandler - message
+    private static StringBuilder line(long millis, Level level, String thread, String logger, StringBuilder into) {
+        into.append(Instant.ofEpochMilli(millis)).append(' ').append(level);
+        if (level.name().length() == 4) {
+            into.append(' ');
+        }
+        return into.append(" [").append(thread).append("] ").append(logger).append(" - ");
+    }
+
+    private static void format(Slot slot, StringBuilder into) {
+        line(slot.millis, slot.level, slot.thread, slot.logger, into);
+        String format = slot.format;
+        Object[] args = {slot.arg1, slot.arg2, slot.arg3};
+        int arg = 0;
+        int from = 0;
+        int placeholder;
+        while (arg < slot.argCount && (placeholder = format.indexOf("{}", from)) >= 0) {
+            into.append(format, from, placeholder).append(args[arg++]);
+            from = placeholder + 2;
+        }
+        into.append(format, from, format.length()).append('\n');
+    }
+
+    // Gives the log thread a moment to write out what is queued before the JVM exits
+    private static void shutdown() {
+        stopping = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (sinkLock) {
+            try {
+                if (file != null) {
+                    file.close();
+                }
+            } catch (IOException e) {
+                // Exiting anyway
+            }
+        }
+    }
+}
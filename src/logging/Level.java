@@ -0,0 +1,18 @@
+package logging;
+
+import java.util.Locale;
+
+public enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR;
+
+    public static Level parse(String value) {
+        try {
+            return Level.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown log level: " + value + " (use debug, info, warn or error)");
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package logging;
+
+/**
+ * Named entry point into the {@link AsyncLog}. Messages are templates with
+ * {@code {}} placeholders; the arguments are kept as references and only
+ * formatted on the log thread, so a call below the configured level costs
+ * one field read, and a call above it allocates nothing.
+ *
+ * Pass values, not pre-built strings, on hot paths:
+ * {@code LOG.debug("Received broadcast from {}: {}", username, text)}.
+ */
+public final class Logger {
+    private final String name;
+
+    private Logger(String name) {
+        this.name = name;
+    }
+
+    public static Logger get(Class<?> type) {
+        return new Logger(type.getSimpleName());
+    }
+
+    public static Logger get(String name) {
+        return new Logger(name);
+    }
+
+    public boolean isDebugEnabled() {
+        return AsyncLog.isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message, 0, null, null, null);
+    }
+
+    public void debug(String format, Object arg) {
+        log(Level.DEBUG, format, 1, arg, null, null);
+    }
+
+    public void debug(String format, Object arg1, Object arg2) {
+        log(Level.DEBUG, format, 2, arg1, arg2, null);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, 0, null, null, null);
+    }
+
+    public void info(String format, Object arg) {
+        log(Level.INFO, format, 1, arg, null, null);
+    }
+
+    public void info(String format, Object arg1, Object arg2) {
+        log(Level.INFO, format, 2, arg1, arg2, null);
+    }
+
+    public void info(String format, Object arg1, Object arg2, Object arg3) {
+        log(Level.INFO, format, 3, arg1, arg2, arg3);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, 0, null, null, null);
+    }
+
+    public void warn(String format, Object arg) {
+        log(Level.WARN, format, 1, arg, null, null);
+    }
+
+    public void warn(String format, Object arg1, Object arg2) {
+        log(Level.WARN, format, 2, arg1, arg2, null);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message, 0, null, null, null);
+    }
+
+    public void error(String format, Object arg) {
+        log(Level.ERROR, format, 1, arg, null, null);
+    }
+
+    private void log(Level level, String format, int argCount, Object arg1, Object arg2, Object arg3) {
+        if (AsyncLog.isEnabled(level)) {
+            AsyncLog.publish(level, name, format, argCount, arg1, arg2, arg3);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package logging;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Log file that rolls over by size: {@code server.log} is renamed to
+ * {@code server.log.1}, older files shift up by one, and at most
+ * {@code files} are kept, the live one included. Only the log thread
+ * writes to it.
+ */
+final class RollingFile {
+    private final Path path;
+    private final long maxBytes;
+    private final int files;
+    private OutputStream out;
+    private long size;
+
+    RollingFile(Path path, long maxBytes, int files) throws IOException {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.files = files;
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        out = new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+        size = Files.size(path);
+    }
+
+    void write(CharSequence text) throws IOException {
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        if (size > 0 && size + bytes.length > maxBytes) {
+            roll();
+        }
+        out.write(bytes);
+        size += bytes.length;
+    }
+
+    private void roll() throws IOException {
+        out.close();
+        if (files > 1) {
+            Files.deleteIfExists(rolled(files - 1));
+            for (int i = files - 2; i >= 1; i--) {
+                if (Files.exists(rolled(i))) {
+                    Files.move(rolled(i), rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(path, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(path);
+        }
+        open();
+    }
+
+    private Path rolled(int index) {
+        return path.resolveSibling(path.getFileName() + "." + index);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,71 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder for the binary framing. Bytes may arrive in any
+ * chunking; each complete frame is handed to the handler through the same
+ * {@link FrameView}, so steady-state decoding allocates nothing. The frame
+ * buffer only grows when a larger frame than any before it arrives.
+ */
+public final class BinaryFrameDecoder {
+    public interface FrameHandler {
+        void onFrame(FrameView frame);
+    }
+
+    private final int maxFrameLength;
+    private final FrameView view = new FrameView();
+    private byte[] frame = new byte[256];
+    private int frameLength = -1;
+    private int filled;
+    private int lengthValue;
+    private int lengthShift;
+
+    public BinaryFrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Feeds everything remaining in {@code in}. Returns false on a malformed
+     * or oversized frame, after which the stream cannot be resynchronised.
+     */
+    public boolean decode(ByteBuffer in, FrameHandler handler) {
+        while (in.hasRemaining()) {
+            if (frameLength < 0) {
+                byte b = in.get();
+                lengthValue |= (b & 0x7F) << lengthShift;
+                if ((b & 0x80) != 0) {
+                    lengthShift += 7;
+                    if (lengthShift > 28) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (lengthValue <= 0 || lengthValue > maxFrameLength) {
+                    return false;
+                }
+                frameLength = lengthValue;
+                lengthValue = 0;
+                lengthShift = 0;
+                filled = 0;
+                if (frame.length < frameLength) {
+                    frame = new byte[Math.min(Math.max(frameLength, frame.length * 2), maxFrameLength)];
+                }
+                continue;
+            }
+
+            int chunk = Math.min(in.remaining(), frameLength - filled);
+            in.get(frame, filled, chunk);
+            filled += chunk;
+            if (filled == frameLength) {
+                frameLength = -1;
+                if (!view.parse(frame, 0, filled)) {
+                    return false;
+                }
+                view.setWireLength(BinaryProtocol.varintSize(filled) + filled);
+                handler.onFrame(view);
+            }
+        }
+        return true;
+    }
+}
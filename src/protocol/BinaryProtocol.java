@@ -0,0 +1,223 @@
+package protocol;
+
+import client.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Length-prefixed binary framing for {@link Message}.
+ *
+ * A binary client opens the connection with a 4-byte handshake
+ * (0xF7 'F' 'T' version) and the server answers with the same four bytes
+ * carrying the version it accepted. The top bit of the version byte
+ * negotiates {@link Compression}; the next one, {@link #HEARTBEAT_FLAG},
+ * says the client answers PING, and the server echoes it if it will send
+ * PINGs and drop the client when they go unanswered. Clients that skip the
+ * handshake are served the original line protocol; 0xF7 can never start a
+ * UTF-8 text line.
+ *
+ * After the handshake every message is one frame:
+ * <pre>
+ *   varint  length of everything below
+ *   byte    Message.Type code
+ *   byte    HAS_* flags for the optional fields below
+ *   varint  timestamp, epoch millis          (if HAS_TIMESTAMP)
+ *   varint  message log sequence number      (if HAS_SEQUENCE)
+ *   varint  sender length, UTF-8 bytes       (if HAS_SENDER)
+ *   varint  recipient length, UTF-8 bytes    (if HAS_RECIPIENT)
+ *   bytes   UTF-8 payload, up to the end of the frame
+ * </pre>
+ * The payload is length-delimited, so unlike the line protocol it may contain newlines.
+ * Logged messages carry their sequence number; a LOGIN frame may carry the
+ * last sequence the client saw, asking for everything after it to be replayed.
+ * A RESUME frame uses the same field for a different count: the bytes of
+ * frames the client received after LOGIN_SUCCESS or RESUMED, as measured by
+ * {@link FrameView#wireLength()}.
+ */
+public final class BinaryProtocol {
+    public static final int VERSION = 1;
+    public static final int HANDSHAKE_LENGTH = 4;
+    public static final byte MAGIC = (byte) 0xF7;
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+    public static final int HEARTBEAT_FLAG = 0x40;
+
+    static final int HAS_TIMESTAMP = 0x01;
+    static final int HAS_SENDER = 0x02;
+    static final int HAS_RECIPIENT = 0x04;
+    static final int HAS_SEQUENCE = 0x08;
+
+    private BinaryProtocol() {
+    }
+
+    public static byte[] handshake(int version) {
+        return handshake(version, false);
+    }
+
+    public static byte[] handshake(int version, boolean compress) {
+        return handshake(version, compress, false);
+    }
+
+    // The two top bits of the version byte ask for, or agree to, compression (see Compression) and heartbeats
+    public static byte[] handshake(int version, boolean compress, boolean heartbeats) {
+        int flags = (compress ? Compression.HANDSHAKE_FLAG : 0) | (heartbeats ? HEARTBEAT_FLAG : 0);
+        return new byte[] {MAGIC, 'F', 'T', (byte) (version | flags)};
+    }
+
+    // Returns the offered version, or -1 if the bytes are not a handshake
+    public static int handshakeVersion(byte[] bytes) {
+        if (bytes.length < HANDSHAKE_LENGTH || bytes[0] != MAGIC || bytes[1] != 'F' || bytes[2] != 'T') {
+            return -1;
+        }
+        return bytes[3] & ~(Compression.HANDSHAKE_FLAG | HEARTBEAT_FLAG) & 0xFF;
+    }
+
+    public static boolean handshakeCompression(byte[] bytes) {
+        return handshakeVersion(bytes) >= 0 && (bytes[3] & Compression.HANDSHAKE_FLAG) != 0;
+    }
+
+    public static boolean handshakeHeartbeats(byte[] bytes) {
+        return handshakeVersion(bytes) >= 0 && (bytes[3] & HEARTBEAT_FLAG) != 0;
+    }
+
+    /**
+     * Encodes one frame into a new buffer, flipped and ready to write. Fan-out
+     * callers ask for a direct buffer so socket writes skip the JDK's copy.
+     */
+    public static ByteBuffer encode(Message message, boolean direct) {
+        byte[] sender = utf8(message.getSender());
+        byte[] recipient = utf8(message.getRecipient());
+        byte[] payload = message.getContent() == null ? new byte[0] : utf8(message.getContent());
+        long timestamp = message.getTimestamp() == null ? -1 : toEpochMillis(message.getTimestamp());
+
+        int flags = 0;
+        int bodyLength = 2 + payload.length;
+        if (timestamp >= 0) {
+            flags |= HAS_TIMESTAMP;
+            bodyLength += varintSize(timestamp);
+        }
+        if (message.getSequence() > 0) {
+            flags |= HAS_SEQUENCE;
+            bodyLength += varintSize(message.getSequence());
+        }
+        if (sender != null) {
+            flags |= HAS_SENDER;
+            bodyLength += varintSize(sender.length) + sender.length;
+        }
+        if (recipient != null) {
+            flags |= HAS_RECIPIENT;
+            bodyLength += varintSize(recipient.length) + recipient.length;
+        }
+        if (bodyLength > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Message too large for one frame: " + bodyLength + " bytes");
+        }
+
+        int total = varintSize(bodyLength) + bodyLength;
+        ByteBuffer frame = direct ? ByteBuffer.allocateDirect(total) : ByteBuffer.allocate(total);
+        putVarint(frame, bodyLength);
+        frame.put((byte) message.getType().getCode());
+        frame.put((byte) flags);
+        if (timestamp >= 0) {
+            putVarint(frame, timestamp);
+        }
+        if (message.getSequence() > 0) {
+            putVarint(frame, message.getSequence());
+        }
+        if (sender != null) {
+            putVarint(frame, sender.length);
+            frame.put(sender);
+        }
+        if (recipient != null) {
+            putVarint(frame, recipient.length);
+            frame.put(recipient);
+        }
+        frame.put(payload);
+        return frame.flip();
+    }
+
+    /**
+     * True unless the frame, starting at its length prefix, is a private
+     * message that {@code username} (UTF-8) neither sent nor received. Reads
+     * the buffer in place so logged frames can be filtered without decoding.
+     */
+    public static boolean visibleTo(ByteBuffer frame, byte[] username) {
+        int position = skipVarint(frame, frame.position());
+        if (frame.get(position) != (byte) Message.Type.PRIVATE.getCode()) {
+            return true;
+        }
+        int flags = frame.get(position + 1) & 0xFF;
+        position += 2;
+        if ((flags & HAS_TIMESTAMP) != 0) {
+            position = skipVarint(frame, position);
+        }
+        if ((flags & HAS_SEQUENCE) != 0) {
+            position = skipVarint(frame, position);
+        }
+        for (int field = HAS_SENDER; field <= HAS_RECIPIENT; field <<= 1) {
+            if ((flags & field) == 0) {
+                continue;
+            }
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = frame.get(position++);
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (length == username.length && regionEquals(frame, position, username)) {
+                return true;
+            }
+            position += length;
+        }
+        return false;
+    }
+
+    private static boolean regionEquals(ByteBuffer buffer, int position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipVarint(ByteBuffer buffer, int position) {
+        while ((buffer.get(position) & 0x80) != 0) {
+            position++;
+        }
+        return position + 1;
+    }
+
+    static long toEpochMillis(LocalDateTime timestamp) {
+        return timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    static LocalDateTime fromEpochMillis(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+}
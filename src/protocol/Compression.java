@@ -0,0 +1,89 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional DEFLATE compression of the server-to-client binary stream.
+ *
+ * A client asks for it by setting {@link #HANDSHAKE_FLAG} in the version
+ * byte of its handshake; the server sets the same bit in its answer if it
+ * agrees. Servers that predate compression just see a higher version,
+ * answer with their own, and the stream stays uncompressed.
+ *
+ * Once agreed, everything the server sends after the handshake is a
+ * sequence of chunks, each holding one or more whole frames:
+ * <pre>
+ *   varint  length &lt;&lt; 1, plus 1 if the chunk is deflated
+ *   bytes   the frames as they are, or raw DEFLATE data ending in a sync flush
+ * </pre>
+ * The deflated chunks of a connection form a single DEFLATE stream primed
+ * with {@link #DICTIONARY}, so later chunks refer back to earlier ones and
+ * to the protocol's stock phrases. Small chunks are sent as they are, and
+ * never enter the stream on either side. Client-to-server traffic is not
+ * compressed.
+ */
+public final class Compression {
+    public static final int HANDSHAKE_FLAG = 0x80;
+    // Room for the largest chunk header
+    public static final int MAX_HEADER_LENGTH = 5;
+
+    // DEFLATE favours matches close by, so the most frequent phrases come last
+    private static final byte[] DICTIONARY = ("Room names are 1-32 letters, digits, '-' or '_'."
+            + "Invalid username or passwordServer busy, please retry laterUser is already logged in"
+            + "' is offline and their inbox is full.' is offline; they will get your message when they log in."
+            + "' is not online.User 'You are already in  rooms.You are not in #You joined #You left #"
+            + "Login successful. Welcome to the chat! left #. joined #. has left the chat. has joined the chat.")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private Compression() {
+    }
+
+    public static Deflater newDeflater(int level) {
+        Deflater deflater = new Deflater(level, true);
+        deflater.setDictionary(DICTIONARY);
+        return deflater;
+    }
+
+    // Readies a used deflater for a new stream, as if it were new
+    public static void reset(Deflater deflater) {
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+    }
+
+    public static Inflater newInflater() {
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(DICTIONARY);
+        return inflater;
+    }
+
+    /**
+     * Writes the header of a chunk ending at {@code end} into the bytes just
+     * before it, so a chunk built after {@link #MAX_HEADER_LENGTH} spare bytes
+     * needs no copy. Returns the offset the header starts at.
+     */
+    public static int putHeader(byte[] buffer, int end, int length, boolean deflated) {
+        int value = length << 1 | (deflated ? 1 : 0);
+        int size = 1;
+        for (int v = value >>> 7; v != 0; v >>>= 7) {
+            size++;
+        }
+        int start = end - size;
+        int position = start;
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position] = (byte) value;
+        return start;
+    }
+
+    // A standalone header, for a chunk of frames sent as they are
+    public static ByteBuffer header(int length, boolean deflated) {
+        byte[] bytes = new byte[MAX_HEADER_LENGTH];
+        int start = putHeader(bytes, MAX_HEADER_LENGTH, length, deflated);
+        return ByteBuffer.wrap(bytes, start, MAX_HEADER_LENGTH - start).asReadOnlyBuffer();
+    }
+}
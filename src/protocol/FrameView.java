@@ -0,0 +1,170 @@
+package protocol;
+
+import client.Message;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A reusable, allocation-free view over one decoded binary frame. Fields are
+ * offsets into the decoder's buffer and are only valid until the decoder
+ * moves on to the next frame; call the String accessors or
+ * {@link #toMessage()} to keep anything longer.
+ */
+public final class FrameView {
+    private byte[] data;
+    private Message.Type type;
+    private long timestamp = -1;
+    private long sequence = -1;
+    private int senderOffset;
+    private int senderLength = -1;
+    private int recipientOffset;
+    private int recipientLength = -1;
+    private int payloadOffset;
+    private int payloadLength;
+    // Set by the decoder, which knows the length prefix
+    private int wireLength;
+    // Scratch outputs of readField, kept as fields so parsing allocates nothing
+    private int fieldOffset;
+    private int fieldLength;
+
+    // Returns false if the frame is malformed
+    boolean parse(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        data = bytes;
+        if (length < 2) {
+            return false;
+        }
+        type = Message.Type.fromCode(bytes[offset] & 0xFF);
+        if (type == null) {
+            return false;
+        }
+        int flags = bytes[offset + 1] & 0xFF;
+        int position = offset + 2;
+
+        timestamp = -1;
+        if ((flags & BinaryProtocol.HAS_TIMESTAMP) != 0) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (position >= end || shift > 63) {
+                    return false;
+                }
+                b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            timestamp = value;
+        }
+
+        sequence = -1;
+        if ((flags & BinaryProtocol.HAS_SEQUENCE) != 0) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (position >= end || shift > 63) {
+                    return false;
+                }
+                b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            sequence = value;
+        }
+
+        senderLength = -1;
+        if ((flags & BinaryProtocol.HAS_SENDER) != 0) {
+            position = readField(bytes, position, end);
+            if (position < 0) {
+                return false;
+            }
+            senderOffset = fieldOffset;
+            senderLength = fieldLength;
+        }
+
+        recipientLength = -1;
+        if ((flags & BinaryProtocol.HAS_RECIPIENT) != 0) {
+            position = readField(bytes, position, end);
+            if (position < 0) {
+                return false;
+            }
+            recipientOffset = fieldOffset;
+            recipientLength = fieldLength;
+        }
+
+        payloadOffset = position;
+        payloadLength = end - position;
+        return true;
+    }
+
+    private int readField(byte[] bytes, int position, int end) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (position >= end || shift > 28) {
+                return -1;
+            }
+            b = bytes[position++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (length < 0 || length > end - position) {
+            return -1;
+        }
+        fieldOffset = position;
+        fieldLength = length;
+        return position + length;
+    }
+
+    public Message.Type type() {
+        return type;
+    }
+
+    public boolean hasTimestamp() {
+        return timestamp >= 0;
+    }
+
+    public long timestampMillis() {
+        return timestamp;
+    }
+
+    public boolean hasSequence() {
+        return sequence >= 0;
+    }
+
+    public long sequence() {
+        return sequence;
+    }
+
+    public String sender() {
+        return senderLength < 0 ? null : new String(data, senderOffset, senderLength, StandardCharsets.UTF_8);
+    }
+
+    public String recipient() {
+        return recipientLength < 0 ? null : new String(data, recipientOffset, recipientLength, StandardCharsets.UTF_8);
+    }
+
+    public String payload() {
+        return new String(data, payloadOffset, payloadLength, StandardCharsets.UTF_8);
+    }
+
+    public int payloadLength() {
+        return payloadLength;
+    }
+
+    // Bytes the frame took on the wire, length prefix included, before any compression
+    public int wireLength() {
+        return wireLength;
+    }
+
+    void setWireLength(int wireLength) {
+        this.wireLength = wireLength;
+    }
+
+    public Message toMessage() {
+        return new Message(type, sender(), recipient(), payload(),
+                hasTimestamp() ? BinaryProtocol.fromEpochMillis(timestamp) : null, Math.max(sequence, 0));
+    }
+}
@@ -0,0 +1,81 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Client side of {@link Compression}: takes the chunked stream in any
+ * chunking, inflates what needs it and hands the frame bytes on to a
+ * {@link BinaryFrameDecoder}. Call {@link #close} to free the inflater.
+ */
+public final class InflatingDecoder implements AutoCloseable {
+    private final Inflater inflater = Compression.newInflater();
+    private final byte[] output = new byte[16 * 1024];
+    private int chunkRemaining = -1;
+    private boolean deflated;
+    private int headerValue;
+    private int headerShift;
+
+    /**
+     * Feeds everything remaining in {@code in}. Returns false on a
+     * malformed chunk or frame, after which the stream is unusable.
+     */
+    public boolean decode(ByteBuffer in, BinaryFrameDecoder frames, BinaryFrameDecoder.FrameHandler handler) {
+        while (in.hasRemaining()) {
+            if (chunkRemaining < 0) {
+                byte b = in.get();
+                headerValue |= (b & 0x7F) << headerShift;
+                if ((b & 0x80) != 0) {
+                    headerShift += 7;
+                    if (headerShift > 28) {
+                        return false;
+                    }
+                    continue;
+                }
+                chunkRemaining = headerValue >>> 1;
+                deflated = (headerValue & 1) != 0;
+                headerValue = 0;
+                headerShift = 0;
+                if (chunkRemaining == 0) {
+                    chunkRemaining = -1;
+                }
+                continue;
+            }
+
+            int length = Math.min(in.remaining(), chunkRemaining);
+            ByteBuffer chunk = in.slice(in.position(), length);
+            in.position(in.position() + length);
+            chunkRemaining -= length;
+            if (chunkRemaining == 0) {
+                chunkRemaining = -1;
+            }
+            if (!(deflated ? inflate(chunk, frames, handler) : frames.decode(chunk, handler))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean inflate(ByteBuffer chunk, BinaryFrameDecoder frames, BinaryFrameDecoder.FrameHandler handler) {
+        inflater.setInput(chunk);
+        try {
+            while (true) {
+                int produced = inflater.inflate(output);
+                if (produced == 0 && (inflater.needsInput() || inflater.needsDictionary() || inflater.finished())) {
+                    return !inflater.needsDictionary() && !inflater.finished();
+                }
+                if (!frames.decode(ByteBuffer.wrap(output, 0, produced), handler)) {
+                    return false;
+                }
+            }
+        } catch (DataFormatException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        inflater.end();
+    }
+}
@@ -0,0 +1,70 @@
+package protocol;
+
+import client.Message;
+
+/**
+ * The original newline-delimited protocol, still spoken to clients that do
+ * not open with the binary handshake.
+ */
+public final class TextProtocol {
+    public static final String LOGIN = "LOGIN:";
+    public static final String PRIVATE = "PRIVATE:";
+    public static final String LOGIN_SUCCESS = "LOGIN_SUCCESS";
+    public static final String LOGIN_FAILED = "LOGIN_FAILED:";
+    public static final String ONLINE_USERS = "ONLINE_USERS:";
+    public static final String PRESENCE = "PRESENCE:";
+    public static final String SYNC_PRESENCE = "SYNC_PRESENCE";
+    // End of a batch of offline messages: INBOX:lastSequence:remaining, answered with INBOX_ACK:lastSequence.
+    // Only binary sessions get it; line clients have their inbox sent in full and never acknowledge
+    public static final String INBOX = "INBOX:";
+    public static final String INBOX_ACK = "INBOX_ACK:";
+    // JOIN:room and LEAVE:room go both ways, the server echoing them once done; room
+    // messages are ROOM:room:text from a client and ROOM:room:sender:text to one
+    public static final String JOIN = "JOIN:";
+    public static final String LEAVE = "LEAVE:";
+    public static final String ROOM = "ROOM:";
+    // HISTORY:before:limit asks for the logged messages just before a sequence; the answer is
+    // HISTORY:before:nextBefore:count followed by exactly count message lines, nextBefore 0 at the start of the log
+    public static final String HISTORY = "HISTORY:";
+    // PING:token goes either way when a connection has been quiet, and is answered with PONG:token
+    public static final String PING = "PING:";
+    public static final String PONG = "PONG:";
+    // FILE_OFFER:recipient:size:sha256:name from a client is answered with FILE_UPLOAD:recipient:offer, and
+    // reaches the recipient as FILE_OFFER:sender:offer once uploaded, offer being id:port:size:sha256:name;
+    // FILE_ACCEPT:id goes both ways like JOIN. See client.FileOffer
+    public static final String FILE_OFFER = "FILE_OFFER:";
+    public static final String FILE_UPLOAD = "FILE_UPLOAD:";
+    public static final String FILE_ACCEPT = "FILE_ACCEPT:";
+
+    private TextProtocol() {
+    }
+
+    // Renders a server-to-client message exactly as text clients have always received it
+    public static String toClientLine(Message message) {
+        String line = switch (message.getType()) {
+            case LOGIN_SUCCESS -> LOGIN_SUCCESS;
+            case LOGIN_FAILED -> LOGIN_FAILED + message.getContent();
+            case ONLINE_USERS -> ONLINE_USERS + message.getContent();
+            case PRESENCE -> PRESENCE + message.getContent();
+            case SYNC_PRESENCE -> SYNC_PRESENCE;
+            case INBOX -> INBOX + message.getContent();
+            case INBOX_ACK -> INBOX_ACK + message.getContent();
+            case JOIN -> JOIN + message.getContent();
+            case LEAVE -> LEAVE + message.getContent();
+            case HISTORY -> HISTORY + message.getContent();
+            case PING -> PING + message.getContent();
+            case PONG -> PONG + message.getContent();
+            case FILE_OFFER -> FILE_OFFER + message.getSender() + ":" + message.getContent();
+            case FILE_UPLOAD -> FILE_UPLOAD + message.getRecipient() + ":" + message.getContent();
+            case FILE_ACCEPT -> FILE_ACCEPT + message.getContent();
+            case ROOM -> ROOM + message.getRecipient() + ":" + message.getSender() + ":" + message.getContent();
+            case CHAT -> message.getSender() + ": " + message.getContent();
+            case PRIVATE -> "(Private from " + message.getSender() + "): " + message.getContent();
+            case SYSTEM, LOGIN -> message.getContent();
+            // Sessions are only resumable over the binary protocol, so text clients never see these
+            case RESUME, RESUMED, RESUME_FAILED, LOGOUT -> message.getType().name();
+        };
+        // Binary senders may embed newlines; a text client must still see exactly one line
+        return line.replace('\n', ' ').replace('\r', ' ');
+    }
+}
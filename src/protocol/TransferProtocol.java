@@ -0,0 +1,71 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * The file transfer channel: a port of its own, so a large file never
+ * queues behind or ahead of anyone's chat. A FILE_OFFER on the chat
+ * connection gets the file an id; its bytes then go over this channel, one
+ * connection per upload or download:
+ * <pre>
+ *   request   byte    UPLOAD or DOWNLOAD
+ *             byte    id length, then the id in ASCII
+ *             long    bytes of the file the client already has (downloads; 0 for uploads)
+ *   reply     byte    status; anything but OK closes the connection
+ *             long    file size
+ *             long    offset the transfer starts at, a whole number of chunks in
+ *             int     chunk size
+ * </pre>
+ * The file then goes chunk by chunk from that offset, each chunk behind the
+ * CRC-32C of its bytes and chunk size long but the last. A dropped
+ * connection costs at most the chunk in flight: the next one starts after
+ * the last whole chunk. The server answers a finished upload with one more
+ * status, once it has checked the file against the SHA-256 in the offer;
+ * the client answers a finished download the same way, so the server knows
+ * the file arrived intact and can delete it.
+ */
+public final class TransferProtocol {
+    public static final byte UPLOAD = 'U';
+    public static final byte DOWNLOAD = 'D';
+
+    public static final byte OK = 0;
+    // No such transfer, or not one this request may touch yet, such as a download before the accept
+    public static final byte NOT_FOUND = 1;
+    // Every transfer slot is taken; try again shortly
+    public static final byte BUSY = 2;
+    public static final byte BAD_CHECKSUM = 3;
+
+    public static final int REPLY_LENGTH = 1 + 8 + 8 + 4;
+    public static final int MAX_ID_LENGTH = 64;
+
+    private TransferProtocol() {
+    }
+
+    public static ByteBuffer request(byte operation, String id, long offset) {
+        byte[] bytes = id.getBytes(StandardCharsets.US_ASCII);
+        return ByteBuffer.allocate(2 + bytes.length + 8)
+                .put(operation)
+                .put((byte) bytes.length)
+                .put(bytes)
+                .putLong(offset)
+                .flip();
+    }
+
+    public static ByteBuffer reply(byte status, long size, long start, int chunkBytes) {
+        return ByteBuffer.allocate(REPLY_LENGTH)
+                .put(status)
+                .putLong(size)
+                .putLong(start)
+                .putInt(chunkBytes)
+                .flip();
+    }
+
+    // CRC-32C of the buffer's remaining bytes, leaving its position where it was
+    public static int checksum(ByteBuffer chunk) {
+        CRC32C crc = new CRC32C();
+        crc.update(chunk.duplicate());
+        return (int) crc.getValue();
+    }
+}
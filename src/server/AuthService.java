@@ -0,0 +1,117 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Runs password verification on its own small pool so slow hashing never
+ * competes with message handling threads. The admission queue is bounded:
+ * once it is full, further logins are answered with BUSY straight away
+ * instead of piling up behind a login storm.
+ */
+class AuthService {
+    enum Outcome {
+        ACCEPTED,
+        REJECTED,
+        BUSY
+    }
+
+    private final UserStore userStore;
+    private final PasswordHasher hasher;
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder queueNanos = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+    private final AtomicLong maxHashNanos = new AtomicLong();
+
+    AuthService(UserStore userStore, PasswordHasher hasher, int threads, int queueCapacity) {
+        this.userStore = userStore;
+        this.hasher = hasher;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "auth-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // The callback runs on an auth thread, or on the caller's thread when the answer is BUSY
+    void authenticate(String username, String password, Consumer<Outcome> callback) {
+        long submitted = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long started = System.nanoTime();
+                record(queueNanos, maxQueueNanos, started - submitted);
+                boolean valid = verify(username, password);
+                record(hashNanos, maxHashNanos, System.nanoTime() - started);
+                (valid ? accepted : rejected).increment();
+                callback.accept(valid ? Outcome.ACCEPTED : Outcome.REJECTED);
+            });
+        } catch (RejectedExecutionException e) {
+            busy.increment();
+            callback.accept(Outcome.BUSY);
+        }
+    }
+
+    // Runs on the calling thread; the lookup may hit the database, the hash is deliberately slow
+    boolean verify(String username, String password) {
+        User user = userStore.findUser(username);
+        if (user == null) {
+            return hasher.verifyMissing(password);
+        }
+        return hasher.verify(password, user.getPasswordHash());
+    }
+
+    private static void record(LongAdder total, AtomicLong max, long nanos) {
+        total.add(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    long getAccepted() {
+        return accepted.sum();
+    }
+
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    // Logins turned away because the admission queue was full
+    long getBusy() {
+        return busy.sum();
+    }
+
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    long getTotalQueueNanos() {
+        return queueNanos.sum();
+    }
+
+    long getMaxQueueNanos() {
+        return maxQueueNanos.get();
+    }
+
+    long getTotalHashNanos() {
+        return hashNanos.sum();
+    }
+
+    long getMaxHashNanos() {
+        return maxHashNanos.get();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+}
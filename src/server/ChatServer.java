@@ -1,106 +1,780 @@
 package server;
 
+import client.FileOffer;
+import client.Message;
+import logging.AsyncLog;
+import logging.Logger;
+
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.file.Path;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
 
 public class ChatServer {
+    private static final Logger LOG = Logger.get(ChatServer.class);
+    private static final int ACCEPT_BACKLOG = 1024;
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
+
     private final int port;
-    private ServerSocket serverSocket;
-    private final List<ClientHandler> clients = new ArrayList<>();
-    private final Map<String, User> users = new HashMap<>();
+    private final ServerConfig config;
+    // Closed by the shutdown hook
+    private volatile ServerSocketChannel serverChannel;
+    private volatile NioServer nioServer;
+    private final SessionRegistry sessions = new SessionRegistry();
+    private final RoomRegistry rooms = new RoomRegistry();
+    private final PresenceTracker presence;
+    private final ServerMetrics metrics = new ServerMetrics();
+    // Broadcast and room deliveries per second, shared by every client so a storm cannot swamp the queues
+    private final TokenBucket fanOutBudget;
+    // Heartbeat and grace-period timeouts for every session, and a thread for what they set off
+    private final TimerWheel sessionTimers = new TimerWheel("session-timers", TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE);
+    private final ExecutorService housekeeping = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "session-housekeeping");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Null when --ping-interval-ms is 0
+    private final Heartbeats heartbeats;
+    // Null when --resume-grace-ms is 0
+    private final ResumableSessions resumable;
+    // Null when --compression is off
+    private final CompressorPool compressors;
+    private final UserStore userStore;
+    private final AuthService authService;
+    // Null when --log-dir is empty or the log could not be opened
+    private final MessageLog messageLog;
+    // Null when --inbox-dir is empty; offline recipients are then just reported as not online
+    private final InboxStore inboxStore;
+    // Null when --transfer-port is 0 or the spool directory could not be set up
+    private final FileTransfers transfers;
+    private volatile FileTransferServer transferServer;
+    // Null unless --cluster-port is set; created by start(), before any client thread exists
+    private ClusterNode cluster;
+    // Null unless --tls is set; created by start(), before either port is opened
+    private TlsService tls;
+    // Reader and writer threads for the blocking modes
+    private final ThreadFactory threadFactory;
     
     public ChatServer(int port) {
-        this.port = port;
-        // Add some demo users
-        users.put("anant", new User("anant", "password123"));
-        users.put("rohan", new User("rohan", "password123"));
-        users.put("aman", new User("aman", "password123"));
+        this(new ServerConfig(port));
     }
 
-    public void start() {
+    public ChatServer(ServerConfig config) {
+        this.config = config;
+        this.port = config.getPort();
+        this.presence = new PresenceTracker(sessions, metrics, config.getPresenceIntervalMillis());
+        // Handlers only block in socket I/O and never hold a monitor while doing so,
+        // so virtual threads unmount cleanly instead of pinning their carrier
+        this.threadFactory = config.getMode() == ServerMode.VIRTUAL
+                ? Thread.ofVirtual().name("client-", 0).factory()
+                : Thread.ofPlatform().name("client-", 0).factory();
+        PasswordHasher hasher = new PasswordHasher(config.getHashIterations());
+        this.userStore = createUserStore(config, hasher);
+        this.authService = new AuthService(userStore, hasher, config.getAuthThreads(), config.getAuthQueueCapacity());
+        this.messageLog = openMessageLog(config);
+        this.inboxStore = openInboxStore(config, userStore);
+        // Up to a second's worth may go out at once
+        this.fanOutBudget = new TokenBucket(config.getFanOutBudget(), (int) Math.min(Integer.MAX_VALUE, config.getFanOutBudget()));
+        this.heartbeats = config.getPingIntervalMillis() > 0 ? new Heartbeats(config, metrics, sessionTimers, housekeeping) : null;
+        this.resumable = config.getResumeGraceMillis() > 0 ? new ResumableSessions(config, metrics, sessionTimers, housekeeping) : null;
+        this.transfers = openFileTransfers(config, sessionTimers, housekeeping);
+        this.compressors = config.isCompression()
+                ? new CompressorPool(config.getCompressionLevel(), config.getCompressionMinBytes(),
+                        config.getCompressionContexts(), metrics)
+                : null;
+    }
+
+    private static InboxStore openInboxStore(ServerConfig config, UserStore userStore) {
+        if (config.getInboxDir().isEmpty()) {
+            return null;
+        }
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Server started on port " + port);
+            return new InboxStore(Path.of(config.getInboxDir()), userStore, config.getInboxCapacity(),
+                    config.getInboxBatch(), config.getInboxBatchBytes());
+        } catch (IOException e) {
+            LOG.warn("Could not open inbox directory, offline messages are disabled: {}", e.getMessage());
+            return null;
+        }
+    }
 
-            while (!serverSocket.isClosed()) {
+    private static FileTransfers openFileTransfers(ServerConfig config, TimerWheel timers, ExecutorService housekeeping) {
+        if (config.getTransferPort() == 0) {
+            return null;
+        }
+        try {
+            return new FileTransfers(config, timers, housekeeping);
+        } catch (IOException e) {
+            LOG.warn("Could not set up the file transfer directory, file transfer is disabled: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static MessageLog openMessageLog(ServerConfig config) {
+        if (config.getLogDir().isEmpty()) {
+            return null;
+        }
+        try {
+            return new MessageLog(Path.of(config.getLogDir()), config.getLogSegmentBytes(), config.getLogFlushMillis(),
+                    config.getLogRetentionBytes(), config.getLogRetentionMillis());
+        } catch (IOException e) {
+            LOG.warn("Could not open message log, history is disabled: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static UserStore createUserStore(ServerConfig config, PasswordHasher hasher) {
+        // Add some demo users. They all share one password, so hash it once rather than
+        // paying the work factor per account when thousands are requested for load tests
+        String demoHash = hasher.hash("password123");
+        List<User> demoUsers = new ArrayList<>();
+        demoUsers.add(new User("anant", demoHash));
+        demoUsers.add(new User("rohan", demoHash));
+        demoUsers.add(new User("aman", demoHash));
+        for (int i = 0; i < config.getDemoUsers(); i++) {
+            demoUsers.add(new User("user" + i, demoHash));
+        }
+
+        if (config.getUserStore().equals("jdbc")) {
+            JdbcUserStore store = new JdbcUserStore(config.getJdbcUrl(), config.getJdbcUser(), config.getJdbcPassword(),
+                    config.getJdbcPoolSize(), config.getUserCacheTtlMillis());
+            if (config.isJdbcInit()) {
                 try {
-                    Socket clientSocket = serverSocket.accept();
-                    System.out.println("New client connected: " + clientSocket.getInetAddress().getHostAddress());
-
-                    ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                    clients.add(clientHandler);
-                    new Thread(clientHandler).start();
-                } catch (IOException e) {
-                    if (!serverSocket.isClosed()) {
-                        System.err.println("Error accepting client connection: " + e.getMessage());
+                    store.createSchema();
+                    for (User user : demoUsers) {
+                        if (store.findUser(user.getUsername()) == null) {
+                            store.addUser(user);
+                        }
                     }
+                } catch (SQLException e) {
+                    LOG.warn("Error initialising user database: {}", e.getMessage());
                 }
             }
+            return store;
+        }
+
+        InMemoryUserStore store = new InMemoryUserStore();
+        demoUsers.forEach(store::addUser);
+        return store;
+    }
+
+    public void start() {
+        presence.start();
+        sessionTimers.start();
+        try {
+            if (config.isTls()) {
+                tls = openTls(config, sessionTimers);
+            }
+            if (config.getClusterPort() > 0) {
+                cluster = new ClusterNode(this, sessions, presence, config.getNodeId(), config.getClusterBind(),
+                        config.getClusterPort(), config.getClusterSecret(), config.getPeers());
+                cluster.start();
+            }
+            if (resumable != null) {
+                restoreSessions();
+                Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "shutdown"));
+            }
+            startFileTransfers();
+            new MetricsExporter(metrics, sessions, authService, cluster, transfers, tls)
+                    .start(port, config.getMetricsBind(), config.getMetricsPort());
+            if (config.getMode() == ServerMode.NIO) {
+                nioServer = new NioServer(this, config);
+                nioServer.start();
+            } else {
+                startThreaded();
+            }
+        } catch (IOException e) {
+            LOG.error("Could not start server: {}", e.getMessage());
+        }
+    }
+
+    // A server asked for TLS does not start without it, rather than falling back to plaintext
+    private static TlsService openTls(ServerConfig config, TimerWheel timers) throws IOException {
+        try {
+            return new TlsService(config, timers);
+        } catch (GeneralSecurityException | IOException e) {
+            throw new IOException("could not set up TLS from " + config.getTlsKeystore() + ": " + e, e);
+        }
+    }
+
+    // A transfer port that cannot be opened costs file transfer only, not chat
+    private void startFileTransfers() {
+        if (transfers == null) {
+            return;
+        }
+        FileTransferServer transferServer = new FileTransferServer(this, transfers, config, sessionTimers, tls);
+        try {
+            transferServer.start();
+            this.transferServer = transferServer;
         } catch (IOException e) {
-            System.err.println("Could not start server: " + e.getMessage());
+            LOG.warn("Could not open the file transfer port, file transfer is disabled: {}", e.getMessage());
         }
     }
 
+    private void startThreaded() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        LOG.info("Server started on port {} ({}{})", port, config.getMode().name().toLowerCase(), tls != null ? ", tls" : "");
+
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel clientChannel = serverChannel.accept();
+                // Line clients get no PINGs, so this is what finds their dead peers
+                clientChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                LOG.info("New client connected: {}", clientChannel.socket().getInetAddress().getHostAddress());
+
+                if (tls != null) {
+                    // The handshake runs on the TLS pool; the client gets its threads once it is through
+                    tls.handshake(clientChannel, channel -> startClient(new ClientHandler(clientChannel, channel, this)));
+                } else {
+                    startClient(new ClientHandler(clientChannel, this));
+                }
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    LOG.warn("Error accepting client connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void startClient(ClientHandler clientHandler) {
+        addClient(clientHandler);
+        threadFactory.newThread(clientHandler).start();
+    }
+
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(config.getQueueCapacity(), config.getOverflowPolicy(), config.getBlockTimeoutMillis(),
+                resumable != null ? config.getResumeBuffer() : 0);
+    }
+
+    RateLimiter newRateLimiter() {
+        return new RateLimiter(config);
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
+    void addClient(ClientHandler clientHandler) {
+        sessions.add(clientHandler);
+        if (heartbeats != null) {
+            heartbeats.watch(clientHandler);
+        }
+    }
+
+    // Returns false if the username is already logged in on another session
+    boolean login(ClientHandler clientHandler, String username) {
+        if (sessions.login(clientHandler, username)) {
+            return true;
+        }
+        // A session waiting to be resumed gives way to a fresh login under its name
+        ClientHandler parked = sessions.find(username);
+        return parked != null && resumable != null && resumable.evict(parked) && sessions.login(clientHandler, username);
+    }
+
+    // Null if sessions cannot be resumed
+    String issueResumeToken(ClientHandler clientHandler) {
+        if (resumable == null) {
+            return null;
+        }
+        String token = resumable.newToken();
+        resumable.register(token, clientHandler);
+        return token;
+    }
+
+    /**
+     * Hands a detached session to the client that reconnected with its
+     * token: everything queued for it after offset, its place online and in
+     * its rooms, and a new token. Nobody else is told, since as far as they
+     * know the user never left. Returns false if there is no such session
+     * or it no longer has what the client missed; the client then logs in
+     * again.
+     */
+    boolean resume(ClientHandler clientHandler, String username, String token, long offset) {
+        ClientHandler old = resumable != null ? resumable.claim(token, username) : null;
+        if (old == null) {
+            return false;
+        }
+        // Still attached if its connection is half-open and the heartbeats have not caught it yet
+        old.detach();
+        String newToken = resumable.newToken();
+        if (!clientHandler.takeOver(old, offset, newToken)) {
+            old.expire();
+            return false;
+        }
+        sessions.replace(old, clientHandler);
+        for (String room : old.getRooms()) {
+            rooms.replace(room, old, clientHandler);
+            clientHandler.getRooms().add(room);
+        }
+        old.getRooms().clear();
+        resumable.register(newToken, clientHandler);
+        metrics.resumed();
+        return true;
+    }
+
+    // A logged-in client's connection dropped; its session waits out the grace period for it to resume
+    void detached(ClientHandler clientHandler) {
+        if (heartbeats != null) {
+            heartbeats.unwatch(clientHandler);
+        }
+        resumable.detached(clientHandler);
+    }
+
+    // A detached session that can no longer be resumed as it was
+    void endDetached(ClientHandler clientHandler) {
+        if (resumable != null) {
+            resumable.evict(clientHandler);
+        }
+    }
+
+    // Brings back the sessions saved at the last shutdown, detached until their clients resume them
+    private void restoreSessions() {
+        int restored = 0;
+        for (ResumableSessions.Saved saved : resumable.load()) {
+            OutboundQueue queue = newOutboundQueue();
+            queue.restore(saved.replay());
+            ClientHandler session = ClientHandler.restored(this, saved.username(), saved.token(), queue);
+            sessions.add(session);
+            if (!sessions.login(session, saved.username())) {
+                sessions.remove(session);
+                continue;
+            }
+            for (String room : saved.rooms()) {
+                if (rooms.join(room, session)) {
+                    session.getRooms().add(room);
+                }
+            }
+            presence.joined(saved.username());
+            if (cluster != null) {
+                cluster.localJoined(saved.username());
+            }
+            resumable.restored(session);
+            restored++;
+        }
+        if (restored > 0) {
+            LOG.info("Restored {} sessions saved at the last shutdown", restored);
+        }
+    }
+
+    /**
+     * Stops accepting clients and detaches every session as if its
+     * connection had dropped, so nobody is announced as leaving, then saves
+     * the sessions for the next start to restore. Runs as a shutdown hook.
+     */
+    void shutdown() {
+        LOG.info("Shutting down");
+        try {
+            if (nioServer != null) {
+                nioServer.close();
+            } else if (serverChannel != null) {
+                serverChannel.close();
+            }
+            if (transferServer != null) {
+                transferServer.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Error closing the server socket: {}", e.getMessage());
+        }
+        if (tls != null) {
+            tls.shutdown();
+        }
+        for (ClientHandler client : sessions.online()) {
+            client.connectionLost();
+        }
+        resumable.save();
+        if (inboxStore != null) {
+            inboxStore.close();
+        }
+        if (messageLog != null) {
+            messageLog.close();
+        }
+    }
+
+    // Sends a server notice to everyone except the sender
     public void broadcast(String message, ClientHandler sender) {
-        for (ClientHandler client : clients) {
-            if (client != sender && client.isLoggedIn()) {
-                client.sendMessage(message);
+        broadcast(Message.system(message), sender);
+    }
+
+    public void broadcast(Message message, ClientHandler sender) {
+        // Client chat is charged to the fan-out budget; server notices are not
+        if (message.getType() == Message.Type.CHAT && sender != null
+                && !sender.chargeFanOut(fanOutBudget, Message.Type.CHAT, sessions.online().size() - 1)) {
+            return;
+        }
+        fanOut(message, sender);
+        if (cluster != null) {
+            cluster.relayBroadcast(message);
+        }
+    }
+
+    // A broadcast relayed from another node; delivered here only
+    void deliverBroadcast(Message message) {
+        fanOut(message, null);
+    }
+
+    private void fanOut(Message message, ClientHandler sender) {
+        // Encoded at most once per wire format and shared by every recipient's write path
+        long start = System.nanoTime();
+        OutboundMessage outbound = message.getType() == Message.Type.CHAT ? log(message) : new OutboundMessage(message, true);
+        int delivered = 0;
+        for (ClientHandler client : sessions.online()) {
+            if (client != sender) {
+                client.send(outbound);
+                delivered++;
             }
         }
+        metrics.sent(message.getType(), delivered);
+        metrics.broadcastFannedOut(System.nanoTime() - start);
     }
 
     public void privateMessage(String message, String recipient, ClientHandler sender) {
-        for (ClientHandler client : clients) {
-            if (client.getUsername() != null && client.getUsername().equals(recipient)) {
-                client.sendMessage("(Private from " + sender.getUsername() + "): " + message);
-                return;
+        Message privateMessage = new Message(Message.Type.PRIVATE, sender.getUsername(), recipient, message);
+        ClientHandler client = sessions.find(recipient);
+        if (client != null) {
+            client.send(log(privateMessage));
+            metrics.sent(Message.Type.PRIVATE, 1);
+            return;
+        }
+        String node = cluster != null ? cluster.nodeOf(recipient) : null;
+        if (node != null && cluster.relayPrivate(node, privateMessage)) {
+            return;
+        }
+        if (inboxStore == null) {
+            sender.sendMessage("User '" + recipient + "' is not online.");
+            return;
+        }
+        // Looked up and stored on the inbox thread; this reader goes straight back to its client
+        Message offline = new Message(Message.Type.PRIVATE, sender.getUsername(), recipient, message);
+        inboxStore.store(recipient, offline, result -> {
+            switch (result) {
+                case STORED -> {
+                    sender.sendMessage("User '" + recipient + "' is offline; they will get your message when they log in.");
+                    // They may have logged in while we were storing it
+                    ClientHandler late = sessions.find(recipient);
+                    if (late != null) {
+                        inboxStore.pendingBatch(recipient, late::sendInboxBatch);
+                    }
+                }
+                case FULL -> sender.sendMessage("User '" + recipient + "' is offline and their inbox is full.");
+                case NO_ACCOUNT, FAILED -> sender.sendMessage("User '" + recipient + "' is not online.");
+            }
+        });
+    }
+
+    // A private message relayed from another node; if the recipient has just left, it waits in their inbox
+    void deliverPrivate(Message message) {
+        ClientHandler client = sessions.find(message.getRecipient());
+        if (client != null) {
+            client.send(log(message));
+            metrics.sent(Message.Type.PRIVATE, 1);
+        } else if (inboxStore != null) {
+            inboxStore.store(message.getRecipient(), message, result -> {
+                // Nobody on this node to tell
+            });
+        }
+    }
+
+    /**
+     * A client wants to send recipient a file. The offer is checked and
+     * given an id, which goes back to the sender as FILE_UPLOAD; the file
+     * itself goes over the transfer port, and only once it is all there
+     * does the recipient hear of it. Recipients must be online on this
+     * node, since the offer is not stored and not relayed.
+     */
+    void offerFile(ClientHandler sender, String recipient, String request) {
+        FileTransferServer transferServer = this.transferServer;
+        if (transferServer == null) {
+            sender.sendMessage("File transfer is not enabled on this server.");
+            return;
+        }
+        FileOffer offer = FileOffer.parseRequest(sender.getUsername(), recipient, request);
+        if (offer == null) {
+            sender.sendMessage("That file cannot be sent; check its name.");
+            return;
+        }
+        if (recipient.equals(sender.getUsername()) || sessions.find(recipient) == null) {
+            sender.sendMessage("User '" + recipient + "' is not online.");
+            return;
+        }
+        if (offer.size() > config.getTransferMaxBytes()) {
+            sender.sendMessage(offer.name() + " is too large; files can be at most " + config.getTransferMaxBytes() + " bytes.");
+            return;
+        }
+        FileTransfers.Transfer transfer = transfers.create(offer, transferServer.getPort());
+        if (transfer == null) {
+            sender.sendMessage("The server has no room for more files right now; please try again later.");
+            return;
+        }
+        sender.send(new Message(Message.Type.FILE_UPLOAD, null, recipient, transfer.getOffer().content()));
+    }
+
+    // The whole file is in and intact; now the recipient is asked whether they want it
+    void fileUploaded(FileTransfers.Transfer transfer) {
+        FileOffer offer = transfer.getOffer();
+        metrics.fileUploaded();
+        ClientHandler recipient = sessions.find(offer.recipient());
+        if (recipient == null) {
+            fileFailed(transfer, "could not be delivered: " + offer.recipient() + " is no longer online");
+            return;
+        }
+        recipient.send(new Message(Message.Type.FILE_OFFER, offer.sender(), offer.recipient(), offer.content()));
+        notifySender(offer, "Sent " + offer.name() + " to " + offer.recipient() + "; waiting for them to accept it.");
+    }
+
+    // The recipient said yes; the echo tells their client it may start downloading
+    void acceptFile(ClientHandler clientHandler, String id) {
+        FileTransfers.Transfer transfer = transfers != null ? transfers.find(id) : null;
+        if (transfer == null || !transfer.isComplete() || !transfer.getOffer().recipient().equals(clientHandler.getUsername())) {
+            clientHandler.sendMessage("That file is no longer available.");
+            return;
+        }
+        transfer.accept();
+        clientHandler.send(new Message(Message.Type.FILE_ACCEPT, null, null, id));
+    }
+
+    // The recipient has the file and its checksum matched, so the spooled copy can go
+    void fileDownloaded(FileTransfers.Transfer transfer) {
+        if (transfers.remove(transfer)) {
+            metrics.fileDownloaded();
+            FileOffer offer = transfer.getOffer();
+            LOG.info("{} from {} to {} delivered", offer.name(), offer.sender(), offer.recipient());
+            notifySender(offer, offer.recipient() + " received " + offer.name() + ".");
+        }
+    }
+
+    void fileFailed(FileTransfers.Transfer transfer, String reason) {
+        if (transfers.remove(transfer)) {
+            notifySender(transfer.getOffer(), transfer.getOffer().name() + " " + reason + ".");
+        }
+    }
+
+    private void notifySender(FileOffer offer, String notice) {
+        ClientHandler sender = sessions.find(offer.sender());
+        if (sender != null) {
+            sender.sendMessage(notice);
+        }
+    }
+
+    // Starts delivering offline private messages to a user who has just logged in
+    void deliverInbox(ClientHandler clientHandler) {
+        if (inboxStore != null) {
+            inboxStore.firstBatch(clientHandler.getUsername(), clientHandler::sendInboxBatch);
+        }
+    }
+
+    // The client has stored the batch ending at sequence; send the next one
+    void acknowledgeInbox(ClientHandler clientHandler, long sequence) {
+        if (inboxStore != null) {
+            inboxStore.acknowledge(clientHandler.getUsername(), sequence, clientHandler::sendInboxBatch);
+        }
+    }
+
+    // Chat and private messages get a sequence number and go to the log before anyone sees them
+    private OutboundMessage log(Message message) {
+        if (messageLog != null) {
+            try {
+                return messageLog.append(message);
+            } catch (IOException e) {
+                LOG.warn("Error appending to message log: {}", e.getMessage());
             }
         }
-        // If we get here, recipient wasn't found
-        sender.sendMessage("User '" + recipient + "' is not online.");
+        return new OutboundMessage(message, true);
+    }
+
+    /**
+     * Replays logged messages to a client that has just logged in: everything
+     * after afterSequence if it knows where it left off (-1 if not), otherwise
+     * the most recent ones. Capped well below the outbound queue capacity so a
+     * replay can never trip the overflow policy.
+     */
+    void replayHistory(ClientHandler clientHandler, long afterSequence) {
+        if (messageLog == null) {
+            return;
+        }
+        int limit = Math.max(1, Math.min(config.getReplayMax(), config.getQueueCapacity() / 2));
+        long last = messageLog.lastSequence();
+        long from = afterSequence < 0
+                ? last - Math.min(config.getReplayCount(), limit)
+                : Math.max(afterSequence, last - limit);
+        messageLog.replay(from, limit, clientHandler.getUsername(), clientHandler::sendLogged);
     }
 
+    /**
+     * Answers a HISTORY request with the page of logged messages just
+     * before beforeSequence. Without a message log the answer is an empty
+     * page, so the client knows there is nothing to scroll back to.
+     */
+    void sendHistory(ClientHandler clientHandler, long beforeSequence, int limit) {
+        int size = Math.max(1, Math.min(limit, config.getHistoryPageMax()));
+        MessageLog.Page page = messageLog != null
+                ? messageLog.page(beforeSequence, size, clientHandler.getUsername())
+                : new MessageLog.Page(List.of(), 0);
+        clientHandler.sendHistoryPage(beforeSequence, page);
+    }
+
+    // Blocks for the full hash; connection threads should use authenticateAsync instead
     public boolean authenticateUser(String username, String password) {
-        User user = users.get(username);
-        return user != null && user.getPassword().equals(password);
+        return authService.verify(username, password);
     }
 
-    public void removeClient(ClientHandler clientHandler) {
-        clients.remove(clientHandler);
-        if (clientHandler.getUsername() != null) {
-            broadcast(clientHandler.getUsername() + " has left the chat.", null);
-            updateOnlineUsers();
+    void authenticateAsync(String username, String password, Consumer<AuthService.Outcome> callback) {
+        authService.authenticate(username, password, callback);
+    }
+
+    // Null if compression is off or every context is taken; the client then gets an uncompressed stream
+    FrameCompressor acquireCompressor() {
+        return compressors != null ? compressors.acquire() : null;
+    }
+
+    // Whether a client offering heartbeats in its handshake is told yes
+    boolean sendsHeartbeats() {
+        return heartbeats != null;
+    }
+
+    AuthService getAuthService() {
+        return authService;
+    }
+
+    void joinRoom(ClientHandler clientHandler, String room) {
+        String name = RoomRegistry.normalize(room);
+        if (name == null) {
+            clientHandler.sendMessage("Room names are 1-32 letters, digits, '-' or '_'.");
+            return;
+        }
+        if (clientHandler.getRooms().size() >= RoomRegistry.MAX_ROOMS_PER_CLIENT && !clientHandler.getRooms().contains(name)) {
+            clientHandler.sendMessage("You are already in " + RoomRegistry.MAX_ROOMS_PER_CLIENT + " rooms.");
+            return;
+        }
+        if (rooms.join(name, clientHandler)) {
+            clientHandler.getRooms().add(name);
+            if (clientHandler.isDisconnected()) {
+                // removeClient may already have emptied this client's rooms
+                rooms.leave(name, clientHandler);
+                return;
+            }
+            roomNotice(name, clientHandler.getUsername() + " joined #" + name + ".", clientHandler);
+        }
+        clientHandler.send(new Message(Message.Type.JOIN, null, null, name));
+    }
+
+    void leaveRoom(ClientHandler clientHandler, String room) {
+        String name = RoomRegistry.normalize(room);
+        if (name != null && rooms.leave(name, clientHandler)) {
+            clientHandler.getRooms().remove(name);
+            roomNotice(name, clientHandler.getUsername() + " left #" + name + ".", null);
+            clientHandler.send(new Message(Message.Type.LEAVE, null, null, name));
         }
     }
 
-    public void updateOnlineUsers() {
-        StringBuilder userList = new StringBuilder("ONLINE_USERS:");
-        for (ClientHandler client : clients) {
-            if (client.isLoggedIn()) {
-                userList.append(client.getUsername()).append(",");
+    // Fans out to the room's members only; the member set is a lock-free snapshot
+    void roomMessage(ClientHandler sender, String room, String message) {
+        String name = RoomRegistry.normalize(room);
+        if (name == null || !sender.getRooms().contains(name)) {
+            sender.sendMessage("You are not in #" + room + ".");
+            return;
+        }
+        Set<ClientHandler> members = rooms.members(name);
+        if (!sender.chargeFanOut(fanOutBudget, Message.Type.ROOM, members.size() - 1)) {
+            return;
+        }
+        Message roomMessage = new Message(Message.Type.ROOM, sender.getUsername(), name, message);
+        OutboundMessage outbound = new OutboundMessage(roomMessage, true);
+        int delivered = 0;
+        for (ClientHandler member : members) {
+            if (member != sender) {
+                member.send(outbound);
+                delivered++;
             }
         }
+        metrics.sent(Message.Type.ROOM, delivered);
+        if (cluster != null) {
+            cluster.relayRoomMessage(roomMessage);
+        }
+    }
+
+    // A room message relayed from another node, for this node's members of the room
+    void deliverRoomMessage(Message message) {
+        OutboundMessage outbound = new OutboundMessage(message, true);
+        int delivered = 0;
+        for (ClientHandler member : rooms.members(message.getRecipient())) {
+            member.send(outbound);
+            delivered++;
+        }
+        metrics.sent(Message.Type.ROOM, delivered);
+    }
 
-        String userListMessage = userList.toString();
-        if (userListMessage.endsWith(",")) {
-            userListMessage = userListMessage.substring(0, userListMessage.length() - 1);
+    private void roomNotice(String room, String notice, ClientHandler except) {
+        OutboundMessage outbound = new OutboundMessage(Message.system(notice), true);
+        int delivered = 0;
+        for (ClientHandler member : rooms.members(room)) {
+            if (member != except) {
+                member.send(outbound);
+                delivered++;
+            }
         }
+        metrics.sent(Message.Type.SYSTEM, delivered);
+    }
 
-        for (ClientHandler client : clients) {
-            if (client.isLoggedIn()) {
-                client.sendMessage(userListMessage);
+    public void removeClient(ClientHandler clientHandler) {
+        if (resumable != null) {
+            resumable.forget(clientHandler);
+        }
+        if (heartbeats != null) {
+            heartbeats.unwatch(clientHandler);
+        }
+        for (String room : clientHandler.getRooms()) {
+            if (rooms.leave(room, clientHandler)) {
+                roomNotice(room, clientHandler.getUsername() + " left #" + room + ".", null);
+            }
+        }
+        if (sessions.remove(clientHandler)) {
+            broadcast(clientHandler.getUsername() + " has left the chat.", null);
+            presence.left(clientHandler.getUsername());
+            if (cluster != null) {
+                cluster.localLeft(clientHandler.getUsername());
             }
         }
     }
 
+    // Called once a login has succeeded: announce the user and give them the current list
+    void userJoined(ClientHandler clientHandler) {
+        presence.sendSnapshot(clientHandler);
+        presence.joined(clientHandler.getUsername());
+        if (cluster != null) {
+            cluster.localJoined(clientHandler.getUsername());
+        }
+    }
+
+    // A client noticed a gap in presence versions and wants the full list again
+    void sendPresenceSnapshot(ClientHandler clientHandler) {
+        presence.sendSnapshot(clientHandler);
+    }
+
     public static void main(String[] args) {
-        int port = 8888;
-        ChatServer server = new ChatServer(port);
+        ServerConfig config = ServerConfig.fromArgs(args);
+        try {
+            Path logFile = config.getLogFile().isEmpty() ? null : Path.of(config.getLogFile());
+            AsyncLog.configure(config.getLogLevel(), config.isLogConsole(), logFile, config.getLogFileBytes(), config.getLogFileCount());
+        } catch (IOException e) {
+            LOG.warn("Could not open server log file, logging to the console only: {}", e.getMessage());
+        }
+        ChatServer server = new ChatServer(config);
         server.start();
     }
 }
\ No newline at end of file
@@ -1,93 +1,843 @@
 package server;
 
-import java.io.BufferedReader;
+import client.Message;
+import logging.Logger;
+import protocol.BinaryFrameDecoder;
+import protocol.BinaryProtocol;
+import protocol.FrameView;
+import protocol.TextProtocol;
+
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ClientHandler implements Runnable {
-    private final Socket clientSocket;
+    private static final Logger LOG = Logger.get(ClientHandler.class);
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final Connection connection;
     private final ChatServer server;
-    private PrintWriter writer;
-    private BufferedReader reader;
+    private final ServerMetrics metrics;
+    // Checked by whichever thread reads this client, before anything fans out
+    private final RateLimiter limiter;
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+    // Only set for the blocking modes, where run() reads the channel itself
+    private ReadableByteChannel channel;
     private String username;
-    private boolean isLoggedIn = false;
+    private volatile boolean isLoggedIn = false;
+    // Set while a LOGIN is with the auth service, so repeats are ignored until it answers
+    private final AtomicBoolean loginPending = new AtomicBoolean();
+    // Rooms this client is in, so they can be left on disconnect
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    // When bytes last arrived from the client, for Heartbeats
+    private volatile long lastReadNanos = System.nanoTime();
+    // Null when heartbeats are off; the other fields are only used on the wheel thread
+    private volatile TimerWheel.Timeout heartbeat;
+    private long lastPingNanos = lastReadNanos;
+    private long pings;
+    // Null unless the session can be resumed; see ResumableSessions
+    private volatile String resumeToken;
+    // Set when the connection dropped but the session lives on, waiting for its client to resume it
+    private volatile boolean detached;
+    private volatile TimerWheel.Timeout graceTimeout;
+
+    // Decided by the first bytes the client sends; null until then
+    private volatile WireFormat wireFormat;
+    // Agreed in the binary handshake; only then is the client sent PINGs and dropped for silence
+    private volatile boolean answersPings;
+    private final byte[] handshake = new byte[BinaryProtocol.HANDSHAKE_LENGTH];
+    private int handshakeFilled;
+    private LineDecoder lineDecoder;
+    private BinaryFrameDecoder frameDecoder;
+    // Turns stored frames back into messages for text clients; created on first use
+    private BinaryFrameDecoder storedFrameDecoder;
+
+    public ClientHandler(SocketChannel channel, ChatServer server) {
+        this.connection = new SocketConnection(channel, channel, server.newOutboundQueue(), server.getThreadFactory(), server.getMetrics());
+        this.server = server;
+        this.metrics = server.getMetrics();
+        this.limiter = server.newRateLimiter();
+        this.channel = channel;
+    }
 
-    public ClientHandler(Socket socket, ChatServer server) {
-        this.clientSocket = socket;
+    // A blocking-mode client whose TLS handshake is already done
+    ClientHandler(SocketChannel socket, TlsChannel channel, ChatServer server) {
+        this.connection = new SocketConnection(socket, channel, server.newOutboundQueue(), server.getThreadFactory(), server.getMetrics());
         this.server = server;
+        this.metrics = server.getMetrics();
+        this.limiter = server.newRateLimiter();
+        this.channel = channel;
+    }
 
+    // Used by the NIO transport, which feeds bytes in through onBytes
+    ClientHandler(Connection connection, ChatServer server) {
+        this.connection = connection;
+        this.server = server;
+        this.metrics = server.getMetrics();
+        this.limiter = server.newRateLimiter();
+    }
+
+    // A session saved at the last shutdown, detached until its client resumes it
+    static ClientHandler restored(ChatServer server, String username, String resumeToken, OutboundQueue queue) {
+        ClientHandler handler = new ClientHandler(new Parked(queue), server);
+        handler.username = username;
+        handler.resumeToken = resumeToken;
+        handler.wireFormat = WireFormat.BINARY;
+        handler.isLoggedIn = true;
+        handler.detached = true;
+        handler.disconnected.set(true);
+        return handler;
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        boolean violated = false;
         try {
-            writer = new PrintWriter(socket.getOutputStream(), true);
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            // First message should be LOGIN:username:password (or the binary handshake)
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                if (!onBytes(buffer)) {
+                    LOG.warn("Client {} violated the protocol, closing", connection.getRemoteAddress());
+                    violated = true;
+                    break;
+                }
+                buffer.clear();
+                // Not reading lets the client's TCP window fill, which slows it down at the source
+                long pause = takeReadPause();
+                if (pause > 0) {
+                    Thread.sleep(pause / 1_000_000, (int) (pause % 1_000_000));
+                }
+            }
         } catch (IOException e) {
-            System.err.println("Error setting up client handler: " + e.getMessage());
+            LOG.info("Client disconnected: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (violated) {
+                disconnect();
+            } else {
+                connectionLost();
+            }
         }
     }
 
-    @Override
-    public void run() {
+    /**
+     * Consumes bytes read from the client. Returns false if the stream is
+     * malformed and the connection should be closed.
+     */
+    boolean onBytes(ByteBuffer in) {
+        lastReadNanos = System.nanoTime();
+        metrics.bytesRead(in.remaining());
+        if (wireFormat == null && !detectWireFormat(in)) {
+            return false;
+        }
+        if (wireFormat == WireFormat.BINARY) {
+            return frameDecoder.decode(in, this::handleFrame);
+        }
+        if (wireFormat == WireFormat.TEXT) {
+            return lineDecoder.decode(in, this::handleMessage);
+        }
+        return true;
+    }
+
+    // Binary clients open with the handshake; anything else is an old text client
+    private boolean detectWireFormat(ByteBuffer in) {
+        if (!in.hasRemaining()) {
+            return true;
+        }
+        if (handshakeFilled == 0 && in.get(in.position()) != BinaryProtocol.MAGIC) {
+            lineDecoder = new LineDecoder(MAX_LINE_LENGTH);
+            wireFormat = WireFormat.TEXT;
+            return true;
+        }
+        while (handshakeFilled < handshake.length && in.hasRemaining()) {
+            handshake[handshakeFilled++] = in.get();
+        }
+        if (handshakeFilled < handshake.length) {
+            return true;
+        }
+        int version = BinaryProtocol.handshakeVersion(handshake);
+        if (version < 1) {
+            return false;
+        }
+        int accepted = Math.min(version, BinaryProtocol.VERSION);
+        frameDecoder = new BinaryFrameDecoder(BinaryProtocol.MAX_FRAME_LENGTH);
+        wireFormat = WireFormat.BINARY;
+        answersPings = BinaryProtocol.handshakeHeartbeats(handshake) && server.sendsHeartbeats();
+        // Agreed only if the client asked and a compression context is free
+        FrameCompressor compressor = BinaryProtocol.handshakeCompression(handshake) ? server.acquireCompressor() : null;
+        ByteBuffer reply = ByteBuffer.wrap(BinaryProtocol.handshake(accepted, compressor != null, answersPings))
+                .asReadOnlyBuffer();
+        if (compressor == null) {
+            sendFrame(reply);
+        } else if (!connection.sendThenCompress(reply, compressor)) {
+            disconnect();
+        }
+        return true;
+    }
+
+    void handleMessage(String message) {
+        // Answered whether logged in or not; the read itself is what Heartbeats looks for
+        if (message.startsWith(TextProtocol.PING)) {
+            metrics.received(Message.Type.PING);
+            send(new Message(Message.Type.PONG, null, null, message.substring(TextProtocol.PING.length())));
+            return;
+        }
+        if (message.startsWith(TextProtocol.PONG)) {
+            metrics.received(Message.Type.PONG);
+            return;
+        }
+        if (!isLoggedIn) {
+            if (message.startsWith(TextProtocol.LOGIN)) {
+                metrics.received(Message.Type.LOGIN);
+                String[] parts = message.split(":", 3);
+                if (parts.length == 3) {
+                    handleLogin(parts[1], parts[2], -1);
+                }
+            }
+        } else {
+            if (message.startsWith(TextProtocol.PRIVATE)) {
+                // Private message format: PRIVATE:recipient:message
+                metrics.received(Message.Type.PRIVATE);
+                String[] parts = message.split(":", 3);
+                if (parts.length == 3) {
+                    handlePrivate(parts[1], parts[2]);
+                }
+            } else if (message.equals(TextProtocol.SYNC_PRESENCE)) {
+                metrics.received(Message.Type.SYNC_PRESENCE);
+                server.sendPresenceSnapshot(this);
+            } else if (message.startsWith(TextProtocol.INBOX_ACK)) {
+                // Line clients are never sent INBOX, but an ack from an older one must not go out as chat
+                metrics.received(Message.Type.INBOX_ACK);
+                handleInboxAck(message.substring(TextProtocol.INBOX_ACK.length()));
+            } else if (message.startsWith(TextProtocol.JOIN)) {
+                metrics.received(Message.Type.JOIN);
+                server.joinRoom(this, message.substring(TextProtocol.JOIN.length()));
+            } else if (message.startsWith(TextProtocol.LEAVE)) {
+                metrics.received(Message.Type.LEAVE);
+                server.leaveRoom(this, message.substring(TextProtocol.LEAVE.length()));
+            } else if (message.startsWith(TextProtocol.HISTORY)) {
+                metrics.received(Message.Type.HISTORY);
+                handleHistory(message.substring(TextProtocol.HISTORY.length()));
+            } else if (message.startsWith(TextProtocol.FILE_OFFER)) {
+                // File offer format: FILE_OFFER:recipient:size:sha256:name
+                metrics.received(Message.Type.FILE_OFFER);
+                String[] parts = message.split(":", 3);
+                if (parts.length == 3) {
+                    handleFileOffer(parts[1], parts[2]);
+                }
+            } else if (message.startsWith(TextProtocol.FILE_ACCEPT)) {
+                metrics.received(Message.Type.FILE_ACCEPT);
+                server.acceptFile(this, message.substring(TextProtocol.FILE_ACCEPT.length()));
+            } else if (message.startsWith(TextProtocol.ROOM)) {
+                // Room message format: ROOM:room:message
+                metrics.received(Message.Type.ROOM);
+                String[] parts = message.split(":", 3);
+                if (parts.length == 3) {
+                    handleRoom(parts[1], parts[2]);
+                }
+            } else {
+                metrics.received(Message.Type.CHAT);
+                handleChat(message);
+            }
+        }
+    }
+
+    /**
+     * Runs a message past the sender's rate limits. Returns false if it
+     * must be dropped, after telling the client when that is due.
+     */
+    private boolean admit(Message.Type type) {
+        return admitted(type, limiter.admit(type, System.nanoTime()),
+                "You are sending messages too fast; some were not delivered.");
+    }
+
+    // Called by the server with the number of clients a broadcast or room message would reach
+    boolean chargeFanOut(TokenBucket budget, Message.Type type, int recipients) {
+        return admitted(type, limiter.chargeFanOut(budget, recipients, System.nanoTime()),
+                "The server is too busy to deliver your message right now; please try again shortly.");
+    }
+
+    private boolean admitted(Message.Type type, RateLimiter.Verdict verdict, String dropNotice) {
+        if (verdict == RateLimiter.Verdict.ALLOW) {
+            return true;
+        }
+        metrics.rateLimited(type);
+        switch (verdict) {
+            case DROP -> sendMessage(dropNotice);
+            case MUTE -> {
+                metrics.muted();
+                LOG.info("Muted {} for {} seconds for sending too fast", username, limiter.getMuteSeconds());
+                sendMessage("You are sending messages too fast and have been muted for " + limiter.getMuteSeconds() + " seconds.");
+            }
+            default -> {
+            }
+        }
+        return false;
+    }
+
+    /**
+     * How long to stop reading from this client so that messages let
+     * through on credit are paid for; 0 if nothing is owed.
+     */
+    long takeReadPause() {
+        long pause = limiter.takeReadPause();
+        if (pause > 0) {
+            metrics.readThrottled(pause);
+        }
+        return pause;
+    }
+
+    private void handleFrame(FrameView frame) {
+        metrics.received(frame.type());
+        switch (frame.type()) {
+            case LOGIN -> {
+                if (!isLoggedIn && frame.sender() != null) {
+                    handleLogin(frame.sender(), frame.payload(), frame.hasSequence() ? frame.sequence() : -1);
+                }
+            }
+            case CHAT -> {
+                if (isLoggedIn) {
+                    handleChat(frame.payload());
+                }
+            }
+            case PRIVATE -> {
+                if (isLoggedIn && frame.recipient() != null) {
+                    handlePrivate(frame.recipient(), frame.payload());
+                }
+            }
+            case SYNC_PRESENCE -> {
+                if (isLoggedIn) {
+                    server.sendPresenceSnapshot(this);
+                }
+            }
+            case INBOX_ACK -> {
+                if (isLoggedIn) {
+                    handleInboxAck(frame.payload());
+                }
+            }
+            case JOIN -> {
+                if (isLoggedIn) {
+                    server.joinRoom(this, frame.payload());
+                }
+            }
+            case LEAVE -> {
+                if (isLoggedIn) {
+                    server.leaveRoom(this, frame.payload());
+                }
+            }
+            case HISTORY -> {
+                if (isLoggedIn) {
+                    handleHistory(frame.payload());
+                }
+            }
+            case ROOM -> {
+                if (isLoggedIn && frame.recipient() != null) {
+                    handleRoom(frame.recipient(), frame.payload());
+                }
+            }
+            case FILE_OFFER -> {
+                if (isLoggedIn && frame.recipient() != null) {
+                    handleFileOffer(frame.recipient(), frame.payload());
+                }
+            }
+            case FILE_ACCEPT -> {
+                if (isLoggedIn) {
+                    server.acceptFile(this, frame.payload());
+                }
+            }
+            case RESUME -> {
+                if (!isLoggedIn && frame.sender() != null) {
+                    handleResume(frame.sender(), frame.payload(), frame.hasSequence() ? frame.sequence() : 0);
+                }
+            }
+            // Leaving on purpose, so there is nothing to hold the session for
+            case LOGOUT -> disconnect();
+            case PING -> send(new Message(Message.Type.PONG, null, null, frame.payload()));
+            case PONG -> {
+                // The read itself is what Heartbeats looks for
+            }
+            default -> {
+                // Server-to-client types are never valid from a client; ignore them
+            }
+        }
+    }
+
+    // Hashing is slow on purpose, so it happens on the auth pool rather than this thread
+    // resumeAfter is the last logged sequence the client has seen, or -1
+    private void handleLogin(String username, String password, long resumeAfter) {
+        if (!loginPending.compareAndSet(false, true)) {
+            return;
+        }
+        // Answered here rather than through admit, since the client waits for a login reply
+        if (limiter.admit(Message.Type.LOGIN, System.nanoTime()) != RateLimiter.Verdict.ALLOW) {
+            metrics.rateLimited(Message.Type.LOGIN);
+            loginPending.set(false);
+            send(new Message(Message.Type.LOGIN_FAILED, null, null, "Too many login attempts, please wait a moment"));
+            return;
+        }
+        long started = System.nanoTime();
+        server.authenticateAsync(username, password, outcome -> completeLogin(username, resumeAfter, outcome, started));
+    }
+
+    private void completeLogin(String username, long resumeAfter, AuthService.Outcome outcome, long started) {
+        metrics.loginCompleted(System.nanoTime() - started);
         try {
-            String message;
-
-            // First message should be LOGIN:username:password
-            while ((message = reader.readLine()) != null) {
-                if (!isLoggedIn) {
-                    if (message.startsWith("LOGIN:")) {
-                        String[] parts = message.split(":", 3);
-                        if (parts.length == 3) {
-                            String username = parts[1];
-                            String password = parts[2];
-                            if (server.authenticateUser(username, password)) {
-                                this.username = username;
-                                isLoggedIn = true;
-                                sendMessage("LOGIN_SUCCESS");
-                                server.broadcast(username + " has joined the chat.", this);
-                                server.updateOnlineUsers();
-                            } else {
-                                sendMessage("LOGIN_FAILED:Invalid username or password");
-                            }
-                        }
+            if (disconnected.get()) {
+                return;
+            }
+            switch (outcome) {
+                case REJECTED -> send(new Message(Message.Type.LOGIN_FAILED, null, null, "Invalid username or password"));
+                case BUSY -> send(new Message(Message.Type.LOGIN_FAILED, null, null, "Server busy, please retry later"));
+                case ACCEPTED -> {
+                    this.username = username;
+                    if (!server.login(this, username)) {
+                        this.username = null;
+                        send(new Message(Message.Type.LOGIN_FAILED, null, null, "User is already logged in"));
+                        return;
                     }
-                } else {
-                    if (message.startsWith("PRIVATE:")) {
-                        // Private message format: PRIVATE:recipient:message
-                        String[] parts = message.split(":", 3);
-                        if (parts.length == 3) {
-                            String recipient = parts[1];
-                            String privateMessage = parts[2];
-                            server.privateMessage(privateMessage, recipient, this);
-                        }
-                    } // Inside the run() method, modify the broadcast message handling:
-                    else {
-                        // Regular broadcast message
-                        System.out.println("DEBUG: Received broadcast from " + username + ": " + message); // Add this line
-                        server.broadcast(username + ": " + message, this);
+                    isLoggedIn = true;
+                    if (disconnected.get()) {
+                        // Closed while we registered; disconnect() may have run before login did
+                        server.removeClient(this);
+                        return;
                     }
+                    resumeToken = wireFormat == WireFormat.BINARY ? server.issueResumeToken(this) : null;
+                    startStream(new Message(Message.Type.LOGIN_SUCCESS, null, null, resumeToken));
+                    server.replayHistory(this, resumeAfter);
+                    server.deliverInbox(this);
+                    server.broadcast(username + " has joined the chat.", this);
+                    server.userJoined(this);
                 }
             }
-        } catch (IOException e) {
-            System.out.println("Client disconnected: " + e.getMessage());
         } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                System.err.println("Error closing client socket: " + e.getMessage());
+            loginPending.set(false);
+        }
+    }
+
+    /**
+     * Queues the LOGIN_SUCCESS reply. For a resumable session the stream
+     * the client counts for RESUME starts after it.
+     */
+    private void startStream(Message reply) {
+        if (resumeToken == null) {
+            send(reply);
+            return;
+        }
+        metrics.sent(reply.getType(), 1);
+        ByteBuffer frame = new OutboundMessage(reply, false).frame(WireFormat.BINARY);
+        if (!connection.getOutboundQueue().offerStreamStart(frame.duplicate(), 0)) {
+            LOG.warn("Outbound queue overflow for {}, disconnecting", connection.getRemoteAddress());
+            disconnect();
+            return;
+        }
+        connection.flushQueued();
+    }
+
+    // offset is how many bytes of the old connection's stream the client got
+    private void handleResume(String username, String token, long offset) {
+        if (!loginPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // Limited like logins, so tokens cannot be guessed any faster than passwords
+            if (limiter.admit(Message.Type.LOGIN, System.nanoTime()) != RateLimiter.Verdict.ALLOW) {
+                metrics.rateLimited(Message.Type.LOGIN);
+                send(new Message(Message.Type.RESUME_FAILED, null, null, "Too many login attempts, please wait a moment"));
+                return;
+            }
+            if (!server.resume(this, username, token, offset)) {
+                metrics.resumeFailed();
+                send(new Message(Message.Type.RESUME_FAILED, null, null, "Session expired, please log in again"));
+                return;
             }
+            isLoggedIn = true;
+            if (disconnected.get()) {
+                // Closed while we took over, before a lost connection could detach us
+                server.removeClient(this);
+                return;
+            }
+            LOG.info("{} resumed their session from {}", username, connection.getRemoteAddress());
+        } finally {
+            loginPending.set(false);
+        }
+    }
+
+    /**
+     * Moves a detached session's stream onto this connection, everything
+     * after offset behind a RESUMED reply carrying the new token. Returns
+     * false if the old session no longer has the bytes the client missed.
+     */
+    boolean takeOver(ClientHandler old, long offset, String token) {
+        ByteBuffer reply = new OutboundMessage(new Message(Message.Type.RESUMED, null, null, token), false).frame(WireFormat.BINARY);
+        if (!old.connection.getOutboundQueue().handOver(connection.getOutboundQueue(), offset, reply.duplicate())) {
+            return false;
+        }
+        metrics.sent(Message.Type.RESUMED, 1);
+        username = old.username;
+        resumeToken = token;
+        connection.flushQueued();
+        return true;
+    }
+
+    private void handleInboxAck(String sequence) {
+        try {
+            server.acknowledgeInbox(this, Long.parseLong(sequence.trim()));
+        } catch (NumberFormatException e) {
+            // Not an acknowledgement we sent a batch for; ignore it
+        }
+    }
+
+    // Request format: before:limit
+    private void handleHistory(String request) {
+        String[] parts = request.split(":", 2);
+        try {
+            if (parts.length == 2) {
+                server.sendHistory(this, Long.parseLong(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+            }
+        } catch (NumberFormatException e) {
+            // Not a request we understand; ignore it
+        }
+    }
+
+    private void handlePrivate(String recipient, String message) {
+        if (admit(Message.Type.PRIVATE)) {
+            server.privateMessage(message, recipient, this);
+        }
+    }
+
+    private void handleFileOffer(String recipient, String request) {
+        if (admit(Message.Type.FILE_OFFER)) {
+            server.offerFile(this, recipient, request);
+        }
+    }
+
+    private void handleRoom(String room, String message) {
+        if (admit(Message.Type.ROOM)) {
+            server.roomMessage(this, room, message);
+        }
+    }
+
+    private void handleChat(String message) {
+        // Regular broadcast message
+        LOG.debug("Received broadcast from {}: {}", username, message);
+        if (admit(Message.Type.CHAT)) {
+            server.broadcast(new Message(Message.Type.CHAT, username, null, message), this);
+        }
+    }
+
+    // Safe to call more than once; only the first call closes and unregisters
+    void disconnect() {
+        if (disconnected.compareAndSet(false, true)) {
+            connection.close();
             server.removeClient(this);
+            connection.getOutboundQueue().clear();
+        }
+    }
+
+    /**
+     * The connection dropped without a LOGOUT. A resumable session is
+     * detached to wait for its client; anything else is disconnected.
+     */
+    void connectionLost() {
+        if (resumeToken != null && isLoggedIn) {
+            detach();
+        } else {
+            disconnect();
+        }
+    }
+
+    // Closes the connection but keeps the session online, in its rooms and queueing what it is sent
+    void detach() {
+        if (disconnected.get()) {
+            return;
+        }
+        // Set first, so a send that fails because of the close knows to queue instead
+        detached = true;
+        if (disconnected.compareAndSet(false, true)) {
+            LOG.info("Lost the connection to {}; holding the session for them to resume", username);
+            connection.close();
+            server.detached(this);
         }
     }
 
+    // Ends a detached session that nobody resumed, as if the client had disconnected
+    void expire() {
+        server.removeClient(this);
+        connection.getOutboundQueue().clear();
+    }
+
+    // False until the handshake settles it, and for clients speaking the original line protocol
+    boolean isBinary() {
+        return wireFormat == WireFormat.BINARY;
+    }
+
+    // Sends a server notice, rendered as a plain line to text clients
     public void sendMessage(String message) {
-        writer.println(message);
+        send(Message.system(message));
+    }
+
+    // Single-recipient sends are counted here; fan-out loops count their recipients in one go
+    void send(Message message) {
+        metrics.sent(message.getType(), 1);
+        send(new OutboundMessage(message, false));
+    }
+
+    // The message encodes itself for this client's protocol; fan-out shares the bytes
+    void send(OutboundMessage message) {
+        WireFormat format = wireFormat;
+        sendFrame(message.frame(format == null ? WireFormat.TEXT : format));
+    }
+
+    // A binary frame from the message log; binary clients get the mapped bytes as they are
+    void sendLogged(ByteBuffer frame) {
+        metrics.replayed();
+        if (wireFormat == WireFormat.BINARY) {
+            sendFrame(frame);
+            return;
+        }
+        storedFrameDecoder().decode(frame.duplicate(), view -> send(new OutboundMessage(view.toMessage(), false)));
+    }
+
+    /**
+     * Sends a batch of offline messages and the INBOX marker the client
+     * acknowledges, all as one buffer so the burst costs a single queue slot
+     * and, usually, a single write. Line-protocol clients have no INBOX and
+     * never acknowledge, so for them a batch counts as delivered once it is
+     * queued, and the next one follows straight away.
+     */
+    void sendInboxBatch(Inbox.Batch batch) {
+        if (batch == null) {
+            return;
+        }
+        metrics.sent(Message.Type.PRIVATE, batch.frames().size());
+        if (wireFormat != WireFormat.BINARY) {
+            if (sendBurst(batch.frames(), null, false)) {
+                server.acknowledgeInbox(this, batch.lastSequence());
+            }
+            return;
+        }
+        Message marker = new Message(Message.Type.INBOX, null, null, batch.lastSequence() + ":" + batch.remaining());
+        metrics.sent(Message.Type.INBOX, 1);
+        sendBurst(batch.frames(), marker, false);
+    }
+
+    /**
+     * Sends a page of history behind its HISTORY header, in one buffer like
+     * an inbox batch: the client counts the frames after the header, so no
+     * live message may land in between.
+     */
+    void sendHistoryPage(long beforeSequence, MessageLog.Page page) {
+        Message header = new Message(Message.Type.HISTORY, null, null,
+                beforeSequence + ":" + page.nextBefore() + ":" + page.frames().size());
+        metrics.sent(Message.Type.HISTORY, 1);
+        metrics.replayed(page.frames().size());
+        sendBurst(page.frames(), header, true);
+    }
+
+    // Logged frames plus an optional marker, before or after them, as a single write; false if it was not queued
+    private boolean sendBurst(List<ByteBuffer> frames, Message marker, boolean markerFirst) {
+        ByteBuffer burst;
+        if (wireFormat == WireFormat.BINARY) {
+            ByteBuffer markerFrame = BinaryProtocol.encode(marker, false);
+            int size = markerFrame.remaining();
+            for (ByteBuffer frame : frames) {
+                size += frame.remaining();
+            }
+            burst = ByteBuffer.allocate(size);
+            if (markerFirst) {
+                burst.put(markerFrame);
+            }
+            frames.forEach(frame -> burst.put(frame.duplicate()));
+            if (!markerFirst) {
+                burst.put(markerFrame);
+            }
+            burst.flip();
+        } else {
+            StringBuilder lines = new StringBuilder();
+            // Inbox batches come from the inbox thread, so not the reader's shared decoder
+            BinaryFrameDecoder decoder = new BinaryFrameDecoder(BinaryProtocol.MAX_FRAME_LENGTH);
+            if (marker != null && markerFirst) {
+                lines.append(TextProtocol.toClientLine(marker)).append('\n');
+            }
+            for (ByteBuffer frame : frames) {
+                decoder.decode(frame.duplicate(), view -> lines.append(TextProtocol.toClientLine(view.toMessage())).append('\n'));
+            }
+            if (marker != null && !markerFirst) {
+                lines.append(TextProtocol.toClientLine(marker)).append('\n');
+            }
+            burst = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return sendFrame(burst.asReadOnlyBuffer());
+    }
+
+    private BinaryFrameDecoder storedFrameDecoder() {
+        if (storedFrameDecoder == null) {
+            storedFrameDecoder = new BinaryFrameDecoder(BinaryProtocol.MAX_FRAME_LENGTH);
+        }
+        return storedFrameDecoder;
+    }
+
+    // False if the frame was dropped along with the connection or session
+    private boolean sendFrame(ByteBuffer frame) {
+        if (detached) {
+            return park(frame);
+        } else if (!connection.send(frame)) {
+            if (detached) {
+                return park(frame);
+            }
+            LOG.warn("Outbound queue overflow for {}, disconnecting", connection.getRemoteAddress());
+            disconnect();
+            return false;
+        }
+        return true;
+    }
+
+    // Queued for the client to get when it resumes; a session that overflows cannot be resumed faithfully
+    private boolean park(ByteBuffer frame) {
+        if (!connection.getOutboundQueue().offer(frame.duplicate(), false)) {
+            LOG.warn("Outbound queue overflow for detached {}, ending the session", username);
+            server.endDetached(this);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Asks a silent client to prove it is still there. Skipped while
+     * anything is queued for it, so a full queue can never hold up the
+     * wheel thread; a client that is not draining its queue is caught by
+     * the write timeout instead.
+     */
+    void ping(long now) {
+        lastPingNanos = now;
+        if (connection.getOutboundQueue().depth() == 0) {
+            send(new Message(Message.Type.PING, null, null, Long.toString(++pings)));
+        }
+    }
+
+    long getLastPingNanos() {
+        return lastPingNanos;
+    }
+
+    boolean answersPings() {
+        return answersPings;
+    }
+
+    long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    long getWriteWaitingSince() {
+        return connection.getWriteWaitingSince();
+    }
+
+    TimerWheel.Timeout getHeartbeat() {
+        return heartbeat;
+    }
+
+    void setHeartbeat(TimerWheel.Timeout heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    String getRemoteAddress() {
+        return connection.getRemoteAddress();
+    }
+
+    String getResumeToken() {
+        return resumeToken;
+    }
+
+    boolean isDetached() {
+        return detached;
+    }
+
+    TimerWheel.Timeout getGraceTimeout() {
+        return graceTimeout;
+    }
+
+    void setGraceTimeout(TimerWheel.Timeout graceTimeout) {
+        this.graceTimeout = graceTimeout;
+    }
+
+    // What a detached session's client has still to get, for saving at shutdown
+    OutboundQueue.Replay getReplay() {
+        return connection.getOutboundQueue().replay();
     }
 
     public String getUsername() {
         return username;
     }
 
+    boolean isDisconnected() {
+        return disconnected.get();
+    }
+
+    Set<String> getRooms() {
+        return rooms;
+    }
+
     public boolean isLoggedIn() {
         return isLoggedIn;
     }
-}
\ No newline at end of file
+
+    // Messages waiting to be written to this client
+    public int getQueueDepth() {
+        return connection.getOutboundQueue().depth();
+    }
+
+    public long getDroppedMessages() {
+        return connection.getOutboundQueue().dropped();
+    }
+
+    // Stands in for the socket of a restored session, whose frames only ever go to the queue
+    private static final class Parked implements Connection {
+        private final OutboundQueue outbound;
+
+        Parked(OutboundQueue outbound) {
+            this.outbound = outbound;
+        }
+
+        @Override
+        public boolean send(ByteBuffer frame) {
+            return false;
+        }
+
+        @Override
+        public boolean sendThenCompress(ByteBuffer frame, FrameCompressor compressor) {
+            compressor.release();
+            return false;
+        }
+
+        @Override
+        public void flushQueued() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public long getWriteWaitingSince() {
+            return 0;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "restored";
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return outbound;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package server;
+
+import client.Message;
+import logging.Logger;
+import protocol.BinaryFrameDecoder;
+import protocol.BinaryProtocol;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * This server's membership in a cluster of chat nodes.
+ *
+ * Every node opens a {@link PeerLink} to each peer listed in {@code --peers}
+ * and accepts the peers' links on {@code --cluster-port}. Locally originated
+ * broadcasts, room messages and presence changes are relayed once per peer
+ * node, never once per remote user; private messages go only to the node the
+ * recipient is on. Relayed traffic is delivered locally and never relayed
+ * again, so the mesh needs no loop detection.
+ *
+ * Each node keeps a view of which users are on which peer. A peer's users
+ * are dropped from the view, and from everyone's presence list, as soon as
+ * its link closes or stays silent for {@link #PEER_TIMEOUT_MILLIS}; they come
+ * back with the snapshot the peer sends when it reconnects.
+ *
+ * Records on a link are {@code int length, byte kind, body}; message bodies
+ * are binary protocol frames.
+ *
+ * The listener binds to {@code --cluster-bind}, loopback unless told
+ * otherwise, and only takes links from the addresses of the configured
+ * peers. A link must then prove it knows {@code --cluster-secret}: the
+ * accepting node sends a CHALLENGE nonce, and the linking node's HELLO
+ * carries an HMAC of it, along with a nonce of its own that the reply HELLO
+ * answers the same way. Nothing else is read from a link before that, and
+ * no record may be longer than its kind needs.
+ */
+final class ClusterNode {
+    private static final Logger LOG = Logger.get(ClusterNode.class);
+    static final byte HELLO = 1;
+    static final byte SNAPSHOT = 2;
+    static final byte JOINED = 3;
+    static final byte LEFT = 4;
+    static final byte BROADCAST = 5;
+    static final byte PRIVATE = 6;
+    static final byte ROOM = 7;
+    static final byte HEARTBEAT = 8;
+    static final byte CHALLENGE = 9;
+
+    static final int HEARTBEAT_MILLIS = 1000;
+    static final int PEER_TIMEOUT_MILLIS = 3500;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int NONCE_BYTES = 16;
+    private static final int MAC_BYTES = 32;
+    // Longest body of each kind of record: a HELLO or CHALLENGE, a relayed frame with its length prefix, a snapshot
+    private static final int MAX_HANDSHAKE_BODY = 1024;
+    private static final int MAX_MESSAGE_BODY = BinaryProtocol.MAX_FRAME_LENGTH + 5;
+    private static final int MAX_SNAPSHOT_BODY = 16 * 1024 * 1024;
+
+    record Record(byte kind, byte[] body) {
+    }
+
+    // A peer's HELLO: who it is, and the nonce it wants our HELLO to answer
+    record Hello(String nodeId, byte[] nonce) {
+    }
+
+    private final ChatServer server;
+    private final SessionRegistry sessions;
+    private final PresenceTracker presence;
+    private final String nodeId;
+    private final String bindAddress;
+    private final int clusterPort;
+    private final SecretKeySpec secret;
+    private final SecureRandom random = new SecureRandom();
+    private final List<PeerLink> links = new ArrayList<>();
+    // Inbound links being read; a peer gets two, so a reconnect can overlap the link it replaces
+    private final Semaphore inboundSlots;
+    // Users on each peer node, and the reverse index used to route private messages
+    private final Map<String, Set<String>> usersByNode = new ConcurrentHashMap<>();
+    private final Map<String, String> nodeByUser = new ConcurrentHashMap<>();
+    // The live inbound link of each peer; an older link closing must not wipe a newer one's view
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+
+    ClusterNode(ChatServer server, SessionRegistry sessions, PresenceTracker presence, String nodeId, String bindAddress,
+                int clusterPort, String secret, List<String> peers) {
+        this.server = server;
+        this.sessions = sessions;
+        this.presence = presence;
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.clusterPort = clusterPort;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+        for (String peer : peers) {
+            int colon = peer.lastIndexOf(':');
+            links.add(new PeerLink(this, peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        this.inboundSlots = new Semaphore(2 * links.size());
+    }
+
+    void start() throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(bindAddress, clusterPort));
+        Thread acceptor = new Thread(() -> accept(listener), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : links) {
+            Thread thread = new Thread(link, "cluster-link-" + link);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        LOG.info("Cluster node {} listening on {}, peers {}", nodeId, bindAddress + ":" + clusterPort, links);
+    }
+
+    private void accept(ServerSocket listener) {
+        while (!listener.isClosed()) {
+            Socket socket;
+            try {
+                socket = listener.accept();
+            } catch (IOException e) {
+                LOG.warn("Error accepting cluster link: {}", e.getMessage());
+                continue;
+            }
+            if (!isPeerAddress(socket.getInetAddress()) || !inboundSlots.tryAcquire()) {
+                LOG.warn("Refusing cluster link from {}", socket.getRemoteSocketAddress());
+                closeQuietly(socket);
+                continue;
+            }
+            Thread reader = new Thread(() -> {
+                try {
+                    read(socket);
+                } finally {
+                    inboundSlots.release();
+                }
+            }, "cluster-in-" + socket.getRemoteSocketAddress());
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    // Resolved on every accept, so a peer that moves is still let in
+    private boolean isPeerAddress(InetAddress address) {
+        for (PeerLink link : links) {
+            try {
+                for (InetAddress peerAddress : InetAddress.getAllByName(link.getHost())) {
+                    if (peerAddress.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                // Not this one
+            }
+        }
+        return false;
+    }
+
+    private void read(Socket socket) {
+        String peer = null;
+        BinaryFrameDecoder decoder = new BinaryFrameDecoder(BinaryProtocol.MAX_FRAME_LENGTH);
+        try (socket) {
+            socket.setSoTimeout(PEER_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            byte[] challenge = nonce();
+            out.write(record(CHALLENGE, challenge));
+            Hello hello = readHello(in, challenge, false);
+            if (hello.nodeId().equals(nodeId)) {
+                throw new IOException("Link claims to be this node");
+            }
+            peer = hello.nodeId();
+            Socket previous = inbound.put(peer, socket);
+            if (previous != null) {
+                previous.close();
+            }
+            // Tells the linking peer who we are, so it can route private messages
+            out.write(helloRecord(hello.nonce(), challenge, true));
+            while (true) {
+                Record record = readRecord(in, true);
+                handle(peer, record.kind(), record.body(), decoder);
+            }
+        } catch (SocketTimeoutException e) {
+            LOG.info("Cluster node {} went silent", peer);
+        } catch (IOException e) {
+            if (peer != null) {
+                LOG.info("Cluster node {} disconnected: {}", peer, e.getMessage());
+            } else {
+                LOG.warn("Cluster link from {} failed before HELLO: {}", socket.getRemoteSocketAddress(), e.getMessage());
+            }
+        } finally {
+            if (peer != null && inbound.remove(peer, socket)) {
+                replaceUsers(peer, Set.of());
+            }
+        }
+    }
+
+    private void handle(String peer, byte kind, byte[] body, BinaryFrameDecoder decoder) throws IOException {
+        switch (kind) {
+            case SNAPSHOT -> {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+                int count = in.readInt();
+                // Every name takes at least its two length bytes
+                if (count < 0 || count > (body.length - 4) / 2) {
+                    throw new IOException("Snapshot claims " + count + " users");
+                }
+                Set<String> users = new HashSet<>(count * 2);
+                for (int i = 0; i < count; i++) {
+                    users.add(in.readUTF());
+                }
+                replaceUsers(peer, users);
+            }
+            case JOINED -> remoteJoined(peer, new String(body, StandardCharsets.UTF_8));
+            case LEFT -> remoteLeft(peer, new String(body, StandardCharsets.UTF_8));
+            case BROADCAST, PRIVATE, ROOM -> {
+                boolean valid = decoder.decode(ByteBuffer.wrap(body), frame -> {
+                    Message message = frame.toMessage();
+                    switch (kind) {
+                        case BROADCAST -> server.deliverBroadcast(message);
+                        case PRIVATE -> server.deliverPrivate(message);
+                        default -> server.deliverRoomMessage(message);
+                    }
+                });
+                if (!valid) {
+                    throw new IOException("Malformed message frame");
+                }
+            }
+            default -> {
+                // HEARTBEAT, or a kind from a newer node; the read itself is what counts
+            }
+        }
+    }
+
+    private synchronized void replaceUsers(String peer, Set<String> users) {
+        Set<String> previous = usersByNode.getOrDefault(peer, Set.of());
+        for (String user : previous) {
+            if (!users.contains(user)) {
+                remoteLeft(peer, user);
+            }
+        }
+        for (String user : users) {
+            if (!previous.contains(user)) {
+                remoteJoined(peer, user);
+            }
+        }
+    }
+
+    private synchronized void remoteJoined(String peer, String user) {
+        if (usersByNode.computeIfAbsent(peer, key -> ConcurrentHashMap.newKeySet()).add(user)) {
+            nodeByUser.put(user, peer);
+            presence.joined(user);
+        }
+    }
+
+    private synchronized void remoteLeft(String peer, String user) {
+        Set<String> users = usersByNode.get(peer);
+        if (users != null && users.remove(user)) {
+            if (nodeByUser.remove(user, peer)) {
+                // Private messages can still reach them on any other node they are logged in on
+                usersByNode.forEach((node, onNode) -> {
+                    if (onNode.contains(user)) {
+                        nodeByUser.putIfAbsent(user, node);
+                    }
+                });
+            }
+            presence.left(user);
+        }
+    }
+
+    // Node the user is logged in on, or null if they are not on any peer
+    String nodeOf(String user) {
+        return nodeByUser.get(user);
+    }
+
+    synchronized void localJoined(String user) {
+        sendToAll(record(JOINED, user.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    synchronized void localLeft(String user) {
+        sendToAll(record(LEFT, user.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Encoded once and shared by every link
+    void relayBroadcast(Message message) {
+        sendToAll(messageRecord(BROADCAST, message));
+    }
+
+    void relayRoomMessage(Message message) {
+        sendToAll(messageRecord(ROOM, message));
+    }
+
+    // Goes only to the recipient's node; false if no link to that node is up
+    boolean relayPrivate(String node, Message message) {
+        for (PeerLink link : links) {
+            if (node.equals(link.getPeerId())) {
+                link.send(messageRecord(PRIVATE, message));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendToAll(byte[] record) {
+        for (PeerLink link : links) {
+            link.send(record);
+        }
+    }
+
+    // Relay records dropped because a peer's queue was full, over all links
+    long getRelayDropped() {
+        long dropped = 0;
+        for (PeerLink link : links) {
+            dropped += link.getDropped();
+        }
+        return dropped;
+    }
+
+    synchronized byte[] resetLink(PeerLink link) {
+        return link.reset();
+    }
+
+    byte[] nonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Our HELLO, answering the nonce the peer sent: node id, nonce for the
+     * peer to answer in turn, and the HMAC. reply is true on the accepting
+     * side, whose nonce goes unanswered, and keeps a HELLO from being
+     * bounced back as the other kind.
+     */
+    byte[] helloRecord(byte[] peerNonce, byte[] nonce, boolean reply) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(nodeId);
+            out.write(nonce);
+            out.write(mac(peerNonce, reply, nodeId));
+            return record(HELLO, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Reads the peer's HELLO and checks that it answers our nonce
+    Hello readHello(DataInputStream in, byte[] nonce, boolean reply) throws IOException {
+        Record record = readRecord(in, false);
+        if (record.kind() != HELLO) {
+            throw new IOException("Expected HELLO");
+        }
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(record.body()));
+        String peerId = body.readUTF();
+        byte[] peerNonce = new byte[NONCE_BYTES];
+        byte[] peerMac = new byte[MAC_BYTES];
+        body.readFully(peerNonce);
+        body.readFully(peerMac);
+        if (!MessageDigest.isEqual(peerMac, mac(nonce, reply, peerId))) {
+            throw new IOException("HELLO from " + peerId + " failed authentication");
+        }
+        return new Hello(peerId, peerNonce);
+    }
+
+    // Reads the CHALLENGE an accepting node opens a link with
+    static byte[] readChallenge(DataInputStream in) throws IOException {
+        Record record = readRecord(in, false);
+        if (record.kind() != CHALLENGE || record.body().length != NONCE_BYTES) {
+            throw new IOException("Expected CHALLENGE");
+        }
+        return record.body();
+    }
+
+    private byte[] mac(byte[] nonce, boolean reply, String id) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secret);
+            mac.update(nonce);
+            mac.update((byte) (reply ? 1 : 0));
+            return mac.doFinal(id.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Reads one record, refusing a length its kind could never need before
+     * allocating for it. Until a link is authenticated only handshake
+     * records fit.
+     */
+    static Record readRecord(DataInputStream in, boolean authenticated) throws IOException {
+        int length = in.readInt();
+        if (length < 1) {
+            throw new IOException("Bad record length " + length);
+        }
+        byte kind = in.readByte();
+        int maxBody = !authenticated ? MAX_HANDSHAKE_BODY : kind == SNAPSHOT ? MAX_SNAPSHOT_BODY : MAX_MESSAGE_BODY;
+        if (length - 1 > maxBody) {
+            throw new IOException("Record of kind " + kind + " is " + length + " bytes long");
+        }
+        byte[] body = new byte[length - 1];
+        in.readFully(body);
+        return new Record(kind, body);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    // Only called under this node's lock, through resetLink
+    byte[] snapshotRecord() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            List<ClientHandler> online = sessions.online();
+            List<String> users = new ArrayList<>(online.size());
+            for (ClientHandler client : online) {
+                users.add(client.getUsername());
+            }
+            out.writeInt(users.size());
+            for (String user : users) {
+                out.writeUTF(user);
+            }
+            return record(SNAPSHOT, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] messageRecord(byte kind, Message message) {
+        // The sequence belongs to this node's log; the receiving node logs it under its own
+        ByteBuffer frame = BinaryProtocol.encode(message.withSequence(0), false);
+        return record(kind, Arrays.copyOf(frame.array(), frame.limit()));
+    }
+
+    static byte[] record(byte kind, byte[] body) {
+        ByteBuffer record = ByteBuffer.allocate(5 + body.length);
+        record.putInt(1 + body.length).put(kind).put(body);
+        return record.array();
+    }
+}
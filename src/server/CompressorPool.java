@@ -0,0 +1,59 @@
+package server;
+
+import protocol.Compression;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out {@link FrameCompressor}s to connections that negotiated
+ * compression and takes them back when they close. A DEFLATE context holds
+ * a few hundred kilobytes of native memory, so contexts are reset and
+ * reused rather than created per connection, and at most
+ * {@code maxContexts} ever exist; connections beyond that are simply not
+ * offered compression.
+ */
+final class CompressorPool {
+    private final int level;
+    private final int minBytes;
+    private final int maxContexts;
+    private final ServerMetrics metrics;
+    private final ConcurrentLinkedQueue<FrameCompressor> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger created = new AtomicInteger();
+
+    CompressorPool(int level, int minBytes, int maxContexts, ServerMetrics metrics) {
+        this.level = level;
+        this.minBytes = minBytes;
+        this.maxContexts = maxContexts;
+        this.metrics = metrics;
+    }
+
+    // Null when every context is in use
+    FrameCompressor acquire() {
+        FrameCompressor compressor = idle.poll();
+        if (compressor != null) {
+            return compressor;
+        }
+        int count;
+        do {
+            count = created.get();
+            if (count >= maxContexts) {
+                return null;
+            }
+        } while (!created.compareAndSet(count, count + 1));
+        return new FrameCompressor(Compression.newDeflater(level), minBytes, this);
+    }
+
+    void release(FrameCompressor compressor) {
+        Compression.reset(compressor.deflater());
+        idle.add(compressor);
+    }
+
+    void compressed(int inputBytes, int outputBytes) {
+        metrics.compressed(inputBytes, outputBytes);
+    }
+
+    int inUse() {
+        return created.get() - idle.size();
+    }
+}
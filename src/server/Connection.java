@@ -0,0 +1,48 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transport behind a ClientHandler. The handler owns the chat protocol;
+ * implementations only move encoded frames on and off the wire.
+ */
+interface Connection {
+    /**
+     * Queues an encoded frame for delivery without waiting for the socket.
+     * The frame may be shared with other connections and must not be
+     * modified. Returns false if the outbound queue overflowed and the
+     * client should be dropped.
+     */
+    boolean send(ByteBuffer frame);
+
+    /**
+     * Queues the handshake reply like {@link #send}, then compresses every
+     * frame queued after it with {@code compressor}, which the connection
+     * releases when it closes.
+     */
+    boolean sendThenCompress(ByteBuffer frame, FrameCompressor compressor);
+
+    /**
+     * Writes out frames put straight into the outbound queue rather than
+     * through {@link #send}, such as a resumed session's replay.
+     */
+    void flushQueued();
+
+    /**
+     * Closes the socket. Whatever is still queued stays in the outbound
+     * queue, since a detached session may yet be resumed elsewhere; the
+     * handler clears it when the session ends.
+     */
+    void close();
+
+    /**
+     * System.nanoTime() of the last progress by a write that is still
+     * waiting on the socket, or 0 if nothing is waiting. A client that stops
+     * reading keeps this in the past until the write timeout catches it.
+     */
+    long getWriteWaitingSince();
+
+    String getRemoteAddress();
+
+    OutboundQueue getOutboundQueue();
+}
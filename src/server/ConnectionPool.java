@@ -0,0 +1,112 @@
+package server;
+
+import logging.Logger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small bounded JDBC pool. Connections are opened lazily up to
+ * {@code maxSize}; once that many exist, borrowers wait for one to come back.
+ * Each pooled connection keeps its prepared statements, so a hot query is
+ * parsed once per connection rather than once per call.
+ */
+class ConnectionPool {
+    private static final Logger LOG = Logger.get(ConnectionPool.class);
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final ArrayBlockingQueue<PooledConnection> idle;
+    private final AtomicInteger open = new AtomicInteger();
+
+    ConnectionPool(String url, String user, String password, int maxSize, long borrowTimeoutMillis) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idle = new ArrayBlockingQueue<>(maxSize);
+    }
+
+    PooledConnection borrow() throws SQLException {
+        PooledConnection connection = idle.poll();
+        if (connection != null) {
+            return connection;
+        }
+        if (open.incrementAndGet() <= maxSize) {
+            try {
+                return new PooledConnection(DriverManager.getConnection(url, user, password));
+            } catch (SQLException e) {
+                open.decrementAndGet();
+                throw e;
+            }
+        }
+        open.decrementAndGet();
+        try {
+            connection = idle.poll(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (connection == null) {
+            throw new SQLTimeoutException("No database connection available within " + borrowTimeoutMillis + " ms");
+        }
+        return connection;
+    }
+
+    // Broken connections are closed instead of going back into the pool
+    void release(PooledConnection connection, boolean broken) {
+        if (broken || !idle.offer(connection)) {
+            connection.close();
+            open.decrementAndGet();
+        }
+    }
+
+    void close() {
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+            open.decrementAndGet();
+        }
+    }
+
+    static class PooledConnection {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        Connection connection() {
+            return connection;
+        }
+
+        // Only ever used by the thread that borrowed this connection
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        void close() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOG.warn("Error closing database connection: {}", e.getMessage());
+            }
+        }
+    }
+}
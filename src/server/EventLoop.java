@@ -0,0 +1,161 @@
+package server;
+
+import logging.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single selector thread. Every channel registered here is only ever read,
+ * written and closed on this thread; other threads hand work over through
+ * {@link #execute(Runnable)}.
+ */
+class EventLoop implements Runnable {
+    private static final Logger LOG = Logger.get(EventLoop.class);
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // Set on every loop thread, so a send can tell it must not wait whichever loop owns the recipient
+    private static final ThreadLocal<Boolean> LOOP_THREAD = ThreadLocal.withInitial(() -> false);
+
+    private final ChatServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // Delayed tasks by deadline; only touched from the loop thread
+    private final PriorityQueue<Scheduled> scheduled = new PriorityQueue<>();
+    // Shared by all connections on this loop; only touched from the loop thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile Thread thread;
+
+    EventLoop(ChatServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    void start(String name) {
+        Thread loopThread = new Thread(this, name);
+        thread = loopThread;
+        loopThread.start();
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(this, channel, key, server.newOutboundQueue(), server.getMetrics());
+                ClientHandler handler = new ClientHandler(connection, server);
+                connection.setHandler(handler);
+                key.attach(connection);
+                server.addClient(handler);
+            } catch (IOException e) {
+                LOG.warn("Error registering client channel: {}", e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private record Scheduled(long deadline, Runnable task) implements Comparable<Scheduled> {
+        @Override
+        public int compareTo(Scheduled other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+
+    // Runs task on the loop thread once delayNanos have passed; loop thread only
+    void schedule(Runnable task, long delayNanos) {
+        scheduled.add(new Scheduled(System.nanoTime() + delayNanos, task));
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // True on any event loop thread, not just this one
+    static boolean onLoopThread() {
+        return LOOP_THREAD.get();
+    }
+
+    @Override
+    public void run() {
+        LOOP_THREAD.set(true);
+        try {
+            while (selector.isOpen()) {
+                Scheduled next = scheduled.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    // select(0) would wait forever, so anything due within the millisecond is polled for
+                    long millis = (next.deadline() - System.nanoTime()) / 1_000_000;
+                    if (millis > 0) {
+                        selector.select(millis);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                wakeupPending.set(false);
+                runTasks();
+                runScheduled();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (connection == null) {
+                        continue;
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            LOG.warn("Event loop stopped: {}", e.getMessage());
+        }
+    }
+
+    private void runScheduled() {
+        long now = System.nanoTime();
+        Scheduled next;
+        while ((next = scheduled.peek()) != null && next.deadline() - now <= 0) {
+            scheduled.poll();
+            try {
+                next.task().run();
+            } catch (RuntimeException e) {
+                LOG.warn("Error in scheduled event loop task: {}", e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.warn("Error in event loop task: {}", e);
+            }
+        }
+    }
+}
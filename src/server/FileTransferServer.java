@@ -0,0 +1,260 @@
+package server;
+
+import logging.Logger;
+import protocol.TransferProtocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves {@link TransferProtocol} on {@code --transfer-port}. Each upload
+ * or download gets a platform thread of its own, up to
+ * {@code --transfer-connections}, and never touches a chat connection or
+ * its threads: a file in flight only costs chat the one FILE_OFFER it is
+ * announced with. Downloads go from the page cache to the socket with
+ * {@link FileChannel#transferTo}, which is sendfile on Linux; platform
+ * threads because a virtual thread's socket is non-blocking underneath,
+ * which makes the JDK fall back to copying. Over TLS the bytes have to be
+ * encrypted on their way past, so the JDK copies them through a buffer
+ * anyway; the handshake runs on the connection's own thread.
+ *
+ * A connection that makes no progress for {@link #STALL_MILLIS} is closed
+ * from the timer wheel, so a client that vanishes cannot hold a slot.
+ */
+final class FileTransferServer {
+    private static final Logger LOG = Logger.get(FileTransferServer.class);
+    private static final int ACCEPT_BACKLOG = 128;
+    static final long STALL_MILLIS = 30_000;
+
+    private final ChatServer server;
+    private final FileTransfers transfers;
+    private final ServerMetrics metrics;
+    private final TimerWheel wheel;
+    // Null unless --tls is set
+    private final TlsService tls;
+    private final int port;
+    private final Semaphore slots;
+    private final ThreadFactory threads = Thread.ofPlatform().name("transfer-", 0).daemon().factory();
+    private volatile ServerSocketChannel serverChannel;
+
+    FileTransferServer(ChatServer server, FileTransfers transfers, ServerConfig config, TimerWheel wheel, TlsService tls) {
+        this.server = server;
+        this.transfers = transfers;
+        this.metrics = server.getMetrics();
+        this.wheel = wheel;
+        this.tls = tls;
+        this.port = config.getTransferPort();
+        this.slots = new Semaphore(config.getTransferConnections());
+    }
+
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        Thread acceptor = new Thread(this::acceptLoop, "transfer-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOG.info("File transfers on port {}", port);
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    private void acceptLoop() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (!slots.tryAcquire()) {
+                    metrics.transferRefused();
+                    try (channel) {
+                        // Nothing can be said before a TLS handshake; the client retries a dropped connection all the same
+                        if (tls == null) {
+                            channel.write(TransferProtocol.reply(TransferProtocol.BUSY, 0, 0, 0));
+                        }
+                    }
+                    continue;
+                }
+                threads.newThread(new Session(channel)).start();
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    LOG.warn("Error accepting transfer connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    void close() throws IOException {
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+    }
+
+    // One upload or download, on its own thread
+    private final class Session implements Runnable {
+        private final SocketChannel socket;
+        // The socket, or TLS on top of it once the handshake is done
+        private ByteChannel channel;
+        private final String remoteAddress;
+        private final TimerWheel.Timeout watchdog;
+        private volatile long lastProgressNanos = System.nanoTime();
+
+        Session(SocketChannel socket) {
+            this.socket = socket;
+            this.remoteAddress = socket.socket().getInetAddress().getHostAddress();
+            this.watchdog = wheel.newTimeout(this::checkProgress);
+        }
+
+        @Override
+        public void run() {
+            wheel.schedule(watchdog, TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS));
+            try (socket) {
+                channel = tls != null ? tls.open(socket) : socket;
+                ByteBuffer header = readFully(ByteBuffer.allocate(2));
+                byte operation = header.get(0);
+                int idLength = header.get(1) & 0xFF;
+                if (idLength > TransferProtocol.MAX_ID_LENGTH) {
+                    return;
+                }
+                ByteBuffer request = readFully(ByteBuffer.allocate(idLength + 8));
+                String id = new String(request.array(), 0, idLength, StandardCharsets.US_ASCII);
+                long offset = request.getLong(idLength);
+                FileTransfers.Transfer transfer = transfers.find(id);
+                if (transfer == null) {
+                    writeFully(TransferProtocol.reply(TransferProtocol.NOT_FOUND, 0, 0, 0));
+                } else if (operation == TransferProtocol.UPLOAD) {
+                    upload(transfer);
+                } else if (operation == TransferProtocol.DOWNLOAD) {
+                    download(transfer, offset);
+                }
+            } catch (IOException e) {
+                // Dropped or stalled; the client carries on from its last whole chunk on a new connection
+                LOG.debug("Transfer connection from {} ended: {}", remoteAddress, e.getMessage());
+            } finally {
+                wheel.cancel(watchdog);
+                slots.release();
+            }
+        }
+
+        private void upload(FileTransfers.Transfer transfer) throws IOException {
+            transfer.claimUpload(socket);
+            try {
+                long size = transfer.getOffer().size();
+                long position = transfer.getReceived();
+                if (!transfers.isLive(transfer)) {
+                    writeFully(TransferProtocol.reply(TransferProtocol.NOT_FOUND, 0, 0, 0));
+                    return;
+                }
+                writeFully(TransferProtocol.reply(TransferProtocol.OK, size, position, transfer.getChunkBytes()));
+                ByteBuffer checksum = ByteBuffer.allocate(4);
+                ByteBuffer chunk = ByteBuffer.allocateDirect(transfer.getChunkBytes());
+                try (FileChannel file = FileChannel.open(transfer.getFile(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    while (position < size) {
+                        int length = (int) Math.min(transfer.getChunkBytes(), size - position);
+                        readFully(checksum.clear());
+                        readFully(chunk.clear().limit(length));
+                        if (TransferProtocol.checksum(chunk) != checksum.getInt(0)) {
+                            // Dropping the connection is the answer; the client starts again from this chunk
+                            LOG.debug("Damaged chunk at {} from {}, closing", position, remoteAddress);
+                            return;
+                        }
+                        while (chunk.hasRemaining()) {
+                            file.write(chunk, position + chunk.position());
+                        }
+                        transfer.chunkReceived(checksum.getInt(0), chunk.flip());
+                        position += length;
+                        metrics.transferReceived(length);
+                    }
+                }
+                if (transfer.isComplete()) {
+                    // A retry from a client that missed the answer last time
+                    writeFully(ByteBuffer.wrap(new byte[] {TransferProtocol.OK}));
+                    return;
+                }
+                boolean intact = transfer.finish();
+                writeFully(ByteBuffer.wrap(new byte[] {intact ? TransferProtocol.OK : TransferProtocol.BAD_CHECKSUM}));
+                if (intact) {
+                    server.fileUploaded(transfer);
+                } else {
+                    server.fileFailed(transfer, "did not match its checksum after upload; please send it again");
+                }
+            } finally {
+                transfer.releaseUpload();
+            }
+        }
+
+        private void download(FileTransfers.Transfer transfer, long offset) throws IOException {
+            if (!transfer.isComplete() || !transfer.isAccepted()) {
+                writeFully(TransferProtocol.reply(TransferProtocol.NOT_FOUND, 0, 0, 0));
+                return;
+            }
+            long size = transfer.getOffer().size();
+            int chunkBytes = transfer.getChunkBytes();
+            long position = Math.max(0, Math.min(offset, size)) / chunkBytes * chunkBytes;
+            try (FileChannel file = FileChannel.open(transfer.getFile(), StandardOpenOption.READ)) {
+                writeFully(TransferProtocol.reply(TransferProtocol.OK, size, position, chunkBytes));
+                ByteBuffer checksum = ByteBuffer.allocate(4);
+                while (position < size) {
+                    int length = (int) Math.min(chunkBytes, size - position);
+                    writeFully(checksum.clear().putInt(transfer.getChecksum(position)).flip());
+                    // Straight from the page cache to the socket; without TLS the bytes never come up into the JVM
+                    long sent = 0;
+                    while (sent < length) {
+                        sent += file.transferTo(position + sent, length - sent, channel);
+                        lastProgressNanos = System.nanoTime();
+                    }
+                    position += length;
+                    metrics.transferSent(length);
+                }
+            }
+            ByteBuffer status = readFully(ByteBuffer.allocate(1));
+            if (status.get(0) == TransferProtocol.OK) {
+                server.fileDownloaded(transfer);
+            }
+        }
+
+        private ByteBuffer readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("connection closed mid-transfer");
+                }
+                lastProgressNanos = System.nanoTime();
+            }
+            return buffer.flip();
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+                lastProgressNanos = System.nanoTime();
+            }
+        }
+
+        // Runs on the wheel thread; closing the channel wakes the transfer thread with an exception
+        private void checkProgress() {
+            long stalled = System.nanoTime() - lastProgressNanos;
+            long limit = TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS);
+            if (stalled < limit) {
+                wheel.schedule(watchdog, limit - stalled);
+                return;
+            }
+            LOG.info("Closing transfer connection from {}: no progress for {} seconds", remoteAddress,
+                    TimeUnit.MILLISECONDS.toSeconds(STALL_MILLIS));
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.debug("Error closing stalled transfer connection: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package server;
+
+import client.FileOffer;
+import logging.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Files on their way from one user to another, spooled in
+ * {@code --transfer-dir}. An offer reserves the file's size against the
+ * spool limit and is given a random id, which the upload, the offer to the
+ * recipient and the download all go by. A file is deleted once its
+ * recipient has it intact, or when {@code --transfer-ttl-ms} runs out.
+ *
+ * Transfers do not survive a restart: the spool directory is emptied when
+ * the server starts.
+ */
+final class FileTransfers {
+    private static final Logger LOG = Logger.get(FileTransfers.class);
+    private static final int ID_BYTES = 16;
+
+    /**
+     * One file. The upload fills it a chunk at a time, keeping each chunk's
+     * CRC-32C to send ahead of the same chunk on the way out and feeding a
+     * SHA-256 that is checked against the offer once the last chunk is in.
+     */
+    static final class Transfer {
+        private final FileOffer offer;
+        private final Path file;
+        private final int chunkBytes;
+        private final int[] checksums;
+        // One connection uploads at a time; the lock also guards digest
+        private final ReentrantLock uploadLock = new ReentrantLock();
+        private volatile SocketChannel uploader;
+        private final MessageDigest digest;
+        private volatile long received;
+        private volatile boolean complete;
+        private volatile boolean accepted;
+        private TimerWheel.Timeout expiry;
+
+        private Transfer(FileOffer offer, Path file, int chunkBytes) {
+            this.offer = offer;
+            this.file = file;
+            this.chunkBytes = chunkBytes;
+            this.checksums = new int[(int) ((offer.size() + chunkBytes - 1) / chunkBytes)];
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is missing from this JVM", e);
+            }
+        }
+
+        FileOffer getOffer() {
+            return offer;
+        }
+
+        Path getFile() {
+            return file;
+        }
+
+        int getChunkBytes() {
+            return chunkBytes;
+        }
+
+        /**
+         * Makes channel the uploader, closing any earlier one so a client
+         * reconnecting after a drop need not wait for the server to notice
+         * the old connection is dead. Blocks until that one has let go.
+         */
+        void claimUpload(SocketChannel channel) throws IOException {
+            SocketChannel previous = uploader;
+            uploader = channel;
+            if (previous != null) {
+                previous.close();
+            }
+            uploadLock.lock();
+        }
+
+        void releaseUpload() {
+            uploadLock.unlock();
+        }
+
+        // Bytes received so far, always a whole number of chunks until the last is in
+        long getReceived() {
+            return received;
+        }
+
+        // Upload lock held; chunk holds the bytes just written at getReceived()
+        void chunkReceived(int checksum, ByteBuffer chunk) {
+            checksums[(int) (received / chunkBytes)] = checksum;
+            received += chunk.remaining();
+            digest.update(chunk);
+        }
+
+        // Upload lock held, once every byte is in; true if the file matches the offer's SHA-256
+        boolean finish() {
+            complete = HexFormat.of().formatHex(digest.digest()).equals(offer.sha256());
+            return complete;
+        }
+
+        int getChecksum(long position) {
+            return checksums[(int) (position / chunkBytes)];
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        // The recipient said yes; only now may the file be downloaded
+        void accept() {
+            accepted = true;
+        }
+
+        boolean isAccepted() {
+            return accepted;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Transfer> byId = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final Path directory;
+    private final long spoolBytes;
+    private final int chunkBytes;
+    private final long ttlNanos;
+    private final TimerWheel wheel;
+    // Deleting files is too slow for the wheel thread
+    private final Executor housekeeping;
+    // Sizes of every file offered and not yet deleted, uploaded or not
+    private final AtomicLong reserved = new AtomicLong();
+
+    FileTransfers(ServerConfig config, TimerWheel wheel, Executor housekeeping) throws IOException {
+        this.directory = Path.of(config.getTransferDir());
+        this.spoolBytes = config.getTransferSpoolBytes();
+        this.chunkBytes = config.getTransferChunkBytes();
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(config.getTransferTtlMillis());
+        this.wheel = wheel;
+        this.housekeeping = housekeeping;
+        Files.createDirectories(directory);
+        // Left over from the last run; nobody holds their ids any more
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Registers an offer, giving it an id and reserving its size. Null if
+     * the spool has no room for it.
+     */
+    Transfer create(FileOffer request, int port) {
+        if (reserved.addAndGet(request.size()) > spoolBytes) {
+            reserved.addAndGet(-request.size());
+            return null;
+        }
+        while (true) {
+            // 128 random bits, like a resume token
+            byte[] bytes = new byte[ID_BYTES];
+            random.nextBytes(bytes);
+            String id = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+            Transfer transfer = new Transfer(request.withId(id, port), directory.resolve(id), chunkBytes);
+            transfer.expiry = wheel.newTimeout(() -> housekeeping.execute(() -> expire(transfer)));
+            if (byId.putIfAbsent(id, transfer) == null) {
+                wheel.schedule(transfer.expiry, ttlNanos);
+                return transfer;
+            }
+        }
+    }
+
+    // Null if there is no such transfer, or it has been deleted
+    Transfer find(String id) {
+        return byId.get(id);
+    }
+
+    boolean isLive(Transfer transfer) {
+        return byId.get(transfer.getOffer().id()) == transfer;
+    }
+
+    // Done with, one way or another; returns false if it already was
+    boolean remove(Transfer transfer) {
+        if (!byId.remove(transfer.getOffer().id(), transfer)) {
+            return false;
+        }
+        wheel.cancel(transfer.expiry);
+        delete(transfer);
+        return true;
+    }
+
+    private void expire(Transfer transfer) {
+        if (byId.remove(transfer.getOffer().id(), transfer)) {
+            FileOffer offer = transfer.getOffer();
+            LOG.info("{} from {} to {} was not collected in time, deleting it", offer.name(), offer.sender(), offer.recipient());
+            delete(transfer);
+        }
+    }
+
+    private void delete(Transfer transfer) {
+        reserved.addAndGet(-transfer.getOffer().size());
+        try {
+            Files.deleteIfExists(transfer.getFile());
+        } catch (IOException e) {
+            LOG.warn("Could not delete spooled file {}: {}", transfer.getFile(), e.getMessage());
+        }
+    }
+
+    int count() {
+        return byId.size();
+    }
+
+    long getReservedBytes() {
+        return reserved.get();
+    }
+}
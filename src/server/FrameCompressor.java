@@ -0,0 +1,86 @@
+package server;
+
+import protocol.Compression;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * One connection's DEFLATE context, borrowed from a {@link CompressorPool}
+ * for the life of the connection. Only the connection's writer uses it.
+ *
+ * Each batch of frames the writer takes from the outbound queue becomes
+ * one chunk, flushed with SYNC_FLUSH so the client can decode every frame
+ * in it at once. Batches smaller than {@code minBytes} rarely shrink by
+ * more than the flush costs and go out as they are.
+ */
+final class FrameCompressor {
+    private final Deflater deflater;
+    private final int minBytes;
+    private final CompressorPool pool;
+    // Reused for every chunk, so a chunk must be fully written before the next compress
+    private byte[] output = new byte[16 * 1024];
+
+    FrameCompressor(Deflater deflater, int minBytes, CompressorPool pool) {
+        this.deflater = deflater;
+        this.minBytes = minBytes;
+        this.pool = pool;
+    }
+
+    /**
+     * Replaces {@code frames[from, count)} with the chunk carrying them and
+     * returns the new count. The array needs one spare slot, for the header
+     * of a chunk sent uncompressed.
+     */
+    int compress(ByteBuffer[] frames, int from, int count) {
+        int total = 0;
+        for (int i = from; i < count; i++) {
+            total += frames[i].remaining();
+        }
+        if (total == 0) {
+            return count;
+        }
+        if (total < minBytes) {
+            System.arraycopy(frames, from, frames, from + 1, count - from);
+            frames[from] = Compression.header(total, false);
+            return count + 1;
+        }
+
+        int end = Compression.MAX_HEADER_LENGTH;
+        for (int i = from; i < count; i++) {
+            deflater.setInput(frames[i]);
+            while (!deflater.needsInput()) {
+                end = deflate(end, Deflater.NO_FLUSH);
+            }
+            frames[i] = null;
+        }
+        // A sync flush has finished once it stops filling the buffer
+        do {
+            end = deflate(end, Deflater.SYNC_FLUSH);
+        } while (end == output.length);
+
+        int length = end - Compression.MAX_HEADER_LENGTH;
+        int start = Compression.putHeader(output, Compression.MAX_HEADER_LENGTH, length, true);
+        pool.compressed(total, end - start);
+        frames[from] = ByteBuffer.wrap(output, start, end - start);
+        return from + 1;
+    }
+
+    // Deflates into the output from end, growing it when full; returns the new end
+    private int deflate(int end, int flush) {
+        if (end == output.length) {
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+        return end + deflater.deflate(output, end, output.length - end, flush);
+    }
+
+    // Hands the context back for another connection
+    void release() {
+        pool.release(this);
+    }
+
+    Deflater deflater() {
+        return deflater;
+    }
+}
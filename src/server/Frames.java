@@ -0,0 +1,31 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes protocol lines into the bytes that go on the wire. A frame is
+ * encoded once and may then be queued to any number of connections; each
+ * connection writes through its own {@link ByteBuffer#duplicate()} view, so
+ * recipients never copy or re-encode it.
+ */
+final class Frames {
+    private Frames() {
+    }
+
+    // For a single recipient: a plain heap buffer is cheapest to allocate
+    static ByteBuffer line(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(bytes.length + 1);
+        frame.put(bytes).put((byte) '\n').flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    // For fan-out: a direct buffer lets every socket write skip the JDK's temporary copy
+    static ByteBuffer sharedLine(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocateDirect(bytes.length + 1);
+        frame.put(bytes).put((byte) '\n').flip();
+        return frame.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,105 @@
+package server;
+
+import logging.Logger;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds sessions whose client has gone away without closing the socket,
+ * such as a laptop put to sleep or a NAT entry that timed out. A session
+ * whose client agreed to heartbeats in the binary handshake is sent a PING
+ * once it has been silent for the ping interval; one silent for the idle
+ * timeout, or whose writes have made no progress for the write timeout, is
+ * treated as a lost connection: detached if it can be resumed, otherwise
+ * disconnected through the usual path, so it leaves its rooms and the
+ * online list like any other.
+ *
+ * Line-protocol clients never answer PING and may stay quiet for hours, so
+ * once logged in they are only dropped for a stalled write; TCP keepalive
+ * catches the rest.
+ *
+ * Every session has one timeout on a shared {@link TimerWheel}. Reads and
+ * writes only record a timestamp; the timeout looks at them when it fires
+ * and re-arms itself for the next deadline.
+ */
+final class Heartbeats {
+    private static final Logger LOG = Logger.get(Heartbeats.class);
+
+    private final TimerWheel wheel;
+    // Disconnecting fans out a departure notice, which is too slow for the wheel thread
+    private final Executor reaper;
+    private final ServerMetrics metrics;
+    private final long pingNanos;
+    private final long idleNanos;
+    private final long writeNanos;
+
+    Heartbeats(ServerConfig config, ServerMetrics metrics, TimerWheel wheel, Executor reaper) {
+        this.wheel = wheel;
+        this.reaper = reaper;
+        this.metrics = metrics;
+        this.pingNanos = TimeUnit.MILLISECONDS.toNanos(config.getPingIntervalMillis());
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeoutMillis());
+        this.writeNanos = TimeUnit.MILLISECONDS.toNanos(config.getWriteTimeoutMillis());
+    }
+
+    void watch(ClientHandler client) {
+        TimerWheel.Timeout timeout = wheel.newTimeout(() -> check(client));
+        client.setHeartbeat(timeout);
+        wheel.schedule(timeout, pingNanos);
+    }
+
+    void unwatch(ClientHandler client) {
+        TimerWheel.Timeout timeout = client.getHeartbeat();
+        if (timeout != null) {
+            wheel.cancel(timeout);
+        }
+    }
+
+    // Runs on the wheel thread
+    private void check(ClientHandler client) {
+        if (client.isDisconnected()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long lastRead = client.getLastReadNanos();
+        long writeWaiting = client.getWriteWaitingSince();
+        boolean answersPings = client.answersPings();
+        // Until login every connection gets the idle timeout; even a line client sends LOGIN straight away
+        boolean idleReaped = answersPings || !client.isLoggedIn();
+        if (idleReaped && now - lastRead >= idleNanos) {
+            reap(client, "nothing received", idleNanos);
+            return;
+        }
+        if (writeWaiting != 0 && now - writeWaiting >= writeNanos) {
+            reap(client, "no write progress", writeNanos);
+            return;
+        }
+        // nanoTime values only compare by difference, so the next deadline is worked out as a delay
+        long delay = pingNanos;
+        if (answersPings) {
+            long lastPing = client.getLastPingNanos();
+            long untilPing = (lastPing - lastRead > 0 ? lastPing : lastRead) + pingNanos - now;
+            if (untilPing <= 0) {
+                client.ping(now);
+                metrics.pinged();
+                untilPing = pingNanos;
+            }
+            delay = untilPing;
+        }
+        if (idleReaped) {
+            delay = Math.min(delay, lastRead + idleNanos - now);
+        }
+        if (writeWaiting != 0) {
+            delay = Math.min(delay, writeWaiting + writeNanos - now);
+        }
+        wheel.schedule(client.getHeartbeat(), delay);
+    }
+
+    private void reap(ClientHandler client, String reason, long nanos) {
+        LOG.info("Dropping {}: {} for {} seconds", client.getUsername() != null ? client.getUsername() : client.getRemoteAddress(),
+                reason, TimeUnit.NANOSECONDS.toSeconds(nanos));
+        metrics.reaped();
+        reaper.execute(client::connectionLost);
+    }
+}
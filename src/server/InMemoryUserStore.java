@@ -0,0 +1,17 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class InMemoryUserStore implements UserStore {
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+
+    public void addUser(User user) {
+        users.put(user.getUsername(), user);
+    }
+
+    @Override
+    public User findUser(String username) {
+        return users.get(username);
+    }
+}
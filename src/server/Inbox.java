@@ -0,0 +1,221 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Private messages waiting for one offline user, kept in an append-only file
+ * with the same record layout as {@link LogSegment}. A small side file
+ * records how far the user has acknowledged; once everything is
+ * acknowledged both files are deleted. Nothing is held in memory beyond the
+ * batch currently being delivered.
+ *
+ * Both files stay open while the inbox is loaded. Appends and
+ * acknowledgements only reach the page cache; {@link #sync()} forces them,
+ * so one force can cover everything written since the last.
+ */
+final class Inbox {
+    record Batch(List<ByteBuffer> frames, long lastSequence, int remaining) {
+    }
+
+    private final Path file;
+    private final Path ackFile;
+    private long lastSequence;
+    private long ackedSequence;
+    private long ackedOffset;
+    // End of the batch sent but not yet acknowledged; 0 when nothing is in flight
+    private long inFlightSequence;
+    private long inFlightOffset;
+    // Where the next record goes
+    private long end;
+    private FileChannel channel;
+    private FileChannel ackChannel;
+    private boolean dataDirty;
+    private boolean ackDirty;
+
+    private Inbox(Path file, Path ackFile) {
+        this.file = file;
+        this.ackFile = ackFile;
+    }
+
+    static Inbox open(Path file) throws IOException {
+        Inbox inbox = new Inbox(file, file.resolveSibling(file.getFileName() + ".ack"));
+        if (Files.exists(inbox.ackFile)) {
+            ByteBuffer ack = ByteBuffer.wrap(Files.readAllBytes(inbox.ackFile));
+            if (ack.remaining() == 16) {
+                inbox.ackedSequence = ack.getLong();
+                inbox.ackedOffset = ack.getLong();
+            }
+        }
+        inbox.lastSequence = inbox.ackedSequence;
+        if (Files.exists(file)) {
+            inbox.recover();
+        }
+        return inbox;
+    }
+
+    // Walks the unacknowledged records to find the last intact one and drops any torn tail
+    private void recover() throws IOException {
+        FileChannel channel = channel();
+        long position = ackedOffset;
+        ByteBuffer header = ByteBuffer.allocate(LogSegment.HEADER_BYTES);
+        while (true) {
+            header.clear();
+            if (channel.read(header, position) < LogSegment.HEADER_BYTES) {
+                break;
+            }
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            long sequence = header.getLong();
+            if (length <= 0 || sequence != lastSequence + 1) {
+                break;
+            }
+            ByteBuffer frame = ByteBuffer.allocate(length);
+            if (channel.read(frame, position + LogSegment.HEADER_BYTES) < length || crc != crc(frame.flip())) {
+                break;
+            }
+            lastSequence = sequence;
+            position += LogSegment.HEADER_BYTES + length;
+        }
+        channel.truncate(position);
+        end = position;
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+
+    boolean isInFlight() {
+        return inFlightSequence != 0;
+    }
+
+    void restart() {
+        inFlightSequence = 0;
+    }
+
+    int pending() {
+        return (int) (lastSequence - ackedSequence);
+    }
+
+    // Reaches the disk at the next sync
+    void append(ByteBuffer frame) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(LogSegment.HEADER_BYTES + frame.remaining());
+        record.putInt(frame.remaining()).putInt(crc(frame)).putLong(lastSequence + 1).put(frame.duplicate()).flip();
+        FileChannel channel = channel();
+        long position = end;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        end = position;
+        dataDirty = true;
+        lastSequence++;
+    }
+
+    /**
+     * Reads the next unacknowledged records, up to maxCount of them and
+     * roughly maxBytes in total (always at least one). Restarts from the last
+     * acknowledgement, so a batch lost with a dropped connection is resent.
+     */
+    Batch nextBatch(int maxCount, int maxBytes) throws IOException {
+        if (pending() == 0) {
+            return null;
+        }
+        FileChannel channel = channel();
+        ByteBuffer region = ByteBuffer.allocate((int) Math.min(maxBytes, end - ackedOffset));
+        channel.read(region, ackedOffset);
+        region.flip();
+        if (region.remaining() >= 4 && region.getInt(0) + LogSegment.HEADER_BYTES > region.remaining()) {
+            // A single record larger than the byte budget still goes out on its own
+            region = ByteBuffer.allocate(region.getInt(0) + LogSegment.HEADER_BYTES);
+            channel.read(region, ackedOffset);
+            region.flip();
+        }
+
+        List<ByteBuffer> frames = new ArrayList<>();
+        long sequence = ackedSequence;
+        int position = 0;
+        while (frames.size() < maxCount && region.remaining() - position >= LogSegment.HEADER_BYTES) {
+            int length = region.getInt(position);
+            if (LogSegment.HEADER_BYTES + length > region.remaining() - position) {
+                break;
+            }
+            sequence = region.getLong(position + 8);
+            frames.add(region.slice(position + LogSegment.HEADER_BYTES, length).asReadOnlyBuffer());
+            position += LogSegment.HEADER_BYTES + length;
+        }
+        inFlightSequence = sequence;
+        inFlightOffset = ackedOffset + position;
+        return new Batch(frames, sequence, (int) (lastSequence - sequence));
+    }
+
+    // Returns true once the whole inbox is acknowledged and its files are gone
+    boolean acknowledge(long sequence) throws IOException {
+        if (inFlightSequence == 0 || sequence != inFlightSequence) {
+            return false;
+        }
+        ackedSequence = inFlightSequence;
+        ackedOffset = inFlightOffset;
+        inFlightSequence = 0;
+        if (ackedSequence == lastSequence) {
+            close();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(ackFile);
+            return true;
+        }
+        ackDirty = true;
+        return false;
+    }
+
+    // Forces appends and the latest acknowledgement to disk
+    void sync() throws IOException {
+        if (dataDirty && channel != null) {
+            channel.force(false);
+            dataDirty = false;
+        }
+        if (ackDirty) {
+            if (ackChannel == null) {
+                ackChannel = FileChannel.open(ackFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            ByteBuffer ack = ByteBuffer.allocate(16).putLong(ackedSequence).putLong(ackedOffset).flip();
+            while (ack.hasRemaining()) {
+                ackChannel.write(ack, 16 - ack.remaining());
+            }
+            ackChannel.force(false);
+            ackDirty = false;
+        }
+    }
+
+    // Anything not yet synced is lost; loading the inbox again opens the files again
+    void close() {
+        for (FileChannel open : new FileChannel[] {channel, ackChannel}) {
+            try {
+                if (open != null) {
+                    open.close();
+                }
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+        channel = null;
+        ackChannel = null;
+        dataDirty = false;
+        ackDirty = false;
+    }
+
+    private static int crc(ByteBuffer frame) {
+        CRC32C crc = new CRC32C();
+        crc.update(frame.duplicate());
+        return (int) crc.getValue();
+    }
+}
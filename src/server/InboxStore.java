@@ -0,0 +1,246 @@
+package server;
+
+import client.Message;
+import logging.Logger;
+import protocol.BinaryProtocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Durable store-and-forward for private messages to offline users. Each
+ * recipient has an {@link Inbox} capped at {@code capacity} messages. Only
+ * inboxes that are being written or delivered are loaded.
+ *
+ * All inbox work, the account lookup included, runs on one thread of its
+ * own, so neither a database round trip nor a disk force ever holds up the
+ * reader or event loop that handed it over. Writes are group committed:
+ * once the thread runs out of queued work it forces every inbox written
+ * since the last commit, and only then tells senders their messages are
+ * stored. Callbacks run on that thread.
+ */
+final class InboxStore {
+    private static final Logger LOG = Logger.get(InboxStore.class);
+    // Past this many loaded inboxes, idle ones are closed after a commit so open files stay bounded
+    private static final int MAX_LOADED = 256;
+
+    enum StoreResult {
+        STORED,
+        FULL,
+        NO_ACCOUNT,
+        FAILED
+    }
+
+    private record Waiting(Inbox inbox, Consumer<StoreResult> stored) {
+    }
+
+    private final Path directory;
+    private final UserStore userStore;
+    private final int capacity;
+    private final int batchSize;
+    private final int batchBytes;
+    private final ThreadPoolExecutor executor;
+    // Inbox thread only
+    private final Map<String, Inbox> inboxes = new HashMap<>();
+    private final Set<Inbox> dirty = new LinkedHashSet<>();
+    private final List<Waiting> waiting = new ArrayList<>();
+
+    InboxStore(Path directory, UserStore userStore, int capacity, int batchSize, int batchBytes) throws IOException {
+        this.directory = directory;
+        this.userStore = userStore;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.batchBytes = batchBytes;
+        Files.createDirectories(directory);
+        // Unbounded, but fed at rates the per-client limits already cap
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "inbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stores a message for recipient if they have an account. stored hears
+     * STORED once the message is on disk, or why it was not stored.
+     */
+    void store(String recipient, Message message, Consumer<StoreResult> stored) {
+        submit(stored, () -> {
+            // Only real accounts get an inbox, so nobody can fill the disk with made-up names
+            if (userStore.findUser(recipient) == null) {
+                stored.accept(StoreResult.NO_ACCOUNT);
+                return;
+            }
+            try {
+                Inbox inbox = load(recipient, true);
+                if (inbox.pending() >= capacity) {
+                    stored.accept(StoreResult.FULL);
+                    return;
+                }
+                inbox.append(BinaryProtocol.encode(message, false));
+                dirty.add(inbox);
+                waiting.add(new Waiting(inbox, stored));
+            } catch (IOException e) {
+                LOG.warn("Error storing message for {}: {}", recipient, e.getMessage());
+                stored.accept(StoreResult.FAILED);
+            }
+        });
+    }
+
+    /**
+     * Starts (or restarts) delivery for a user who has just logged in.
+     * ready gets null if nothing is waiting.
+     */
+    void firstBatch(String username, Consumer<Inbox.Batch> ready) {
+        batch(username, inbox -> {
+            // Whatever was in flight went to a connection that is gone
+            inbox.restart();
+            return false;
+        }, ready);
+    }
+
+    // Like firstBatch, but gives null rather than resending a batch that is still unacknowledged
+    void pendingBatch(String username, Consumer<Inbox.Batch> ready) {
+        batch(username, inbox -> false, ready);
+    }
+
+    // Records the client's acknowledgement of a batch and gives the next one, or null when done
+    void acknowledge(String username, long sequence, Consumer<Inbox.Batch> ready) {
+        batch(username, inbox -> inbox.acknowledge(sequence), ready);
+    }
+
+    private interface Step {
+        // Returns true if the inbox is now empty and should be forgotten
+        boolean apply(Inbox inbox) throws IOException;
+    }
+
+    private void batch(String username, Step step, Consumer<Inbox.Batch> ready) {
+        submit(null, () -> {
+            Inbox.Batch batch = null;
+            try {
+                Inbox inbox = load(username, false);
+                if (inbox != null) {
+                    if (step.apply(inbox) || inbox.pending() == 0) {
+                        forget(username, inbox);
+                    } else {
+                        // An acknowledgement is written with the next commit
+                        dirty.add(inbox);
+                        // Otherwise still waiting on an acknowledgement, or this one was for a different batch
+                        if (!inbox.isInFlight()) {
+                            batch = inbox.nextBatch(batchSize, batchBytes);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn("Error reading inbox of {}: {}", username, e.getMessage());
+            }
+            ready.accept(batch);
+        });
+    }
+
+    // Runs task on the inbox thread, then commits if nothing else is queued behind it
+    private void submit(Consumer<StoreResult> rejected, Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOG.warn("Error in inbox task: {}", e);
+                }
+                if (executor.getQueue().isEmpty()) {
+                    commit();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            if (rejected != null) {
+                rejected.accept(StoreResult.FAILED);
+            }
+        }
+    }
+
+    // One force per inbox written since the last commit, however many messages that covers
+    private void commit() {
+        Set<Inbox> failed = new LinkedHashSet<>();
+        for (Inbox inbox : dirty) {
+            try {
+                inbox.sync();
+            } catch (IOException e) {
+                LOG.warn("Error syncing inbox: {}", e.getMessage());
+                failed.add(inbox);
+            }
+        }
+        dirty.clear();
+        List<Waiting> done = new ArrayList<>(waiting);
+        waiting.clear();
+        for (Waiting entry : done) {
+            try {
+                entry.stored().accept(failed.contains(entry.inbox()) ? StoreResult.FAILED : StoreResult.STORED);
+            } catch (RuntimeException e) {
+                LOG.warn("Error in inbox callback: {}", e);
+            }
+        }
+        if (inboxes.size() > MAX_LOADED) {
+            // Anything in flight keeps its place, so its acknowledgement still matches
+            inboxes.values().removeIf(inbox -> {
+                if (inbox.isInFlight()) {
+                    return false;
+                }
+                inbox.close();
+                return true;
+            });
+        }
+    }
+
+    private Inbox load(String username, boolean create) throws IOException {
+        Inbox inbox = inboxes.get(username);
+        if (inbox == null) {
+            Path file = fileFor(username);
+            if (!create && !Files.exists(file)) {
+                return null;
+            }
+            inbox = Inbox.open(file);
+            inboxes.put(username, inbox);
+        }
+        return inbox;
+    }
+
+    private void forget(String username, Inbox inbox) throws IOException {
+        inboxes.remove(username);
+        // Its last acknowledgement may still be unwritten
+        inbox.sync();
+        dirty.remove(inbox);
+        inbox.close();
+    }
+
+    // Runs what is queued and forces it to disk
+    void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOG.warn("Inbox work still queued at shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Usernames are hex-encoded so any name is a safe file name
+    private Path fileFor(String username) {
+        return directory.resolve(HexFormat.of().formatHex(username.getBytes(StandardCharsets.UTF_8)) + ".inbox");
+    }
+}
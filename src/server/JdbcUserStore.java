@@ -0,0 +1,129 @@
+package server;
+
+import logging.Logger;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Users table lookups through a bounded connection pool with a TTL cache in
+ * front. During a mass reconnect most logins hit the cache, and the rest
+ * share at most {@code poolSize} connections instead of each opening one.
+ * Unknown usernames are cached too, so repeated bad logins don't reach the
+ * database either.
+ *
+ * Works against MySQL (the default URL matches JDBCExample) and against
+ * embedded databases such as H2 ({@code jdbc:h2:mem:chat;DB_CLOSE_DELAY=-1})
+ * for local testing; {@link #createSchema()} sets up an empty database.
+ * The password column holds {@link PasswordHasher} output; rows that still
+ * hold plaintext keep working until they are rehashed.
+ */
+public class JdbcUserStore implements UserStore {
+    private static final Logger LOG = Logger.get(JdbcUserStore.class);
+    private static final String FIND_USER = "SELECT username, password FROM users WHERE username = ?";
+    private static final String INSERT_USER = "INSERT INTO users (username, password) VALUES (?, ?)";
+    private static final int MAX_CACHED_USERS = 100_000;
+
+    private final ConnectionPool pool;
+    private final long cacheTtlNanos;
+    private final Map<String, CachedUser> cache = new ConcurrentHashMap<>();
+
+    private record CachedUser(User user, long expiresAt) {
+    }
+
+    public JdbcUserStore(String url, String user, String password, int poolSize, long cacheTtlMillis) {
+        this.pool = new ConnectionPool(url, user, password, poolSize, 5000);
+        this.cacheTtlNanos = cacheTtlMillis * 1_000_000;
+    }
+
+    @Override
+    public User findUser(String username) {
+        long now = System.nanoTime();
+        CachedUser cached = cache.get(username);
+        if (cached != null && now - cached.expiresAt() < 0) {
+            return cached.user();
+        }
+
+        User user;
+        try {
+            user = query(username);
+        } catch (SQLException e) {
+            LOG.warn("Error looking up user {}: {}", username, e.getMessage());
+            return null;
+        }
+        if (cacheTtlNanos > 0) {
+            if (cache.size() >= MAX_CACHED_USERS) {
+                evictExpired(now);
+            }
+            cache.put(username, new CachedUser(user, now + cacheTtlNanos));
+        }
+        return user;
+    }
+
+    private User query(String username) throws SQLException {
+        ConnectionPool.PooledConnection connection = pool.borrow();
+        boolean broken = true;
+        try {
+            PreparedStatement statement = connection.prepare(FIND_USER);
+            statement.setString(1, username);
+            User user = null;
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    user = new User(rs.getString(1), rs.getString(2));
+                }
+            }
+            broken = false;
+            return user;
+        } finally {
+            pool.release(connection, broken);
+        }
+    }
+
+    // Drops expired entries; if everything is still fresh, drops arbitrary ones to stay bounded
+    private void evictExpired(long now) {
+        cache.values().removeIf(entry -> now - entry.expiresAt() >= 0);
+        Iterator<String> keys = cache.keySet().iterator();
+        while (cache.size() >= MAX_CACHED_USERS && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    public void createSchema() throws SQLException {
+        ConnectionPool.PooledConnection connection = pool.borrow();
+        boolean broken = true;
+        try (Statement statement = connection.connection().createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS users ("
+                    + "username VARCHAR(64) PRIMARY KEY, "
+                    + "password VARCHAR(255) NOT NULL)");
+            broken = false;
+        } finally {
+            pool.release(connection, broken);
+        }
+    }
+
+    public void addUser(User user) throws SQLException {
+        ConnectionPool.PooledConnection connection = pool.borrow();
+        boolean broken = true;
+        try {
+            PreparedStatement statement = connection.prepare(INSERT_USER);
+            statement.setString(1, user.getUsername());
+            statement.setString(2, user.getPasswordHash());
+            statement.executeUpdate();
+            broken = false;
+        } finally {
+            pool.release(connection, broken);
+        }
+        cache.remove(user.getUsername());
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
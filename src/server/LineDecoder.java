@@ -0,0 +1,49 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Reassembles newline-terminated UTF-8 lines from arbitrary read chunks.
+ * Bytes are accumulated until '\n' so multi-byte characters split across
+ * reads decode correctly.
+ */
+class LineDecoder {
+    private final int maxLineLength;
+    private byte[] line = new byte[256];
+    private int length;
+
+    LineDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Feeds everything remaining in {@code in}, passing each complete line to {@code out}.
+     * Returns false if a line grew past the maximum length.
+     */
+    boolean decode(ByteBuffer in, Consumer<String> out) {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') {
+                int end = length;
+                if (end > 0 && line[end - 1] == '\r') {
+                    end--;
+                }
+                out.accept(new String(line, 0, end, StandardCharsets.UTF_8));
+                length = 0;
+            } else {
+                if (length == maxLineLength) {
+                    return false;
+                }
+                if (length == line.length) {
+                    byte[] grown = new byte[Math.min(line.length * 2, maxLineLength)];
+                    System.arraycopy(line, 0, grown, 0, length);
+                    line = grown;
+                }
+                line[length++] = b;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,242 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * One memory-mapped file of the message log, named after the sequence number
+ * of its first record. Each record is
+ * <pre>
+ *   int   frame length (0 marks the end of the data)
+ *   int   CRC32C of the frame
+ *   long  sequence number
+ *   bytes the message as a complete binary protocol frame
+ * </pre>
+ * so replay can hand a slice of the mapping straight to a binary client. A
+ * sparse index file maps the sequence number of one record every
+ * {@link #INDEX_INTERVAL_BYTES} to its position.
+ *
+ * Only the log's writer appends; readers see everything below {@link #end}.
+ */
+final class LogSegment {
+    interface RecordVisitor {
+        // Return false to stop the scan
+        boolean visit(long sequence, ByteBuffer frame);
+    }
+
+    static final int HEADER_BYTES = 16;
+    private static final int INDEX_ENTRY_BYTES = 12;
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+
+    private final long baseSequence;
+    private final Path logPath;
+    private final Path indexPath;
+    private final MappedByteBuffer log;
+    private final MappedByteBuffer index;
+    private volatile int end;
+    private volatile int indexEntries;
+    private volatile long lastSequence;
+    // When the segment stopped taking appends, for age-based retention; 0 while a new segment is active
+    private volatile long sealedAtMillis;
+    private int lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+    // Not the monitor, which a virtual thread forcing to disk would keep its carrier pinned on
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // Guarded by flushLock
+    private int flushedEnd;
+    private int flushedIndexEntries;
+
+    private LogSegment(long baseSequence, Path logPath, Path indexPath, int capacity) throws IOException {
+        this.baseSequence = baseSequence;
+        this.logPath = logPath;
+        this.indexPath = indexPath;
+        this.log = map(logPath, capacity);
+        this.index = map(indexPath, (capacity / INDEX_INTERVAL_BYTES + 1) * INDEX_ENTRY_BYTES);
+        this.lastSequence = baseSequence - 1;
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+    }
+
+    static LogSegment create(Path directory, long baseSequence, int capacity) throws IOException {
+        String name = String.format("%020d", baseSequence);
+        return new LogSegment(baseSequence, directory.resolve(name + ".log"), directory.resolve(name + ".index"), capacity);
+    }
+
+    // Maps an existing segment and finds the end of its valid records
+    static LogSegment open(Path logPath) throws IOException {
+        String name = logPath.getFileName().toString();
+        long baseSequence = Long.parseLong(name.substring(0, name.length() - ".log".length()));
+        Path indexPath = logPath.resolveSibling(name.replace(".log", ".index"));
+        LogSegment segment = new LogSegment(baseSequence, logPath, indexPath, (int) Files.size(logPath));
+        segment.recover();
+        segment.sealedAtMillis = Files.getLastModifiedTime(logPath).toMillis();
+        return segment;
+    }
+
+    private void recover() {
+        int entries = 0;
+        while ((entries + 1) * INDEX_ENTRY_BYTES <= index.capacity() && index.getLong(entries * INDEX_ENTRY_BYTES) != 0) {
+            entries++;
+        }
+        // Start from the last indexed record that is still intact; a crash may have lost later ones
+        int position = 0;
+        long expected = baseSequence;
+        while (entries > 0) {
+            int candidate = index.getInt((entries - 1) * INDEX_ENTRY_BYTES + 8);
+            long sequence = index.getLong((entries - 1) * INDEX_ENTRY_BYTES);
+            if (validRecord(candidate, sequence)) {
+                position = candidate;
+                expected = sequence;
+                break;
+            }
+            entries--;
+            index.putLong(entries * INDEX_ENTRY_BYTES, 0);
+        }
+        indexEntries = entries;
+        lastIndexedPosition = entries > 0 ? position : -INDEX_INTERVAL_BYTES;
+
+        while (validRecord(position, expected)) {
+            position += HEADER_BYTES + log.getInt(position);
+            expected++;
+        }
+        end = position;
+        flushedEnd = position;
+        flushedIndexEntries = entries;
+        lastSequence = expected - 1;
+    }
+
+    private boolean validRecord(int position, long sequence) {
+        if (position + HEADER_BYTES > log.capacity()) {
+            return false;
+        }
+        int length = log.getInt(position);
+        if (length <= 0 || length > log.capacity() - position - HEADER_BYTES || log.getLong(position + 8) != sequence) {
+            return false;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(log.slice(position + HEADER_BYTES, length));
+        return (int) crc.getValue() == log.getInt(position + 4);
+    }
+
+    // Returns the record's position, or -1 if it does not fit and the caller must roll
+    int append(long sequence, ByteBuffer frame) {
+        int length = frame.remaining();
+        int position = end;
+        if (HEADER_BYTES + length > log.capacity() - position) {
+            return -1;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(frame.duplicate());
+        log.putInt(position + 4, (int) crc.getValue());
+        log.putLong(position + 8, sequence);
+        log.put(position + HEADER_BYTES, frame, frame.position(), length);
+        log.putInt(position, length);
+        lastSequence = sequence;
+        end = position + HEADER_BYTES + length;
+
+        if (position - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+            int entry = indexEntries * INDEX_ENTRY_BYTES;
+            index.putLong(entry, sequence);
+            index.putInt(entry + 8, position);
+            lastIndexedPosition = position;
+            indexEntries++;
+        }
+        return position;
+    }
+
+    // Read-only view of one record's frame, backed by the mapping
+    ByteBuffer frameAt(int position) {
+        return log.slice(position + HEADER_BYTES, log.getInt(position)).asReadOnlyBuffer();
+    }
+
+    // Visits records with a sequence number above afterSequence, oldest first
+    boolean scan(long afterSequence, RecordVisitor visitor) {
+        int limit = end;
+        int position = positionBefore(afterSequence + 1);
+        while (position < limit) {
+            int length = log.getInt(position);
+            long sequence = log.getLong(position + 8);
+            if (sequence > afterSequence && !visitor.visit(sequence, log.slice(position + HEADER_BYTES, length).asReadOnlyBuffer())) {
+                return false;
+            }
+            position += HEADER_BYTES + length;
+        }
+        return true;
+    }
+
+    // Binary search of the sparse index for the last indexed record at or before sequence
+    private int positionBefore(long sequence) {
+        int low = 0;
+        int high = indexEntries - 1;
+        int position = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (index.getLong(mid * INDEX_ENTRY_BYTES) <= sequence) {
+                position = index.getInt(mid * INDEX_ENTRY_BYTES + 8);
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return position;
+    }
+
+    // Forces everything appended since the last flush to disk
+    void flush() {
+        flushLock.lock();
+        try {
+            int currentEnd = end;
+            int currentEntries = indexEntries;
+            if (currentEnd > flushedEnd) {
+                log.force(flushedEnd, currentEnd - flushedEnd);
+                flushedEnd = currentEnd;
+            }
+            if (currentEntries > flushedIndexEntries) {
+                index.force(flushedIndexEntries * INDEX_ENTRY_BYTES,
+                        (currentEntries - flushedIndexEntries) * INDEX_ENTRY_BYTES);
+                flushedIndexEntries = currentEntries;
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    void seal() {
+        flush();
+        sealedAtMillis = System.currentTimeMillis();
+    }
+
+    // Readers still holding slices keep the mapping alive until they drop them
+    void delete() throws IOException {
+        Files.deleteIfExists(logPath);
+        Files.deleteIfExists(indexPath);
+    }
+
+    long getBaseSequence() {
+        return baseSequence;
+    }
+
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    int size() {
+        return end;
+    }
+
+    long getSealedAtMillis() {
+        return sealedAtMillis;
+    }
+}
@@ -0,0 +1,273 @@
+package server;
+
+import client.Message;
+import logging.Logger;
+import protocol.BinaryProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Append-only store of every chat and private message, spread over
+ * memory-mapped {@link LogSegment}s. Each message gets the next sequence
+ * number and is written once, already encoded as a binary frame; live
+ * fan-out and later replays both send slices of that mapping.
+ *
+ * Appends only reach the page cache; a background thread forces them to
+ * disk every {@code flushIntervalMillis} (0 forces after every append). The
+ * active segment rolls when full, and whole sealed segments are deleted
+ * once the log exceeds its size or age limit.
+ *
+ * Appends take a {@link ReentrantLock} rather than the monitor: a flush or
+ * roll under it would otherwise pin the carrier of a virtual thread.
+ */
+final class MessageLog implements AutoCloseable {
+    private static final Logger LOG = Logger.get(MessageLog.class);
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final long flushIntervalMillis;
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService flusher;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock
+    private LogSegment active;
+    private long nextSequence;
+
+    MessageLog(Path directory, int segmentBytes, long flushIntervalMillis, long retentionBytes, long retentionMillis)
+            throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+
+        Files.createDirectories(directory);
+        List<Path> existing;
+        try (Stream<Path> files = Files.list(directory)) {
+            existing = files.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+        for (Path path : existing) {
+            LogSegment segment = LogSegment.open(path);
+            segments.put(segment.getBaseSequence(), segment);
+        }
+        if (segments.isEmpty()) {
+            active = LogSegment.create(directory, 1, segmentBytes);
+            segments.put(1L, active);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        nextSequence = active.getLastSequence() + 1;
+
+        if (flushIntervalMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "message-log-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushAndEnforceRetention, flushIntervalMillis, flushIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+        LOG.info("Message log at {}: {} segment(s), next sequence {}", directory, segments.size(), nextSequence);
+    }
+
+    /**
+     * Stamps the message with the next sequence number and appends it. The
+     * returned message's binary frame is the logged record itself, so
+     * recipients are sent the mapped bytes rather than a fresh encoding.
+     */
+    OutboundMessage append(Message message) throws IOException {
+        lock.lock();
+        try {
+            Message stamped = message.withSequence(nextSequence);
+            ByteBuffer frame = BinaryProtocol.encode(stamped, false);
+            int position = active.append(nextSequence, frame);
+            if (position < 0) {
+                roll(frame.remaining());
+                position = active.append(nextSequence, frame);
+            }
+            nextSequence++;
+            if (flushIntervalMillis <= 0) {
+                active.flush();
+            }
+            return new OutboundMessage(stamped, active.frameAt(position));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void roll(int recordBytes) throws IOException {
+        active.seal();
+        active = LogSegment.create(directory, nextSequence, Math.max(segmentBytes, LogSegment.HEADER_BYTES + recordBytes));
+        segments.put(nextSequence, active);
+        enforceRetention();
+    }
+
+    long lastSequence() {
+        LogSegment last = segments.lastEntry().getValue();
+        return last.getLastSequence();
+    }
+
+    /**
+     * Hands the frames of up to {@code maxRecords} messages after
+     * {@code afterSequence} to {@code sink}, oldest first. Private messages
+     * that {@code viewer} neither sent nor received are skipped without being
+     * decoded. Returns the number of frames delivered.
+     */
+    int replay(long afterSequence, int maxRecords, String viewer, Consumer<ByteBuffer> sink) {
+        byte[] viewerBytes = viewer.getBytes(StandardCharsets.UTF_8);
+        int[] delivered = new int[1];
+        scan(afterSequence, (sequence, frame) -> {
+            if (delivered[0] >= maxRecords) {
+                return false;
+            }
+            if (BinaryProtocol.visibleTo(frame, viewerBytes)) {
+                sink.accept(frame);
+                delivered[0]++;
+            }
+            return true;
+        });
+        return delivered[0];
+    }
+
+    /**
+     * The page of up to {@code maxRecords} messages visible to
+     * {@code viewer} that come just before {@code beforeSequence}, oldest
+     * first. The log can only be read forwards, so this scans a window
+     * behind {@code beforeSequence} and doubles it until the page is full or
+     * the start of the log is reached; in a log of mostly public chat the
+     * first window is enough.
+     */
+    Page page(long beforeSequence, int maxRecords, String viewer) {
+        byte[] viewerBytes = viewer.getBytes(StandardCharsets.UTF_8);
+        ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+        long first = segments.firstKey();
+        long end = Math.min(beforeSequence, lastSequence() + 1);
+        long oldest = end;
+        long window = maxRecords;
+        while (frames.size() < maxRecords && end > first) {
+            long start = Math.max(first, end - window);
+            long stop = end;
+            List<ByteBuffer> chunk = new ArrayList<>();
+            List<Long> sequences = new ArrayList<>();
+            scan(start - 1, (sequence, frame) -> {
+                if (sequence >= stop) {
+                    return false;
+                }
+                if (BinaryProtocol.visibleTo(frame, viewerBytes)) {
+                    chunk.add(frame);
+                    sequences.add(sequence);
+                }
+                return true;
+            });
+            // Newest first, so a full page keeps the messages closest to beforeSequence
+            for (int i = chunk.size() - 1; i >= 0 && frames.size() < maxRecords; i--) {
+                frames.addFirst(chunk.get(i));
+                oldest = sequences.get(i);
+            }
+            if (frames.size() < maxRecords) {
+                oldest = start;
+            }
+            end = start;
+            window *= 2;
+        }
+        // Nothing older is left to ask for once the scan has passed the first retained record
+        return new Page(new ArrayList<>(frames), frames.size() < maxRecords || oldest <= first ? 0 : oldest);
+    }
+
+    /**
+     * One page of history. {@code nextBefore} is what to ask for next to
+     * continue further back, or 0 when the start of the log was reached.
+     */
+    record Page(List<ByteBuffer> frames, long nextBefore) {
+    }
+
+    // Visits records after afterSequence across segments until the visitor returns false
+    private void scan(long afterSequence, LogSegment.RecordVisitor visitor) {
+        Long start = segments.floorKey(afterSequence + 1);
+        Map<Long, LogSegment> candidates = start == null ? segments : segments.tailMap(start);
+        for (LogSegment segment : candidates.values()) {
+            if (!segment.scan(afterSequence, visitor)) {
+                return;
+            }
+        }
+    }
+
+    private void flushAndEnforceRetention() {
+        try {
+            active().flush();
+            lock.lock();
+            try {
+                enforceRetention();
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Error maintaining message log: {}", e.getMessage());
+        }
+    }
+
+    private LogSegment active() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops the oldest sealed segments while the log is over its size or age limit
+    private void enforceRetention() throws IOException {
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1) {
+            LogSegment oldest = segments.firstEntry().getValue();
+            boolean tooLarge = retentionBytes > 0 && totalBytes() > retentionBytes;
+            boolean tooOld = retentionMillis > 0 && now - oldest.getSealedAtMillis() > retentionMillis;
+            if (oldest == active || (!tooLarge && !tooOld)) {
+                return;
+            }
+            segments.remove(oldest.getBaseSequence());
+            oldest.delete();
+        }
+    }
+
+    private long totalBytes() {
+        long total = 0;
+        for (LogSegment segment : segments.values()) {
+            total += segment.size();
+        }
+        return total;
+    }
+
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        List<LogSegment> all;
+        lock.lock();
+        try {
+            all = new ArrayList<>(segments.values());
+        } finally {
+            lock.unlock();
+        }
+        all.forEach(LogSegment::flush);
+    }
+}
@@ -0,0 +1,387 @@
+package server;
+
+import client.Message;
+import logging.AsyncLog;
+import logging.Logger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes {@link ServerMetrics} and the server's gauges through JMX and,
+ * if {@code --metrics-port} is set, as Prometheus text on
+ * {@code http://<metrics-bind>:<metrics-port>/metrics}. Nothing is computed
+ * until someone reads: per-client backlogs are summed on each scrape.
+ */
+final class MetricsExporter implements ServerMetricsMXBean {
+    private static final Logger LOG = Logger.get(MetricsExporter.class);
+    private final ServerMetrics metrics;
+    private final SessionRegistry sessions;
+    private final AuthService authService;
+    // Null when the server is not part of a cluster
+    private final ClusterNode cluster;
+    // Null when file transfer is off
+    private final FileTransfers transfers;
+    // Null unless --tls is set
+    private final TlsService tls;
+    private HttpServer httpServer;
+
+    MetricsExporter(ServerMetrics metrics, SessionRegistry sessions, AuthService authService, ClusterNode cluster,
+                    FileTransfers transfers, TlsService tls) {
+        this.metrics = metrics;
+        this.sessions = sessions;
+        this.authService = authService;
+        this.cluster = cluster;
+        this.transfers = transfers;
+        this.tls = tls;
+    }
+
+    void start(int serverPort, String bindAddress, int metricsPort) {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(this, new ObjectName("flicktalk:type=ChatServer,port=" + serverPort));
+        } catch (JMException e) {
+            LOG.warn("Could not register metrics MBean: {}", e.getMessage());
+        }
+        if (metricsPort <= 0) {
+            return;
+        }
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(bindAddress, metricsPort), 0);
+            httpServer.createContext("/metrics", this::scrape);
+            httpServer.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-http");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            httpServer.start();
+            LOG.info("Metrics available at http://{}:{}/metrics", bindAddress, metricsPort);
+        } catch (IOException e) {
+            LOG.warn("Could not start metrics endpoint: {}", e.getMessage());
+        }
+    }
+
+    private void scrape(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = prometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    String prometheusText() {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "flicktalk_sessions_connected", "Open client connections", getConnectedSessions());
+        gauge(out, "flicktalk_sessions_logged_in", "Logged-in clients", getLoggedInSessions());
+        gauge(out, "flicktalk_sessions_detached", "Logged-in sessions waiting for their client to resume them", getDetachedSessions());
+
+        header(out, "flicktalk_messages_received_total", "counter", "Messages received from clients by type");
+        for (Message.Type type : ServerMetrics.types()) {
+            sample(out, "flicktalk_messages_received_total", typeLabel(type), metrics.getReceived(type));
+        }
+        header(out, "flicktalk_messages_sent_total", "counter", "Messages queued to clients by type, one per recipient");
+        for (Message.Type type : ServerMetrics.types()) {
+            sample(out, "flicktalk_messages_sent_total", typeLabel(type), metrics.getSent(type));
+        }
+        header(out, "flicktalk_rate_limited_total", "counter", "Client messages dropped by rate limits or the fan-out budget by type");
+        for (Message.Type type : ServerMetrics.types()) {
+            sample(out, "flicktalk_rate_limited_total", typeLabel(type), metrics.getRateLimited(type));
+        }
+        counter(out, "flicktalk_mutes_total", "Clients muted for sending too fast", metrics.getMutes());
+        counter(out, "flicktalk_read_throttle_seconds_total", "Time throttled clients' reads were paused",
+                seconds(metrics.getReadThrottleNanos()));
+        counter(out, "flicktalk_heartbeat_pings_total", "PINGs sent to silent clients", metrics.getPings());
+        counter(out, "flicktalk_sessions_reaped_total", "Sessions disconnected for idling or stalled writes", metrics.getReaped());
+        counter(out, "flicktalk_sessions_resumed_total", "Detached sessions taken over by a reconnecting client", metrics.getResumed());
+        counter(out, "flicktalk_resume_failures_total", "RESUMEs answered with RESUME_FAILED", metrics.getResumeFailures());
+        counter(out, "flicktalk_sessions_expired_total", "Detached sessions ended when their grace period ran out",
+                metrics.getSessionsExpired());
+        counter(out, "flicktalk_messages_replayed_total", "History frames sent from the message log", metrics.getReplayed());
+        counter(out, "flicktalk_bytes_read_total", "Bytes read from client sockets", metrics.getBytesRead());
+        counter(out, "flicktalk_bytes_written_total", "Bytes written to client sockets", metrics.getBytesWritten());
+        counter(out, "flicktalk_compression_input_bytes_total", "Frame bytes fed to DEFLATE", metrics.getCompressionInput());
+        counter(out, "flicktalk_compression_output_bytes_total", "Deflated chunk bytes produced", metrics.getCompressionOutput());
+
+        histogram(out, "flicktalk_broadcast_fanout_seconds", "Time to queue one broadcast to every online client",
+                metrics.getBroadcastFanOut());
+        histogram(out, "flicktalk_login_seconds", "Time from LOGIN to the server's answer", metrics.getLogin());
+
+        long backlog = 0;
+        int maxBacklog = 0;
+        long dropped = 0;
+        for (ClientHandler client : sessions.online()) {
+            int depth = client.getQueueDepth();
+            backlog += depth;
+            maxBacklog = Math.max(maxBacklog, depth);
+            dropped += client.getDroppedMessages();
+        }
+        gauge(out, "flicktalk_outbound_backlog_messages", "Messages queued for logged-in clients", backlog);
+        gauge(out, "flicktalk_outbound_backlog_max_messages", "Longest single client queue", maxBacklog);
+        gauge(out, "flicktalk_outbound_dropped_messages", "Messages dropped by overflow, summed over logged-in clients", dropped);
+
+        header(out, "flicktalk_auth_logins_total", "counter", "Password checks by outcome");
+        sample(out, "flicktalk_auth_logins_total", "{outcome=\"accepted\"}", authService.getAccepted());
+        sample(out, "flicktalk_auth_logins_total", "{outcome=\"rejected\"}", authService.getRejected());
+        sample(out, "flicktalk_auth_logins_total", "{outcome=\"busy\"}", authService.getBusy());
+        gauge(out, "flicktalk_auth_queue_depth", "Logins waiting for an auth thread", authService.getQueueDepth());
+        counter(out, "flicktalk_auth_queue_seconds_total", "Time logins spent waiting for an auth thread",
+                seconds(authService.getTotalQueueNanos()));
+        counter(out, "flicktalk_auth_hash_seconds_total", "Time spent hashing passwords",
+                seconds(authService.getTotalHashNanos()));
+        if (tls != null) {
+            header(out, "flicktalk_tls_handshakes_total", "counter", "TLS handshakes by outcome");
+            sample(out, "flicktalk_tls_handshakes_total", "{outcome=\"full\"}", tls.getFullHandshakes());
+            sample(out, "flicktalk_tls_handshakes_total", "{outcome=\"resumed\"}", tls.getResumedHandshakes());
+            sample(out, "flicktalk_tls_handshakes_total", "{outcome=\"failed\"}", tls.getFailedHandshakes());
+            sample(out, "flicktalk_tls_handshakes_total", "{outcome=\"busy\"}", tls.getBusy());
+            gauge(out, "flicktalk_tls_handshake_queue_depth", "Connections waiting for a handshake thread", tls.getQueueDepth());
+            counter(out, "flicktalk_tls_handshake_seconds_total", "Time spent in successful TLS handshakes",
+                    seconds(tls.getTotalHandshakeNanos()));
+        }
+        if (cluster != null) {
+            counter(out, "flicktalk_cluster_relay_dropped_total", "Relay records dropped on full peer queues",
+                    cluster.getRelayDropped());
+        }
+        if (transfers != null) {
+            gauge(out, "flicktalk_transfer_files_pending", "Files offered and not yet collected or expired", transfers.count());
+            gauge(out, "flicktalk_transfer_spool_bytes", "Space reserved by pending files", transfers.getReservedBytes());
+            counter(out, "flicktalk_transfer_files_uploaded_total", "Files uploaded whole and matching their checksum",
+                    metrics.getFilesUploaded());
+            counter(out, "flicktalk_transfer_files_downloaded_total", "Files their recipient confirmed getting intact",
+                    metrics.getFilesDownloaded());
+            counter(out, "flicktalk_transfer_bytes_received_total", "File bytes uploaded on the transfer port",
+                    metrics.getTransferBytesReceived());
+            counter(out, "flicktalk_transfer_bytes_sent_total", "File bytes downloaded from the transfer port",
+                    metrics.getTransferBytesSent());
+            counter(out, "flicktalk_transfer_refused_total", "Transfer connections turned away with every slot taken",
+                    metrics.getTransfersRefused());
+        }
+        counter(out, "flicktalk_log_dropped_total", "Server log records dropped on a full log buffer", AsyncLog.getDropped());
+        return out.toString();
+    }
+
+    private static String typeLabel(Message.Type type) {
+        return "{type=\"" + type.name().toLowerCase(Locale.ROOT) + "\"}";
+    }
+
+    private static void histogram(StringBuilder out, String name, String help, DurationHistogram histogram) {
+        header(out, name, "histogram", help);
+        long cumulative = 0;
+        for (int i = 0; i < DurationHistogram.BOUNDS_MICROS.length; i++) {
+            cumulative += histogram.bucketCount(i);
+            sample(out, name + "_bucket", "{le=\"" + seconds(DurationHistogram.BOUNDS_MICROS[i] * 1000) + "\"}", cumulative);
+        }
+        cumulative += histogram.bucketCount(DurationHistogram.BOUNDS_MICROS.length);
+        sample(out, name + "_bucket", "{le=\"+Inf\"}", cumulative);
+        sample(out, name + "_sum", "", seconds(histogram.getTotalNanos()));
+        sample(out, name + "_count", "", cumulative);
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        sample(out, name, "", value);
+    }
+
+    private static void counter(StringBuilder out, String name, String help, Object value) {
+        header(out, name, "counter", help);
+        sample(out, name, "", value);
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, Object value) {
+        out.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    @Override
+    public int getConnectedSessions() {
+        return sessions.connectedCount();
+    }
+
+    @Override
+    public int getLoggedInSessions() {
+        return sessions.online().size();
+    }
+
+    @Override
+    public Map<String, Long> getMessagesReceived() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Message.Type type : ServerMetrics.types()) {
+            counts.put(type.name(), metrics.getReceived(type));
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getMessagesSent() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Message.Type type : ServerMetrics.types()) {
+            counts.put(type.name(), metrics.getSent(type));
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getRateLimited() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Message.Type type : ServerMetrics.types()) {
+            counts.put(type.name(), metrics.getRateLimited(type));
+        }
+        return counts;
+    }
+
+    @Override
+    public long getMutes() {
+        return metrics.getMutes();
+    }
+
+    @Override
+    public long getSessionsReaped() {
+        return metrics.getReaped();
+    }
+
+    @Override
+    public int getDetachedSessions() {
+        return sessions.detachedCount();
+    }
+
+    @Override
+    public long getSessionsResumed() {
+        return metrics.getResumed();
+    }
+
+    @Override
+    public long getMessagesReplayed() {
+        return metrics.getReplayed();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return metrics.getBytesRead();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return metrics.getBytesWritten();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long output = metrics.getCompressionOutput();
+        return output == 0 ? 0 : (double) metrics.getCompressionInput() / output;
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return metrics.getBroadcastFanOut().getCount();
+    }
+
+    @Override
+    public double getBroadcastFanOutMeanMicros() {
+        return meanMicros(metrics.getBroadcastFanOut());
+    }
+
+    @Override
+    public double getBroadcastFanOutMaxMicros() {
+        return metrics.getBroadcastFanOut().getMaxNanos() / 1e3;
+    }
+
+    @Override
+    public long getLogins() {
+        return metrics.getLogin().getCount();
+    }
+
+    @Override
+    public double getLoginMeanMillis() {
+        return meanMicros(metrics.getLogin()) / 1e3;
+    }
+
+    @Override
+    public double getLoginMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMicros(metrics.getLogin().getMaxNanos()) / 1e3;
+    }
+
+    private static double meanMicros(DurationHistogram histogram) {
+        long count = histogram.getCount();
+        return count == 0 ? 0 : histogram.getTotalNanos() / 1e3 / count;
+    }
+
+    @Override
+    public long getOutboundBacklog() {
+        long backlog = 0;
+        for (ClientHandler client : sessions.online()) {
+            backlog += client.getQueueDepth();
+        }
+        return backlog;
+    }
+
+    @Override
+    public int getMaxOutboundBacklog() {
+        int max = 0;
+        for (ClientHandler client : sessions.online()) {
+            max = Math.max(max, client.getQueueDepth());
+        }
+        return max;
+    }
+
+    @Override
+    public long getOutboundDropped() {
+        long dropped = 0;
+        for (ClientHandler client : sessions.online()) {
+            dropped += client.getDroppedMessages();
+        }
+        return dropped;
+    }
+
+    @Override
+    public long getAuthAccepted() {
+        return authService.getAccepted();
+    }
+
+    @Override
+    public long getAuthRejected() {
+        return authService.getRejected();
+    }
+
+    @Override
+    public long getAuthBusy() {
+        return authService.getBusy();
+    }
+
+    @Override
+    public int getAuthQueueDepth() {
+        return authService.getQueueDepth();
+    }
+
+    @Override
+    public long getClusterRelayDropped() {
+        return cluster != null ? cluster.getRelayDropped() : 0;
+    }
+
+    @Override
+    public long getLogDropped() {
+        return AsyncLog.getDropped();
+    }
+}
@@ -0,0 +1,229 @@
+package server;
+
+import logging.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class NioConnection implements Connection {
+    private static final Logger LOG = Logger.get(NioConnection.class);
+    private static final int MAX_GATHER = 64;
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final OutboundQueue outbound;
+    private final ServerMetrics metrics;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final String remoteAddress;
+    private ClientHandler handler;
+    // Frames handed to the last gathering write; a partially written tail stays here
+    // One spare slot for the header of an uncompressed chunk
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER + 1];
+    private int gatherStart;
+    private int gatherEnd;
+    // Compression starts after the handshake reply goes out; only the loop thread uses the compressor
+    private volatile ByteBuffer compressAfter;
+    private volatile FrameCompressor pendingCompressor;
+    private FrameCompressor compressor;
+    // Set while a throttled client is not being read from
+    private boolean readsPaused;
+    // Written on the loop thread, read by Heartbeats
+    private volatile long writeWaitingSince;
+
+    NioConnection(EventLoop loop, SocketChannel channel, SelectionKey key, OutboundQueue outbound, ServerMetrics metrics)
+            throws IOException {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.outbound = outbound;
+        this.metrics = metrics;
+        this.remoteAddress = channel.socket().getInetAddress().getHostAddress();
+    }
+
+    void setHandler(ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    // Called on the loop thread when the channel is readable
+    void read(ByteBuffer buffer) {
+        buffer.clear();
+        int read;
+        try {
+            read = channel.read(buffer);
+        } catch (IOException e) {
+            LOG.info("Client disconnected: {}", e.getMessage());
+            handler.connectionLost();
+            return;
+        }
+        if (read < 0) {
+            handler.connectionLost();
+            return;
+        }
+        buffer.flip();
+        if (!handler.onBytes(buffer)) {
+            LOG.warn("Client {} violated the protocol, closing", remoteAddress);
+            handler.disconnect();
+            return;
+        }
+        long pause = handler.takeReadPause();
+        if (pause > 0 && key.isValid()) {
+            // Unread bytes stay in the kernel, so the client's TCP window fills and it has to slow down
+            readsPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            loop.schedule(this::resumeReads, pause);
+        }
+    }
+
+    private void resumeReads() {
+        readsPaused = false;
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public boolean send(ByteBuffer frame) {
+        // Event loop threads must never wait, whatever the overflow policy says, even for a client on another loop
+        if (!outbound.offer(frame.duplicate(), !EventLoop.onLoopThread())) {
+            return false;
+        }
+        flushQueued();
+        return true;
+    }
+
+    @Override
+    public boolean sendThenCompress(ByteBuffer frame, FrameCompressor compressor) {
+        ByteBuffer queued = frame.duplicate();
+        pendingCompressor = compressor;
+        compressAfter = queued;
+        if (!outbound.offer(queued, !EventLoop.onLoopThread())) {
+            return false;
+        }
+        flushQueued();
+        return true;
+    }
+
+    @Override
+    public void flushQueued() {
+        if (loop.inEventLoop()) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    // Writes as much as the socket accepts; leftovers wait for OP_WRITE
+    void flush() {
+        flushScheduled.set(false);
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            while (true) {
+                fillGather();
+                if (gatherStart == gatherEnd) {
+                    break;
+                }
+                long written = channel.write(gather, gatherStart, gatherEnd - gatherStart);
+                metrics.bytesWritten(written);
+                while (gatherStart < gatherEnd && !gather[gatherStart].hasRemaining()) {
+                    gather[gatherStart++] = null;
+                }
+                if (gatherStart < gatherEnd) {
+                    if (written > 0 || writeWaitingSince == 0) {
+                        writeWaitingSince = System.nanoTime();
+                    }
+                    key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            writeWaitingSince = 0;
+            key.interestOps(readInterest());
+        } catch (IOException e) {
+            LOG.info("Client disconnected: {}", e.getMessage());
+            handler.connectionLost();
+        }
+    }
+
+    private int readInterest() {
+        return readsPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    /**
+     * Compacts any unwritten tail to the front and tops the batch up from the
+     * queue. A compressed chunk reuses the compressor's buffer, so nothing
+     * more is taken until the last one is fully written.
+     */
+    private void fillGather() {
+        if (compressor != null && gatherStart < gatherEnd) {
+            return;
+        }
+        if (gatherStart > 0) {
+            int remaining = gatherEnd - gatherStart;
+            System.arraycopy(gather, gatherStart, gather, 0, remaining);
+            Arrays.fill(gather, remaining, gatherEnd, null);
+            gatherStart = 0;
+            gatherEnd = remaining;
+        }
+        int start = gatherEnd;
+        ByteBuffer frame;
+        while (gatherEnd < MAX_GATHER && (frame = outbound.poll()) != null) {
+            gather[gatherEnd++] = frame;
+            if (frame == compressAfter) {
+                // The frames after it are compressed, in the next batch
+                break;
+            }
+        }
+        if (gatherEnd == start) {
+            return;
+        }
+        if (compressor != null) {
+            gatherEnd = compressor.compress(gather, start, gatherEnd);
+        } else if (gather[gatherEnd - 1] == compressAfter) {
+            compressor = pendingCompressor;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!loop.inEventLoop()) {
+            loop.execute(this::close);
+            return;
+        }
+        key.cancel();
+        Arrays.fill(gather, null);
+        gatherStart = 0;
+        gatherEnd = 0;
+        FrameCompressor used = compressor != null ? compressor : pendingCompressor;
+        if (used != null) {
+            compressor = null;
+            pendingCompressor = null;
+            used.release();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing client channel: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public long getWriteWaitingSince() {
+        return writeWaitingSince;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+}
@@ -0,0 +1,69 @@
+package server;
+
+import logging.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking transport for ChatServer. The calling thread accepts
+ * connections and deals them round-robin to a fixed set of event loops,
+ * so the thread count stays flat no matter how many clients connect.
+ */
+class NioServer {
+    private static final Logger LOG = Logger.get(NioServer.class);
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private final ChatServer server;
+    private final int port;
+    private final EventLoop[] loops;
+    // Closed by the shutdown hook
+    private volatile ServerSocketChannel serverChannel;
+
+    NioServer(ChatServer server, ServerConfig config) throws IOException {
+        this.server = server;
+        this.port = config.getPort();
+        this.loops = new EventLoop[config.getIoThreads()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(server);
+        }
+    }
+
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].start("nio-loop-" + i);
+        }
+        LOG.info("Server started on port {} (nio, {} event loops)", port, loops.length);
+
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                // Line clients get no PINGs, so this is what finds their dead peers
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                LOG.info("New client connected: {}", channel.socket().getInetAddress().getHostAddress());
+
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    LOG.warn("Error accepting client connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Stops accepting; clients already connected are left to the event loops
+    void close() throws IOException {
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+    }
+}
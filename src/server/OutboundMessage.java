@@ -0,0 +1,53 @@
+package server;
+
+import client.Message;
+import protocol.BinaryProtocol;
+import protocol.TextProtocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message on its way to one or more clients. Each wire format is encoded
+ * at most once, the first time a recipient speaking it needs the frame;
+ * every later recipient reuses the same bytes.
+ */
+final class OutboundMessage {
+    private final Message message;
+    private final boolean shared;
+    // Benign race: two threads may both encode, and either result is correct
+    private volatile ByteBuffer textFrame;
+    private volatile ByteBuffer binaryFrame;
+
+    OutboundMessage(Message message, boolean shared) {
+        this.message = message;
+        this.shared = shared;
+    }
+
+    // For fan-out of a message whose binary frame already exists, e.g. a mapped log record
+    OutboundMessage(Message message, ByteBuffer binaryFrame) {
+        this(message, true);
+        this.binaryFrame = binaryFrame;
+    }
+
+    Message getMessage() {
+        return message;
+    }
+
+    ByteBuffer frame(WireFormat format) {
+        if (format == WireFormat.BINARY) {
+            ByteBuffer frame = binaryFrame;
+            if (frame == null) {
+                frame = BinaryProtocol.encode(message, shared).asReadOnlyBuffer();
+                binaryFrame = frame;
+            }
+            return frame;
+        }
+        ByteBuffer frame = textFrame;
+        if (frame == null) {
+            String line = TextProtocol.toClientLine(message);
+            frame = shared ? Frames.sharedLine(line) : Frames.line(line);
+            textFrame = frame;
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,362 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one client.
+ * Senders only ever enqueue; the connection's writer drains it, so one
+ * client with a full TCP window cannot stall delivery to anyone else.
+ *
+ * For resumable sessions the queue also numbers what it hands the writer.
+ * From the LOGIN_SUCCESS or RESUMED reply on, every frame taken out is
+ * placed at its byte offset in the session's stream, and the last few are
+ * kept as a replay buffer. A client that reconnects says how many bytes it
+ * got, and {@link #handOver} moves everything after that to the new
+ * connection's queue. Offsets are given out as frames leave, so anything
+ * the overflow policy drops is never counted.
+ */
+class OutboundQueue {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final int capacity;
+    // Longer than capacity, with room for what a hand-over brings along
+    private final ByteBuffer[] pending;
+    private int head;
+    private int count;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMillis;
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Replay buffer, a ring of the frames last taken out; empty when sessions are not resumable
+    private final ByteBuffer[] history;
+    private final int[] historyPositions;
+    private final long[] historyOffsets;
+    private int historyHead;
+    private int historyCount;
+    // The reply the stream starts after, while it is still queued
+    private ByteBuffer streamStart;
+    private long streamStartOffset;
+    private boolean streaming;
+    // Offset of the next frame taken out
+    private long streamOffset;
+    // Set once the session has moved to another connection; later offers go there
+    private OutboundQueue forwardTo;
+
+    OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis) {
+        this(capacity, policy, blockTimeoutMillis, 0);
+    }
+
+    OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis, int replayFrames) {
+        this.capacity = capacity;
+        this.pending = new ByteBuffer[capacity + (replayFrames > 0 ? replayFrames + 1 : 0)];
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.history = new ByteBuffer[replayFrames];
+        this.historyPositions = new int[replayFrames];
+        this.historyOffsets = new long[replayFrames];
+    }
+
+    /**
+     * Enqueues a message, applying the overflow policy if the queue is full.
+     * Returns false if the client should be disconnected. Callers that must
+     * never block (event loop threads) pass {@code mayBlock = false}, which
+     * turns BLOCK into an immediate overflow.
+     */
+    boolean offer(ByteBuffer message, boolean mayBlock) {
+        OutboundQueue target;
+        lock.lock();
+        try {
+            if (forwardTo == null) {
+                return enqueue(message, mayBlock);
+            }
+            target = forwardTo;
+        } finally {
+            lock.unlock();
+        }
+        return target.offer(message, mayBlock);
+    }
+
+    /**
+     * Queues the LOGIN_SUCCESS or RESUMED reply. The frames taken out after
+     * it are numbered from offset and kept for replay.
+     */
+    boolean offerStreamStart(ByteBuffer reply, long offset) {
+        lock.lock();
+        try {
+            if (forwardTo != null || !enqueue(reply, false)) {
+                return false;
+            }
+            if (history.length > 0) {
+                streamStart = reply;
+                streamStartOffset = offset;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Lock held
+    private boolean enqueue(ByteBuffer message, boolean mayBlock) {
+        if (count < capacity) {
+            add(message);
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST -> {
+                while (count >= capacity) {
+                    startStreamIfDropped(removeHead());
+                    dropped.incrementAndGet();
+                }
+                add(message);
+                return true;
+            }
+            case BLOCK -> {
+                if (mayBlock) {
+                    try {
+                        long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+                        while (count >= capacity && forwardTo == null && nanos > 0) {
+                            nanos = notFull.awaitNanos(nanos);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (forwardTo != null) {
+                        // Handed over while we waited; the lock order is always old queue, then new
+                        return forwardTo.offer(message, false);
+                    }
+                    if (count < capacity) {
+                        add(message);
+                        return true;
+                    }
+                }
+                dropped.incrementAndGet();
+                return false;
+            }
+            default -> {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    private void add(ByteBuffer message) {
+        pending[(head + count) % pending.length] = message;
+        count++;
+        notEmpty.signal();
+    }
+
+    private ByteBuffer removeHead() {
+        ByteBuffer message = pending[head];
+        pending[head] = null;
+        head = (head + 1) % pending.length;
+        count--;
+        notFull.signal();
+        return message;
+    }
+
+    ByteBuffer poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : takeOut();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    ByteBuffer take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return takeOut();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Lock held; the frame is about to be written, so this is where it gets its offset
+    private ByteBuffer takeOut() {
+        ByteBuffer frame = removeHead();
+        if (frame == streamStart) {
+            startStream();
+        } else if (streaming) {
+            int slot = (historyHead + historyCount) % history.length;
+            if (historyCount == history.length) {
+                historyHead = (historyHead + 1) % history.length;
+            } else {
+                historyCount++;
+            }
+            history[slot] = frame;
+            historyPositions[slot] = frame.position();
+            historyOffsets[slot] = streamOffset;
+            streamOffset += frame.remaining();
+        }
+        return frame;
+    }
+
+    // A dropped reply still starts the stream; the client will not have seen it, but the numbering must go on
+    private void startStreamIfDropped(ByteBuffer frame) {
+        if (frame == streamStart) {
+            startStream();
+        }
+    }
+
+    private void startStream() {
+        streamStart = null;
+        streaming = true;
+        streamOffset = streamStartOffset;
+        historyCount = 0;
+    }
+
+    /**
+     * Moves the session's stream to target, the queue of the connection it
+     * resumed on: the reply first, then everything after offset, whether
+     * already taken out (from the replay buffer) or still queued. Offers to
+     * this queue go to target from then on. Returns false, changing
+     * nothing, if offset is not covered by the replay buffer.
+     */
+    boolean handOver(OutboundQueue target, long offset, ByteBuffer reply) {
+        lock.lock();
+        try {
+            long oldest = historyCount > 0 ? historyOffsets[historyHead] : streamOffset;
+            if (forwardTo != null || !streaming || offset < oldest || offset > streamOffset) {
+                return false;
+            }
+            int first = 0;
+            while (first < historyCount && endOf(historyHead + first) <= offset) {
+                first++;
+            }
+            target.lock.lock();
+            try {
+                if (target.forwardTo != null || target.history.length == 0
+                        || target.count + 1 + historyCount - first + count > target.pending.length) {
+                    return false;
+                }
+                target.add(reply);
+                target.streamStart = reply;
+                target.streamStartOffset = offset;
+                for (int i = first; i < historyCount; i++) {
+                    int slot = (historyHead + i) % history.length;
+                    ByteBuffer frame = history[slot].duplicate();
+                    // The first frame may be a text burst the client got part of
+                    frame.position(historyPositions[slot] + (int) Math.max(0, offset - historyOffsets[slot]));
+                    target.add(frame);
+                }
+                for (int i = 0; i < count; i++) {
+                    target.add(pending[(head + i) % pending.length]);
+                }
+            } finally {
+                target.lock.unlock();
+            }
+            forwardTo = target;
+            clearLocked();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long endOf(int index) {
+        int slot = index % history.length;
+        return historyOffsets[slot] + history[slot].limit() - historyPositions[slot];
+    }
+
+    /**
+     * The unacknowledged part of the stream as one buffer, replay buffer and
+     * queue together, for saving a detached session at shutdown. Null if
+     * the session's stream has not started.
+     */
+    Replay replay() {
+        lock.lock();
+        try {
+            if (!streaming) {
+                return null;
+            }
+            long start = historyCount > 0 ? historyOffsets[historyHead] : streamOffset;
+            int size = 0;
+            for (int i = 0; i < historyCount; i++) {
+                int slot = (historyHead + i) % history.length;
+                size += history[slot].limit() - historyPositions[slot];
+            }
+            for (int i = 0; i < count; i++) {
+                size += pending[(head + i) % pending.length].remaining();
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(size);
+            for (int i = 0; i < historyCount; i++) {
+                int slot = (historyHead + i) % history.length;
+                bytes.put(history[slot].duplicate().position(historyPositions[slot]));
+            }
+            for (int i = 0; i < count; i++) {
+                bytes.put(pending[(head + i) % pending.length].duplicate());
+            }
+            return new Replay(start, bytes.flip());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A stream saved by replay(): the bytes from offset on
+    record Replay(long offset, ByteBuffer bytes) {
+    }
+
+    // Picks up a stream saved at the last shutdown, as if its bytes had already been taken out
+    void restore(Replay replay) {
+        lock.lock();
+        try {
+            startStream();
+            streamOffset = replay.offset();
+            if (replay.bytes().hasRemaining() && history.length > 0) {
+                history[0] = replay.bytes();
+                historyPositions[0] = replay.bytes().position();
+                historyOffsets[0] = streamOffset;
+                historyHead = 0;
+                historyCount = 1;
+                streamOffset += replay.bytes().remaining();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            clearLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void clearLocked() {
+        while (count > 0) {
+            removeHead();
+        }
+        head = 0;
+        Arrays.fill(history, null);
+        historyCount = 0;
+        streamStart = null;
+        streaming = false;
+        notFull.signalAll();
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,15 @@
+package server;
+
+// What a session's outbound queue does when a slow consumer lets it fill up
+public enum OverflowPolicy {
+    // Discard the oldest queued message to make room for the new one
+    DROP_OLDEST,
+    // Treat the client as dead and disconnect it
+    DISCONNECT,
+    // Make the sender wait up to the block timeout, then disconnect
+    BLOCK;
+
+    public static OverflowPolicy parse(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
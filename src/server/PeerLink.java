@@ -0,0 +1,143 @@
+package server;
+
+import logging.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Persistent outbound link to one peer node. Relay records are queued by
+ * any thread and written by the link's own thread, which drains everything
+ * waiting (up to {@link #MAX_BATCH_BYTES}) into one buffered write, so a
+ * busy node sends a few large writes instead of one per message. An idle
+ * link sends heartbeats so the peer can tell a quiet node from a dead one.
+ *
+ * Links are one-way: each node reads from the links its peers open to it.
+ * On every (re)connect the link answers the peer's CHALLENGE with HELLO,
+ * checks the peer's HELLO in turn, and sends a fresh presence snapshot;
+ * anything queued while the peer was unreachable is discarded because the
+ * snapshot supersedes it.
+ */
+final class PeerLink implements Runnable {
+    private static final Logger LOG = Logger.get(PeerLink.class);
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int RECONNECT_MILLIS = 1000;
+
+    private final ClusterNode node;
+    private final String host;
+    private final int port;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicBoolean overflowing = new AtomicBoolean();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean connected;
+    // Learned from the peer's HELLO; null until the first connect
+    private volatile String peerId;
+
+    PeerLink(ClusterNode node, String host, int port) {
+        this.node = node;
+        this.host = host;
+        this.port = port;
+    }
+
+    // Never blocks; a full queue drops the record, as the peer is too slow or unreachable anyway
+    void send(byte[] record) {
+        if (!connected) {
+            return;
+        }
+        if (!queue.offer(record)) {
+            dropped.increment();
+            if (overflowing.compareAndSet(false, true)) {
+                LOG.warn("Relay queue to {} is full, dropping messages", this);
+            }
+        } else {
+            overflowing.set(false);
+        }
+    }
+
+    // Called under the node's lock, so no relay record can slip in between the two steps
+    byte[] reset() {
+        queue.clear();
+        connected = true;
+        return node.snapshotRecord();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), MAX_BATCH_BYTES));
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                socket.setSoTimeout(ClusterNode.PEER_TIMEOUT_MILLIS);
+                byte[] nonce = node.nonce();
+                out.write(node.helloRecord(ClusterNode.readChallenge(in), nonce, false));
+                out.flush();
+                peerId = node.readHello(in, nonce, true).nodeId();
+                out.write(node.resetLink(this));
+                out.flush();
+                LOG.info("Cluster link to {} ({}) is up", peerId, this);
+                pump(out);
+            } catch (IOException e) {
+                if (connected) {
+                    LOG.info("Cluster link to {} lost: {}", this, e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void pump(DataOutputStream out) throws IOException, InterruptedException {
+        byte[] heartbeat = ClusterNode.record(ClusterNode.HEARTBEAT, new byte[0]);
+        while (true) {
+            byte[] record = queue.poll(ClusterNode.HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+            if (record == null) {
+                out.write(heartbeat);
+                out.flush();
+                continue;
+            }
+            int batched = 0;
+            do {
+                out.write(record);
+                batched += record.length;
+            } while (batched < MAX_BATCH_BYTES && (record = queue.poll()) != null);
+            out.flush();
+        }
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    String getPeerId() {
+        return connected ? peerId : null;
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,173 @@
+package server;
+
+import client.Message;
+import logging.Logger;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Versioned online-user list. Logins and logouts are collected and, once per
+ * interval, published to every online client as one delta
+ * ({@code version:+alice,-bob}). A join and a leave of the same user inside
+ * one interval cancel out, so a reconnect storm costs one small delta per
+ * interval instead of a full list per event. Clients get a full snapshot
+ * only when they log in or ask for one after noticing a version gap.
+ *
+ * In a cluster the same user can be reported by this node and by peers, so
+ * each user is counted: they join the list when the first report arrives
+ * and leave it only when the last one goes.
+ *
+ * Versions and deltas are binary-protocol only. Text sessions keep the
+ * original {@code ONLINE_USERS:alice,bob} line, sent in full at login and
+ * again with each published delta, so old line clients still understand it.
+ *
+ * Snapshots describe the published state, never pending changes. Deltas
+ * are sent in version order, after the lock is released, so a client that
+ * logs in meanwhile may get delta v right after its snapshot at v; clients
+ * skip versions they already have, and see v+1, v+2, ... after it.
+ */
+class PresenceTracker {
+    private static final Logger LOG = Logger.get(PresenceTracker.class);
+    private final SessionRegistry sessions;
+    private final ServerMetrics metrics;
+    private final long intervalMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Held while a delta is sent; only ever taken with lock held, then lock is released
+    private final ReentrantLock fanOut = new ReentrantLock();
+    private final Set<String> published = new LinkedHashSet<>();
+    // Sessions and peer nodes reporting each user as online
+    private final Map<String, Integer> references = new HashMap<>();
+    // true = joined, false = left, relative to the published set
+    private final Map<String, Boolean> pending = new LinkedHashMap<>();
+    private long version = 0;
+    private ScheduledExecutorService scheduler;
+
+    PresenceTracker(SessionRegistry sessions, ServerMetrics metrics, long intervalMillis) {
+        this.sessions = sessions;
+        this.metrics = metrics;
+        this.intervalMillis = intervalMillis;
+    }
+
+    void start() {
+        if (intervalMillis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "presence");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void joined(String username) {
+        change(username, true);
+    }
+
+    void left(String username) {
+        change(username, false);
+    }
+
+    private void change(String username, boolean joined) {
+        lock.lock();
+        try {
+            Integer count = references.merge(username, joined ? 1 : -1, Integer::sum);
+            if (count < 0) {
+                // A leave nothing joined; ignored rather than letting the count drift
+                references.remove(username);
+                return;
+            }
+            if (count == 0) {
+                references.remove(username);
+            } else if (count > 1 || !joined) {
+                // Still online through another session or node
+                return;
+            }
+            // Back where the published set already has them means an opposite change is pending; the two cancel out
+            if (published.contains(username) == joined) {
+                pending.remove(username);
+            } else {
+                pending.put(username, joined);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (intervalMillis <= 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Publishes everything pending as one delta with the next version
+     * number. The delta is built under the lock but sent after it, so a
+     * login waiting for its snapshot never waits on a slow client's queue.
+     */
+    void flush() {
+        OutboundMessage delta;
+        OutboundMessage list;
+        lock.lock();
+        try {
+            delta = takeDelta();
+            if (delta == null) {
+                return;
+            }
+            list = new OutboundMessage(new Message(Message.Type.ONLINE_USERS, null, null, String.join(",", published)), true);
+            // Taken before the state lock is let go, so deltas still go out in version order
+            fanOut.lock();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            List<ClientHandler> online = sessions.online();
+            for (ClientHandler client : online) {
+                client.send(client.isBinary() ? delta : list);
+            }
+            metrics.sent(Message.Type.PRESENCE, online.size());
+        } catch (RuntimeException e) {
+            LOG.warn("Error publishing presence: {}", e);
+        } finally {
+            fanOut.unlock();
+        }
+    }
+
+    // Applies pending changes to the published set; null if there are none. Lock held
+    private OutboundMessage takeDelta() {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        version++;
+        StringBuilder delta = new StringBuilder().append(version).append(':');
+        for (Map.Entry<String, Boolean> change : pending.entrySet()) {
+            if (change.getValue()) {
+                published.add(change.getKey());
+                delta.append('+');
+            } else {
+                published.remove(change.getKey());
+                delta.append('-');
+            }
+            delta.append(change.getKey()).append(',');
+        }
+        pending.clear();
+        delta.setLength(delta.length() - 1);
+        return new OutboundMessage(new Message(Message.Type.PRESENCE, null, null, delta.toString()), true);
+    }
+
+    // Full list as of the current version ({@code version:alice,bob}); text sessions get it without the version
+    void sendSnapshot(ClientHandler client) {
+        lock.lock();
+        try {
+            String users = String.join(",", published);
+            client.send(new Message(Message.Type.ONLINE_USERS, null, null, client.isBinary() ? version + ":" + users : users));
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package server;
+
+// What happens to a client that sends faster than its rate limits allow
+public enum RateLimitAction {
+    // Let the message through but stop reading from the client until it is back within its rate
+    THROTTLE,
+    // Discard the message and tell the client
+    DROP,
+    // Discard the message and everything else the client sends for the mute period
+    MUTE;
+
+    public static RateLimitAction parse(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
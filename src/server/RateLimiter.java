@@ -0,0 +1,129 @@
+package server;
+
+import client.Message;
+
+/**
+ * One session's rate limits: a bucket each for messages that fan out
+ * (broadcasts and room messages), private messages and login attempts,
+ * and the configured response to running out. Checked by the session's
+ * reader before a message goes anywhere; nothing here allocates.
+ */
+final class RateLimiter {
+    enum Verdict {
+        ALLOW,
+        // Dropped, and the client should be told
+        DROP,
+        // Dropped; the client has already been told recently
+        DROP_QUIETLY,
+        // Dropped, and the client is muted from now on
+        MUTE
+    }
+
+    // Drop and mute notices go out at most this often, so they cannot become a flood of their own
+    private static final long NOTICE_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final TokenBucket fanOut;
+    private final TokenBucket privates;
+    private final TokenBucket logins;
+    private final RateLimitAction action;
+    private final long maxDelayNanos;
+    private final long muteNanos;
+    // Only the session's reader touches these
+    private long mutedUntil;
+    private boolean muted;
+    private long lastNotice;
+    private long readPause;
+
+    RateLimiter(ServerConfig config) {
+        this.fanOut = new TokenBucket(config.getRateChat(), config.getRateChatBurst());
+        this.privates = new TokenBucket(config.getRatePrivate(), config.getRatePrivateBurst());
+        this.logins = new TokenBucket(config.getRateLogin(), config.getRateLoginBurst());
+        this.action = config.getRateLimitAction();
+        this.maxDelayNanos = config.getRateMaxDelayMillis() * 1_000_000;
+        this.muteNanos = config.getMuteSeconds() * 1_000_000_000L;
+        this.lastNotice = System.nanoTime() - NOTICE_INTERVAL_NANOS;
+    }
+
+    Verdict admit(Message.Type type, long now) {
+        TokenBucket bucket = switch (type) {
+            case CHAT, ROOM -> fanOut;
+            // An offer is a private message that happens to come with a file
+            case PRIVATE, FILE_OFFER -> privates;
+            case LOGIN -> logins;
+            default -> null;
+        };
+        if (bucket == null || bucket.isUnlimited()) {
+            return Verdict.ALLOW;
+        }
+        // Logging in is not muted; a client that cannot log in has nothing else to send
+        if (muted && type != Message.Type.LOGIN) {
+            if (now - mutedUntil < 0) {
+                // They were told how long for when it started
+                return Verdict.DROP_QUIETLY;
+            }
+            muted = false;
+        }
+        return switch (action) {
+            case THROTTLE -> {
+                long delay = bucket.take(now, 1, maxDelayNanos);
+                if (delay < 0) {
+                    yield notice(now, Verdict.DROP);
+                }
+                readPause = Math.max(readPause, delay);
+                yield Verdict.ALLOW;
+            }
+            case DROP -> bucket.tryTake(now, 1) ? Verdict.ALLOW : notice(now, Verdict.DROP);
+            case MUTE -> {
+                if (bucket.tryTake(now, 1)) {
+                    yield Verdict.ALLOW;
+                }
+                if (type == Message.Type.LOGIN) {
+                    yield notice(now, Verdict.DROP);
+                }
+                muted = true;
+                mutedUntil = now + muteNanos;
+                lastNotice = now;
+                yield Verdict.MUTE;
+            }
+        };
+    }
+
+    /**
+     * Charges a fan-out to the server-wide budget, one token per recipient.
+     * Over budget, throttling pauses this client's reads as usual; the other
+     * actions drop the message without muting, since a storm need not be
+     * this client's doing alone.
+     */
+    Verdict chargeFanOut(TokenBucket budget, int recipients, long now) {
+        int cost = Math.min(recipients, budget.getBurst());
+        if (action == RateLimitAction.THROTTLE) {
+            long delay = budget.take(now, cost, maxDelayNanos);
+            if (delay >= 0) {
+                readPause = Math.max(readPause, delay);
+                return Verdict.ALLOW;
+            }
+        } else if (budget.tryTake(now, cost)) {
+            return Verdict.ALLOW;
+        }
+        return notice(now, Verdict.DROP);
+    }
+
+    private Verdict notice(long now, Verdict verdict) {
+        if (now - lastNotice < NOTICE_INTERVAL_NANOS) {
+            return Verdict.DROP_QUIETLY;
+        }
+        lastNotice = now;
+        return verdict;
+    }
+
+    // How long the reader should stop reading to repay throttled messages; resets to 0
+    long takeReadPause() {
+        long pause = readPause;
+        readPause = 0;
+        return pause;
+    }
+
+    long getMuteSeconds() {
+        return muteNanos / 1_000_000_000L;
+    }
+}
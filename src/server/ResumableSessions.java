@@ -0,0 +1,222 @@
+package server;
+
+import logging.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sessions a client can pick up again after losing its connection. Every
+ * binary-protocol login is given a random token. When the connection
+ * drops, the session is detached rather than ended: it stays online and in
+ * its rooms, and its outbound queue keeps filling. A client presenting the
+ * token within the grace period takes the session over where it left off
+ * (see {@link OutboundQueue#handOver}); once the period runs out the
+ * session ends as if the client had logged out.
+ *
+ * At shutdown every session is detached and the lot saved to disk, so
+ * clients can resume against the restarted server as well.
+ */
+final class ResumableSessions {
+    private static final Logger LOG = Logger.get(ResumableSessions.class);
+    private static final String FILE_NAME = "sessions.bin";
+    private static final int FILE_VERSION = 1;
+    private static final int TOKEN_BYTES = 16;
+
+    // A session saved at shutdown
+    record Saved(String username, String token, List<String> rooms, OutboundQueue.Replay replay) {
+    }
+
+    private final ConcurrentHashMap<String, ClientHandler> byToken = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final TimerWheel wheel;
+    // Ending a session fans out a departure notice, which is too slow for the wheel thread
+    private final Executor housekeeping;
+    private final ServerMetrics metrics;
+    private final long graceMillis;
+    // Null when sessions are not saved at shutdown
+    private final Path file;
+
+    ResumableSessions(ServerConfig config, ServerMetrics metrics, TimerWheel wheel, Executor housekeeping) {
+        this.wheel = wheel;
+        this.housekeeping = housekeeping;
+        this.metrics = metrics;
+        this.graceMillis = config.getResumeGraceMillis();
+        this.file = config.getResumeDir().isEmpty() ? null : Path.of(config.getResumeDir(), FILE_NAME);
+    }
+
+    // 128 random bits; guessing one is no easier than guessing a password
+    String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    void register(String token, ClientHandler session) {
+        byToken.put(token, session);
+    }
+
+    // Starts the grace period of a session whose connection has dropped
+    void detached(ClientHandler session) {
+        TimerWheel.Timeout timeout = wheel.newTimeout(() -> expire(session));
+        session.setGraceTimeout(timeout);
+        wheel.schedule(timeout, TimeUnit.MILLISECONDS.toNanos(graceMillis));
+    }
+
+    /**
+     * Takes the session with this token out of the grace period, for a
+     * client resuming it. Null if there is no such session or it belongs
+     * to someone else.
+     */
+    ClientHandler claim(String token, String username) {
+        ClientHandler session = byToken.get(token);
+        if (session == null || !username.equals(session.getUsername()) || !byToken.remove(token, session)) {
+            return null;
+        }
+        cancelGrace(session);
+        return session;
+    }
+
+    // Ends a detached session now, for a client logging in afresh under its name
+    boolean evict(ClientHandler session) {
+        if (!session.isDetached() || !remove(session)) {
+            return false;
+        }
+        session.expire();
+        return true;
+    }
+
+    // The session has ended some other way
+    void forget(ClientHandler session) {
+        remove(session);
+    }
+
+    private boolean remove(ClientHandler session) {
+        String token = session.getResumeToken();
+        if (token == null || !byToken.remove(token, session)) {
+            return false;
+        }
+        cancelGrace(session);
+        return true;
+    }
+
+    private void cancelGrace(ClientHandler session) {
+        TimerWheel.Timeout timeout = session.getGraceTimeout();
+        if (timeout != null) {
+            wheel.cancel(timeout);
+        }
+    }
+
+    // Runs on the wheel thread
+    private void expire(ClientHandler session) {
+        if (byToken.remove(session.getResumeToken(), session)) {
+            LOG.info("Session of {} was not resumed within {} seconds, ending it", session.getUsername(),
+                    TimeUnit.MILLISECONDS.toSeconds(graceMillis));
+            metrics.sessionExpired();
+            housekeeping.execute(session::expire);
+        }
+    }
+
+    /**
+     * Writes out every detached session for the server that starts next.
+     * The file is written under a temporary name and moved into place, so a
+     * crash part way through leaves the old file or none, never half of one.
+     */
+    void save() {
+        if (file == null) {
+            return;
+        }
+        List<Saved> saved = new ArrayList<>();
+        for (ClientHandler session : byToken.values()) {
+            OutboundQueue.Replay replay = session.isDetached() ? session.getReplay() : null;
+            if (replay != null) {
+                saved.add(new Saved(session.getUsername(), session.getResumeToken(), List.copyOf(session.getRooms()), replay));
+            }
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(FILE_VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(saved.size());
+                for (Saved session : saved) {
+                    out.writeUTF(session.username());
+                    out.writeUTF(session.token());
+                    out.writeInt(session.rooms().size());
+                    for (String room : session.rooms()) {
+                        out.writeUTF(room);
+                    }
+                    ByteBuffer bytes = session.replay().bytes();
+                    out.writeLong(session.replay().offset());
+                    out.writeInt(bytes.remaining());
+                    out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.info("Saved {} sessions to be resumed after the restart", saved.size());
+        } catch (IOException e) {
+            LOG.warn("Could not save sessions, their clients will have to log in again: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the sessions saved at the last shutdown, unless their grace
+     * period ran out while the server was down. The file is deleted either
+     * way, so a session is only ever restored once.
+     */
+    List<Saved> load() {
+        if (file == null || !Files.exists(file)) {
+            return List.of();
+        }
+        List<Saved> saved = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_VERSION) {
+                LOG.warn("Ignoring saved sessions in an unknown format");
+            } else if (System.currentTimeMillis() - in.readLong() <= graceMillis) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String username = in.readUTF();
+                    String token = in.readUTF();
+                    List<String> rooms = new ArrayList<>();
+                    for (int room = in.readInt(); room > 0; room--) {
+                        rooms.add(in.readUTF());
+                    }
+                    long offset = in.readLong();
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    saved.add(new Saved(username, token, rooms, new OutboundQueue.Replay(offset, ByteBuffer.wrap(bytes).asReadOnlyBuffer())));
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read saved sessions: {}", e.getMessage());
+            saved.clear();
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("Could not delete saved sessions: {}", e.getMessage());
+        }
+        return saved;
+    }
+
+    // Puts a session restored from disk back under its old token and starts its grace period
+    void restored(ClientHandler session) {
+        register(session.getResumeToken(), session);
+        detached(session);
+    }
+}
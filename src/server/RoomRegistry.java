@@ -0,0 +1,72 @@
+package server;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.regex.Pattern;
+
+/**
+ * Room name to member index. A room message is sent to its members only, so
+ * it costs O(members) rather than O(connections). Member sets are
+ * copy-on-write: fan-out iterates a snapshot without any lock, and joins and
+ * leaves (rare next to messages) pay for the copy. Empty rooms are removed
+ * inside {@link ConcurrentHashMap#compute}, so a concurrent join can never
+ * land in a room that is being dropped.
+ */
+final class RoomRegistry {
+    static final int MAX_ROOMS_PER_CLIENT = 32;
+    private static final Pattern ROOM_NAME = Pattern.compile("[a-z0-9_-]{1,32}");
+
+    private final Map<String, Set<ClientHandler>> rooms = new ConcurrentHashMap<>();
+
+    // Room names are case-insensitive; returns null if the name is not allowed
+    static String normalize(String room) {
+        String name = room.trim().toLowerCase(Locale.ROOT);
+        if (name.startsWith("#")) {
+            name = name.substring(1);
+        }
+        return ROOM_NAME.matcher(name).matches() ? name : null;
+    }
+
+    // Returns false if the client was already a member
+    boolean join(String room, ClientHandler client) {
+        boolean[] added = new boolean[1];
+        rooms.compute(room, (name, members) -> {
+            Set<ClientHandler> current = members != null ? members : new CopyOnWriteArraySet<>();
+            added[0] = current.add(client);
+            return current;
+        });
+        return added[0];
+    }
+
+    // Returns false if the client was not a member
+    boolean leave(String room, ClientHandler client) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, (name, members) -> {
+            removed[0] = members.remove(client);
+            return members.isEmpty() ? null : members;
+        });
+        return removed[0];
+    }
+
+    // Swaps a member in place, for a session that resumed on a new connection
+    void replace(String room, ClientHandler old, ClientHandler client) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            if (members.remove(old)) {
+                members.add(client);
+            }
+            return members;
+        });
+    }
+
+    Set<ClientHandler> members(String room) {
+        return rooms.getOrDefault(room, Collections.emptySet());
+    }
+
+    int roomCount() {
+        return rooms.size();
+    }
+}
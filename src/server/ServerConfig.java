@@ -0,0 +1,649 @@
+package server;
+
+import logging.Level;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class ServerConfig {
+    private int port = 8888;
+    private ServerMode mode = ServerMode.THREADED;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private int demoUsers = 0;
+    private int queueCapacity = 1024;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private long blockTimeoutMillis = 1000;
+    private long presenceIntervalMillis = 250;
+    private String userStore = "memory";
+    private String jdbcUrl = "jdbc:mysql://localhost:3306/chat_app";
+    private String jdbcUser = "root";
+    private String jdbcPassword = "";
+    private int jdbcPoolSize = 8;
+    private boolean jdbcInit = false;
+    private long userCacheTtlMillis = 60_000;
+    private int hashIterations = 120_000;
+    private int authThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int authQueueCapacity = 256;
+    private String logDir;
+    private int logSegmentBytes = 64 * 1024 * 1024;
+    private long logFlushMillis = 100;
+    private long logRetentionBytes = 1024L * 1024 * 1024;
+    private long logRetentionMillis = 7L * 24 * 60 * 60 * 1000;
+    private int replayCount = 50;
+    private int replayMax = 500;
+    private int historyPageMax = 100;
+    private String inboxDir;
+    private int inboxCapacity = 500;
+    private int inboxBatch = 100;
+    private int inboxBatchBytes = 256 * 1024;
+    private String nodeId;
+    private int clusterPort = 0;
+    private String clusterBind = "127.0.0.1";
+    private String clusterSecret = "";
+    private List<String> peers = List.of();
+    private int metricsPort = 0;
+    private String metricsBind = "127.0.0.1";
+    private boolean compression = true;
+    private int compressionLevel = 1;
+    private int compressionMinBytes = 64;
+    private int compressionContexts = 1024;
+    private Level logLevel = Level.INFO;
+    private boolean logConsole = true;
+    private String logFile = "logs/server.log";
+    private long logFileBytes = 16L * 1024 * 1024;
+    private int logFileCount = 5;
+    private RateLimitAction rateLimitAction = RateLimitAction.THROTTLE;
+    private double rateChat = 5;
+    private int rateChatBurst = 20;
+    private double ratePrivate = 10;
+    private int ratePrivateBurst = 20;
+    private double rateLogin = 0.2;
+    private int rateLoginBurst = 5;
+    private long rateMaxDelayMillis = 2000;
+    private long muteSeconds = 30;
+    private double fanOutBudget = 1_000_000;
+    private long pingIntervalMillis = 30_000;
+    private long idleTimeoutMillis = 90_000;
+    private long writeTimeoutMillis = 60_000;
+    private long resumeGraceMillis = 30_000;
+    private int resumeBuffer = 256;
+    private String resumeDir;
+    private int transferPort = 0;
+    private String transferDir;
+    private long transferMaxBytes = 64L * 1024 * 1024;
+    private long transferSpoolBytes = 1024L * 1024 * 1024;
+    private int transferChunkBytes = 256 * 1024;
+    private int transferConnections = 16;
+    private long transferTtlMillis = 60L * 60 * 1000;
+    private boolean tls = false;
+    private String tlsKeystore = "tls/server.p12";
+    private String tlsKeystorePassword = "";
+    private List<String> tlsProtocols = List.of("TLSv1.3", "TLSv1.2");
+    private boolean tlsSessionTickets = true;
+    private int tlsSessionCache = 20_000;
+    private int tlsSessionTimeoutSeconds = 24 * 60 * 60;
+    private int tlsHandshakeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int tlsHandshakeQueueCapacity = 256;
+    private long tlsHandshakeTimeoutMillis = 10_000;
+
+    public ServerConfig() {
+    }
+
+    public ServerConfig(int port) {
+        this.port = port;
+    }
+
+    // Accepts --port=8888 --mode=nio --io-threads=4 --overflow-policy=disconnect style arguments
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Unrecognised argument: " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (key) {
+                case "port" -> config.port = Integer.parseInt(value);
+                case "mode" -> config.mode = ServerMode.parse(value);
+                case "io-threads" -> config.ioThreads = Integer.parseInt(value);
+                case "demo-users" -> config.demoUsers = Integer.parseInt(value);
+                case "queue-capacity" -> config.queueCapacity = Integer.parseInt(value);
+                case "overflow-policy" -> config.overflowPolicy = OverflowPolicy.parse(value);
+                case "block-timeout-ms" -> config.blockTimeoutMillis = Long.parseLong(value);
+                case "presence-interval-ms" -> config.presenceIntervalMillis = Long.parseLong(value);
+                case "user-store" -> config.userStore = value.trim().toLowerCase();
+                case "jdbc-url" -> config.jdbcUrl = value;
+                case "jdbc-user" -> config.jdbcUser = value;
+                case "jdbc-password" -> config.jdbcPassword = value;
+                case "jdbc-pool-size" -> config.jdbcPoolSize = Integer.parseInt(value);
+                case "jdbc-init" -> config.jdbcInit = Boolean.parseBoolean(value);
+                case "user-cache-ttl-ms" -> config.userCacheTtlMillis = Long.parseLong(value);
+                case "hash-iterations" -> config.hashIterations = Integer.parseInt(value);
+                case "auth-threads" -> config.authThreads = Integer.parseInt(value);
+                case "auth-queue" -> config.authQueueCapacity = Integer.parseInt(value);
+                case "log-dir" -> config.logDir = value;
+                case "log-segment-bytes" -> config.logSegmentBytes = Integer.parseInt(value);
+                case "log-flush-ms" -> config.logFlushMillis = Long.parseLong(value);
+                case "log-retention-bytes" -> config.logRetentionBytes = Long.parseLong(value);
+                case "log-retention-ms" -> config.logRetentionMillis = Long.parseLong(value);
+                case "replay-count" -> config.replayCount = Integer.parseInt(value);
+                case "replay-max" -> config.replayMax = Integer.parseInt(value);
+                case "history-page-max" -> config.historyPageMax = Integer.parseInt(value);
+                case "inbox-dir" -> config.inboxDir = value;
+                case "inbox-capacity" -> config.inboxCapacity = Integer.parseInt(value);
+                case "inbox-batch" -> config.inboxBatch = Integer.parseInt(value);
+                case "inbox-batch-bytes" -> config.inboxBatchBytes = Integer.parseInt(value);
+                case "node-id" -> config.nodeId = value;
+                case "cluster-port" -> config.clusterPort = Integer.parseInt(value);
+                case "cluster-bind" -> config.clusterBind = value;
+                case "cluster-secret" -> config.clusterSecret = value;
+                case "peers" -> config.peers = Arrays.stream(value.split(",")).map(String::trim).filter(peer -> !peer.isEmpty()).toList();
+                case "metrics-port" -> config.metricsPort = Integer.parseInt(value);
+                case "metrics-bind" -> config.metricsBind = value;
+                case "compression" -> config.compression = Boolean.parseBoolean(value);
+                case "compression-level" -> config.compressionLevel = Integer.parseInt(value);
+                case "compression-min-bytes" -> config.compressionMinBytes = Integer.parseInt(value);
+                case "compression-contexts" -> config.compressionContexts = Integer.parseInt(value);
+                case "log-level" -> config.logLevel = Level.parse(value);
+                case "log-console" -> config.logConsole = Boolean.parseBoolean(value);
+                case "log-file" -> config.logFile = value;
+                case "log-file-bytes" -> config.logFileBytes = Long.parseLong(value);
+                case "log-file-count" -> config.logFileCount = Integer.parseInt(value);
+                case "rate-limit-action" -> config.rateLimitAction = RateLimitAction.parse(value);
+                case "rate-chat" -> config.rateChat = Double.parseDouble(value);
+                case "rate-chat-burst" -> config.rateChatBurst = Integer.parseInt(value);
+                case "rate-private" -> config.ratePrivate = Double.parseDouble(value);
+                case "rate-private-burst" -> config.ratePrivateBurst = Integer.parseInt(value);
+                case "rate-login" -> config.rateLogin = Double.parseDouble(value);
+                case "rate-login-burst" -> config.rateLoginBurst = Integer.parseInt(value);
+                case "rate-max-delay-ms" -> config.rateMaxDelayMillis = Long.parseLong(value);
+                case "mute-seconds" -> config.muteSeconds = Long.parseLong(value);
+                case "fanout-budget" -> config.fanOutBudget = Double.parseDouble(value);
+                case "ping-interval-ms" -> config.pingIntervalMillis = Long.parseLong(value);
+                case "idle-timeout-ms" -> config.idleTimeoutMillis = Long.parseLong(value);
+                case "write-timeout-ms" -> config.writeTimeoutMillis = Long.parseLong(value);
+                case "resume-grace-ms" -> config.resumeGraceMillis = Long.parseLong(value);
+                case "resume-buffer" -> config.resumeBuffer = Integer.parseInt(value);
+                case "resume-dir" -> config.resumeDir = value;
+                case "transfer-port" -> config.transferPort = Integer.parseInt(value);
+                case "transfer-dir" -> config.transferDir = value;
+                case "transfer-max-bytes" -> config.transferMaxBytes = Long.parseLong(value);
+                case "transfer-spool-bytes" -> config.transferSpoolBytes = Long.parseLong(value);
+                case "transfer-chunk-bytes" -> config.transferChunkBytes = Integer.parseInt(value);
+                case "transfer-connections" -> config.transferConnections = Integer.parseInt(value);
+                case "transfer-ttl-ms" -> config.transferTtlMillis = Long.parseLong(value);
+                case "tls" -> config.tls = Boolean.parseBoolean(value);
+                case "tls-keystore" -> config.tlsKeystore = value;
+                case "tls-keystore-password" -> config.tlsKeystorePassword = value;
+                case "tls-protocols" -> config.tlsProtocols = Arrays.stream(value.split(",")).map(String::trim).filter(protocol -> !protocol.isEmpty()).toList();
+                case "tls-session-tickets" -> config.tlsSessionTickets = Boolean.parseBoolean(value);
+                case "tls-session-cache" -> config.tlsSessionCache = Integer.parseInt(value);
+                case "tls-session-timeout-s" -> config.tlsSessionTimeoutSeconds = Integer.parseInt(value);
+                case "tls-handshake-threads" -> config.tlsHandshakeThreads = Integer.parseInt(value);
+                case "tls-handshake-queue" -> config.tlsHandshakeQueueCapacity = Integer.parseInt(value);
+                case "tls-handshake-timeout-ms" -> config.tlsHandshakeTimeoutMillis = Long.parseLong(value);
+                default -> throw new IllegalArgumentException("Unknown option: --" + key);
+            }
+        }
+        if (config.ioThreads < 1) {
+            throw new IllegalArgumentException("--io-threads must be at least 1");
+        }
+        if (!config.userStore.equals("memory") && !config.userStore.equals("jdbc")) {
+            throw new IllegalArgumentException("--user-store must be memory or jdbc");
+        }
+        if (config.jdbcPoolSize < 1) {
+            throw new IllegalArgumentException("--jdbc-pool-size must be at least 1");
+        }
+        if (config.queueCapacity < 1) {
+            throw new IllegalArgumentException("--queue-capacity must be at least 1");
+        }
+        if (config.hashIterations < 1) {
+            throw new IllegalArgumentException("--hash-iterations must be at least 1");
+        }
+        if (config.authThreads < 1 || config.authQueueCapacity < 1) {
+            throw new IllegalArgumentException("--auth-threads and --auth-queue must be at least 1");
+        }
+        if (config.inboxCapacity < 1 || config.inboxBatch < 1 || config.inboxBatchBytes < 1) {
+            throw new IllegalArgumentException("--inbox-capacity, --inbox-batch and --inbox-batch-bytes must be at least 1");
+        }
+        if (config.clusterPort > 0 && config.clusterSecret.isEmpty()) {
+            throw new IllegalArgumentException("--cluster-secret is required with --cluster-port");
+        }
+        for (String peer : config.peers) {
+            if (peer.lastIndexOf(':') <= 0) {
+                throw new IllegalArgumentException("--peers entries must be host:cluster-port, got " + peer);
+            }
+        }
+        if (config.historyPageMax < 1) {
+            throw new IllegalArgumentException("--history-page-max must be at least 1");
+        }
+        if (config.logSegmentBytes < 64 * 1024) {
+            throw new IllegalArgumentException("--log-segment-bytes must be at least 65536");
+        }
+        if (config.compressionLevel < 1 || config.compressionLevel > 9) {
+            throw new IllegalArgumentException("--compression-level must be between 1 and 9");
+        }
+        if (config.compressionContexts < 1) {
+            throw new IllegalArgumentException("--compression-contexts must be at least 1");
+        }
+        if (config.logFileBytes < 1024 || config.logFileCount < 1) {
+            throw new IllegalArgumentException("--log-file-bytes must be at least 1024 and --log-file-count at least 1");
+        }
+        if (config.rateChatBurst < 1 || config.ratePrivateBurst < 1 || config.rateLoginBurst < 1) {
+            throw new IllegalArgumentException("--rate-chat-burst, --rate-private-burst and --rate-login-burst must be at least 1");
+        }
+        if (config.rateMaxDelayMillis < 0 || config.muteSeconds < 0) {
+            throw new IllegalArgumentException("--rate-max-delay-ms and --mute-seconds must not be negative");
+        }
+        if (config.pingIntervalMillis > 0 && (config.idleTimeoutMillis <= config.pingIntervalMillis || config.writeTimeoutMillis < 1)) {
+            throw new IllegalArgumentException("--idle-timeout-ms must be longer than --ping-interval-ms, and --write-timeout-ms at least 1");
+        }
+        if (config.resumeGraceMillis < 0 || config.resumeBuffer < 1) {
+            throw new IllegalArgumentException("--resume-grace-ms must not be negative and --resume-buffer must be at least 1");
+        }
+        if (config.transferPort < 0 || (config.transferPort > 0
+                && (config.transferPort == config.port || config.transferPort == config.clusterPort
+                || config.transferPort == config.metricsPort))) {
+            throw new IllegalArgumentException("--transfer-port must not be negative or shared with another listener");
+        }
+        if (config.transferChunkBytes < 4096 || config.transferChunkBytes > 16 * 1024 * 1024) {
+            throw new IllegalArgumentException("--transfer-chunk-bytes must be between 4096 and 16777216");
+        }
+        if (config.transferMaxBytes < 1 || config.transferSpoolBytes < config.transferMaxBytes) {
+            throw new IllegalArgumentException("--transfer-max-bytes must be at least 1 and --transfer-spool-bytes at least as much");
+        }
+        if (config.transferConnections < 1 || config.transferTtlMillis < 1) {
+            throw new IllegalArgumentException("--transfer-connections and --transfer-ttl-ms must be at least 1");
+        }
+        if (config.tls && config.mode == ServerMode.NIO) {
+            throw new IllegalArgumentException("--tls is only supported with --mode=threaded or --mode=virtual");
+        }
+        if (config.tlsProtocols.isEmpty() || config.tlsSessionCache < 0 || config.tlsSessionTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("--tls-protocols must not be empty, and --tls-session-cache and --tls-session-timeout-s must not be negative");
+        }
+        if (config.tlsHandshakeThreads < 1 || config.tlsHandshakeQueueCapacity < 1 || config.tlsHandshakeTimeoutMillis < 1) {
+            throw new IllegalArgumentException("--tls-handshake-threads, --tls-handshake-queue and --tls-handshake-timeout-ms must be at least 1");
+        }
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    // Number of extra user0..userN-1 accounts (password "password123") for load testing
+    public int getDemoUsers() {
+        return demoUsers;
+    }
+
+    // Maximum number of messages waiting to be written to one client
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+    // How long presence changes are coalesced before one delta goes out; 0 sends each change at once
+    public long getPresenceIntervalMillis() {
+        return presenceIntervalMillis;
+    }
+
+    // "memory" for the built-in demo accounts, "jdbc" for the users table
+    public String getUserStore() {
+        return userStore;
+    }
+
+    public String getJdbcUrl() {
+        return jdbcUrl;
+    }
+
+    public String getJdbcUser() {
+        return jdbcUser;
+    }
+
+    public String getJdbcPassword() {
+        return jdbcPassword;
+    }
+
+    public int getJdbcPoolSize() {
+        return jdbcPoolSize;
+    }
+
+    // Create the users table and seed the demo accounts; meant for embedded test databases
+    public boolean isJdbcInit() {
+        return jdbcInit;
+    }
+
+    public long getUserCacheTtlMillis() {
+        return userCacheTtlMillis;
+    }
+
+    // PBKDF2 work factor for newly hashed passwords; existing hashes keep their own
+    public int getHashIterations() {
+        return hashIterations;
+    }
+
+    public int getAuthThreads() {
+        return authThreads;
+    }
+
+    // Logins allowed to wait for an auth thread before new ones are told to retry later
+    public int getAuthQueueCapacity() {
+        return authQueueCapacity;
+    }
+
+    // Where the message log lives; empty disables it
+    public String getLogDir() {
+        return logDir != null ? logDir : dataDir("messages");
+    }
+
+    // Default home of a data directory; a cluster node gets its own, so several can share a host
+    private String dataDir(String name) {
+        return clusterPort > 0 ? "data/" + getNodeId() + "/" + name : "data/" + name;
+    }
+
+    public int getLogSegmentBytes() {
+        return logSegmentBytes;
+    }
+
+    // How often appended messages are forced to disk; 0 forces after every message
+    public long getLogFlushMillis() {
+        return logFlushMillis;
+    }
+
+    // Oldest segments are deleted past this total size or age; 0 disables either limit
+    public long getLogRetentionBytes() {
+        return logRetentionBytes;
+    }
+
+    public long getLogRetentionMillis() {
+        return logRetentionMillis;
+    }
+
+    // Messages replayed to a client that logs in without a sequence to resume from
+    public int getReplayCount() {
+        return replayCount;
+    }
+
+    // Upper bound on any replay, whatever sequence the client resumes from
+    public int getReplayMax() {
+        return replayMax;
+    }
+
+    // Largest page a HISTORY request is answered with, whatever the client asks for
+    public int getHistoryPageMax() {
+        return historyPageMax;
+    }
+
+    // Where private messages to offline users wait; empty disables store-and-forward
+    public String getInboxDir() {
+        return inboxDir != null ? inboxDir : dataDir("inbox");
+    }
+
+    // Most messages one offline user can have waiting; further ones are refused
+    public int getInboxCapacity() {
+        return inboxCapacity;
+    }
+
+    // Offline messages sent per burst, and the byte budget of one burst
+    public int getInboxBatch() {
+        return inboxBatch;
+    }
+
+    public int getInboxBatchBytes() {
+        return inboxBatchBytes;
+    }
+
+    // Name of this node in the cluster; defaults to one derived from the port
+    public String getNodeId() {
+        return nodeId != null ? nodeId : "node-" + port;
+    }
+
+    // Port peers connect to for relaying; 0 runs a standalone server
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    // Loopback by default; a cluster spanning hosts has to name the interface its peers reach
+    public String getClusterBind() {
+        return clusterBind;
+    }
+
+    // Shared by every node; a link is only accepted from a node that proves it knows it
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    // Cluster ports of the other nodes, as host:port
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    // HTTP port serving Prometheus text at /metrics; 0 leaves only JMX
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    // Loopback by default, so metrics are not exposed beyond this host unless asked for
+    public String getMetricsBind() {
+        return metricsBind;
+    }
+
+    // Offer DEFLATE to binary clients that ask for it in the handshake
+    public boolean isCompression() {
+        return compression;
+    }
+
+    // 1 is fastest; chat text compresses well even there
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    // Batches of frames smaller than this are sent uncompressed
+    public int getCompressionMinBytes() {
+        return compressionMinBytes;
+    }
+
+    // Each context holds about 256KB of native memory; clients beyond this many are not offered compression
+    public int getCompressionContexts() {
+        return compressionContexts;
+    }
+
+    public Level getLogLevel() {
+        return logLevel;
+    }
+
+    // Whether server log lines also go to stdout/stderr
+    public boolean isLogConsole() {
+        return logConsole;
+    }
+
+    // Rolling server log file, not to be confused with the message log in --log-dir; empty logs to the console only
+    public String getLogFile() {
+        return logFile;
+    }
+
+    // Size at which the server log rolls over to .1, .2, ...
+    public long getLogFileBytes() {
+        return logFileBytes;
+    }
+
+    // Number of server log files kept, the live one included
+    public int getLogFileCount() {
+        return logFileCount;
+    }
+
+    // What a client that exceeds a rate limit gets: throttle, drop or mute
+    public RateLimitAction getRateLimitAction() {
+        return rateLimitAction;
+    }
+
+    // Broadcasts and room messages one client may send per second, and how many in a burst; 0 for no limit
+    public double getRateChat() {
+        return rateChat;
+    }
+
+    public int getRateChatBurst() {
+        return rateChatBurst;
+    }
+
+    // Private messages one client may send per second, and how many in a burst; 0 for no limit
+    public double getRatePrivate() {
+        return ratePrivate;
+    }
+
+    public int getRatePrivateBurst() {
+        return ratePrivateBurst;
+    }
+
+    // Login attempts per second on one connection, after the first few; 0 for no limit
+    public double getRateLogin() {
+        return rateLogin;
+    }
+
+    public int getRateLoginBurst() {
+        return rateLoginBurst;
+    }
+
+    // Longest a throttled client's reads are paused; messages that would need longer are dropped
+    public long getRateMaxDelayMillis() {
+        return rateMaxDelayMillis;
+    }
+
+    // How long --rate-limit-action=mute silences a client
+    public long getMuteSeconds() {
+        return muteSeconds;
+    }
+
+    // Broadcast and room deliveries per second across all clients; private messages never wait on it. 0 for no limit
+    public double getFanOutBudget() {
+        return fanOutBudget;
+    }
+
+    // A client that agreed to heartbeats and is silent for this long is sent a PING; 0 turns heartbeats and reaping off
+    public long getPingIntervalMillis() {
+        return pingIntervalMillis;
+    }
+
+    // A heartbeat client silent for this long, PINGs unanswered, is disconnected; so is any connection yet to log in
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    // A client whose pending writes make no progress for this long is disconnected
+    public long getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    // How long a dropped client's session waits for it to resume; 0 ends sessions as soon as the connection drops
+    public long getResumeGraceMillis() {
+        return resumeGraceMillis;
+    }
+
+    // Frames each resumable session keeps after writing them, in case its client did not get them
+    public int getResumeBuffer() {
+        return resumeBuffer;
+    }
+
+    // Where sessions are saved at shutdown, to be resumed after the restart; empty to not save them
+    public String getResumeDir() {
+        return resumeDir != null ? resumeDir : dataDir("sessions");
+    }
+
+    // Port files are uploaded and downloaded on, away from chat; 0, the default, disables file transfer
+    public int getTransferPort() {
+        return transferPort;
+    }
+
+    // Where files wait between upload and download; emptied at startup, so by default one per transfer port
+    public String getTransferDir() {
+        return transferDir != null ? transferDir : "data/files-" + transferPort;
+    }
+
+    // Largest file one offer may send
+    public long getTransferMaxBytes() {
+        return transferMaxBytes;
+    }
+
+    // Total size of the files waiting at once; offers past it are refused until some are collected or expire
+    public long getTransferSpoolBytes() {
+        return transferSpoolBytes;
+    }
+
+    // Unit of checksumming and of resuming a dropped transfer
+    public int getTransferChunkBytes() {
+        return transferChunkBytes;
+    }
+
+    // Uploads and downloads in progress at once, each on a thread of its own
+    public int getTransferConnections() {
+        return transferConnections;
+    }
+
+    // How long a file is kept for its recipient to download
+    public long getTransferTtlMillis() {
+        return transferTtlMillis;
+    }
+
+    // Clients connect over TLS, on the chat port and the transfer port alike
+    public boolean isTls() {
+        return tls;
+    }
+
+    // PKCS12 file holding the server's key and certificate chain
+    public String getTlsKeystore() {
+        return tlsKeystore;
+    }
+
+    public String getTlsKeystorePassword() {
+        return tlsKeystorePassword;
+    }
+
+    public List<String> getTlsProtocols() {
+        return tlsProtocols;
+    }
+
+    // Resume with tickets the client keeps; when off, sessions are kept in the server's own cache instead
+    public boolean isTlsSessionTickets() {
+        return tlsSessionTickets;
+    }
+
+    // Sessions the server-side cache holds; 0 means no limit
+    public int getTlsSessionCache() {
+        return tlsSessionCache;
+    }
+
+    // How long a session, cached or ticketed, may be resumed for; 0 means no limit
+    public int getTlsSessionTimeoutSeconds() {
+        return tlsSessionTimeoutSeconds;
+    }
+
+    // Threads doing TLS handshakes, away from the threads that handle messages
+    public int getTlsHandshakeThreads() {
+        return tlsHandshakeThreads;
+    }
+
+    // Connections that may wait for a handshake thread before new ones are turned away
+    public int getTlsHandshakeQueueCapacity() {
+        return tlsHandshakeQueueCapacity;
+    }
+
+    // A connection that has not finished its handshake by then is closed
+    public long getTlsHandshakeTimeoutMillis() {
+        return tlsHandshakeTimeoutMillis;
+    }
+}
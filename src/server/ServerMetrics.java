@@ -0,0 +1,247 @@
+package server;
+
+import client.Message;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters updated on the server's hot paths. Everything is a
+ * {@link LongAdder}: an update is one uncontended add on a per-thread cell,
+ * and the cost of summing the cells is paid by whoever reads the metrics.
+ * Fan-out loops add their recipient count once per message rather than
+ * once per recipient.
+ *
+ * Gauges such as session counts and queue backlogs are not kept here;
+ * {@link MetricsExporter} reads them from their owners when asked.
+ */
+final class ServerMetrics {
+    private static final Message.Type[] TYPES = Message.Type.values();
+
+    private final LongAdder[] received = adders(TYPES.length);
+    private final LongAdder[] sent = adders(TYPES.length);
+    private final LongAdder[] rateLimited = adders(TYPES.length);
+    private final LongAdder mutes = new LongAdder();
+    private final LongAdder readThrottleNanos = new LongAdder();
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder reaped = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder resumeFailures = new LongAdder();
+    private final LongAdder sessionsExpired = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder filesUploaded = new LongAdder();
+    private final LongAdder filesDownloaded = new LongAdder();
+    private final LongAdder transferBytesReceived = new LongAdder();
+    private final LongAdder transferBytesSent = new LongAdder();
+    private final LongAdder transfersRefused = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder compressionInput = new LongAdder();
+    private final LongAdder compressionOutput = new LongAdder();
+    private final DurationHistogram broadcastFanOut = new DurationHistogram();
+    private final DurationHistogram login = new DurationHistogram();
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    void received(Message.Type type) {
+        received[type.ordinal()].increment();
+    }
+
+    void sent(Message.Type type, int recipients) {
+        if (recipients > 0) {
+            sent[type.ordinal()].add(recipients);
+        }
+    }
+
+    // A message dropped by its sender's rate limits or the fan-out budget
+    void rateLimited(Message.Type type) {
+        rateLimited[type.ordinal()].increment();
+    }
+
+    void muted() {
+        mutes.increment();
+    }
+
+    // Time a throttled client's reads were paused for
+    void readThrottled(long nanos) {
+        readThrottleNanos.add(nanos);
+    }
+
+    // A heartbeat PING to a silent client
+    void pinged() {
+        pings.increment();
+    }
+
+    // A session disconnected for being idle or not draining its writes
+    void reaped() {
+        reaped.increment();
+    }
+
+    // A detached session taken over by its reconnecting client
+    void resumed() {
+        resumed.increment();
+    }
+
+    // A RESUME that found no session, or one that no longer had what the client missed
+    void resumeFailed() {
+        resumeFailures.increment();
+    }
+
+    // A detached session whose grace period ran out
+    void sessionExpired() {
+        sessionsExpired.increment();
+    }
+
+    // Frames sent from the message log when a client logs in or resumes
+    void replayed() {
+        replayed.increment();
+    }
+
+    void replayed(int frames) {
+        replayed.add(frames);
+    }
+
+    // A file whose last chunk is in and whose checksum matched its offer
+    void fileUploaded() {
+        filesUploaded.increment();
+    }
+
+    // A file its recipient confirmed getting intact
+    void fileDownloaded() {
+        filesDownloaded.increment();
+    }
+
+    // File bytes on the transfer port, counted apart from chat traffic
+    void transferReceived(long bytes) {
+        transferBytesReceived.add(bytes);
+    }
+
+    void transferSent(long bytes) {
+        transferBytesSent.add(bytes);
+    }
+
+    // A transfer connection turned away because every slot was taken
+    void transferRefused() {
+        transfersRefused.increment();
+    }
+
+    void bytesRead(int bytes) {
+        bytesRead.add(bytes);
+    }
+
+    void bytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    // One deflated chunk: frame bytes in, chunk bytes out
+    void compressed(int inputBytes, int outputBytes) {
+        compressionInput.add(inputBytes);
+        compressionOutput.add(outputBytes);
+    }
+
+    void broadcastFannedOut(long nanos) {
+        broadcastFanOut.record(nanos);
+    }
+
+    // From LOGIN received to the answer, including the wait for the auth pool
+    void loginCompleted(long nanos) {
+        login.record(nanos);
+    }
+
+    static Message.Type[] types() {
+        return TYPES;
+    }
+
+    long getReceived(Message.Type type) {
+        return received[type.ordinal()].sum();
+    }
+
+    long getSent(Message.Type type) {
+        return sent[type.ordinal()].sum();
+    }
+
+    long getRateLimited(Message.Type type) {
+        return rateLimited[type.ordinal()].sum();
+    }
+
+    long getMutes() {
+        return mutes.sum();
+    }
+
+    long getReadThrottleNanos() {
+        return readThrottleNanos.sum();
+    }
+
+    long getPings() {
+        return pings.sum();
+    }
+
+    long getReaped() {
+        return reaped.sum();
+    }
+
+    long getResumed() {
+        return resumed.sum();
+    }
+
+    long getResumeFailures() {
+        return resumeFailures.sum();
+    }
+
+    long getSessionsExpired() {
+        return sessionsExpired.sum();
+    }
+
+    long getReplayed() {
+        return replayed.sum();
+    }
+
+    long getFilesUploaded() {
+        return filesUploaded.sum();
+    }
+
+    long getFilesDownloaded() {
+        return filesDownloaded.sum();
+    }
+
+    long getTransferBytesReceived() {
+        return transferBytesReceived.sum();
+    }
+
+    long getTransferBytesSent() {
+        return transferBytesSent.sum();
+    }
+
+    long getTransfersRefused() {
+        return transfersRefused.sum();
+    }
+
+    long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    long getCompressionInput() {
+        return compressionInput.sum();
+    }
+
+    long getCompressionOutput() {
+        return compressionOutput.sum();
+    }
+
+    DurationHistogram getBroadcastFanOut() {
+        return broadcastFanOut;
+    }
+
+    DurationHistogram getLogin() {
+        return login;
+    }
+}
@@ -0,0 +1,72 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * Server metrics as seen in JConsole or any JMX client, under
+ * {@code flicktalk:type=ChatServer,port=<port>}. Counters only ever grow;
+ * per-second rates are the difference between two reads.
+ */
+public interface ServerMetricsMXBean {
+    int getConnectedSessions();
+
+    int getLoggedInSessions();
+
+    // Message type name to count
+    Map<String, Long> getMessagesReceived();
+
+    Map<String, Long> getMessagesSent();
+
+    // Message type name to messages dropped for exceeding a rate limit
+    Map<String, Long> getRateLimited();
+
+    long getMutes();
+
+    // Sessions disconnected by heartbeats: silent past the idle timeout, or writes stuck past the write timeout
+    long getSessionsReaped();
+
+    // Logged-in sessions whose connection dropped, held for their client to resume
+    int getDetachedSessions();
+
+    long getSessionsResumed();
+
+    long getMessagesReplayed();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    // Frame bytes per deflated byte on compressed connections; 0 before any
+    double getCompressionRatio();
+
+    long getBroadcasts();
+
+    double getBroadcastFanOutMeanMicros();
+
+    double getBroadcastFanOutMaxMicros();
+
+    long getLogins();
+
+    double getLoginMeanMillis();
+
+    double getLoginMaxMillis();
+
+    // Messages queued for logged-in clients but not yet written
+    long getOutboundBacklog();
+
+    int getMaxOutboundBacklog();
+
+    long getOutboundDropped();
+
+    long getAuthAccepted();
+
+    long getAuthRejected();
+
+    long getAuthBusy();
+
+    int getAuthQueueDepth();
+
+    long getClusterRelayDropped();
+
+    long getLogDropped();
+}
@@ -0,0 +1,14 @@
+package server;
+
+public enum ServerMode {
+    // Platform reader and writer threads per connection, blocking I/O (the original model)
+    THREADED,
+    // Same blocking code on virtual threads; no native stack per client
+    VIRTUAL,
+    // Fixed set of selector event loops over non-blocking channels
+    NIO;
+
+    public static ServerMode parse(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+}
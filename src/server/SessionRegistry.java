@@ -0,0 +1,83 @@
+package server;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * All sessions known to the server.
+ *
+ * Logged-in sessions are indexed by username for O(1) private delivery and
+ * kept in a copy-on-write list so broadcasts iterate a stable snapshot
+ * without locking. The username index is the single source of truth for
+ * who is online: a login only succeeds if it claims the name atomically,
+ * and a logout only releases the name if the same session still owns it.
+ */
+class SessionRegistry {
+    private final Set<ClientHandler> connected = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, ClientHandler> byUsername = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<ClientHandler> online = new CopyOnWriteArrayList<>();
+
+    void add(ClientHandler session) {
+        connected.add(session);
+    }
+
+    /**
+     * Claims the username for this session. Returns false if another live
+     * session is already logged in under the same name.
+     */
+    boolean login(ClientHandler session, String username) {
+        if (byUsername.putIfAbsent(username, session) != null) {
+            return false;
+        }
+        online.add(session);
+        return true;
+    }
+
+    /**
+     * Forgets the session. Returns true if it was logged in, i.e. the caller
+     * should announce that the user left.
+     */
+    boolean remove(ClientHandler session) {
+        connected.remove(session);
+        String username = session.getUsername();
+        if (username != null && byUsername.remove(username, session)) {
+            online.remove(session);
+            return true;
+        }
+        return false;
+    }
+
+    // Hands a resumed session's name and place in the online list to its new connection
+    void replace(ClientHandler old, ClientHandler session) {
+        connected.remove(old);
+        if (byUsername.replace(session.getUsername(), old, session)) {
+            online.replaceAll(current -> current == old ? session : current);
+        }
+    }
+
+    ClientHandler find(String username) {
+        return byUsername.get(username);
+    }
+
+    // Stable snapshot; safe to iterate while sessions come and go
+    List<ClientHandler> online() {
+        return online;
+    }
+
+    // Logged-in sessions whose connection dropped, waiting to be resumed
+    int detachedCount() {
+        int detached = 0;
+        for (ClientHandler session : online) {
+            if (session.isDetached()) {
+                detached++;
+            }
+        }
+        return detached;
+    }
+
+    int connectedCount() {
+        return connected.size();
+    }
+}
@@ -0,0 +1,152 @@
+package server;
+
+import logging.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Blocking channel transport. A dedicated writer thread (virtual in virtual
+ * mode) drains the outbound queue, so senders never wait on this client's
+ * TCP window. Only the writer thread touches the channel for writing, so no
+ * monitor is held around socket I/O and virtual threads never pin their carrier.
+ */
+class SocketConnection implements Connection {
+    private static final Logger LOG = Logger.get(SocketConnection.class);
+    private static final int MAX_GATHER = 64;
+
+    // The socket itself, or TLS on top of it
+    private final GatheringByteChannel channel;
+    private final OutboundQueue outbound;
+    private final String remoteAddress;
+    private final Thread writerThread;
+    private final ServerMetrics metrics;
+    private volatile boolean closed = false;
+    // Compression starts after the handshake reply goes out; the compressor is the writer thread's from then on
+    private volatile ByteBuffer compressAfter;
+    // Whichever thread takes it out of here gives it back, so it is released exactly once
+    private final AtomicReference<FrameCompressor> pendingCompressor = new AtomicReference<>();
+    private FrameCompressor compressor;
+    private volatile long writeWaitingSince;
+
+    SocketConnection(SocketChannel socket, GatheringByteChannel channel, OutboundQueue outbound, ThreadFactory threadFactory,
+                     ServerMetrics metrics) {
+        this.channel = channel;
+        this.outbound = outbound;
+        this.metrics = metrics;
+        this.remoteAddress = socket.socket().getInetAddress().getHostAddress();
+        writerThread = threadFactory.newThread(this::writeLoop);
+        writerThread.start();
+    }
+
+    @Override
+    public boolean send(ByteBuffer frame) {
+        return !closed && outbound.offer(frame.duplicate(), true);
+    }
+
+    @Override
+    public boolean sendThenCompress(ByteBuffer frame, FrameCompressor compressor) {
+        if (closed) {
+            compressor.release();
+            return false;
+        }
+        ByteBuffer queued = frame.duplicate();
+        pendingCompressor.set(compressor);
+        compressAfter = queued;
+        if (closed) {
+            // The writer may have finished before it could see the compressor
+            if (pendingCompressor.compareAndSet(compressor, null)) {
+                compressor.release();
+            }
+            return false;
+        }
+        return outbound.offer(queued, true);
+    }
+
+    // Sends everything already queued in one gathering write per burst
+    private void writeLoop() {
+        // One spare slot for the header of an uncompressed chunk
+        ByteBuffer[] gather = new ByteBuffer[MAX_GATHER + 1];
+        try {
+            while (!closed) {
+                gather[0] = outbound.take();
+                int count = 1;
+                ByteBuffer frame;
+                // The frames after the handshake reply are compressed, in the next batch
+                while (gather[count - 1] != compressAfter && count < MAX_GATHER && (frame = outbound.poll()) != null) {
+                    gather[count++] = frame;
+                }
+                if (compressor != null) {
+                    count = compressor.compress(gather, 0, count);
+                } else if (gather[count - 1] == compressAfter) {
+                    compressor = pendingCompressor.getAndSet(null);
+                }
+                int start = 0;
+                writeWaitingSince = System.nanoTime();
+                while (start < count) {
+                    long written = channel.write(gather, start, count - start);
+                    metrics.bytesWritten(written);
+                    if (written > 0) {
+                        writeWaitingSince = System.nanoTime();
+                    }
+                    while (start < count && !gather[start].hasRemaining()) {
+                        gather[start++] = null;
+                    }
+                }
+                writeWaitingSince = 0;
+            }
+        } catch (InterruptedException e) {
+            // close() stops the writer
+        } catch (IOException e) {
+            if (!closed) {
+                // The reader side notices the closed channel and runs the disconnect path
+                LOG.warn("Error sending to {}: {}", remoteAddress, e.getMessage());
+                close();
+            }
+        } finally {
+            // Only this thread ever used it, so only this thread may give it back
+            if (compressor != null) {
+                compressor.release();
+            }
+            FrameCompressor pending = pendingCompressor.getAndSet(null);
+            if (pending != null) {
+                pending.release();
+            }
+        }
+    }
+
+    @Override
+    public void flushQueued() {
+        // The writer thread is already waiting on the queue
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        writerThread.interrupt();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing client socket: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public long getWriteWaitingSince() {
+        return writeWaitingSince;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+}
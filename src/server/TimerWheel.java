@@ -0,0 +1,164 @@
+package server;
+
+import logging.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel: a ring of buckets, one per tick, each a linked list
+ * of timeouts. Scheduling drops a timeout into the bucket its deadline
+ * hashes to, with a count of whole turns to wait; every tick one bucket is
+ * walked. Adding, cancelling and expiring are all O(1), and tens of
+ * thousands of sessions cost one thread and one timeout object each rather
+ * than a task per session in a scheduled executor.
+ *
+ * Deadlines are only as precise as the tick. Tasks run on the wheel's
+ * thread and must be short; anything slow should be handed off.
+ */
+final class TimerWheel {
+    private static final Logger LOG = Logger.get(TimerWheel.class);
+
+    /**
+     * A reusable timeout. It is armed again with {@link #schedule} rather
+     * than replaced, usually from its own task, so a session allocates one
+     * for its whole life.
+     */
+    static final class Timeout {
+        private final Runnable task;
+        private volatile boolean cancelled;
+        // Owned by the wheel thread
+        private long deadline;
+        private long rounds;
+        private int bucket = -1;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final Timeout[] buckets;
+    // Arming and cancelling from other threads goes through these; the wheel thread applies them each tick
+    private final Queue<Timeout> pendingSchedules = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> pendingCancels = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    private final Thread thread;
+    // The tick being walked, or about to be; wheel thread only
+    private long tick;
+
+    TimerWheel(String name, long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.mask = size - 1;
+        this.buckets = new Timeout[size];
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Timeout newTimeout(Runnable task) {
+        return new Timeout(task);
+    }
+
+    // Arms the timeout to run its task once delayNanos have passed; it must not already be armed
+    void schedule(Timeout timeout, long delayNanos) {
+        timeout.deadline = System.nanoTime() + Math.max(0, delayNanos);
+        if (Thread.currentThread() == thread) {
+            // From a task, so the current bucket is being walked
+            add(timeout, tick + 1);
+        } else {
+            pendingSchedules.add(timeout);
+        }
+    }
+
+    // Stops the timeout for good; safe from any thread, and more than once
+    void cancel(Timeout timeout) {
+        if (!timeout.cancelled) {
+            timeout.cancelled = true;
+            pendingCancels.add(timeout);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            long wait = startTime + (tick + 1) * tickNanos - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            Timeout timeout;
+            while ((timeout = pendingCancels.poll()) != null) {
+                unlink(timeout);
+            }
+            while ((timeout = pendingSchedules.poll()) != null) {
+                add(timeout, tick);
+            }
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    // firstTick is the earliest tick whose bucket is still to be walked; late timeouts go there
+    private void add(Timeout timeout, long firstTick) {
+        if (timeout.cancelled) {
+            return;
+        }
+        long due = Math.max((timeout.deadline - startTime + tickNanos - 1) / tickNanos, firstTick);
+        timeout.rounds = (due - firstTick) / buckets.length;
+        int index = (int) (due & mask);
+        // At the head, so a bucket being walked never meets what its own tasks add to it
+        timeout.bucket = index;
+        timeout.prev = null;
+        timeout.next = buckets[index];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[index] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.bucket < 0) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.bucket = -1;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    private void expire(int index) {
+        Timeout timeout = buckets[index];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                unlink(timeout);
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        LOG.warn("Error in timer task: {}", e);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package server;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TLS over a blocking {@link SocketChannel}, for the threaded and virtual
+ * modes. Reading and writing each have a lock of their own, so a client's
+ * reader and writer threads run side by side as they do on a plain
+ * channel. The locks are not monitors, so virtual threads blocked in
+ * socket I/O under them still unmount.
+ *
+ * Each write wraps as much of the gathered frames as fits in one record,
+ * so a burst of small messages shares a record and its overhead.
+ */
+final class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final ByteBuffer[] NOTHING = {ByteBuffer.allocate(0)};
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Records read from the socket and not yet unwrapped, in write mode; read lock
+    private ByteBuffer netIn;
+    // Unwrapped bytes not yet handed to read(), in write mode; read lock
+    private ByteBuffer appIn;
+    private boolean inputClosed;
+    // Records on their way to the socket, in write mode; write lock
+    private ByteBuffer netOut;
+
+    TlsChannel(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        this.netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        this.netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    }
+
+    /**
+     * Runs the whole handshake, blocking. Called before anything else
+     * touches the channel; delegated tasks, the certificate signature among
+     * them, run on the calling thread.
+     */
+    void handshake() throws IOException {
+        engine.beginHandshake();
+        HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+            SSLEngineResult result;
+            switch (status) {
+                case NEED_WRAP -> {
+                    writeLock.lock();
+                    try {
+                        result = wrap(NOTHING, 0, 1);
+                        // A flight is several records; they go out together once the engine wants to hear back
+                        if (result.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) {
+                            flush();
+                        }
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+                case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                    readLock.lock();
+                    try {
+                        result = unwrap();
+                    } finally {
+                        readLock.unlock();
+                    }
+                }
+                case NEED_TASK -> {
+                    runTasks();
+                    status = engine.getHandshakeStatus();
+                    continue;
+                }
+                default -> throw new SSLException("Unexpected handshake status " + status);
+            }
+            if (result == null || result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("Connection closed during the TLS handshake");
+            }
+            status = result.getHandshakeStatus();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        readLock.lock();
+        try {
+            while (appIn.position() == 0) {
+                if (inputClosed) {
+                    return -1;
+                }
+                SSLEngineResult result = unwrap();
+                if (result == null || result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    inputClosed = true;
+                } else {
+                    afterHandshakeMessage(result.getHandshakeStatus());
+                }
+            }
+            appIn.flip();
+            int length = Math.min(appIn.remaining(), dst.remaining());
+            dst.put(appIn.slice(appIn.position(), length));
+            appIn.position(appIn.position() + length).compact();
+            return length;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Unwraps one record into appIn, reading from the socket until a whole
+     * one is in. Null if the socket reached end of stream first. Read lock held.
+     */
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW -> {
+                    if (!netIn.hasRemaining()) {
+                        netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    if (channel.read(netIn) < 0) {
+                        return null;
+                    }
+                }
+                case BUFFER_OVERFLOW -> appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                default -> {
+                    return result;
+                }
+            }
+        }
+    }
+
+    // A KeyUpdate or similar after the handshake may want an answer; rare enough to take the write lock for
+    private void afterHandshakeMessage(HandshakeStatus status) throws IOException {
+        if (status == HandshakeStatus.NEED_TASK) {
+            runTasks();
+            status = engine.getHandshakeStatus();
+        }
+        if (status == HandshakeStatus.NEED_WRAP) {
+            writeLock.lock();
+            try {
+                wrap(NOTHING, 0, 1);
+                flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] {src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    // Blocks until every byte is wrapped and written
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            long consumed = 0;
+            while (hasRemaining(srcs, offset, length)) {
+                SSLEngineResult result = wrap(srcs, offset, length);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new ClosedChannelException();
+                }
+                consumed += result.bytesConsumed();
+                flush();
+            }
+            return consumed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Wraps what fits in one record, after any netOut already holds; write lock held
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws SSLException {
+        while (true) {
+            SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                return result;
+            }
+            netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+        }
+    }
+
+    // Write lock held
+    private void flush() throws IOException {
+        netOut.flip();
+        while (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        netOut.clear();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A bigger copy of a buffer in write mode, keeping what it holds
+    private static ByteBuffer enlarge(ByteBuffer buffer, int wanted) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(wanted, buffer.capacity() * 2));
+        return larger.put(buffer.flip());
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends close_notify unless the writer thread is mid-write, since
+     * waiting for it could take as long as the write timeout, then closes
+     * the socket.
+     */
+    @Override
+    public void close() throws IOException {
+        if (writeLock.tryLock()) {
+            try {
+                engine.closeOutbound();
+                wrap(NOTHING, 0, 1);
+                flush();
+            } catch (IOException e) {
+                // The peer is gone already
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        channel.close();
+    }
+}
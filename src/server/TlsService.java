@@ -0,0 +1,182 @@
+package server;
+
+import logging.Logger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * TLS for the chat and transfer ports. Handshakes, the expensive part of a
+ * TLS connection, run on a small pool of their own, so a burst of new
+ * connections queues there instead of taking CPU from the threads that
+ * carry established sessions. The admission queue is bounded like the
+ * auth pool's: a connection that finds it full is closed straight away,
+ * and one still not through its handshake after
+ * {@code --tls-handshake-timeout-ms} is closed from the timer wheel.
+ *
+ * Returning clients skip the certificate signature: their session is
+ * resumed from a ticket they hold, or with {@code --tls-session-tickets=false}
+ * from the server's own session cache.
+ */
+class TlsService {
+    private static final Logger LOG = Logger.get(TlsService.class);
+
+    private final SSLContext context;
+    private final String[] protocols;
+    private final ThreadPoolExecutor executor;
+    private final TimerWheel wheel;
+    private final long timeoutNanos;
+
+    private final LongAdder full = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder handshakeNanos = new LongAdder();
+
+    TlsService(ServerConfig config, TimerWheel wheel) throws IOException, GeneralSecurityException {
+        // Read when a context creates its session cache, so it has to be set before
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", Boolean.toString(config.isTlsSessionTickets()));
+        char[] password = config.getTlsKeystorePassword().toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(Path.of(config.getTlsKeystore()))) {
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(keyStore, password);
+        this.context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.getTlsSessionCache());
+        sessions.setSessionTimeout(config.getTlsSessionTimeoutSeconds());
+        this.protocols = config.getTlsProtocols().toArray(String[]::new);
+        this.wheel = wheel;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getTlsHandshakeTimeoutMillis());
+        int threads = config.getTlsHandshakeThreads();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getTlsHandshakeQueueCapacity()), runnable -> {
+                    Thread thread = new Thread(runnable, "tls-handshake-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Queues channel for its handshake and returns straight away. ready
+     * gets the TLS channel on the handshake thread once the handshake is
+     * through; if it fails, times out or finds the queue full, the channel
+     * is closed and ready never hears of it.
+     */
+    void handshake(SocketChannel channel, Consumer<TlsChannel> ready) {
+        String remoteAddress = channel.socket().getInetAddress().getHostAddress();
+        // Counts from now, so a connection stuck in the queue is given up on too
+        TimerWheel.Timeout timeout = wheel.newTimeout(() -> {
+            LOG.debug("TLS handshake with {} timed out", remoteAddress);
+            closeQuietly(channel);
+        });
+        wheel.schedule(timeout, timeoutNanos);
+        try {
+            executor.execute(() -> {
+                TlsChannel tls;
+                try {
+                    tls = open(channel);
+                } catch (IOException e) {
+                    LOG.debug("TLS handshake with {} failed: {}", remoteAddress, e.getMessage());
+                    closeQuietly(channel);
+                    return;
+                } finally {
+                    wheel.cancel(timeout);
+                }
+                ready.accept(tls);
+            });
+        } catch (RejectedExecutionException e) {
+            wheel.cancel(timeout);
+            busy.increment();
+            LOG.debug("TLS handshake queue full, closing connection from {}", remoteAddress);
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Runs the handshake on the calling thread. The transfer port uses this
+     * directly, since each of its connections has a thread to itself and
+     * none of them carry chat.
+     */
+    TlsChannel open(SocketChannel channel) throws IOException {
+        // Writes are whole flights or record batches already; Nagle would only hold the
+        // second of two back to back, such as the session ticket and the first reply
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(protocols);
+        TlsChannel tls = new TlsChannel(channel, engine);
+        long started = System.nanoTime();
+        long startedMillis = System.currentTimeMillis();
+        try {
+            tls.handshake();
+        } catch (IOException e) {
+            failed.increment();
+            throw e;
+        }
+        handshakeNanos.add(System.nanoTime() - started);
+        // A resumed session keeps the creation time of the one it resumes
+        (engine.getSession().getCreationTime() < startedMillis ? resumed : full).increment();
+        return tls;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.debug("Error closing connection: {}", e.getMessage());
+        }
+    }
+
+    // Handshakes that signed with the certificate
+    long getFullHandshakes() {
+        return full.sum();
+    }
+
+    // Handshakes that resumed an earlier session from a ticket or the cache
+    long getResumedHandshakes() {
+        return resumed.sum();
+    }
+
+    long getFailedHandshakes() {
+        return failed.sum();
+    }
+
+    // Connections closed because the handshake queue was full
+    long getBusy() {
+        return busy.sum();
+    }
+
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    long getTotalHandshakeNanos() {
+        return handshakeNanos.sum();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+}
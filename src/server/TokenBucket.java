@@ -0,0 +1,61 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept as a single timestamp, in the style of GCRA: instead
+ * of a token count that something has to refill, it stores the time at
+ * which the bucket will be full again. Taking tokens pushes that time
+ * forward by one interval each; the bucket is empty once it is more than
+ * {@code burst} intervals ahead of now. One CAS per check and nothing
+ * allocated, so it can sit in front of every message a client sends and be
+ * shared by every thread that fans out.
+ */
+final class TokenBucket {
+    private final long intervalNanos;
+    private final long capacityNanos;
+    private final AtomicLong fullAt;
+
+    // ratePerSecond of 0 or less makes a bucket that never runs out
+    TokenBucket(double ratePerSecond, int burst) {
+        this.intervalNanos = ratePerSecond > 0 ? Math.max(1, (long) (1e9 / ratePerSecond)) : 0;
+        this.capacityNanos = intervalNanos * Math.max(1, burst);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    boolean isUnlimited() {
+        return intervalNanos == 0;
+    }
+
+    // Largest cost that can ever be taken without waiting
+    int getBurst() {
+        return intervalNanos == 0 ? Integer.MAX_VALUE : (int) (capacityNanos / intervalNanos);
+    }
+
+    boolean tryTake(long now, int cost) {
+        return take(now, cost, 0) == 0;
+    }
+
+    /**
+     * Takes cost tokens, going into debt by up to maxDelayNanos if the
+     * bucket is short. Returns how long the caller should wait for the debt
+     * to be repaid, 0 if there were tokens to spare, or -1 if the debt would
+     * be larger than allowed; nothing is taken then.
+     */
+    long take(long now, int cost, long maxDelayNanos) {
+        if (intervalNanos == 0) {
+            return 0;
+        }
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + intervalNanos * cost;
+            long delay = next - now - capacityNanos;
+            if (delay > maxDelayNanos) {
+                return -1;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, delay);
+            }
+        }
+    }
+}
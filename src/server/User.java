@@ -2,18 +2,19 @@ package server;
 
 public class User {
     private final String username;
-    private final String password;
+    // Salted hash from PasswordHasher, never the plaintext password
+    private final String passwordHash;
 
-    public User(String username, String password) {
+    public User(String username, String passwordHash) {
         this.username = username;
-        this.password = password;
+        this.passwordHash = passwordHash;
     }
 
     public String getUsername() {
         return username;
     }
 
-    public String getPassword() {
-        return password;
+    public String getPasswordHash() {
+        return passwordHash;
     }
-}
\ No newline at end of file
+}
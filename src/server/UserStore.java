@@ -0,0 +1,10 @@
+package server;
+
+// Where ChatServer looks up accounts during login
+public interface UserStore {
+    // Returns null if no such user exists (or the store could not be reached)
+    User findUser(String username);
+
+    default void close() {
+    }
+}
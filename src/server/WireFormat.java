@@ -0,0 +1,7 @@
+package server;
+
+// Protocol a connection settled on during the handshake
+enum WireFormat {
+    TEXT,
+    BINARY
+}
@@ -0,0 +1,130 @@
+package protocol;
+
+import client.Message;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryFrameDecoderTest {
+    private static final LocalDateTime TIME = LocalDateTime.of(2024, 5, 1, 12, 30, 15);
+
+    private final List<Message> decoded = new ArrayList<>();
+    private final List<Integer> wireLengths = new ArrayList<>();
+
+    @Test
+    void decodesFramesFedOneByteAtATime() {
+        Message chat = new Message(Message.Type.CHAT, "anant", null, "hello\nworld", TIME, 42);
+        Message privateMessage = new Message(Message.Type.PRIVATE, "rohan", "anant", "ünïcödé", TIME);
+        Message notice = new Message(Message.Type.SYSTEM, null, null, "", null);
+        ByteBuffer stream = concat(chat, privateMessage, notice);
+
+        BinaryFrameDecoder decoder = new BinaryFrameDecoder(BinaryProtocol.MAX_FRAME_LENGTH);
+        while (stream.hasRemaining()) {
+            ByteBuffer single = stream.slice(stream.position(), 1);
+            stream.position(stream.position() + 1);
+            assertTrue(decode(decoder, single));
+        }
+
+        assertEquals(3, decoded.size());
+        assertMessage(chat, decoded.get(0));
+        assertMessage(privateMessage, decoded.get(1));
+        assertMessage(notice, decoded.get(2));
+        assertNull(decoded.get(2).getTimestamp());
+    }
+
+    @Test
+    void decodesTwoFramesSplitAtEveryPoint() {
+        Message first = new Message(Message.Type.CHAT, "anant", null, "first", TIME, 1);
+        Message second = new Message(Message.Type.ROOM, "rohan", "general", "second", TIME, 2);
+        ByteBuffer stream = concat(first, second);
+        for (int split = 0; split <= stream.limit(); split++) {
+            decoded.clear();
+            BinaryFrameDecoder decoder = new BinaryFrameDecoder(BinaryProtocol.MAX_FRAME_LENGTH);
+            assertTrue(decode(decoder, stream.slice(0, split)));
+            assertTrue(decode(decoder, stream.slice(split, stream.limit() - split)));
+            assertEquals(2, decoded.size(), "split at " + split);
+            assertMessage(first, decoded.get(0));
+            assertMessage(second, decoded.get(1));
+        }
+    }
+
+    @Test
+    void growsForLargeFramesAndReportsWireLength() {
+        String big = "x".repeat(100_000);
+        Message small = new Message(Message.Type.CHAT, "anant", null, "hi", TIME);
+        Message large = new Message(Message.Type.CHAT, "anant", null, big, TIME);
+        ByteBuffer smallFrame = BinaryProtocol.encode(small, false);
+        ByteBuffer largeFrame = BinaryProtocol.encode(large, false);
+        ByteBuffer stream = concat(small, large, small);
+
+        BinaryFrameDecoder decoder = new BinaryFrameDecoder(BinaryProtocol.MAX_FRAME_LENGTH);
+        while (stream.hasRemaining()) {
+            int chunk = Math.min(stream.remaining(), 4093);
+            assertTrue(decode(decoder, stream.slice(stream.position(), chunk)));
+            stream.position(stream.position() + chunk);
+        }
+
+        assertEquals(3, decoded.size());
+        assertEquals(big, decoded.get(1).getContent());
+        assertEquals("hi", decoded.get(2).getContent());
+        assertEquals(List.of(smallFrame.remaining(), largeFrame.remaining(), smallFrame.remaining()), wireLengths);
+    }
+
+    @Test
+    void rejectsOversizedAndEmptyFrames() {
+        ByteBuffer frame = BinaryProtocol.encode(new Message(Message.Type.CHAT, "anant", null, "x".repeat(200), TIME), false);
+        assertFalse(decode(new BinaryFrameDecoder(100), frame));
+        assertFalse(decode(new BinaryFrameDecoder(100), ByteBuffer.wrap(new byte[] {0})));
+        assertTrue(decoded.isEmpty());
+    }
+
+    @Test
+    void rejectsAnOverlongLengthPrefix() {
+        byte[] prefix = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1};
+        assertFalse(decode(new BinaryFrameDecoder(BinaryProtocol.MAX_FRAME_LENGTH), ByteBuffer.wrap(prefix)));
+    }
+
+    @Test
+    void rejectsAnUnknownType() {
+        // Length 2, type 0, no flags
+        assertFalse(decode(new BinaryFrameDecoder(BinaryProtocol.MAX_FRAME_LENGTH), ByteBuffer.wrap(new byte[] {2, 0, 0})));
+        assertTrue(decoded.isEmpty());
+    }
+
+    private boolean decode(BinaryFrameDecoder decoder, ByteBuffer bytes) {
+        return decoder.decode(bytes, frame -> {
+            decoded.add(frame.toMessage());
+            wireLengths.add(frame.wireLength());
+        });
+    }
+
+    private static ByteBuffer concat(Message... messages) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        int size = 0;
+        for (Message message : messages) {
+            ByteBuffer frame = BinaryProtocol.encode(message, false);
+            frames.add(frame);
+            size += frame.remaining();
+        }
+        ByteBuffer stream = ByteBuffer.allocate(size);
+        frames.forEach(stream::put);
+        return stream.flip();
+    }
+
+    private static void assertMessage(Message expected, Message actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getSender(), actual.getSender());
+        assertEquals(expected.getRecipient(), actual.getRecipient());
+        assertEquals(expected.getContent(), actual.getContent());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getSequence(), actual.getSequence());
+    }
+}
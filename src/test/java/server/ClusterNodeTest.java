@@ -0,0 +1,214 @@
+package server;
+
+import client.ChatClient;
+import client.ChatListener;
+import client.FileOffer;
+import client.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Three nodes on localhost, each peered with the other two, with clients on all of them
+class ClusterNodeTest {
+    private static final long TIMEOUT_MILLIS = 15_000;
+
+    private final List<Client> clients = new ArrayList<>();
+
+    @AfterEach
+    void disconnectClients() {
+        clients.forEach(client -> client.chat.disconnect());
+    }
+
+    @Test
+    void presenceAndMessagesCrossTheCluster() throws Exception {
+        int[] ports = freePorts(6);
+        int[] chatPorts = {ports[0], ports[1], ports[2]};
+        int[] clusterPorts = {ports[3], ports[4], ports[5]};
+        for (int node = 0; node < 3; node++) {
+            startNode(node, chatPorts, clusterPorts);
+        }
+
+        Client amanOnC = login("aman", chatPorts[2]);
+        Client anantOnA = login("anant", chatPorts[0]);
+        Client rohanOnB = login("rohan", chatPorts[1]);
+        await(() -> amanOnC.online().containsAll(List.of("aman", "anant", "rohan")), "aman sees everyone");
+        await(() -> anantOnA.online().containsAll(List.of("aman", "anant", "rohan")), "anant sees everyone");
+
+        anantOnA.chat.sendMessage("hello from A");
+        await(() -> amanOnC.saw("anant: hello from A"), "broadcast relayed to C");
+        await(() -> rohanOnB.saw("anant: hello from A"), "broadcast relayed to B");
+
+        rohanOnB.chat.sendPrivateMessage("aman", "psst");
+        await(() -> amanOnC.saw("(Private from rohan): psst"), "private message routed to C");
+        assertFalse(anantOnA.saw("psst"));
+
+        // The same user on two nodes stays online until both sessions are gone
+        Client anantOnB = login("anant", chatPorts[1]);
+        await(() -> anantOnB.online().contains("aman"), "second anant session logged in");
+        anantOnA.chat.disconnect();
+        clients.remove(anantOnA);
+        Thread.sleep(1000);
+        assertTrue(amanOnC.online().contains("anant"));
+        assertTrue(rohanOnB.online().contains("anant"));
+
+        anantOnB.chat.disconnect();
+        clients.remove(anantOnB);
+        await(() -> !amanOnC.online().contains("anant"), "anant gone from C");
+        await(() -> !rohanOnB.online().contains("anant"), "anant gone from B");
+        assertEquals(Set.of("aman", "rohan"), amanOnC.online());
+    }
+
+    @Test
+    void clusterNodesGetTheirOwnDataDirectories() {
+        ServerConfig standalone = ServerConfig.fromArgs(new String[] {"--port=9000"});
+        assertEquals("data/messages", standalone.getLogDir());
+
+        ServerConfig first = ServerConfig.fromArgs(new String[] {"--port=9000", "--cluster-port=9100", "--cluster-secret=s"});
+        ServerConfig second = ServerConfig.fromArgs(new String[] {"--port=9001", "--cluster-port=9101", "--cluster-secret=s",
+                "--node-id=east"});
+        assertEquals("data/node-9000/messages", first.getLogDir());
+        assertEquals("data/node-9000/inbox", first.getInboxDir());
+        assertEquals("data/node-9000/sessions", first.getResumeDir());
+        assertEquals("data/east/messages", second.getLogDir());
+        assertEquals("data/east/inbox", second.getInboxDir());
+        assertEquals("data/east/sessions", second.getResumeDir());
+    }
+
+    private static void startNode(int node, int[] chatPorts, int[] clusterPorts) throws InterruptedException {
+        List<String> peers = new ArrayList<>();
+        for (int other = 0; other < 3; other++) {
+            if (other != node) {
+                peers.add("127.0.0.1:" + clusterPorts[other]);
+            }
+        }
+        ServerConfig config = ServerConfig.fromArgs(new String[] {
+                "--port=" + chatPorts[node],
+                "--node-id=node-" + (char) ('a' + node),
+                "--cluster-port=" + clusterPorts[node],
+                "--cluster-secret=test-secret",
+                "--peers=" + String.join(",", peers),
+                "--presence-interval-ms=50",
+                "--hash-iterations=1000",
+                "--resume-grace-ms=0",
+                "--log-dir=", "--inbox-dir=", "--resume-dir="});
+        // Runs until the test JVM exits
+        Thread.ofPlatform().daemon().name("node-" + node).start(new ChatServer(config)::start);
+        await(() -> accepts(chatPorts[node]), "node " + node + " listening");
+    }
+
+    private Client login(String username, int port) throws InterruptedException {
+        Client client = new Client();
+        clients.add(client);
+        client.chat.setUseBinaryProtocol(true);
+        assertTrue(client.chat.connect("127.0.0.1", port));
+        client.chat.login(username, "password123");
+        await(() -> client.loggedIn, username + " logged in");
+        return client;
+    }
+
+    private static int[] freePorts(int count) throws IOException {
+        List<ServerSocket> sockets = new ArrayList<>();
+        int[] ports = new int[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocket socket = new ServerSocket(0);
+                sockets.add(socket);
+                ports[i] = socket.getLocalPort();
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                socket.close();
+            }
+        }
+        return ports;
+    }
+
+    private static boolean accepts(int port) {
+        try (Socket ignored = new Socket("127.0.0.1", port)) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Timed out waiting for: " + what);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    // A ChatClient and everything it was told
+    private static final class Client implements ChatListener {
+        final ChatClient chat = new ChatClient(this);
+        private final Set<String> online = new LinkedHashSet<>();
+        private final List<String> messages = new ArrayList<>();
+        volatile boolean loggedIn;
+
+        synchronized Set<String> online() {
+            return Set.copyOf(online);
+        }
+
+        synchronized boolean saw(String text) {
+            return messages.stream().anyMatch(message -> message.contains(text));
+        }
+
+        @Override
+        public void loginSuccessful() {
+            loggedIn = true;
+        }
+
+        @Override
+        public void loginFailed(String reason) {
+        }
+
+        @Override
+        public synchronized void displayMessage(String message) {
+            messages.add(message);
+        }
+
+        @Override
+        public synchronized void updateOnlineUsers(String[] users) {
+            online.clear();
+            online.addAll(Arrays.asList(users));
+        }
+
+        @Override
+        public synchronized void applyPresenceDelta(List<String> joined, List<String> left) {
+            online.addAll(joined);
+            online.removeAll(left);
+        }
+
+        @Override
+        public void roomJoined(String room) {
+        }
+
+        @Override
+        public void roomLeft(String room) {
+        }
+
+        @Override
+        public void historyPage(long beforeSequence, long nextBefore, List<Message> messages) {
+        }
+
+        @Override
+        public void fileOffered(FileOffer offer) {
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Runs against an in-memory H2 database standing in for MySQL
+class JdbcUserStoreTest {
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+    private static final long TTL_MILLIS = 300;
+
+    private final PasswordHasher hasher = new PasswordHasher(1000);
+    private String url;
+    private JdbcUserStore store;
+
+    @BeforeEach
+    void createDatabase() throws SQLException {
+        url = "jdbc:h2:mem:users" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+        store = new JdbcUserStore(url, "sa", "", 2, TTL_MILLIS);
+        store.createSchema();
+        store.addUser(new User("anant", hasher.hash("password123")));
+    }
+
+    @AfterEach
+    void closeStore() {
+        store.close();
+    }
+
+    @Test
+    void authenticatesThroughThePool() throws Exception {
+        AuthService auth = new AuthService(store, hasher, 2, 16);
+        try {
+            assertEquals(AuthService.Outcome.ACCEPTED, authenticate(auth, "anant", "password123"));
+            assertEquals(AuthService.Outcome.REJECTED, authenticate(auth, "anant", "wrong"));
+            assertEquals(AuthService.Outcome.REJECTED, authenticate(auth, "nobody", "password123"));
+        } finally {
+            auth.shutdown();
+        }
+    }
+
+    @Test
+    void servesCachedUsersUntilTheTtlExpires() throws Exception {
+        assertNotNull(store.findUser("anant"));
+        // Behind the store's back, so nothing invalidates the cache
+        execute("DELETE FROM users WHERE username = 'anant'");
+        assertNotNull(store.findUser("anant"));
+
+        Thread.sleep(TTL_MILLIS * 2);
+        assertNull(store.findUser("anant"));
+    }
+
+    @Test
+    void cachesUnknownUsersToo() throws Exception {
+        assertNull(store.findUser("rohan"));
+        execute("INSERT INTO users (username, password) VALUES ('rohan', '" + hasher.hash("secret") + "')");
+        assertNull(store.findUser("rohan"));
+
+        Thread.sleep(TTL_MILLIS * 2);
+        User rohan = store.findUser("rohan");
+        assertNotNull(rohan);
+        assertTrue(hasher.verify("secret", rohan.getPasswordHash()));
+    }
+
+    @Test
+    void addUserInvalidatesTheCachedMiss() throws SQLException {
+        assertNull(store.findUser("rohan"));
+        store.addUser(new User("rohan", hasher.hash("secret")));
+        assertNotNull(store.findUser("rohan"));
+    }
+
+    @Test
+    void borrowTimesOutWhenThePoolIsExhausted() throws SQLException {
+        ConnectionPool pool = new ConnectionPool(url, "sa", "", 2, 100);
+        try {
+            ConnectionPool.PooledConnection first = pool.borrow();
+            ConnectionPool.PooledConnection second = pool.borrow();
+            long started = System.nanoTime();
+            assertThrows(SQLTimeoutException.class, pool::borrow);
+            assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(100));
+
+            // Returning one makes it available again, and a broken one frees its slot for a fresh connection
+            pool.release(first, false);
+            assertEquals(first, pool.borrow());
+            pool.release(second, true);
+            ConnectionPool.PooledConnection replacement = pool.borrow();
+            assertFalse(replacement.connection().isClosed());
+            pool.release(first, false);
+            pool.release(replacement, false);
+        } finally {
+            pool.close();
+        }
+    }
+
+    private static AuthService.Outcome authenticate(AuthService auth, String username, String password)
+            throws Exception {
+        CompletableFuture<AuthService.Outcome> outcome = new CompletableFuture<>();
+        auth.authenticate(username, password, outcome::complete);
+        return outcome.get(10, TimeUnit.SECONDS);
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package server;
+
+import client.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import protocol.BinaryFrameDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageLogTest {
+    // Small enough that a few dozen messages span several segments
+    private static final int SEGMENT_BYTES = 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysInOrderAcrossSegmentsAndRestarts() throws IOException {
+        try (MessageLog log = open()) {
+            for (int i = 1; i <= 60; i++) {
+                assertEquals(i, log.append(chat("anant", "message " + i)).getMessage().getSequence());
+            }
+        }
+        assertTrue(segmentFiles() > 1);
+
+        try (MessageLog log = open()) {
+            assertEquals(60, log.lastSequence());
+            assertEquals(61, log.append(chat("rohan", "after restart")).getMessage().getSequence());
+
+            List<Message> all = replay(log, 0, 100, "rohan");
+            assertEquals(61, all.size());
+            for (int i = 0; i < 60; i++) {
+                assertEquals(i + 1, all.get(i).getSequence());
+                assertEquals("message " + (i + 1), all.get(i).getContent());
+            }
+            assertEquals("after restart", all.get(60).getContent());
+
+            List<Message> tail = replay(log, 55, 3, "rohan");
+            assertEquals(List.of(56L, 57L, 58L), tail.stream().map(Message::getSequence).toList());
+        }
+    }
+
+    @Test
+    void replaySkipsPrivateMessagesOfOtherUsers() throws IOException {
+        try (MessageLog log = open()) {
+            log.append(chat("anant", "hello all"));
+            log.append(new Message(Message.Type.PRIVATE, "anant", "rohan", "for rohan"));
+            log.append(new Message(Message.Type.PRIVATE, "priya", "anant", "for anant"));
+            log.append(chat("rohan", "hi"));
+
+            assertEquals(List.of("hello all", "for rohan", "hi"), contents(replay(log, 0, 10, "rohan")));
+            assertEquals(List.of("hello all", "for rohan", "for anant", "hi"), contents(replay(log, 0, 10, "anant")));
+            assertEquals(List.of("hello all", "hi"), contents(replay(log, 0, 10, "someone")));
+        }
+    }
+
+    @Test
+    void pagesBackwardsFromASequence() throws IOException {
+        try (MessageLog log = open()) {
+            for (int i = 1; i <= 30; i++) {
+                log.append(chat("anant", "message " + i));
+            }
+            MessageLog.Page page = log.page(21, 5, "rohan");
+            assertEquals(List.of("message 16", "message 17", "message 18", "message 19", "message 20"),
+                    contents(decode(page.frames())));
+            assertEquals(16, page.nextBefore());
+
+            MessageLog.Page first = log.page(4, 5, "rohan");
+            assertEquals(3, first.frames().size());
+            assertEquals(0, first.nextBefore());
+        }
+    }
+
+    @Test
+    void concurrentAppendsGetDistinctSequences() throws Exception {
+        try (MessageLog log = open(); ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            Set<Long> sequences = ConcurrentHashMap.newKeySet();
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                String sender = "user" + t;
+                writers.add(threads.submit(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        sequences.add(log.append(chat(sender, "message " + i)).getMessage().getSequence());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+            assertEquals(400, sequences.size());
+            assertEquals(400, log.lastSequence());
+            assertEquals(400, replay(log, 0, 1000, "user0").size());
+        }
+    }
+
+    private MessageLog open() throws IOException {
+        return new MessageLog(directory, SEGMENT_BYTES, 0, 0, 0);
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.toString().endsWith(".log")).count();
+        }
+    }
+
+    private static Message chat(String sender, String content) {
+        return new Message(Message.Type.CHAT, sender, null, content);
+    }
+
+    private static List<Message> replay(MessageLog log, long after, int max, String viewer) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        log.replay(after, max, viewer, frames::add);
+        return decode(frames);
+    }
+
+    private static List<Message> decode(List<ByteBuffer> frames) {
+        BinaryFrameDecoder decoder = new BinaryFrameDecoder(1 << 16);
+        List<Message> messages = new ArrayList<>();
+        for (ByteBuffer frame : frames) {
+            assertTrue(decoder.decode(frame.duplicate(), view -> messages.add(view.toMessage())));
+        }
+        return messages;
+    }
+
+    private static List<String> contents(List<Message> messages) {
+        return messages.stream().map(Message::getContent).toList();
+    }
+}
@@ -0,0 +1,127 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+
+    @Test
+    void dropOldestKeepsTheNewestFrames() {
+        OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.DROP_OLDEST, 0);
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(queue.offer(frame("m" + i), true));
+        }
+        assertEquals(3, queue.depth());
+        assertEquals(2, queue.dropped());
+        assertEquals(List.of("m3", "m4", "m5"), drain(queue));
+    }
+
+    @Test
+    void disconnectRefusesOnceFull() {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DISCONNECT, 0);
+        assertTrue(queue.offer(frame("m1"), true));
+        assertTrue(queue.offer(frame("m2"), true));
+        assertFalse(queue.offer(frame("m3"), true));
+        assertEquals(1, queue.dropped());
+        assertEquals(List.of("m1", "m2"), drain(queue));
+    }
+
+    @Test
+    void blockWaitsForRoom() throws Exception {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.BLOCK, 5000);
+        assertTrue(queue.offer(frame("m1"), true));
+        CompletableFuture<Boolean> offered = CompletableFuture.supplyAsync(() -> queue.offer(frame("m2"), true));
+        Thread.sleep(100);
+        assertFalse(offered.isDone());
+
+        assertEquals("m1", text(queue.poll()));
+        assertTrue(offered.get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("m2"), drain(queue));
+        assertEquals(0, queue.dropped());
+    }
+
+    @Test
+    void blockGivesUpAfterTheTimeout() {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.BLOCK, 100);
+        assertTrue(queue.offer(frame("m1"), true));
+        long started = System.nanoTime();
+        assertFalse(queue.offer(frame("m2"), true));
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(1, queue.dropped());
+    }
+
+    @Test
+    void blockNeverWaitsWhenTheCallerMayNot() {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.BLOCK, 60_000);
+        assertTrue(queue.offer(frame("m1"), false));
+        long started = System.nanoTime();
+        assertFalse(queue.offer(frame("m2"), false));
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    void takeWaitsForAFrame() throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, OverflowPolicy.DISCONNECT, 0);
+        CompletableFuture<ByteBuffer> taken = CompletableFuture.supplyAsync(() -> {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(taken.isDone());
+        queue.offer(frame("m1"), true);
+        assertEquals("m1", text(taken.get(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    void handOverMovesEverythingAfterTheOffset() {
+        OutboundQueue old = new OutboundQueue(8, OverflowPolicy.DISCONNECT, 0, 4);
+        assertTrue(old.offerStreamStart(frame("OK"), 0));
+        old.offer(frame("aaa"), true);
+        old.offer(frame("bbb"), true);
+        old.offer(frame("ccc"), true);
+        // The reply, then aaa and bbb are written; ccc is still queued
+        assertEquals(List.of("OK", "aaa", "bbb"), List.of(text(old.poll()), text(old.poll()), text(old.poll())));
+
+        OutboundQueue resumed = new OutboundQueue(8, OverflowPolicy.DISCONNECT, 0, 4);
+        // The client got aaa and the first byte of bbb
+        assertFalse(old.handOver(resumed, 7, frame("RESUMED")));
+        assertTrue(old.handOver(resumed, 4, frame("RESUMED")));
+
+        // Offers to the old queue follow the session
+        assertTrue(old.offer(frame("ddd"), true));
+        assertEquals(0, old.depth());
+        assertEquals(List.of("RESUMED", "bb", "ccc", "ddd"), drain(resumed));
+    }
+
+    private static ByteBuffer frame(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    private static String text(ByteBuffer frame) {
+        return StandardCharsets.UTF_8.decode(frame.duplicate()).toString();
+    }
+
+    private static List<String> drain(OutboundQueue queue) {
+        List<String> frames = new ArrayList<>();
+        ByteBuffer frame;
+        while ((frame = queue.poll()) != null) {
+            frames.add(text(frame));
+        }
+        assertNull(queue.poll());
+        return frames;
+    }
+}
@@ -0,0 +1,171 @@
+package server;
+
+import client.Message;
+import org.junit.jupiter.api.Test;
+import protocol.BinaryFrameDecoder;
+import protocol.BinaryProtocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PresenceTrackerTest {
+    private static final ChatServer SERVER = new ChatServer(ServerConfig.fromArgs(new String[] {
+            "--hash-iterations=1000", "--log-dir=", "--inbox-dir=", "--resume-dir="}));
+
+    private final SessionRegistry sessions = new SessionRegistry();
+    // Never started, so nothing is published until the test calls flush()
+    private final PresenceTracker tracker = new PresenceTracker(sessions, new ServerMetrics(), 60_000);
+    private final RecordingConnection binary = connect(true);
+    private final RecordingConnection text = connect(false);
+
+    @Test
+    void joinAndLeaveInOneIntervalCancelOut() {
+        tracker.joined("anant");
+        tracker.left("anant");
+        tracker.flush();
+        assertEquals(List.of(), binary.take());
+
+        tracker.joined("anant");
+        tracker.flush();
+        tracker.left("anant");
+        tracker.joined("anant");
+        tracker.flush();
+        assertEquals(List.of("PRESENCE 1:+anant"), binary.take());
+    }
+
+    @Test
+    void changesInTheSameDirectionDoNotCancel() {
+        // Reported by two nodes before the interval ends
+        tracker.joined("anant");
+        tracker.joined("anant");
+        tracker.flush();
+        assertEquals(List.of("PRESENCE 1:+anant"), binary.take());
+    }
+
+    @Test
+    void userStaysOnlineUntilEveryReportHasLeft() {
+        tracker.joined("anant");
+        tracker.joined("anant");
+        tracker.joined("rohan");
+        tracker.flush();
+        assertEquals(List.of("PRESENCE 1:+anant,+rohan"), binary.take());
+
+        tracker.left("anant");
+        tracker.flush();
+        assertEquals(List.of(), binary.take());
+
+        tracker.left("anant");
+        tracker.flush();
+        assertEquals(List.of("PRESENCE 2:-anant"), binary.take());
+    }
+
+    @Test
+    void strayLeaveIsIgnored() {
+        tracker.left("anant");
+        tracker.flush();
+        tracker.joined("anant");
+        tracker.flush();
+        assertEquals(List.of("PRESENCE 1:+anant"), binary.take());
+    }
+
+    @Test
+    void snapshotsShowOnlyPublishedState() {
+        tracker.joined("anant");
+        tracker.flush();
+        tracker.joined("rohan");
+        tracker.sendSnapshot(sessions.find("binary"));
+        tracker.sendSnapshot(sessions.find("text"));
+        assertEquals(List.of("PRESENCE 1:+anant", "ONLINE_USERS 1:anant"), binary.take());
+        assertEquals(List.of("ONLINE_USERS:anant", "ONLINE_USERS:anant"), text.take());
+    }
+
+    @Test
+    void textSessionsGetThePlainList() {
+        tracker.joined("anant");
+        tracker.joined("rohan");
+        tracker.flush();
+        tracker.left("anant");
+        tracker.flush();
+        assertEquals(List.of("ONLINE_USERS:anant,rohan", "ONLINE_USERS:rohan"), text.take());
+    }
+
+    private RecordingConnection connect(boolean binaryProtocol) {
+        RecordingConnection connection = new RecordingConnection(binaryProtocol);
+        ClientHandler client = new ClientHandler(connection, SERVER);
+        if (binaryProtocol) {
+            assertTrue(client.onBytes(ByteBuffer.wrap(BinaryProtocol.handshake(BinaryProtocol.VERSION))));
+            // The handshake reply
+            connection.sent.clear();
+        }
+        sessions.login(client, binaryProtocol ? "binary" : "text");
+        return connection;
+    }
+
+    // Keeps what the tracker sends, decoded to one string per message
+    private static final class RecordingConnection implements Connection {
+        private final OutboundQueue queue = new OutboundQueue(64, OverflowPolicy.DROP_OLDEST, 0);
+        private final List<ByteBuffer> sent = new ArrayList<>();
+        private final boolean binary;
+
+        RecordingConnection(boolean binary) {
+            this.binary = binary;
+        }
+
+        List<String> take() {
+            List<String> messages = new ArrayList<>();
+            BinaryFrameDecoder decoder = new BinaryFrameDecoder(BinaryProtocol.MAX_FRAME_LENGTH);
+            for (ByteBuffer frame : sent) {
+                if (!binary) {
+                    messages.add(StandardCharsets.UTF_8.decode(frame).toString().trim());
+                } else {
+                    decoder.decode(frame, view -> {
+                        Message message = view.toMessage();
+                        messages.add(message.getType() + " " + message.getContent());
+                    });
+                }
+            }
+            sent.clear();
+            return messages;
+        }
+
+        @Override
+        public boolean send(ByteBuffer frame) {
+            sent.add(frame.duplicate());
+            return true;
+        }
+
+        @Override
+        public boolean sendThenCompress(ByteBuffer frame, FrameCompressor compressor) {
+            compressor.release();
+            return send(frame);
+        }
+
+        @Override
+        public void flushQueued() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public long getWriteWaitingSince() {
+            return 0;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "127.0.0.1";
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return queue;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTest {
+    private static final long TICK_MILLIS = 10;
+
+    // Small, so the longer delays below take several turns of the wheel; a daemon thread, left to run out
+    private final TimerWheel wheel = new TimerWheel("test-wheel", TICK_MILLIS, 8);
+
+    TimerWheelTest() {
+        wheel.start();
+    }
+
+    @Test
+    void runsNoEarlierThanTheDelay() throws InterruptedException {
+        for (long delayMillis : new long[] {0, 25, 200}) {
+            CountDownLatch ran = new CountDownLatch(1);
+            AtomicLong ranAt = new AtomicLong();
+            long scheduled = System.nanoTime();
+            wheel.schedule(wheel.newTimeout(() -> {
+                ranAt.set(System.nanoTime());
+                ran.countDown();
+            }), TimeUnit.MILLISECONDS.toNanos(delayMillis));
+
+            assertTrue(ran.await(delayMillis + 1000, TimeUnit.MILLISECONDS));
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(ranAt.get() - scheduled);
+            // Deadlines round up to a tick boundary, so never early by more than one tick
+            assertTrue(elapsedMillis >= delayMillis - TICK_MILLIS, "ran after " + elapsedMillis + " ms");
+        }
+    }
+
+    @Test
+    void runsInDeadlineOrderAcrossTurns() throws InterruptedException {
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch ran = new CountDownLatch(3);
+        int[] delays = {250, 30, 120};
+        for (int delay : delays) {
+            wheel.schedule(wheel.newTimeout(() -> {
+                order.add(delay);
+                ran.countDown();
+            }), TimeUnit.MILLISECONDS.toNanos(delay));
+        }
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(30, 120, 250), order);
+    }
+
+    @Test
+    void cancelledTimeoutsNeverRun() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        TimerWheel.Timeout timeout = wheel.newTimeout(runs::incrementAndGet);
+        wheel.schedule(timeout, TimeUnit.MILLISECONDS.toNanos(50));
+        wheel.cancel(timeout);
+        wheel.cancel(timeout);
+
+        CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(wheel.newTimeout(later::countDown), TimeUnit.MILLISECONDS.toNanos(150));
+        assertTrue(later.await(1, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    void aTaskCanRearmItsOwnTimeout() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        TimerWheel.Timeout[] timeout = new TimerWheel.Timeout[1];
+        timeout[0] = wheel.newTimeout(() -> {
+            if (runs.incrementAndGet() < 5) {
+                wheel.schedule(timeout[0], TimeUnit.MILLISECONDS.toNanos(15));
+            } else {
+                done.countDown();
+            }
+        });
+        wheel.schedule(timeout[0], 0);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+
+        Thread.sleep(5 * TICK_MILLIS);
+        assertEquals(5, runs.get());
+    }
+}
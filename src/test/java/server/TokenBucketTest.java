@@ -0,0 +1,95 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void allowsABurstThenRefillsAtTheRate() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryTake(now, 1));
+        }
+        assertFalse(bucket.tryTake(now, 1));
+
+        // One token every 100 ms
+        assertFalse(bucket.tryTake(now + 99 * MILLI, 1));
+        assertTrue(bucket.tryTake(now + 100 * MILLI, 1));
+        assertFalse(bucket.tryTake(now + 100 * MILLI, 1));
+
+        // Idle for long enough, it is full again but holds no more than the burst
+        long later = now + 10_000 * MILLI;
+        assertTrue(bucket.tryTake(later, 5));
+        assertFalse(bucket.tryTake(later, 1));
+    }
+
+    @Test
+    void costsLargerThanTheBurstNeverFit() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        assertEquals(5, bucket.getBurst());
+        assertFalse(bucket.tryTake(System.nanoTime(), 6));
+    }
+
+    @Test
+    void takeGoesIntoBoundedDebt() {
+        TokenBucket bucket = new TokenBucket(10, 2);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.take(now, 2, 0));
+
+        // Short by one token: wait one interval
+        assertEquals(100 * MILLI, bucket.take(now, 1, 500 * MILLI));
+        // Would owe 400 ms more than allowed; refused and nothing taken
+        assertEquals(-1, bucket.take(now, 4, 300 * MILLI));
+        assertEquals(200 * MILLI, bucket.take(now, 1, 300 * MILLI));
+    }
+
+    @Test
+    void zeroRateIsUnlimited() {
+        TokenBucket bucket = new TokenBucket(0, 1);
+        assertTrue(bucket.isUnlimited());
+        long now = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(bucket.tryTake(now, 1_000));
+        }
+    }
+
+    @Test
+    void concurrentTakersShareOneBurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1, 1000);
+        long now = System.nanoTime();
+        AtomicInteger taken = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 500; i++) {
+                    if (bucket.tryTake(now, 1)) {
+                        taken.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1000, taken.get());
+    }
+}